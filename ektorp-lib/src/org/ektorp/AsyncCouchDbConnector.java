@@ -0,0 +1,79 @@
+package org.ektorp;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Non-blocking counterpart of {@link CouchDbConnector}.
+ * 
+ * Every method returns as soon as the request has been handed to the http client. Failures
+ * are reported through the returned Future, wrapped in an ExecutionException, as the same
+ * exceptions that CouchDbConnector would throw. No thread waits for a response when the connector
+ * runs on a NioAsyncHttpClient.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public interface AsyncCouchDbConnector {
+	/**
+	 * 
+	 * @param <T>
+	 * @param c the target class to map to.
+	 * @param id the id of the document in the database.
+	 * @return the document mapped as the specified class.
+	 */
+	<T> Future<T> get(Class<T> c, String id);
+	/**
+	 * Creates the Object as a document in the database.
+	 * If the id is not set it will be generated by the database.
+	 * If a document with the id already exists the Future fails with a DocumentExistsException.
+	 * 
+	 * The Object's id and revision fields will be updated when the Future completes.
+	 * @param o
+	 */
+	Future<Void> create(Object o);
+	/**
+	 * Updates the document.
+	 * 
+	 * The Object's revision field will be updated when the Future completes.
+	 * @param o
+	 */
+	Future<Void> update(Object o);
+	/**
+	 * @param o
+	 * @return the revision of the deleted document
+	 */
+	Future<String> delete(Object o);
+	/**
+	 * @param id
+	 * @param revision
+	 * @return the revision of the deleted document
+	 */
+	Future<String> delete(String id, String revision);
+	/**
+	 * Maps the doc of each row to the specified type. The query is always sent with include_docs=true, so each
+	 * row's doc is the document that emitted the row, or the document linked by an {"_id": ...} value.
+	 * 
+	 * This differs from CouchDbConnector.queryView(ViewQuery, Class), which treats a row's value as the id of the
+	 * document to load. The two agree for views emitting the id of the emitting document, i.e. emit(key, doc._id),
+	 * but a view emitting the id of another document as a plain string value must be queried synchronously or
+	 * with an {"_id": ...} value.
+	 * 
+	 * @param <T>
+	 * @param query
+	 * @param type the type to map the result to
+	 * @return the view result mapped as the specified class.
+	 */
+	<T> Future<List<T>> queryView(ViewQuery query, Class<T> type);
+	/**
+	 * 
+	 * @param query
+	 * @return
+	 */
+	Future<ViewResult> queryView(ViewQuery query);
+	/**
+	 * @return name
+	 */
+	String getDatabaseName();
+	
+}
@@ -16,7 +16,7 @@ public class Attachment implements Serializable {
 	private static final long serialVersionUID = 1L;
 	private String id;
 	private String contentType;
-	private int length;
+	private long length;
 	private transient InputStream data;
 	private String dataBase64;
 	private boolean stub;
@@ -28,7 +28,7 @@ public class Attachment implements Serializable {
 	 * @param contentType
 	 * @param contentLength
 	 */
-	public Attachment(String id, InputStream data, String contentType, int contentLength) {
+	public Attachment(String id, InputStream data, String contentType, long contentLength) {
 		Assert.hasText(id, "attachmentId must have a value");
 		Assert.hasText(contentType, "contentType must have a value");
 		Assert.notNull(data, "data input stream cannot be null");
@@ -70,7 +70,7 @@ public class Attachment implements Serializable {
 		this.contentType = contentType;
 	}
 	@JsonIgnore
-	public int getLength() {
+	public long getLength() {
 		return length;
 	}
 	/**
@@ -97,7 +97,7 @@ public class Attachment implements Serializable {
 		this.id = id;
 	}
 
-	void setLength(int contentLength) {
+	void setLength(long contentLength) {
 		this.length = contentLength;
 	}
 
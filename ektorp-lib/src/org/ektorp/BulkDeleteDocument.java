@@ -0,0 +1,53 @@
+package org.ektorp;
+
+import java.io.*;
+
+import org.codehaus.jackson.annotate.*;
+import org.ektorp.util.*;
+
+/**
+ * Represents a deletion of a document in a bulk operation.
+ * 
+ * Only id and revision of the document are sent to the database.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class BulkDeleteDocument implements Serializable {
+
+	private static final long serialVersionUID = 6517134960185042866L;
+	private final String id;
+	private String revision;
+	
+	public static BulkDeleteDocument of(Object o) {
+		Assert.notNull(o, "document cannot be null");
+		return new BulkDeleteDocument(ReflectionUtils.getId(o), ReflectionUtils.getRevision(o));
+	}
+	
+	public BulkDeleteDocument(String id, String revision) {
+		Assert.hasText(id, "id must have a value");
+		Assert.hasText(revision, "revision must have a value");
+		this.id = id;
+		this.revision = revision;
+	}
+	
+	@JsonProperty("_id")
+	public String getId() {
+		return id;
+	}
+	
+	@JsonProperty("_rev")
+	public String getRevision() {
+		return revision;
+	}
+	
+	@JsonProperty("_rev")
+	public void setRevision(String s) {
+		revision = s;
+	}
+	
+	@JsonProperty("_deleted")
+	public boolean isDeleted() {
+		return true;
+	}
+}
@@ -0,0 +1,161 @@
+package org.ektorp;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import org.ektorp.util.*;
+
+/**
+ * Parameters for reading the _changes feed of a database.
+ * 
+ * Longpoll and continuous feeds ask the database for a heartbeat newline every five seconds by default,
+ * so that an idle feed does not run into the socket timeout of the http client.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class ChangesCommand {
+
+	public enum Feed {
+		NORMAL, LONGPOLL, CONTINUOUS
+	}
+	
+	private final static int NOT_SET = -1;
+	private final static int DEFAULT_HEARTBEAT = 5000;
+	
+	private Feed feed = Feed.NORMAL;
+	private long since = NOT_SET;
+	private boolean includeDocs;
+	private String filter;
+	private final Map<String, String> filterParams = new LinkedHashMap<String, String>();
+	private int limit = NOT_SET;
+	private boolean descending;
+	private int heartbeat = DEFAULT_HEARTBEAT;
+	
+	public ChangesCommand feed(Feed f) {
+		Assert.notNull(f, "feed cannot be null");
+		feed = f;
+		return this;
+	}
+	/**
+	 * Only changes after this sequence will be included.
+	 * @param seq
+	 * @return
+	 */
+	public ChangesCommand since(long seq) {
+		since = seq;
+		return this;
+	}
+	
+	public ChangesCommand includeDocs(boolean b) {
+		includeDocs = b;
+		return this;
+	}
+	/**
+	 * @param s the filter function as designdocname/filtername, i.e. without the _design/ prefix.
+	 * @return
+	 */
+	public ChangesCommand filter(String s) {
+		filter = s;
+		return this;
+	}
+	/**
+	 * Adds a query parameter that is passed on to the filter function.
+	 * @param name
+	 * @param value
+	 * @return
+	 */
+	public ChangesCommand filterParam(String name, String value) {
+		Assert.hasText(name, "name must have a value");
+		filterParams.put(name, value);
+		return this;
+	}
+	
+	public ChangesCommand limit(int i) {
+		limit = i;
+		return this;
+	}
+	/**
+	 * Reads the changes latest first. Only meaningful for normal feeds.
+	 * @param b
+	 * @return
+	 */
+	public ChangesCommand descending(boolean b) {
+		descending = b;
+		return this;
+	}
+	/**
+	 * @param ms interval of heartbeat newlines in longpoll and continuous feeds. 0 disables the heartbeat.
+	 * @return
+	 */
+	public ChangesCommand heartbeat(int ms) {
+		heartbeat = ms;
+		return this;
+	}
+	
+	public Feed getFeed() {
+		return feed;
+	}
+	/**
+	 * @return -1 if since is not set.
+	 */
+	public long getSince() {
+		return since;
+	}
+	
+	public boolean isIncludeDocs() {
+		return includeDocs;
+	}
+	
+	public ChangesCommand copy() {
+		ChangesCommand c = new ChangesCommand();
+		c.feed = feed;
+		c.since = since;
+		c.includeDocs = includeDocs;
+		c.filter = filter;
+		c.filterParams.putAll(filterParams);
+		c.limit = limit;
+		c.descending = descending;
+		c.heartbeat = heartbeat;
+		return c;
+	}
+	/**
+	 * @param changesPath the path to the _changes resource of the database.
+	 * @return
+	 */
+	public String buildQuery(String changesPath) {
+		StringBuilder query = new StringBuilder(changesPath);
+		query.append("?feed=").append(feed.name().toLowerCase());
+		if (since != NOT_SET) {
+			query.append("&since=").append(since);
+		}
+		if (includeDocs) {
+			query.append("&include_docs=true");
+		}
+		if (filter != null) {
+			query.append("&filter=").append(urlEncode(filter));
+			for (Map.Entry<String, String> e : filterParams.entrySet()) {
+				query.append("&").append(urlEncode(e.getKey())).append("=").append(urlEncode(e.getValue()));
+			}
+		}
+		if (limit != NOT_SET) {
+			query.append("&limit=").append(limit);
+		}
+		if (descending) {
+			query.append("&descending=true");
+		}
+		if (feed != Feed.NORMAL && heartbeat > 0) {
+			query.append("&heartbeat=").append(heartbeat);
+		}
+		return query.toString();
+	}
+	
+	private String urlEncode(String s) {
+		try {
+			return URLEncoder.encode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+}
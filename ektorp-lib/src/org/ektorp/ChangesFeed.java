@@ -0,0 +1,23 @@
+package org.ektorp;
+
+/**
+ * A running subscription to the _changes feed of a database.
+ * 
+ * The feed reconnects from the last read sequence if the connection is lost, until it is cancelled.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public interface ChangesFeed {
+	/**
+	 * @return the sequence of the last change handed to the listener, -1 if no change has been handed over yet.
+	 * This is the sequence to persist in order to resume the feed later.
+	 */
+	long getLastSequence();
+	
+	boolean isAlive();
+	/**
+	 * Stops the feed. Changes that have been read but not yet handed to the listener are dropped.
+	 */
+	void cancel();
+}
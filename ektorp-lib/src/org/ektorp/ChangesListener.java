@@ -0,0 +1,18 @@
+package org.ektorp;
+
+import java.util.*;
+
+/**
+ * Receives the changes read by a {@link ChangesFeed}.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public interface ChangesListener {
+	/**
+	 * Called on the feed's dispatcher thread with the changes that have been read since the last call,
+	 * in sequence order. While this method runs the feed keeps reading until its buffer is full.
+	 * @param changes
+	 */
+	void onChanges(List<DocumentChange> changes);
+}
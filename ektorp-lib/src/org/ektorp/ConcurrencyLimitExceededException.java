@@ -0,0 +1,24 @@
+package org.ektorp;
+/**
+ * Thrown when a request is rejected without being sent because too many requests are already in flight.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class ConcurrencyLimitExceededException extends DbAccessException {
+	
+	private static final long serialVersionUID = 3410262097338925173L;
+	
+	private final int limit;
+	
+	public ConcurrencyLimitExceededException(int limit) {
+		super(String.format("concurrency limit of %d requests exceeded", limit));
+		this.limit = limit;
+	}
+	/**
+	 * @return the concurrency limit in effect when the request was rejected.
+	 */
+	public int getLimit() {
+		return limit;
+	}
+}
@@ -1,7 +1,9 @@
 package org.ektorp;
 
 import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.codehaus.jackson.*;
 /**
@@ -42,8 +44,8 @@ public interface CouchDbConnector {
 	 */
 	void update(Object o);
 	/**
-	 * Deletes the Object in the database.
-	 * @param o
+	 * Deletes the Object in the database with a single DELETE of the Object's id and revision.
+	 * @param o must have id and revision set
 	 * @return the revision of the deleted document
 	 */
 	String delete(Object o);
@@ -54,6 +56,40 @@ public interface CouchDbConnector {
 	 * @return the revision of the deleted document
 	 */
 	String delete(String id, String revision);
+	/**
+	 * Creates, updates or deletes all objects in one request to the database.
+	 * 
+	 * Objects without revision are created, objects with revision are updated.
+	 * Use {@link BulkDeleteDocument} to have a document deleted.
+	 * 
+	 * Generated ids and new revisions are written back to the objects through their
+	 * setId(String s) and setRevision(String s) methods.
+	 * 
+	 * The operation is not atomic, a failure for one document, i.e. an update conflict,
+	 * does not affect the other documents in the batch.
+	 * 
+	 * @param objects
+	 * @return one result per object, in the same order as the objects were supplied.
+	 */
+	List<DocumentOperationResult> executeBulk(Collection<?> objects);
+	/**
+	 * Creates all objects in one bulk request.
+	 * @param objects must all be new
+	 * @return one result per object, in the same order as the objects were supplied.
+	 */
+	List<DocumentOperationResult> createAll(Collection<?> objects);
+	/**
+	 * Updates all objects in one bulk request.
+	 * @param objects must all have id and revision set
+	 * @return one result per object, in the same order as the objects were supplied.
+	 */
+	List<DocumentOperationResult> updateAll(Collection<?> objects);
+	/**
+	 * Deletes all objects in one bulk request.
+	 * @param objects must all have id and revision set
+	 * @return one result per object, in the same order as the objects were supplied.
+	 */
+	List<DocumentOperationResult> deleteAll(Collection<?> objects);
 	/**
 	 * 
 	 * @param <T>
@@ -62,6 +98,43 @@ public interface CouchDbConnector {
 	 * @return the document mapped as the specified class.
 	 */
 	<T> T get(Class<T> c, String id);
+	/**
+	 * Loads all specified documents in one request.
+	 * 
+	 * Documents that are missing or deleted are left out of the result.
+	 * 
+	 * @param <T>
+	 * @param c the target class to map to.
+	 * @param ids the ids of the documents in the database.
+	 * @return the documents mapped as the specified class, in the same order as the ids.
+	 */
+	<T> List<T> getAll(Class<T> c, Collection<String> ids);
+	/**
+	 * Loads the documents with concurrent requests, one per id.
+	 * 
+	 * Useful when the ids are known up front and each document should be read on its own,
+	 * i.e. the children of a document. The concurrency is bounded by the connector's parallel executor.
+	 * 
+	 * @param <T>
+	 * @param c the target class to map to.
+	 * @param ids
+	 * @return the documents, in the same order as the ids.
+	 * @throws DocumentNotFoundException if any of the documents is missing.
+	 */
+	<T> List<T> parallelGet(Class<T> c, Collection<String> ids);
+	/**
+	 * Runs independent operations, typically calls to this connector, concurrently
+	 * and waits for all of them to finish.
+	 * 
+	 * When called from within one of the operations, the nested operations are run one after the other
+	 * on the calling thread, as waiting for operations queued behind the caller could otherwise deadlock.
+	 * 
+	 * @param <T>
+	 * @param tasks
+	 * @return the results of the tasks, in the same order as the tasks.
+	 * @throws RuntimeException the exception of the first failed task in the collection's order.
+	 */
+	<T> List<T> inParallel(Collection<? extends Callable<T>> tasks);
 	/**
 	 * Check if the database contains a document.
 	 * @param id
@@ -87,6 +160,27 @@ public interface CouchDbConnector {
 	 * @return
 	 */
 	Attachment getAttachment(String id, String attachmentId);
+	/**
+	 * Reads a byte range of the attachment through an HTTP Range request.
+	 * If the database ignores the range and sends the whole attachment, the bytes before offset are skipped
+	 * and reading stops after length bytes.
+	 * The returned Attachment's data stream must be closed.
+	 * @param id
+	 * @param attachmentId
+	 * @param offset the first byte to read
+	 * @param length the number of bytes to read, -1 reads to the end of the attachment.
+	 * @return the requested part of the attachment.
+	 */
+	Attachment getAttachment(String id, String attachmentId, long offset, long length);
+	/**
+	 * Copies the attachment into the channel. If the channel is a FileChannel the data is written
+	 * with FileChannel.transferFrom at the channel's current position.
+	 * @param id
+	 * @param attachmentId
+	 * @param target
+	 * @return the number of bytes written.
+	 */
+	long readAttachment(String id, String attachmentId, WritableByteChannel target);
 	/**
 	 * Creates both the document and the attachment
 	 * @param docId
@@ -102,6 +196,19 @@ public interface CouchDbConnector {
 	 * @return the new revision of the document
 	 */
 	String createAttachment(String docId, String revision, Attachment a);
+	/**
+	 * Adds an attachment that is read from the channel. If the channel is a FileChannel the data is sent
+	 * with FileChannel.transferTo from the channel's current position.
+	 * @param docId
+	 * @param revision may be null if the document does not exist.
+	 * @param attachmentId
+	 * @param contentType
+	 * @param data
+	 * @param contentLength the number of bytes to send.
+	 * @return the new revision of the document
+	 */
+	String createAttachment(String docId, String revision, String attachmentId, String contentType, 
+			ReadableByteChannel data, long contentLength);
 	/**
 	 * 
 	 * @param docId
@@ -115,7 +222,19 @@ public interface CouchDbConnector {
 	 */
 	List<String> getAllDocIds();
 	/**
-	 * This method requires the view result values to be document ids.
+	 * Loads all documents in the database except design documents in one request to _all_docs.
+	 * 
+	 * @param <T>
+	 * @param c the target class to map to.
+	 * @return the documents mapped as the specified class, in id order.
+	 */
+	<T> List<T> getAllDocs(Class<T> c);
+	/**
+	 * If the query has include_docs set, the document embedded in each row is mapped directly
+	 * and the view may emit any value. The whole result is then read in one request.
+	 * 
+	 * Otherwise this method requires the view result values to be document ids.
+	 * The documents are then loaded in one additional request to _all_docs.
 	 * 
 	 * {"_id":"_design/ExampleDoc",
 	 *	"views":{
@@ -124,6 +243,8 @@ public interface CouchDbConnector {
 	 *	}
 	 * }
 	 * 
+	 * Rows that refer to missing or deleted documents are left out of the result.
+	 * 
 	 * @param <T>
 	 * @param query
 	 * @param type the type to map the result to
@@ -136,6 +257,58 @@ public interface CouchDbConnector {
 	 * @return
 	 */
 	ViewResult queryView(ViewQuery query);
+	/**
+	 * Reads one page of the view result.
+	 * 
+	 * Pages are located through the startkey and startkey_docid of the rows at the page boundaries,
+	 * so the cost of a page does not grow with its depth in the view as it does when paging with skip.
+	 * Any limit or skip set on the query is overridden.
+	 * 
+	 * Each row's doc is mapped to the type, so the query must include docs. The documents of a page are read
+	 * along with its rows instead of being loaded by the ids the view emits, as queryView(ViewQuery, Class) does.
+	 * 
+	 * @param <T>
+	 * @param query
+	 * @param pr use {@link PageRequest#firstPage(int)} for the first page, then the requests provided by the returned page.
+	 * @param type the type to map each row to
+	 * @return
+	 * @throws IllegalArgumentException if the query does not include docs.
+	 */
+	<T> Page<T> queryForPage(ViewQuery query, PageRequest pr, Class<T> type);
+	/**
+	 * Reads the view result one row at a time from the open connection, so that arbitrary large
+	 * results can be processed in constant memory.
+	 * 
+	 * Each row's doc is mapped to the type. Unlike queryView(ViewQuery, Class), which loads the documents
+	 * whose ids the view emits, the documents cannot be loaded while streaming, so the query must include docs.
+	 * 
+	 * The result must be closed if it is not iterated to the end.
+	 * 
+	 * @param <T>
+	 * @param query
+	 * @param type the type to map each row to
+	 * @return
+	 * @throws IllegalArgumentException if the query does not include docs.
+	 */
+	<T> StreamingViewResult<T> streamView(ViewQuery query, Class<T> type);
+	/**
+	 * Reads a normal or longpoll _changes feed.
+	 * A longpoll request blocks until there is at least one change after the command's since sequence.
+	 * @param cmd
+	 * @return the changes in sequence order.
+	 */
+	List<DocumentChange> changes(ChangesCommand cmd);
+	/**
+	 * Starts following a longpoll or continuous _changes feed in the background.
+	 * 
+	 * The changes are parsed as they arrive on the open connection and handed to the listener in batches
+	 * on a dedicated thread. If the listener falls behind, reading from the connection pauses until it catches up.
+	 * 
+	 * @param cmd
+	 * @param listener
+	 * @return the running feed, cancel it to stop following the database.
+	 */
+	ChangesFeed changesFeed(ChangesCommand cmd, ChangesListener listener);
 	/**
 	 * 
 	 * @param view
@@ -145,6 +318,7 @@ public interface CouchDbConnector {
 	InputStream queryForStream(ViewQuery query);
 	/**
 	 * Creates a database on the configured path if it does not exists.
+	 * Sends a single PUT, an existing database is not treated as an error.
 	 */
 	void createDatabaseIfNotExists();
 	/**
@@ -19,6 +19,8 @@ public class DbPath {
 	private final String dbName;
 	private final String path;
 	private final String allDocs;
+	private final String bulkDocs;
+	private final String changes;
 
 	public DbPath(String s) {
 		Assert.notNull(s);
@@ -30,6 +32,8 @@ public class DbPath {
 		path = "/" + DbPath.escape(dbName) + "/";
 		
 		allDocs = path + "_all_docs";
+		bulkDocs = path + "_bulk_docs";
+		changes = path + "_changes";
 	}
 	/**
 	 * Appends the string to the dbPath.
@@ -67,6 +71,14 @@ public class DbPath {
 		return allDocs;
 	}
 	
+	public String getBulkDocsPath() {
+		return bulkDocs;
+	}
+	
+	public String getChangesPath() {
+		return changes;
+	}
+	
 	public String getDbName() {
 		return dbName;
 	}
@@ -0,0 +1,55 @@
+package org.ektorp;
+
+import org.codehaus.jackson.*;
+
+/**
+ * A row in the _changes feed of a database.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class DocumentChange {
+
+	private final long sequence;
+	private final String id;
+	private final String revision;
+	private final boolean deleted;
+	private final JsonNode doc;
+	
+	public DocumentChange(long sequence, String id, String revision, boolean deleted, JsonNode doc) {
+		this.sequence = sequence;
+		this.id = id;
+		this.revision = revision;
+		this.deleted = deleted;
+		this.doc = doc;
+	}
+	
+	public long getSequence() {
+		return sequence;
+	}
+	
+	public String getId() {
+		return id;
+	}
+	/**
+	 * @return the winning revision of the changed document.
+	 */
+	public String getRevision() {
+		return revision;
+	}
+	
+	public boolean isDeleted() {
+		return deleted;
+	}
+	/**
+	 * @return the document if the feed was read with include_docs, otherwise null.
+	 */
+	public JsonNode getDoc() {
+		return doc;
+	}
+	
+	@Override
+	public String toString() {
+		return sequence + ": " + id + " " + revision + (deleted ? " deleted" : "");
+	}
+}
@@ -0,0 +1,83 @@
+package org.ektorp;
+
+import java.io.*;
+
+import org.codehaus.jackson.annotate.*;
+
+/**
+ * The outcome for a single document in a bulk operation.
+ * 
+ * A successful operation carries the new revision of the document, a failed
+ * operation carries the error and reason reported by the database, i.e. "conflict".
+ * 
+ * @author henrik lundgren
+ *
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DocumentOperationResult implements Serializable {
+
+	private static final long serialVersionUID = -3407785539355011813L;
+	private static final String CONFLICT = "conflict";
+	private static final String SUPERSEDED = "superseded";
+	
+	private final String id;
+	private final String revision;
+	private final String error;
+	private final String reason;
+	
+	@JsonCreator
+	public DocumentOperationResult(@JsonProperty("id") String id,
+			@JsonProperty("rev") String revision,
+			@JsonProperty("error") String error,
+			@JsonProperty("reason") String reason) {
+		this.id = id;
+		this.revision = revision;
+		this.error = error;
+		this.reason = reason;
+	}
+	
+	/**
+	 * @param id
+	 * @return the result of a write that was replaced by a later write of the same document before it was sent.
+	 */
+	public static DocumentOperationResult superseded(String id) {
+		return new DocumentOperationResult(id, null, SUPERSEDED, "replaced by a later version of the document before it was written");
+	}
+	
+	public String getId() {
+		return id;
+	}
+	/**
+	 * @return the new revision of the document, null if the operation failed.
+	 */
+	public String getRevision() {
+		return revision;
+	}
+	
+	public String getError() {
+		return error;
+	}
+	
+	public String getReason() {
+		return reason;
+	}
+	
+	public boolean isErroneous() {
+		return error != null;
+	}
+	
+	public boolean isConflict() {
+		return CONFLICT.equals(error);
+	}
+	/**
+	 * @return true if the document was not written because a later version replaced it while queued.
+	 */
+	public boolean isSuperseded() {
+		return SUPERSEDED.equals(error);
+	}
+	
+	@Override
+	public String toString() {
+		return isErroneous() ? String.format("%s: %s (%s)", id, error, reason) : id + ":" + revision;
+	}
+}
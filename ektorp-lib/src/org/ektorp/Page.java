@@ -0,0 +1,82 @@
+package org.ektorp;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A page of a view result, see {@link CouchDbConnector#queryForPage(ViewQuery, PageRequest, Class)}
+ * 
+ * @author henrik lundgren
+ *
+ * @param <T>
+ */
+public class Page<T> implements Iterable<T>, Serializable {
+
+	private static final long serialVersionUID = -5312948017416658153L;
+	private final List<T> rows;
+	private final PageRequest current;
+	private final PageRequest next;
+	private final PageRequest previous;
+	
+	public Page(List<T> rows, PageRequest current, PageRequest next, PageRequest previous) {
+		this.rows = rows;
+		this.current = current;
+		this.next = next;
+		this.previous = previous;
+	}
+	
+	public List<T> getRows() {
+		return rows;
+	}
+	
+	public int size() {
+		return rows.size();
+	}
+	
+	public int getPageSize() {
+		return current.getPageSize();
+	}
+	/**
+	 * @return the index of this page, starting from 0.
+	 */
+	public int getPageNo() {
+		return current.getPage();
+	}
+	
+	public boolean isHasNext() {
+		return next != null;
+	}
+	
+	public boolean isHasPrevious() {
+		return previous != null;
+	}
+	/**
+	 * @return null if this is the last page.
+	 */
+	public PageRequest getNextPageRequest() {
+		return next;
+	}
+	/**
+	 * @return null if this is the first page.
+	 */
+	public PageRequest getPreviousPageRequest() {
+		return previous;
+	}
+	/**
+	 * @return a link to the next page, null if this is the last page.
+	 */
+	public String getNextLink() {
+		return next != null ? next.asLink() : null;
+	}
+	/**
+	 * @return a link to the previous page, null if this is the first page.
+	 */
+	public String getPreviousLink() {
+		return previous != null ? previous.asLink() : null;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return rows.iterator();
+	}
+}
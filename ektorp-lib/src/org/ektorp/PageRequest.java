@@ -0,0 +1,113 @@
+package org.ektorp;
+
+import java.io.*;
+import java.net.*;
+
+import org.codehaus.jackson.annotate.*;
+import org.codehaus.jackson.map.*;
+import org.ektorp.util.*;
+
+/**
+ * Identifies a page in a view result.
+ * 
+ * A page is located by the key and doc id of its first row, or, when paging backwards, by the key and doc id
+ * of the first row of the following page. The view is therefore never skipped through, and the cost of a
+ * page is the same regardless of how deep into the view it is.
+ * 
+ * A page request can be turned into a link that is safe to use as a url parameter with {@link #asLink()}
+ * and restored with {@link #fromLink(String)}.
+ * 
+ * @author henrik lundgren
+ *
+ */
+@JsonWriteNullProperties(false)
+public class PageRequest implements Serializable {
+
+	private static final long serialVersionUID = 4961632958634498342L;
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final String UTF_8 = "UTF-8";
+	
+	private final int pageSize;
+	private final int page;
+	private final String startKey;
+	private final String startDocId;
+	private final boolean back;
+	
+	public static PageRequest firstPage(int pageSize) {
+		return new PageRequest(pageSize, 0, null, null, false);
+	}
+	
+	public static PageRequest fromLink(String link) {
+		Assert.hasText(link, "link must have a value");
+		try {
+			return MAPPER.readValue(URLDecoder.decode(link, UTF_8), PageRequest.class);
+		} catch (Exception e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+	/**
+	 * 
+	 * @param pageSize
+	 * @param page the index of the page, starting from 0.
+	 * @param startKey the key of the row to start from as a JSON value, null for the first page.
+	 * @param startDocId the doc id of the row to start from.
+	 * @param back true if the page ends before the start row.
+	 */
+	@JsonCreator
+	public PageRequest(@JsonProperty("s") int pageSize,
+			@JsonProperty("p") int page,
+			@JsonProperty("k") String startKey,
+			@JsonProperty("d") String startDocId,
+			@JsonProperty("b") boolean back) {
+		Assert.isTrue(pageSize > 0, "pageSize must be greater than 0");
+		Assert.isTrue(page >= 0, "page cannot be negative");
+		this.pageSize = pageSize;
+		this.page = page;
+		this.startKey = startKey;
+		this.startDocId = startDocId;
+		this.back = back;
+	}
+	
+	@JsonProperty("s")
+	public int getPageSize() {
+		return pageSize;
+	}
+	
+	@JsonProperty("p")
+	public int getPage() {
+		return page;
+	}
+	
+	@JsonProperty("k")
+	public String getStartKey() {
+		return startKey;
+	}
+	
+	@JsonProperty("d")
+	public String getStartDocId() {
+		return startDocId;
+	}
+	
+	@JsonProperty("b")
+	public boolean isBack() {
+		return back;
+	}
+	
+	@JsonIgnore
+	public boolean isFirstPage() {
+		return startKey == null;
+	}
+	
+	public String asLink() {
+		try {
+			return URLEncoder.encode(MAPPER.writeValueAsString(this), UTF_8);
+		} catch (Exception e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return asLink();
+	}
+}
@@ -4,8 +4,8 @@ import java.lang.annotation.*;
 /**
  * Used to annotate methods that can be retries in case of update conflict.
  * 
- * Best realized in an aspect. No implementation supplied with Ektorp as this would introduce
- * unnecessary  dependencies.
+ * Best realized in an aspect. Without one, org.ektorp.support.RetryableProxy retries annotated
+ * methods of an interface.
  *  
  * @author henrik lundgren
  *
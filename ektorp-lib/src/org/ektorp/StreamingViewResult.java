@@ -0,0 +1,186 @@
+package org.ektorp;
+
+import java.io.*;
+import java.util.*;
+
+import org.codehaus.jackson.*;
+import org.codehaus.jackson.map.*;
+import org.ektorp.http.*;
+import org.ektorp.util.*;
+
+/**
+ * A view result that is read from the open connection one row at a time.
+ *
+ * Each row's doc is mapped to the target type, so the query must include docs, as for queryView(ViewQuery, Class).
+ * Rows without a doc (i.e. deleted documents) are skipped.
+ *
+ * The connection is released when the last row has been read or when close() is called.
+ * A result that is abandoned before it is exhausted must be closed, preferably in a finally block.
+ * Closing an unfinished result aborts the connection instead of reading the remaining rows.
+ *
+ * The result can only be iterated once.
+ *
+ * @author henrik lundgren
+ *
+ * @param <T>
+ */
+public class StreamingViewResult<T> implements Iterable<T>, Closeable {
+
+	private static final String TOTAL_ROWS_FIELD_NAME = "total_rows";
+	private static final String OFFSET_FIELD_NAME = "offset";
+	private static final String ROWS_FIELD_NAME = "rows";
+	private static final String DOC_FIELD_NAME = "doc";
+
+	private final HttpResponse response;
+	private final ObjectMapper objectMapper;
+	private final Class<T> type;
+	private final JsonParser jp;
+
+	private int totalRows = -1;
+	private int offset = -1;
+
+	private boolean iterated;
+	private boolean exhausted;
+	private boolean closed;
+
+	public StreamingViewResult(HttpResponse hr, ObjectMapper om, Class<T> type) {
+		Assert.notNull(hr, "HttpResponse cannot be null");
+		Assert.notNull(om, "ObjectMapper cannot be null");
+		Assert.notNull(type, "type cannot be null");
+		this.response = hr;
+		this.objectMapper = om;
+		this.type = type;
+		try {
+			jp = om.getJsonFactory().createJsonParser(hr.getContent());
+			readHeader();
+		} catch (Exception e) {
+			close();
+			throw Exceptions.propagate(e);
+		}
+	}
+
+	private void readHeader() throws IOException {
+		if (jp.nextToken() != JsonToken.START_OBJECT) {
+			throw new DbAccessException("Expected data to start with an Object");
+		}
+		while (jp.nextToken() == JsonToken.FIELD_NAME) {
+			String name = jp.getCurrentName();
+			jp.nextToken();
+			if (TOTAL_ROWS_FIELD_NAME.equals(name)) {
+				totalRows = jp.getIntValue();
+			} else if (OFFSET_FIELD_NAME.equals(name)) {
+				offset = jp.getIntValue();
+			} else if (ROWS_FIELD_NAME.equals(name)) {
+				if (jp.getCurrentToken() != JsonToken.START_ARRAY) {
+					throw new DbAccessException("Expected rows to start with an Array");
+				}
+				return;
+			} else {
+				jp.skipChildren();
+			}
+		}
+		finish();
+	}
+	/**
+	 * @return total_rows of the view, -1 if the database did not send it before the rows.
+	 */
+	public int getTotalRows() {
+		return totalRows;
+	}
+	/**
+	 * @return the offset of the first row, -1 if the database did not send it before the rows.
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		if (iterated) {
+			throw new IllegalStateException("a streaming view result can only be iterated once");
+		}
+		iterated = true;
+		return new RowIterator();
+	}
+	/**
+	 * Releases the connection. If all rows have not been read the connection is aborted.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (exhausted) {
+			response.releaseConnection();
+		} else {
+			response.abort();
+		}
+	}
+
+	private T readRow() throws IOException {
+		T row = null;
+		while (jp.nextToken() == JsonToken.FIELD_NAME) {
+			String name = jp.getCurrentName();
+			JsonToken t = jp.nextToken();
+			if (DOC_FIELD_NAME.equals(name) && t != JsonToken.VALUE_NULL) {
+				row = objectMapper.readValue(jp, type);
+			} else {
+				jp.skipChildren();
+			}
+		}
+		return row;
+	}
+
+	private void finish() {
+		exhausted = true;
+		close();
+	}
+
+	private class RowIterator implements Iterator<T> {
+
+		private T next;
+
+		@Override
+		public boolean hasNext() {
+			if (next != null) {
+				return true;
+			}
+			if (closed) {
+				return false;
+			}
+			try {
+				while (jp.nextToken() == JsonToken.START_OBJECT) {
+					next = readRow();
+					if (next != null) {
+						return true;
+					}
+				}
+				finish();
+				return false;
+			} catch (Exception e) {
+				close();
+				throw Exceptions.propagate(e);
+			}
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T row = next;
+			next = null;
+			return row;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("remove is not supported by a view result");
+		}
+	}
+}
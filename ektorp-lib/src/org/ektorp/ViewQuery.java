@@ -75,8 +75,12 @@ public class ViewQuery {
 	}
 	
 	private String urlEncodeJson(String s) {
+		return urlEncode(jsonEncode(s));
+	}
+	
+	private String urlEncode(String s) {
 		try {
-			return URLEncoder.encode(jsonEncode(s), "UTF-8");
+			return URLEncoder.encode(s, "UTF-8");
 		} catch (UnsupportedEncodingException e) {
 			throw Exceptions.propagate(e);
 		}
@@ -91,6 +95,17 @@ public class ViewQuery {
 		return this;
 	}
 	
+	/**
+	 * Sets the start key without any interpretation of the value, i.e. numbers will not be quoted.
+	 * @param json must be a complete JSON value.
+	 * @return
+	 */
+	public ViewQuery rawStartKey(String json) {
+		reset();
+		startKey = urlEncode(json);
+		return this;
+	}
+	
 	public ViewQuery startDocId(String s) {
 		reset();
 		startDocId = s;
@@ -198,6 +213,45 @@ public class ViewQuery {
 		return this;
 	}
 	
+	/**
+	 * @return a new query with the same parameters as this query.
+	 */
+	public ViewQuery copy() {
+		ViewQuery q = new ViewQuery();
+		q.dbPath = dbPath;
+		q.designDocId = designDocId;
+		q.viewName = viewName;
+		q.key = key;
+		q.startKey = startKey;
+		q.startDocId = startDocId;
+		q.endKey = endKey;
+		q.endDocId = endDocId;
+		q.limit = limit;
+		q.staleOk = staleOk;
+		q.descending = descending;
+		q.skip = skip;
+		q.group = group;
+		q.groupLevel = groupLevel;
+		q.reduce = reduce;
+		q.includeDocs = includeDocs;
+		q.inclusiveEnd = inclusiveEnd;
+		return q;
+	}
+	/**
+	 * @return a copy of this query that reads the same range of the view in the opposite direction,
+	 * i.e. descending is flipped and the start and end parameters are swapped.
+	 */
+	public ViewQuery reverse() {
+		ViewQuery q = copy();
+		q.descending = !descending;
+		q.startKey = endKey;
+		q.startDocId = endDocId;
+		q.endKey = startKey;
+		q.endDocId = startDocId;
+		q.inclusiveEnd = true;
+		return q;
+	}
+	
 	/**
 	 * Resets internal state so this builder can be used again.
 	 */
@@ -218,6 +272,18 @@ public class ViewQuery {
 		return endKey;
 	}
 	
+	public boolean isIncludeDocs() {
+		return includeDocs;
+	}
+	
+	public boolean isDescending() {
+		return descending;
+	}
+	
+	public int getLimit() {
+		return limit;
+	}
+	
 	public String buildQuery() {
 		if (cachedQuery != null) {
 			return cachedQuery;
@@ -0,0 +1,32 @@
+package org.ektorp.http;
+
+import java.util.concurrent.*;
+
+/**
+ * Asynchronous variant of {@link HttpClient}.
+ * 
+ * Each method returns immediately. When the response arrives it is handed to the callback
+ * and the connection is released, just as {@link RestTemplate} does for a blocking client.
+ * The returned Future holds the result of the callback.
+ * 
+ * NioAsyncHttpClient is non-blocking: a single I/O thread keeps all requests in flight. ExecutorAsyncHttpClient
+ * adapts a blocking HttpClient instead and occupies one of its threads per request in flight.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public interface AsyncHttpClient {
+
+	<T> Future<T> get(String uri, ResponseCallback<T> callback);
+
+	<T> Future<T> put(String uri, String content, ResponseCallback<T> callback);
+
+	<T> Future<T> post(String uri, String content, ResponseCallback<T> callback);
+
+	<T> Future<T> delete(String uri, ResponseCallback<T> callback);
+
+	<T> Future<T> head(String uri, ResponseCallback<T> callback);
+	
+	void shutdown();
+	
+}
@@ -0,0 +1,66 @@
+package org.ektorp.http;
+
+import java.io.*;
+import java.nio.channels.*;
+
+import org.apache.http.entity.*;
+import org.ektorp.util.*;
+/**
+ * A request entity that is written straight from a channel. A FileChannel is transferred with
+ * FileChannel.transferTo instead of being read through an InputStream.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class ChannelEntity extends AbstractHttpEntity {
+
+	private final ReadableByteChannel channel;
+	private final long length;
+	private boolean consumed;
+	/**
+	 * @param channel
+	 * @param length the number of bytes to send, -1 if unknown.
+	 */
+	public ChannelEntity(ReadableByteChannel channel, long length) {
+		Assert.notNull(channel, "channel cannot be null");
+		this.channel = channel;
+		this.length = length;
+	}
+	
+	@Override
+	public InputStream getContent() throws IOException {
+		return Channels.newInputStream(channel);
+	}
+
+	@Override
+	public long getContentLength() {
+		return length;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return !consumed;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		Assert.notNull(out, "OutputStream cannot be null");
+		try {
+			ChannelUtils.copy(channel, Channels.newChannel(out), length);
+			out.flush();
+		} finally {
+			consumed = true;
+		}
+	}
+	
+	@Override
+	public void consumeContent() throws IOException {
+		consumed = true;
+		channel.close();
+	}
+}
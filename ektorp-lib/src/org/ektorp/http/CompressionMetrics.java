@@ -0,0 +1,78 @@
+package org.ektorp.http;
+
+import java.util.concurrent.atomic.*;
+/**
+ * Counts the bytes sent and received by a StdHttpClient with compression enabled, both as they
+ * travelled on the wire and as they were before compression / after decompression.
+ * 
+ * Only requests and responses handled while compression is enabled are counted. Response bytes are
+ * counted as they are read from the response stream.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class CompressionMetrics {
+
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong uncompressedBytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong uncompressedBytesReceived = new AtomicLong();
+	private final AtomicLong compressedRequests = new AtomicLong();
+	private final AtomicLong compressedResponses = new AtomicLong();
+	
+	void sent(long wire, long uncompressed) {
+		bytesSent.addAndGet(wire);
+		uncompressedBytesSent.addAndGet(uncompressed);
+	}
+	
+	void received(long wire, long uncompressed) {
+		bytesReceived.addAndGet(wire);
+		uncompressedBytesReceived.addAndGet(uncompressed);
+	}
+	
+	void compressedRequest() {
+		compressedRequests.incrementAndGet();
+	}
+	
+	void compressedResponse() {
+		compressedResponses.incrementAndGet();
+	}
+	/**
+	 * @return request body bytes written to the wire.
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+	/**
+	 * @return request body bytes before compression.
+	 */
+	public long getUncompressedBytesSent() {
+		return uncompressedBytesSent.get();
+	}
+	/**
+	 * @return response body bytes read from the wire.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+	/**
+	 * @return response body bytes after decompression.
+	 */
+	public long getUncompressedBytesReceived() {
+		return uncompressedBytesReceived.get();
+	}
+	
+	public long getCompressedRequests() {
+		return compressedRequests.get();
+	}
+	
+	public long getCompressedResponses() {
+		return compressedResponses.get();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("sent: %d/%d bytes, received: %d/%d bytes (wire/uncompressed)", 
+				getBytesSent(), getUncompressedBytesSent(), getBytesReceived(), getUncompressedBytesReceived());
+	}
+}
@@ -0,0 +1,240 @@
+package org.ektorp.http;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ektorp.*;
+import org.ektorp.util.*;
+/**
+ * Limits the number of requests a StdHttpClient has in flight, adapting the limit to the observed response times
+ * (additive increase, multiplicative decrease).
+ *
+ * The limit grows by one per limit's worth of fast responses while it is being used, and is cut by the backoff
+ * ratio (default 0.9) when a response is slower than the tolerance (default 2) times the baseline response time,
+ * when a request fails or when the server answers 503. The baseline is the fastest response seen during the last
+ * few hundred requests. Only one cut is made per round trip: responses to requests sent before the last cut do not
+ * cut the limit again.
+ *
+ * Requests above the limit are rejected at once with a ConcurrencyLimitExceededException instead of queueing for a
+ * connection. Requests sent through lowPriority(Callable) are shed earlier, when the requests in flight reach the low
+ * priority share (default 0.8) of the limit, which leaves headroom for ordinary requests.
+ *
+ * A request holds its place until its response has been released, as its connection is checked out of the pool
+ * until then. The time measured is therefore the time until the response is released, including any wait for a
+ * pooled connection and the time spent reading the response.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class ConcurrencyLimiter {
+	
+	private static final ThreadLocal<Boolean> LOW_PRIORITY = new ThreadLocal<Boolean>();
+	private static final int RTT_WINDOW = 256;
+	
+	private final int minLimit;
+	private final int maxLimit;
+	private final double rttTolerance;
+	private final double backoffRatio;
+	private final double lowPriorityShare;
+	
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong shed = new AtomicLong();
+	
+	private volatile int currentLimit;
+	// the following fields are guarded by this
+	private double limit;
+	private long previousWindowMinRtt = Long.MAX_VALUE;
+	private long windowMinRtt = Long.MAX_VALUE;
+	private int windowSamples;
+	private long lastDecrease = System.nanoTime();
+	
+	private ConcurrencyLimiter(Builder b) {
+		this.minLimit = b.minLimit;
+		this.maxLimit = b.maxLimit;
+		this.rttTolerance = b.rttTolerance;
+		this.backoffRatio = b.backoffRatio;
+		this.lowPriorityShare = b.lowPriorityShare;
+		this.limit = b.initialLimit > 0 ? Math.max(b.minLimit, b.initialLimit) : b.maxLimit;
+		this.currentLimit = (int) limit;
+	}
+	/**
+	 * Requests sent by the given call are shed before other requests when the limit is approached.
+	 * @param <T>
+	 * @param call
+	 * @return the result of the call.
+	 * @throws Exception
+	 */
+	public static <T> T lowPriority(Callable<T> call) throws Exception {
+		Boolean previous = LOW_PRIORITY.get();
+		LOW_PRIORITY.set(Boolean.TRUE);
+		try {
+			return call.call();
+		} finally {
+			if (previous == null) {
+				LOW_PRIORITY.remove();
+			}
+		}
+	}
+	/**
+	 * Reserves room for one request.
+	 * @return the time the request started, to be passed to release.
+	 * @throws ConcurrencyLimitExceededException if the limit has been reached.
+	 */
+	public long acquire() {
+		boolean low = LOW_PRIORITY.get() != null;
+		int l = currentLimit;
+		int max = low ? Math.max(1, (int) (l * lowPriorityShare)) : l;
+		while (true) {
+			int n = inFlight.get();
+			if (n >= max) {
+				rejected.incrementAndGet();
+				if (low) {
+					shed.incrementAndGet();
+				}
+				throw new ConcurrencyLimitExceededException(l);
+			}
+			if (inFlight.compareAndSet(n, n + 1)) {
+				requests.incrementAndGet();
+				return System.nanoTime();
+			}
+		}
+	}
+	/**
+	 * @param started the value returned by acquire.
+	 * @param dropped true if the request failed or the server was unavailable.
+	 */
+	public void release(long started, boolean dropped) {
+		int n = inFlight.getAndDecrement();
+		long now = System.nanoTime();
+		long rtt = now - started;
+		synchronized (this) {
+			if (!dropped) {
+				sample(rtt);
+			}
+			if (dropped || rtt > baselineRtt() * rttTolerance) {
+				if (started - lastDecrease >= 0) {
+					limit = Math.max(minLimit, limit * backoffRatio);
+					lastDecrease = now;
+				}
+			} else if (n * 2 >= limit) {
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+			currentLimit = (int) limit;
+		}
+	}
+	
+	private void sample(long rtt) {
+		windowMinRtt = Math.min(windowMinRtt, rtt);
+		if (++windowSamples == RTT_WINDOW) {
+			previousWindowMinRtt = windowMinRtt;
+			windowMinRtt = Long.MAX_VALUE;
+			windowSamples = 0;
+		}
+	}
+	
+	private double baselineRtt() {
+		return Math.min(previousWindowMinRtt, windowMinRtt);
+	}
+	/**
+	 * @return the current number of requests allowed in flight.
+	 */
+	public int getLimit() {
+		return currentLimit;
+	}
+	
+	public int getInFlightCount() {
+		return inFlight.get();
+	}
+	/**
+	 * @return number of requests that were let through.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+	/**
+	 * @return number of requests rejected, including low priority requests.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	/**
+	 * @return number of low priority requests rejected.
+	 */
+	public long getShedCount() {
+		return shed.get();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("limit: %d, in flight: %d, rejected: %d (%d low priority)",
+				getLimit(), getInFlightCount(), getRejectedCount(), getShedCount());
+	}
+	
+	public static class Builder {
+		
+		private int initialLimit;
+		private int minLimit = 1;
+		private int maxLimit = 20;
+		private double rttTolerance = 2;
+		private double backoffRatio = 0.9;
+		private double lowPriorityShare = 0.8;
+		/**
+		 * @param i the limit to start from. Defaults to maxLimit.
+		 * @return
+		 */
+		public Builder initialLimit(int i) {
+			initialLimit = i;
+			return this;
+		}
+		
+		public Builder minLimit(int i) {
+			Assert.isTrue(i > 0, "minLimit must be positive");
+			minLimit = i;
+			return this;
+		}
+		/**
+		 * Should not exceed the maxConnections of the StdHttpClient. Default 20, matching the default maxConnections.
+		 * @param i
+		 * @return
+		 */
+		public Builder maxLimit(int i) {
+			maxLimit = i;
+			return this;
+		}
+		/**
+		 * @param d responses slower than this multiple of the baseline response time cut the limit. Default 2.
+		 * @return
+		 */
+		public Builder rttTolerance(double d) {
+			Assert.isTrue(d >= 1, "rttTolerance cannot be less than 1");
+			rttTolerance = d;
+			return this;
+		}
+		/**
+		 * @param d the factor the limit is multiplied with when it is cut. Default 0.9.
+		 * @return
+		 */
+		public Builder backoffRatio(double d) {
+			Assert.isTrue(d > 0 && d < 1, "backoffRatio must be between 0 and 1");
+			backoffRatio = d;
+			return this;
+		}
+		/**
+		 * @param d the share of the limit available to low priority requests. Default 0.8.
+		 * @return
+		 */
+		public Builder lowPriorityShare(double d) {
+			Assert.isTrue(d > 0 && d <= 1, "lowPriorityShare must be between 0 and 1");
+			lowPriorityShare = d;
+			return this;
+		}
+		
+		public ConcurrencyLimiter build() {
+			Assert.isTrue(minLimit <= maxLimit, "minLimit cannot be greater than maxLimit");
+			Assert.isTrue(initialLimit <= maxLimit, "initialLimit cannot be greater than maxLimit");
+			return new ConcurrencyLimiter(this);
+		}
+	}
+}
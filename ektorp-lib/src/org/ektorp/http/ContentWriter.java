@@ -0,0 +1,17 @@
+package org.ektorp.http;
+
+import java.io.*;
+/**
+ * Writes a request body directly to the connection's output stream, so that the body never has to be
+ * held in memory as a String or byte array.
+ * 
+ * A ContentWriter should be able to write its content more than once, the request may be resent.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public interface ContentWriter {
+	
+	void writeTo(OutputStream out) throws IOException;
+	
+}
@@ -0,0 +1,53 @@
+package org.ektorp.http;
+
+import java.io.*;
+
+import org.apache.http.entity.*;
+import org.ektorp.util.*;
+/**
+ * A chunked request entity whose content is produced by a ContentWriter as it is sent.
+ * 
+ * @author henrik lundgren
+ *
+ */
+class ContentWriterEntity extends AbstractHttpEntity {
+
+	private final ContentWriter writer;
+	
+	ContentWriterEntity(ContentWriter writer) {
+		Assert.notNull(writer, "ContentWriter cannot be null");
+		this.writer = writer;
+		setChunked(true);
+	}
+	/**
+	 * Renders the content into memory, only meant for diagnostics.
+	 */
+	@Override
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.writeTo(out);
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		Assert.notNull(out, "OutputStream cannot be null");
+		writer.writeTo(out);
+		out.flush();
+	}
+}
@@ -0,0 +1,98 @@
+package org.ektorp.http;
+
+import java.util.concurrent.*;
+
+import org.ektorp.util.*;
+/**
+ * AsyncHttpClient that runs the requests of a blocking HttpClient on an executor.
+ * 
+ * Every request in flight blocks one of the executor's threads, so this only moves the waiting off the
+ * caller's thread. Use NioAsyncHttpClient to keep many requests in flight with few threads, and this class
+ * where the features of a blocking client are needed, e.g. retries or load balancing.
+ * 
+ * The number of requests in flight is bounded by the executor's threads and the connection pool
+ * of the underlying client, so these should be sized together.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class ExecutorAsyncHttpClient implements AsyncHttpClient {
+
+	private final RestTemplate restTemplate;
+	private final ExecutorService executorService;
+	
+	public ExecutorAsyncHttpClient(HttpClient client, int threads) {
+		this(client, Executors.newFixedThreadPool(threads, new RequestThreadFactory()));
+	}
+	
+	public ExecutorAsyncHttpClient(HttpClient client, ExecutorService es) {
+		Assert.notNull(client, "HttpClient cannot be null");
+		Assert.notNull(es, "ExecutorService cannot be null");
+		this.restTemplate = new RestTemplate(client);
+		this.executorService = es;
+	}
+	
+	@Override
+	public <T> Future<T> get(final String uri, final ResponseCallback<T> callback) {
+		return executorService.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				return restTemplate.get(uri, callback);
+			}
+		});
+	}
+
+	@Override
+	public <T> Future<T> put(final String uri, final String content, final ResponseCallback<T> callback) {
+		return executorService.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				return restTemplate.put(uri, content, callback);
+			}
+		});
+	}
+
+	@Override
+	public <T> Future<T> post(final String uri, final String content, final ResponseCallback<T> callback) {
+		return executorService.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				return restTemplate.post(uri, content, callback);
+			}
+		});
+	}
+
+	@Override
+	public <T> Future<T> delete(final String uri, final ResponseCallback<T> callback) {
+		return executorService.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				return restTemplate.delete(uri, callback);
+			}
+		});
+	}
+
+	@Override
+	public <T> Future<T> head(final String uri, final ResponseCallback<T> callback) {
+		return executorService.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				return restTemplate.head(uri, callback);
+			}
+		});
+	}
+	
+	@Override
+	public void shutdown() {
+		executorService.shutdown();
+	}
+	
+	private static class RequestThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ektorp-async-request");
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package org.ektorp.http;
+
+import java.io.*;
+import java.util.zip.*;
+
+import org.apache.http.*;
+import org.apache.http.entity.*;
+import org.apache.http.message.*;
+import org.apache.http.protocol.*;
+/**
+ * Gzip compresses a request entity while it is written, for request bodies of unknown length.
+ * The entity is sent chunked.
+ * 
+ * @author henrik lundgren
+ *
+ */
+class GzipCompressingEntity extends HttpEntityWrapper {
+
+	private static final Header GZIP_ENCODING = new BasicHeader(HTTP.CONTENT_ENCODING, "gzip");
+	
+	private final CompressionMetrics metrics;
+	
+	GzipCompressingEntity(HttpEntity wrapped, CompressionMetrics metrics) {
+		super(wrapped);
+		this.metrics = metrics;
+	}
+	
+	@Override
+	public Header getContentEncoding() {
+		return GZIP_ENCODING;
+	}
+	
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+	
+	@Override
+	public boolean isChunked() {
+		return true;
+	}
+	
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		CountingOutputStream wire = new CountingOutputStream(out);
+		GZIPOutputStream gzip = new GZIPOutputStream(wire);
+		CountingOutputStream uncompressed = new CountingOutputStream(gzip) {
+			@Override
+			public void close() throws IOException {
+				// the gzip stream is finished below, closing it here would end the deflater first
+				flush();
+			}
+		};
+		try {
+			wrappedEntity.writeTo(uncompressed);
+		} finally {
+			// finishes the gzip stream, the underlying stream is closed by the connection
+			gzip.finish();
+			metrics.sent(wire.count, uncompressed.count);
+			metrics.compressedRequest();
+		}
+	}
+	
+	static class CountingOutputStream extends FilterOutputStream {
+		
+		long count;
+		
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package org.ektorp.http;
+
+import java.io.*;
+import java.util.zip.*;
+
+import org.apache.http.*;
+import org.apache.http.entity.*;
+/**
+ * Decompresses a gzip encoded response entity as it is read and counts the bytes on both sides.
+ * Responses that are not gzip encoded are only counted.
+ * 
+ * @author henrik lundgren
+ *
+ */
+class GzipDecompressingEntity extends HttpEntityWrapper {
+
+	private final CompressionMetrics metrics;
+	private final boolean gzipped;
+	private InputStream content;
+	
+	GzipDecompressingEntity(HttpEntity wrapped, CompressionMetrics metrics) {
+		super(wrapped);
+		this.metrics = metrics;
+		Header ce = wrapped.getContentEncoding();
+		this.gzipped = ce != null && "gzip".equalsIgnoreCase(ce.getValue());
+		if (gzipped) {
+			metrics.compressedResponse();
+		}
+	}
+	
+	@Override
+	public synchronized InputStream getContent() throws IOException {
+		if (content == null) {
+			final CountingInputStream wire = new CountingInputStream(wrappedEntity.getContent());
+			InputStream in = gzipped ? new GZIPInputStream(wire) : wire;
+			content = new CountingInputStream(in) {
+				@Override
+				public void close() throws IOException {
+					boolean first = !closed;
+					try {
+						super.close();
+					} finally {
+						if (first) {
+							metrics.received(wire.count, count);
+						}
+					}
+				}
+			};
+		}
+		return content;
+	}
+	
+	@Override
+	public Header getContentEncoding() {
+		return gzipped ? null : super.getContentEncoding();
+	}
+	
+	@Override
+	public long getContentLength() {
+		return gzipped ? -1 : super.getContentLength();
+	}
+	
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		InputStream in = getContent();
+		try {
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				out.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	@Override
+	public void consumeContent() throws IOException {
+		InputStream in;
+		synchronized (this) {
+			in = content;
+		}
+		if (in != null) {
+			in.close();
+		}
+		super.consumeContent();
+	}
+	
+	static class CountingInputStream extends FilterInputStream {
+		
+		long count;
+		boolean closed;
+		
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count++;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			super.close();
+		}
+	}
+}
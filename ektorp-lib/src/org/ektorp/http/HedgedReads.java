@@ -0,0 +1,362 @@
+package org.ektorp.http;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.http.client.methods.*;
+import org.ektorp.util.*;
+/**
+ * Sends a second, identical request when a read has not been answered within the hedge delay and uses
+ * whichever response arrives first. Only idempotent requests (GET and HEAD) should be hedged.
+ *
+ * The hedge delay is a percentile (default the 95th) of recently observed response times, so only the slowest
+ * reads are hedged. Hedges are further limited to a ratio of all requests (default 10%) in order not to
+ * overload a server that is slow across the board.
+ *
+ * The first attempt is sent on the calling thread, only the hedge is sent from a pool thread. When the hedge is
+ * answered first, the first attempt is aborted through the action registered by onAbort(Runnable), which
+ * StdHttpClient does for every request. With an HttpClient that registers no such action the caller waits for the
+ * first attempt to complete before the hedge's response is returned.
+ *
+ * The losing response is released as soon as it arrives, leaving its connection fit for reuse.
+ * The hedge is sent through the same HttpClient as the original request; with a LoadBalancingHttpClient it will
+ * usually be routed to another node, as the node serving the original request has it outstanding. Hedges are sent
+ * at low priority, so a ConcurrencyLimiter sheds them first.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class HedgedReads {
+	
+	private static final int SAMPLE_COUNT = 1024;
+	private static final int RECALCULATION_INTERVAL = 64;
+	private static final int MIN_SAMPLES = 100;
+	
+	private static final ThreadLocal<Race> CURRENT_RACE = new ThreadLocal<Race>();
+	
+	private final double percentile;
+	private final long initialDelayNanos;
+	private final long minDelayNanos;
+	private final long maxDelayNanos;
+	private final double maxHedgeRatio;
+	
+	private final ExecutorService executor;
+	private final ScheduledExecutorService timer;
+	
+	private final AtomicLongArray samples = new AtomicLongArray(SAMPLE_COUNT);
+	private final AtomicLong sampleCount = new AtomicLong();
+	private volatile long delayNanos;
+	
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgesWon = new AtomicLong();
+	
+	private HedgedReads(Builder b) {
+		this.percentile = b.percentile;
+		this.initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(b.initialDelayMillis);
+		this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(b.minDelayMillis);
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(b.maxDelayMillis);
+		this.maxHedgeRatio = b.maxHedgeRatio;
+		this.delayNanos = initialDelayNanos;
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			
+			private final AtomicInteger threadCount = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ektorp-hedge-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ektorp-hedge-timer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	/**
+	 * Registers how to abort the request being sent by the current thread, should it be the first attempt of a
+	 * hedged read whose hedge is answered first. Does nothing if the current thread is not executing a hedged read.
+	 * @param abort
+	 */
+	public static void onAbort(Runnable abort) {
+		Race race = CURRENT_RACE.get();
+		if (race != null) {
+			race.abort = abort;
+		}
+	}
+	
+	static void onAbort(final AbortableHttpRequest request) {
+		if (CURRENT_RACE.get() != null) {
+			onAbort(new Runnable() {
+				@Override
+				public void run() {
+					request.abort();
+				}
+			});
+		}
+	}
+	/**
+	 * @param request sends the request, will be called a second time if the first call is slow to respond.
+	 * @return the first response received.
+	 */
+	public HttpResponse execute(Callable<HttpResponse> request) {
+		Assert.notNull(request, "request cannot be null");
+		requests.incrementAndGet();
+		Race race = new Race(request);
+		ScheduledFuture<?> hedge = timer.schedule(race, delayNanos, TimeUnit.NANOSECONDS);
+		Race previous = CURRENT_RACE.get();
+		CURRENT_RACE.set(race);
+		HttpResponse rsp = null;
+		Throwable failure = null;
+		long start = System.nanoTime();
+		try {
+			rsp = request.call();
+			record(System.nanoTime() - start);
+		} catch (Throwable t) {
+			failure = t;
+		} finally {
+			if (previous == null) {
+				CURRENT_RACE.remove();
+			} else {
+				CURRENT_RACE.set(previous);
+			}
+		}
+		if (race.finishFirst()) {
+			hedge.cancel(false);
+		} else if (rsp == null || !race.claim()) {
+			// the hedge is in flight or has already won
+			if (rsp != null) {
+				rsp.releaseConnection();
+			}
+			Outcome o = race.take();
+			if (o.response != null) {
+				hedgesWon.incrementAndGet();
+				return o.response;
+			}
+		}
+		if (failure == null) {
+			return rsp;
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		throw Exceptions.propagate((Exception) failure);
+	}
+	
+	private boolean mayHedge() {
+		return hedges.get() < requests.get() * maxHedgeRatio;
+	}
+	
+	private void record(long nanos) {
+		long n = sampleCount.getAndIncrement();
+		samples.set((int) (n % SAMPLE_COUNT), nanos);
+		if (n >= MIN_SAMPLES && n % RECALCULATION_INTERVAL == 0) {
+			int size = (int) Math.min(n + 1, SAMPLE_COUNT);
+			long[] sorted = new long[size];
+			for (int i = 0; i < size; i++) {
+				sorted[i] = samples.get(i);
+			}
+			Arrays.sort(sorted);
+			long d = sorted[Math.min(size - 1, (int) (size * percentile))];
+			delayNanos = Math.max(minDelayNanos, Math.min(maxDelayNanos, d));
+		}
+	}
+	/**
+	 * Stops the threads sending requests. Requests in flight are completed.
+	 */
+	public void shutdown() {
+		timer.shutdownNow();
+		executor.shutdown();
+	}
+	/**
+	 * @return number of requests executed.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+	/**
+	 * @return number of hedge requests that were sent.
+	 */
+	public long getHedgeCount() {
+		return hedges.get();
+	}
+	/**
+	 * @return number of hedge requests that were answered before the original request.
+	 */
+	public long getHedgeWinCount() {
+		return hedgesWon.get();
+	}
+	/**
+	 * @return the current hedge delay in milliseconds.
+	 */
+	public long getDelayMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(delayNanos);
+	}
+	
+	private static class Outcome {
+		
+		final HttpResponse response;
+		final Throwable failure;
+		
+		Outcome(HttpResponse response, Throwable failure) {
+			this.response = response;
+			this.failure = failure;
+		}
+	}
+	/**
+	 * The requests sent for one call to execute. Run by the timer when the first attempt is slow, in order to send
+	 * the hedge. The first response claims the race, a later response is released.
+	 */
+	private class Race implements Runnable {
+		
+		private static final int RUNNING = 0;
+		private static final int FIRST_DONE = 1;
+		private static final int HEDGED = 2;
+		
+		private final Callable<HttpResponse> request;
+		private final AtomicInteger state = new AtomicInteger(RUNNING);
+		private final AtomicBoolean decided = new AtomicBoolean();
+		private final BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<Outcome>();
+		volatile Runnable abort;
+		
+		Race(Callable<HttpResponse> request) {
+			this.request = request;
+		}
+		
+		@Override
+		public void run() {
+			if (!mayHedge() || !state.compareAndSet(RUNNING, HEDGED)) {
+				return;
+			}
+			hedges.incrementAndGet();
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						hedge();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				outcomes.add(new Outcome(null, e));
+			}
+		}
+		
+		private void hedge() {
+			long start = System.nanoTime();
+			HttpResponse rsp;
+			try {
+				rsp = ConcurrencyLimiter.lowPriority(request);
+			} catch (Throwable t) {
+				outcomes.add(new Outcome(null, t));
+				return;
+			}
+			record(System.nanoTime() - start);
+			if (claim()) {
+				Runnable a = abort;
+				if (a != null) {
+					a.run();
+				}
+				outcomes.add(new Outcome(rsp, null));
+			} else {
+				rsp.releaseConnection();
+			}
+		}
+		/**
+		 * @return true if the first attempt completed before the hedge was sent.
+		 */
+		boolean finishFirst() {
+			return state.compareAndSet(RUNNING, FIRST_DONE);
+		}
+		
+		boolean claim() {
+			return decided.compareAndSet(false, true);
+		}
+		
+		Outcome take() {
+			try {
+				return outcomes.take();
+			} catch (InterruptedException e) {
+				throw abandon(e);
+			}
+		}
+		/**
+		 * Makes sure a response that has already claimed the race is released, as no one will read it.
+		 */
+		private RuntimeException abandon(InterruptedException e) {
+			if (!claim()) {
+				while (true) {
+					Outcome o = outcomes.poll();
+					if (o != null && o.response != null) {
+						o.response.releaseConnection();
+						break;
+					}
+					Thread.yield();
+				}
+			}
+			Thread.currentThread().interrupt();
+			return Exceptions.propagate(e);
+		}
+	}
+	
+	public static class Builder {
+		
+		private double percentile = 0.95;
+		private long initialDelayMillis = 50;
+		private long minDelayMillis = 1;
+		private long maxDelayMillis = 1000;
+		private double maxHedgeRatio = 0.1;
+		/**
+		 * @param p the percentile of recent response times to use as hedge delay, between 0 and 1. Default 0.95.
+		 * @return
+		 */
+		public Builder percentile(double p) {
+			Assert.isTrue(p > 0 && p <= 1, "percentile must be between 0 and 1");
+			percentile = p;
+			return this;
+		}
+		/**
+		 * @param millis the hedge delay used until enough response times have been observed. Default 50.
+		 * @return
+		 */
+		public Builder initialDelayMillis(long millis) {
+			initialDelayMillis = millis;
+			return this;
+		}
+		/**
+		 * @param millis lower bound of the hedge delay. Default 1.
+		 * @return
+		 */
+		public Builder minDelayMillis(long millis) {
+			minDelayMillis = millis;
+			return this;
+		}
+		/**
+		 * @param millis upper bound of the hedge delay. Default 1000.
+		 * @return
+		 */
+		public Builder maxDelayMillis(long millis) {
+			maxDelayMillis = millis;
+			return this;
+		}
+		/**
+		 * @param ratio the maximum number of hedges sent as a fraction of all requests. Default 0.1.
+		 * @return
+		 */
+		public Builder maxHedgeRatio(double ratio) {
+			Assert.isTrue(ratio >= 0 && ratio <= 1, "maxHedgeRatio must be between 0 and 1");
+			maxHedgeRatio = ratio;
+			return this;
+		}
+		
+		public HedgedReads build() {
+			Assert.isTrue(minDelayMillis <= maxDelayMillis, "minDelayMillis cannot be greater than maxDelayMillis");
+			return new HedgedReads(this);
+		}
+	}
+}
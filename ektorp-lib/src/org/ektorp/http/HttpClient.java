@@ -1,20 +1,31 @@
 package org.ektorp.http;
 
 import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
 
 
 public interface HttpClient {
 
 	HttpResponse get(String uri);
+	
+	HttpResponse get(String uri, Map<String, String> headers);
 
 	HttpResponse put(String uri, String content);
+	
+	HttpResponse put(String uri, ContentWriter content);
 
 	HttpResponse put(String uri);
 
 	HttpResponse put(String uri, InputStream data, String contentType,
-			int contentLength);
+			long contentLength);
+	
+	HttpResponse put(String uri, ReadableByteChannel data, String contentType,
+			long contentLength);
 
 	HttpResponse post(String uri, String content);
+	
+	HttpResponse post(String uri, ContentWriter content);
 
 	HttpResponse delete(String uri);
 	
@@ -8,8 +8,16 @@ public interface HttpResponse {
 	int getCode();
 	String getRequestURI();
 	String getContentType();
-	int getContentLength();
+	long getContentLength();
+	/**
+	 * @return the value of the ETag header, null if the response had none.
+	 */
+	String getETag();
 	InputStream getContent();
 	void releaseConnection();
+	/**
+	 * Closes the underlying connection without reading the rest of the response.
+	 */
+	void abort();
 	
 }
\ No newline at end of file
@@ -0,0 +1,474 @@
+package org.ektorp.http;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ektorp.*;
+import org.ektorp.util.*;
+import org.slf4j.*;
+/**
+ * An HttpClient that spreads requests over several CouchDB nodes, each reached through its own HttpClient.
+ *
+ * A node is chosen by the power of two choices: two random eligible nodes are picked and the one with the fewest
+ * outstanding requests wins. Which nodes are eligible for reads and writes is decided by a RoutingPolicy.
+ *
+ * A node is ejected after a number of consecutive failures, where a failure is an exception, a 5xx response or
+ * a response slower than the configured limit. Ejected nodes receive no requests while a healthy eligible node
+ * exists and are probed in the background with HEAD / until they answer again.
+ *
+ * GET and HEAD requests that fail or are answered with 5xx are retried on another node, as are POSTs to _all_docs
+ * and to views, which only carry the keys to look up and are routed as reads. Other requests are only retried when
+ * the connection could not be established, as they may otherwise already have been applied.
+ * Requests with streamed bodies are never retried.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class LoadBalancingHttpClient implements HttpClient {
+	
+	private final static Logger LOG = LoggerFactory.getLogger(LoadBalancingHttpClient.class);
+	
+	private final static int SERVER_ERROR = 500;
+	/**
+	 * Every node serves every request.
+	 */
+	public final static RoutingPolicy ANY_NODE = new RoutingPolicy() {
+		@Override
+		public boolean accepts(boolean write, Node node) {
+			return true;
+		}
+	};
+	
+	/**
+	 * Writes are only sent to the named node, reads to any node.
+	 * @param primary the name of the node that receives writes.
+	 * @return
+	 */
+	public static RoutingPolicy primaryForWrites(final String primary) {
+		Assert.hasText(primary, "primary must have a value");
+		return new RoutingPolicy() {
+			@Override
+			public boolean accepts(boolean write, Node node) {
+				return !write || primary.equals(node.getName());
+			}
+		};
+	}
+	
+	private final List<Node> nodes;
+	private final RoutingPolicy routingPolicy;
+	private final int failureThreshold;
+	private final long slowResponseMillis;
+	private final ScheduledExecutorService prober;
+	private final Random random = new Random();
+	
+	private LoadBalancingHttpClient(Builder b) {
+		Assert.isTrue(!b.specs.isEmpty(), "at least one node is required");
+		List<Node> n = new ArrayList<Node>(b.specs.size());
+		for (NodeSpec spec : b.specs) {
+			n.add(new Node(spec.name, spec.client));
+		}
+		this.nodes = Collections.unmodifiableList(n);
+		this.routingPolicy = b.routingPolicy;
+		this.failureThreshold = b.failureThreshold;
+		this.slowResponseMillis = b.slowResponseMillis;
+		this.prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ektorp-node-prober");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		prober.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				probeEjectedNodes();
+			}
+		}, b.probeIntervalMillis, b.probeIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	public List<Node> getNodes() {
+		return nodes;
+	}
+	/**
+	 * Stops the background probing of ejected nodes.
+	 */
+	public void shutdown() {
+		prober.shutdownNow();
+	}
+	
+	@Override
+	public HttpResponse get(final String uri) {
+		return execute(false, true, new Call() {
+			@Override
+			public HttpResponse execute(HttpClient client) {
+				return client.get(uri);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse get(final String uri, final Map<String, String> headers) {
+		return execute(false, true, new Call() {
+			@Override
+			public HttpResponse execute(HttpClient client) {
+				return client.get(uri, headers);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse head(final String uri) {
+		return execute(false, true, new Call() {
+			@Override
+			public HttpResponse execute(HttpClient client) {
+				return client.head(uri);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse put(final String uri, final String content) {
+		return execute(true, false, new Call() {
+			@Override
+			public HttpResponse execute(HttpClient client) {
+				return client.put(uri, content);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse put(final String uri, final ContentWriter content) {
+		return execute(true, false, new Call() {
+			@Override
+			public HttpResponse execute(HttpClient client) {
+				return client.put(uri, content);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse put(final String uri) {
+		return execute(true, false, new Call() {
+			@Override
+			public HttpResponse execute(HttpClient client) {
+				return client.put(uri);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse put(final String uri, final InputStream data, final String contentType, final long contentLength) {
+		return executeOnce(true, new Call() {
+			@Override
+			public HttpResponse execute(HttpClient client) {
+				return client.put(uri, data, contentType, contentLength);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse put(final String uri, final ReadableByteChannel data, final String contentType, final long contentLength) {
+		return executeOnce(true, new Call() {
+			@Override
+			public HttpResponse execute(HttpClient client) {
+				return client.put(uri, data, contentType, contentLength);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse post(final String uri, final String content) {
+		return execute(!isRead(uri), isRead(uri), new Call() {
+			@Override
+			public HttpResponse execute(HttpClient client) {
+				return client.post(uri, content);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse post(final String uri, final ContentWriter content) {
+		return execute(!isRead(uri), isRead(uri), new Call() {
+			@Override
+			public HttpResponse execute(HttpClient client) {
+				return client.post(uri, content);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse delete(final String uri) {
+		return execute(true, false, new Call() {
+			@Override
+			public HttpResponse execute(HttpClient client) {
+				return client.delete(uri);
+			}
+		});
+	}
+	
+	private HttpResponse executeOnce(boolean write, Call call) {
+		Node node = choose(write, Collections.<Node>emptySet());
+		if (node == null) {
+			throw new DbAccessException("no node accepts the request");
+		}
+		return node.execute(call);
+	}
+	/**
+	 * @param idempotent if true, failures and 5xx responses are retried on another node.
+	 */
+	private HttpResponse execute(boolean write, boolean idempotent, Call call) {
+		Set<Node> tried = new HashSet<Node>();
+		HttpResponse serverError = null;
+		RuntimeException failure = null;
+		Node node;
+		while ((node = choose(write, tried)) != null) {
+			tried.add(node);
+			if (serverError != null) {
+				serverError.releaseConnection();
+				serverError = null;
+			}
+			try {
+				HttpResponse rsp = node.execute(call);
+				if (rsp.getCode() < SERVER_ERROR || !idempotent) {
+					return rsp;
+				}
+				serverError = rsp;
+			} catch (RuntimeException e) {
+				if (!idempotent && !isConnectFailure(e)) {
+					throw e;
+				}
+				LOG.debug("request to node {} failed, trying next node: {}", node.getName(), e.toString());
+				failure = e;
+			}
+		}
+		if (serverError != null) {
+			return serverError;
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		throw new DbAccessException("no node accepts the request");
+	}
+	/**
+	 * Picks the less loaded of two random healthy eligible nodes. Ejected nodes are only chosen if no healthy
+	 * eligible node is left.
+	 * @return null if no untried node is eligible.
+	 */
+	private Node choose(boolean write, Set<Node> tried) {
+		List<Node> candidates = new ArrayList<Node>(nodes.size());
+		List<Node> ejected = new ArrayList<Node>(nodes.size());
+		for (Node n : nodes) {
+			if (!tried.contains(n) && routingPolicy.accepts(write, n)) {
+				(n.isHealthy() ? candidates : ejected).add(n);
+			}
+		}
+		if (candidates.isEmpty()) {
+			candidates = ejected;
+		}
+		int size = candidates.size();
+		if (size <= 1) {
+			return size == 0 ? null : candidates.get(0);
+		}
+		int i = random.nextInt(size);
+		int j = (i + 1 + random.nextInt(size - 1)) % size;
+		Node a = candidates.get(i);
+		Node b = candidates.get(j);
+		return a.getOutstandingRequests() <= b.getOutstandingRequests() ? a : b;
+	}
+	
+	/**
+	 * @return true if uri is _all_docs or a view, which are POSTed to when queried by keys.
+	 */
+	private static boolean isRead(String uri) {
+		int q = uri.indexOf('?');
+		String path = q != -1 ? uri.substring(0, q) : uri;
+		return path.endsWith("/_all_docs") || path.indexOf("/_view/") != -1;
+	}
+	
+	private static boolean isConnectFailure(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof ConnectException) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void probeEjectedNodes() {
+		for (Node n : nodes) {
+			if (!n.isHealthy()) {
+				n.probe();
+			}
+		}
+	}
+	
+	private interface Call {
+		HttpResponse execute(HttpClient client);
+	}
+	
+	public class Node {
+		
+		private final String name;
+		private final HttpClient client;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final AtomicInteger consecutiveFailures = new AtomicInteger();
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong ejections = new AtomicLong();
+		private volatile boolean healthy = true;
+		
+		private Node(String name, HttpClient client) {
+			this.name = name;
+			this.client = client;
+		}
+		
+		private HttpResponse execute(Call call) {
+			outstanding.incrementAndGet();
+			long start = System.currentTimeMillis();
+			try {
+				HttpResponse rsp = call.execute(client);
+				long elapsed = System.currentTimeMillis() - start;
+				completed(rsp.getCode() >= SERVER_ERROR || (slowResponseMillis > 0 && elapsed > slowResponseMillis));
+				return rsp;
+			} catch (RuntimeException e) {
+				completed(true);
+				throw e;
+			} finally {
+				outstanding.decrementAndGet();
+			}
+		}
+		
+		private void completed(boolean failed) {
+			requests.incrementAndGet();
+			if (!failed) {
+				consecutiveFailures.set(0);
+				return;
+			}
+			failures.incrementAndGet();
+			if (consecutiveFailures.incrementAndGet() >= failureThreshold && healthy) {
+				healthy = false;
+				ejections.incrementAndGet();
+				LOG.warn("node {} ejected after {} consecutive failures", name, failureThreshold);
+			}
+		}
+		
+		private void probe() {
+			try {
+				HttpResponse rsp = client.head("/");
+				rsp.releaseConnection();
+				if (rsp.getCode() < SERVER_ERROR) {
+					consecutiveFailures.set(0);
+					healthy = true;
+					LOG.info("node {} is available again", name);
+				}
+			} catch (RuntimeException e) {
+				LOG.debug("node {} is still unavailable: {}", name, e.toString());
+			}
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public HttpClient getClient() {
+			return client;
+		}
+		
+		public boolean isHealthy() {
+			return healthy;
+		}
+		
+		public int getOutstandingRequests() {
+			return outstanding.get();
+		}
+		
+		public long getRequestCount() {
+			return requests.get();
+		}
+		
+		public long getFailureCount() {
+			return failures.get();
+		}
+		
+		public long getEjectionCount() {
+			return ejections.get();
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+	
+	public static class Builder {
+		
+		private final List<NodeSpec> specs = new ArrayList<NodeSpec>();
+		private RoutingPolicy routingPolicy = ANY_NODE;
+		private int failureThreshold = 3;
+		private long slowResponseMillis = 0;
+		private long probeIntervalMillis = 5000;
+		/**
+		 * Adds a node reached through a StdHttpClient with default settings.
+		 */
+		public Builder node(String host, int port) {
+			return node(host + ":" + port, new StdHttpClient.Builder().host(host).port(port).build());
+		}
+		
+		public Builder node(String name, HttpClient client) {
+			Assert.hasText(name, "name must have a value");
+			Assert.notNull(client, "HttpClient cannot be null");
+			specs.add(new NodeSpec(name, client));
+			return this;
+		}
+		
+		public Builder routingPolicy(RoutingPolicy p) {
+			Assert.notNull(p, "RoutingPolicy cannot be null");
+			routingPolicy = p;
+			return this;
+		}
+		/**
+		 * A node is ejected after this many consecutive failures. Default is 3.
+		 */
+		public Builder failureThreshold(int i) {
+			Assert.isTrue(i > 0, "failureThreshold must be greater than 0");
+			failureThreshold = i;
+			return this;
+		}
+		/**
+		 * Responses slower than this count as failures. Default is 0, i.e. slow responses are not counted.
+		 */
+		public Builder slowResponseMillis(long ms) {
+			Assert.isTrue(ms >= 0, "slowResponseMillis cannot be negative");
+			slowResponseMillis = ms;
+			return this;
+		}
+		/**
+		 * Ejected nodes are probed at this interval. Default is 5000 ms.
+		 */
+		public Builder probeIntervalMillis(long ms) {
+			Assert.isTrue(ms > 0, "probeIntervalMillis must be greater than 0");
+			probeIntervalMillis = ms;
+			return this;
+		}
+		
+		public LoadBalancingHttpClient build() {
+			return new LoadBalancingHttpClient(this);
+		}
+	}
+	
+	private static class NodeSpec {
+		
+		final String name;
+		final HttpClient client;
+		
+		NodeSpec(String name, HttpClient client) {
+			this.name = name;
+			this.client = client;
+		}
+	}
+}
@@ -0,0 +1,834 @@
+package org.ektorp.http;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ektorp.util.*;
+import org.slf4j.*;
+/**
+ * AsyncHttpClient on non-blocking sockets. A single I/O thread multiplexes all connections with a Selector,
+ * so the number of requests in flight is bounded by maxConnections and not by threads. Requests beyond
+ * maxConnections wait in a queue for a connection to become idle.
+ *
+ * Connections speak HTTP/1.1 and are kept alive between requests. A response is read into memory completely
+ * before it is handed to the callback, which runs on the callback executor rather than on the I/O thread, so that
+ * mapping a large result does not hold up the other connections.
+ *
+ * Only plain http is supported, with Basic authentication when username and password are set.
+ * A GET or HEAD that fails on a reused connection before any part of the response has arrived is sent once more,
+ * as the server may have closed the connection while it was idle.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class NioAsyncHttpClient implements AsyncHttpClient {
+	
+	private final static Logger LOG = LoggerFactory.getLogger(NioAsyncHttpClient.class);
+	
+	private final static String GET = "GET";
+	private final static String HEAD = "HEAD";
+	private final static String PUT = "PUT";
+	private final static String POST = "POST";
+	private final static String DELETE = "DELETE";
+	
+	private final static String CRLF = "\r\n";
+	private final static String ASCII = "ISO-8859-1";
+	private final static String UTF_8 = "UTF-8";
+	private final static int READ_BUFFER_SIZE = 16 * 1024;
+	/**
+	 * Timeouts are checked at least this often.
+	 */
+	private final static long SELECT_TIMEOUT_MS = 50;
+	
+	private final InetSocketAddress address;
+	private final String hostHeader;
+	private final String authorization;
+	private final int maxConnections;
+	private final long connectionTimeout;
+	private final long socketTimeout;
+	private final Executor callbackExecutor;
+	private final ExecutorService defaultCallbackExecutor;
+	
+	private final Selector selector;
+	private final Thread ioThread;
+	private final Queue<Exchange<?>> waiting = new ConcurrentLinkedQueue<Exchange<?>>();
+	private volatile boolean shutdown;
+	// only used by the I/O thread
+	private final Set<Connection> connections = new HashSet<Connection>();
+	private final Deque<Connection> idle = new ArrayDeque<Connection>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	
+	private NioAsyncHttpClient(Builder b) {
+		Assert.hasText(b.host, "host must have a value");
+		Assert.isTrue(b.maxConnections > 0, "maxConnections must be greater than 0");
+		this.address = new InetSocketAddress(b.host, b.port);
+		this.hostHeader = b.host + ":" + b.port;
+		this.authorization = b.username != null && b.password != null ? "Basic " + base64(bytes(b.username + ":" + b.password, UTF_8)) : null;
+		this.maxConnections = b.maxConnections;
+		this.connectionTimeout = b.connectionTimeout;
+		this.socketTimeout = b.socketTimeout;
+		if (b.callbackExecutor != null) {
+			this.callbackExecutor = b.callbackExecutor;
+			this.defaultCallbackExecutor = null;
+		} else {
+			this.defaultCallbackExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+					new DaemonThreadFactory("ektorp-async-callback"));
+			this.callbackExecutor = defaultCallbackExecutor;
+		}
+		try {
+			this.selector = Selector.open();
+		} catch (IOException e) {
+			throw Exceptions.propagate(e);
+		}
+		this.ioThread = new DaemonThreadFactory("ektorp-async-io").newThread(new Runnable() {
+			@Override
+			public void run() {
+				runIoLoop();
+			}
+		});
+		ioThread.start();
+	}
+	
+	@Override
+	public <T> Future<T> get(String uri, ResponseCallback<T> callback) {
+		return submit(GET, uri, null, callback);
+	}
+	
+	@Override
+	public <T> Future<T> put(String uri, String content, ResponseCallback<T> callback) {
+		return submit(PUT, uri, content, callback);
+	}
+	
+	@Override
+	public <T> Future<T> post(String uri, String content, ResponseCallback<T> callback) {
+		return submit(POST, uri, content, callback);
+	}
+	
+	@Override
+	public <T> Future<T> delete(String uri, ResponseCallback<T> callback) {
+		return submit(DELETE, uri, null, callback);
+	}
+	
+	@Override
+	public <T> Future<T> head(String uri, ResponseCallback<T> callback) {
+		return submit(HEAD, uri, null, callback);
+	}
+	/**
+	 * Requests already submitted are completed, new requests are rejected.
+	 */
+	@Override
+	public void shutdown() {
+		synchronized (waiting) {
+			shutdown = true;
+		}
+		selector.wakeup();
+	}
+	
+	private <T> Future<T> submit(String method, String uri, String content, ResponseCallback<T> callback) {
+		Assert.hasText(uri, "uri must have a value");
+		Assert.notNull(callback, "ResponseCallback cannot be null");
+		Exchange<T> e = new Exchange<T>(method, uri, request(method, uri, content), callback);
+		synchronized (waiting) {
+			if (shutdown) {
+				throw new RejectedExecutionException("client is shut down");
+			}
+			waiting.add(e);
+		}
+		selector.wakeup();
+		return e.future;
+	}
+	
+	private ByteBuffer request(String method, String uri, String content) {
+		byte[] body = content != null ? bytes(content, UTF_8) : null;
+		StringBuilder sb = new StringBuilder(128);
+		sb.append(method).append(' ').append(uri).append(" HTTP/1.1").append(CRLF);
+		sb.append("Host: ").append(hostHeader).append(CRLF);
+		sb.append("Accept: application/json").append(CRLF);
+		if (authorization != null) {
+			sb.append("Authorization: ").append(authorization).append(CRLF);
+		}
+		if (body != null) {
+			sb.append("Content-Type: application/json").append(CRLF);
+			sb.append("Content-Length: ").append(body.length).append(CRLF);
+		}
+		sb.append(CRLF);
+		byte[] head = bytes(sb.toString(), ASCII);
+		ByteBuffer buf = ByteBuffer.allocate(head.length + (body != null ? body.length : 0));
+		buf.put(head);
+		if (body != null) {
+			buf.put(body);
+		}
+		buf.flip();
+		return buf;
+	}
+	
+	private void runIoLoop() {
+		try {
+			while (!isTerminated()) {
+				selector.select(SELECT_TIMEOUT_MS);
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					Connection c = (Connection) key.attachment();
+					try {
+						c.ready(key);
+					} catch (IOException e) {
+						c.fail(e);
+					}
+				}
+				expire(System.currentTimeMillis());
+				sendWaiting();
+			}
+		} catch (Throwable t) {
+			LOG.error("I/O thread failed", t);
+		} finally {
+			for (Connection c : new ArrayList<Connection>(connections)) {
+				c.fail(new IOException("client is shut down"));
+			}
+			Exchange<?> e;
+			while ((e = waiting.poll()) != null) {
+				e.fail(new IOException("client is shut down"));
+			}
+			try {
+				selector.close();
+			} catch (IOException e1) {
+				LOG.debug("closing selector failed", e1);
+			}
+			if (defaultCallbackExecutor != null) {
+				defaultCallbackExecutor.shutdown();
+			}
+		}
+	}
+	/**
+	 * Requests submitted before shutdown() are visible in waiting once shutdown is seen, as both are written
+	 * under the same lock.
+	 */
+	private boolean isTerminated() {
+		return shutdown && waiting.isEmpty() && idle.size() == connections.size();
+	}
+	
+	private void sendWaiting() {
+		Exchange<?> e;
+		while ((e = waiting.peek()) != null) {
+			Connection c = idle.poll();
+			if (c == null) {
+				if (connections.size() >= maxConnections) {
+					return;
+				}
+				try {
+					c = connect();
+				} catch (IOException ex) {
+					waiting.poll();
+					e.fail(ex);
+					continue;
+				}
+			}
+			waiting.poll();
+			c.send(e);
+		}
+	}
+	
+	private Connection connect() throws IOException {
+		SocketChannel ch = SocketChannel.open();
+		try {
+			ch.configureBlocking(false);
+			ch.socket().setTcpNoDelay(true);
+			boolean connected = ch.connect(address);
+			Connection c = new Connection(ch, ch.register(selector, 0), connected);
+			connections.add(c);
+			return c;
+		} catch (IOException e) {
+			ch.close();
+			throw e;
+		}
+	}
+	
+	private void expire(long now) {
+		for (Connection c : new ArrayList<Connection>(connections)) {
+			if (c.exchange != null && now > c.deadline) {
+				c.fail(new SocketTimeoutException(c.connected ? "Read timed out" : "connect timed out"));
+			}
+		}
+	}
+	
+	private void dispatch(Runnable r) {
+		try {
+			callbackExecutor.execute(r);
+		} catch (RejectedExecutionException e) {
+			r.run();
+		}
+	}
+	
+	private class Connection {
+		
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private boolean connected;
+		private boolean reused;
+		private long deadline;
+		private Exchange<?> exchange;
+		private ByteBuffer out;
+		private ResponseReader reader;
+		
+		Connection(SocketChannel channel, SelectionKey key, boolean connected) {
+			this.channel = channel;
+			this.key = key;
+			this.connected = connected;
+			key.attach(this);
+		}
+		
+		void send(Exchange<?> e) {
+			exchange = e;
+			out = e.request.duplicate();
+			reader = new ResponseReader(HEAD.equals(e.method));
+			deadline = System.currentTimeMillis() + (connected ? socketTimeout : connectionTimeout);
+			key.interestOps(connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT);
+		}
+		
+		void ready(SelectionKey k) throws IOException {
+			if (k.isConnectable()) {
+				channel.finishConnect();
+				connected = true;
+				deadline = System.currentTimeMillis() + socketTimeout;
+				k.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			if (k.isWritable()) {
+				channel.write(out);
+				deadline = System.currentTimeMillis() + socketTimeout;
+				if (!out.hasRemaining()) {
+					k.interestOps(SelectionKey.OP_READ);
+				}
+				return;
+			}
+			if (k.isReadable()) {
+				read();
+			}
+		}
+		
+		private void read() throws IOException {
+			readBuffer.clear();
+			int n = channel.read(readBuffer);
+			if (exchange == null) {
+				// an idle connection is readable when the server closes it
+				close();
+				return;
+			}
+			if (n == -1) {
+				if (!reader.endOfStream()) {
+					throw new EOFException("connection closed before the response was complete");
+				}
+				close();
+				complete();
+				return;
+			}
+			deadline = System.currentTimeMillis() + socketTimeout;
+			readBuffer.flip();
+			if (reader.feed(readBuffer)) {
+				if (reader.isKeepAlive()) {
+					reused = true;
+					key.interestOps(SelectionKey.OP_READ);
+					idle.push(this);
+				} else {
+					close();
+				}
+				complete();
+			}
+		}
+		
+		private void complete() {
+			Exchange<?> e = exchange;
+			exchange = null;
+			out = null;
+			e.complete(reader.response(e.uri));
+			reader = null;
+		}
+		
+		void fail(IOException ex) {
+			close();
+			Exchange<?> e = exchange;
+			exchange = null;
+			if (e == null) {
+				return;
+			}
+			if (reused && !reader.isStarted() && e.isIdempotent() && !e.retried && !(ex instanceof SocketTimeoutException)) {
+				LOG.debug("{} {} failed on a reused connection, retrying: {}", new Object[] {e.method, e.uri, ex.toString()});
+				e.retried = true;
+				waiting.add(e);
+			} else {
+				e.fail(ex);
+			}
+		}
+		
+		private void close() {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOG.debug("closing connection failed", e);
+			}
+			connections.remove(this);
+			idle.remove(this);
+		}
+	}
+	
+	private class Exchange<T> implements Callable<T> {
+		
+		private final String method;
+		private final String uri;
+		private final ByteBuffer request;
+		private final ResponseCallback<T> callback;
+		private final FutureTask<T> future = new FutureTask<T>(this);
+		private boolean retried;
+		// written by the I/O thread before the future is run by the callback executor
+		private HttpResponse response;
+		private Exception failure;
+		
+		Exchange(String method, String uri, ByteBuffer request, ResponseCallback<T> callback) {
+			this.method = method;
+			this.uri = uri;
+			this.request = request;
+			this.callback = callback;
+		}
+		
+		boolean isIdempotent() {
+			return GET.equals(method) || HEAD.equals(method);
+		}
+		
+		void complete(HttpResponse hr) {
+			response = hr;
+			dispatch(future);
+		}
+		
+		void fail(Exception e) {
+			failure = Exceptions.propagate(e);
+			dispatch(future);
+		}
+		
+		@Override
+		public T call() throws Exception {
+			if (failure != null) {
+				throw failure;
+			}
+			try {
+				return response.isSuccessful() ? callback.success(response) : callback.error(response);
+			} finally {
+				response.releaseConnection();
+			}
+		}
+	}
+	/**
+	 * Parses an HTTP/1.1 response as its bytes arrive. The body is delimited by Content-Length, chunked transfer
+	 * encoding or the end of the stream.
+	 */
+	private static class ResponseReader {
+		
+		private final static byte[] HEAD_END = {'\r', '\n', '\r', '\n'};
+		
+		private final boolean headRequest;
+		private final Buffer head = new Buffer(512);
+		private boolean started;
+		private boolean headDone;
+		private int code;
+		private String reason;
+		private String contentType;
+		private String eTag;
+		private boolean keepAlive;
+		private boolean chunked;
+		private long contentLength = -1;
+		// a body of known length is read straight into its array
+		private byte[] body;
+		private int bodyLength;
+		// chunked bodies and bodies delimited by the end of the stream
+		private Buffer raw;
+		private Buffer decoded;
+		private boolean done;
+		
+		ResponseReader(boolean headRequest) {
+			this.headRequest = headRequest;
+		}
+		
+		boolean isStarted() {
+			return started;
+		}
+		
+		boolean isKeepAlive() {
+			return keepAlive;
+		}
+		/**
+		 * @return true when the response is complete.
+		 */
+		boolean feed(ByteBuffer in) throws IOException {
+			started |= in.hasRemaining();
+			while (!headDone && in.hasRemaining()) {
+				int from = Math.max(0, head.size() - 3);
+				head.write(in.array(), in.position(), in.remaining());
+				in.position(in.limit());
+				int end = head.indexOf(HEAD_END, from);
+				if (end != -1) {
+					int bodyStart = end + HEAD_END.length;
+					byte[] rest = head.copyFrom(bodyStart);
+					parseHead(new String(head.array(), 0, end, ASCII));
+					if (!headDone) {
+						// an interim 1xx response, the final one follows
+						head.reset();
+					}
+					in = ByteBuffer.wrap(rest);
+				}
+			}
+			if (headDone && !done && in.hasRemaining()) {
+				readBody(in.array(), in.position(), in.remaining());
+			}
+			return done;
+		}
+		/**
+		 * @return true if the response is complete now that the stream has ended.
+		 */
+		boolean endOfStream() {
+			if (headDone && !done && !chunked && contentLength == -1) {
+				done = true;
+			}
+			return done;
+		}
+		
+		private void parseHead(String s) throws IOException {
+			String[] lines = s.split(CRLF);
+			String[] status = lines[0].split(" ", 3);
+			if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+				throw new IOException("invalid status line: " + lines[0]);
+			}
+			try {
+				code = Integer.parseInt(status[1]);
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid status line: " + lines[0]);
+			}
+			if (code / 100 == 1) {
+				return;
+			}
+			reason = status.length > 2 ? status[2] : "";
+			keepAlive = "HTTP/1.1".equals(status[0]);
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon == -1) {
+					continue;
+				}
+				String name = lines[i].substring(0, colon).trim();
+				String value = lines[i].substring(colon + 1).trim();
+				if ("Content-Length".equalsIgnoreCase(name)) {
+					contentLength = Long.parseLong(value);
+				} else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+					chunked = value.toLowerCase().indexOf("chunked") != -1;
+				} else if ("Connection".equalsIgnoreCase(name)) {
+					keepAlive = value.equalsIgnoreCase("keep-alive") || keepAlive && !value.equalsIgnoreCase("close");
+				} else if ("Content-Type".equalsIgnoreCase(name)) {
+					contentType = value;
+				} else if ("ETag".equalsIgnoreCase(name)) {
+					eTag = value;
+				}
+			}
+			headDone = true;
+			if (headRequest || code == 204 || code == 304) {
+				contentLength = 0;
+				chunked = false;
+			}
+			if (chunked) {
+				contentLength = -1;
+				raw = new Buffer(READ_BUFFER_SIZE);
+				decoded = new Buffer(READ_BUFFER_SIZE);
+			} else if (contentLength >= 0) {
+				if (contentLength > Integer.MAX_VALUE) {
+					throw new IOException("response too large: " + contentLength);
+				}
+				body = new byte[(int) contentLength];
+				done = contentLength == 0;
+			} else {
+				keepAlive = false;
+				decoded = new Buffer(READ_BUFFER_SIZE);
+			}
+		}
+		
+		private void readBody(byte[] b, int off, int len) throws IOException {
+			if (body != null) {
+				int n = Math.min(len, body.length - bodyLength);
+				System.arraycopy(b, off, body, bodyLength, n);
+				bodyLength += n;
+				done = bodyLength == body.length;
+			} else if (chunked) {
+				raw.write(b, off, len);
+				decodeChunks();
+			} else {
+				decoded.write(b, off, len);
+			}
+		}
+		
+		private void decodeChunks() throws IOException {
+			int pos = 0;
+			while (!done) {
+				int lineEnd = raw.indexOf(HEAD_END, pos, 2);
+				if (lineEnd == -1) {
+					break;
+				}
+				String line = new String(raw.array(), pos, lineEnd - pos, ASCII);
+				int semicolon = line.indexOf(';');
+				int size;
+				try {
+					size = Integer.parseInt((semicolon != -1 ? line.substring(0, semicolon) : line).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("invalid chunk size: " + line);
+				}
+				if (size == 0) {
+					// the last chunk is followed by optional trailers and an empty line
+					done = raw.indexOf(HEAD_END, lineEnd) != -1;
+					break;
+				}
+				int dataStart = lineEnd + 2;
+				if (raw.size() < dataStart + size + 2) {
+					break;
+				}
+				decoded.write(raw.array(), dataStart, size);
+				pos = dataStart + size + 2;
+			}
+			raw.discard(pos);
+		}
+		
+		HttpResponse response(String uri) {
+			byte[] content;
+			int length;
+			if (body != null) {
+				content = body;
+				length = bodyLength;
+			} else {
+				content = decoded.array();
+				length = decoded.size();
+			}
+			return new BufferedResponse(code, reason, uri, contentType, eTag, content, length);
+		}
+	}
+	/**
+	 * A ByteArrayOutputStream that exposes its array.
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+		
+		Buffer(int size) {
+			super(size);
+		}
+		
+		byte[] array() {
+			return buf;
+		}
+		
+		int indexOf(byte[] pattern, int from) {
+			return indexOf(pattern, from, pattern.length);
+		}
+		/**
+		 * @return the index of the first patternLength bytes of pattern at or after from, -1 if not found.
+		 */
+		int indexOf(byte[] pattern, int from, int patternLength) {
+			outer:
+			for (int i = from; i <= count - patternLength; i++) {
+				for (int j = 0; j < patternLength; j++) {
+					if (buf[i + j] != pattern[j]) {
+						continue outer;
+					}
+				}
+				return i;
+			}
+			return -1;
+		}
+		
+		byte[] copyFrom(int from) {
+			byte[] b = new byte[count - from];
+			System.arraycopy(buf, from, b, 0, b.length);
+			return b;
+		}
+		/**
+		 * Removes the first n bytes.
+		 */
+		void discard(int n) {
+			if (n > 0) {
+				System.arraycopy(buf, n, buf, 0, count - n);
+				count -= n;
+			}
+		}
+	}
+	
+	private static class BufferedResponse implements HttpResponse {
+		
+		private final int code;
+		private final String reason;
+		private final String requestURI;
+		private final String contentType;
+		private final String eTag;
+		private final byte[] content;
+		private final int length;
+		
+		BufferedResponse(int code, String reason, String requestURI, String contentType, String eTag, byte[] content, int length) {
+			this.code = code;
+			this.reason = reason;
+			this.requestURI = requestURI;
+			this.contentType = contentType;
+			this.eTag = eTag;
+			this.content = content;
+			this.length = length;
+		}
+		
+		@Override
+		public boolean isSuccessful() {
+			return code < 300;
+		}
+		
+		@Override
+		public int getCode() {
+			return code;
+		}
+		
+		@Override
+		public String getRequestURI() {
+			return requestURI;
+		}
+		
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+		
+		@Override
+		public long getContentLength() {
+			return length;
+		}
+		
+		@Override
+		public String getETag() {
+			return eTag;
+		}
+		
+		@Override
+		public InputStream getContent() {
+			return new ByteArrayInputStream(content, 0, length);
+		}
+		/**
+		 * The connection was released when the response had been read.
+		 */
+		@Override
+		public void releaseConnection() {
+		}
+		
+		@Override
+		public void abort() {
+		}
+		
+		@Override
+		public String toString() {
+			return code + ":" + reason;
+		}
+	}
+	
+	private static class DaemonThreadFactory implements ThreadFactory {
+		
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+		
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+	
+	private static byte[] bytes(String s, String charset) {
+		try {
+			return s.getBytes(charset);
+		} catch (UnsupportedEncodingException e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+	
+	private final static char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	
+	private static String base64(byte[] b) {
+		StringBuilder sb = new StringBuilder((b.length + 2) / 3 * 4);
+		for (int i = 0; i < b.length; i += 3) {
+			int n = (b[i] & 0xff) << 16 | (i + 1 < b.length ? (b[i + 1] & 0xff) << 8 : 0) | (i + 2 < b.length ? b[i + 2] & 0xff : 0);
+			sb.append(BASE64[n >> 18 & 63]).append(BASE64[n >> 12 & 63]);
+			sb.append(i + 1 < b.length ? BASE64[n >> 6 & 63] : '=');
+			sb.append(i + 2 < b.length ? BASE64[n & 63] : '=');
+		}
+		return sb.toString();
+	}
+	
+	public static class Builder {
+		
+		private String host = "localhost";
+		private int port = 5984;
+		private int maxConnections = 100;
+		private int connectionTimeout = 1000;
+		private int socketTimeout = 10000;
+		private String username;
+		private String password;
+		private Executor callbackExecutor;
+		
+		public Builder host(String s) {
+			host = s;
+			return this;
+		}
+		
+		public Builder port(int i) {
+			port = i;
+			return this;
+		}
+		
+		public Builder username(String s) {
+			username = s;
+			return this;
+		}
+		
+		public Builder password(String s) {
+			password = s;
+			return this;
+		}
+		/**
+		 * @param i the number of requests in flight, each on a connection of its own. Default 100.
+		 * @return
+		 */
+		public Builder maxConnections(int i) {
+			maxConnections = i;
+			return this;
+		}
+		
+		public Builder connectionTimeout(int i) {
+			connectionTimeout = i;
+			return this;
+		}
+		/**
+		 * @param i milliseconds a request may go without any bytes being sent or received. Default 10000.
+		 * @return
+		 */
+		public Builder socketTimeout(int i) {
+			socketTimeout = i;
+			return this;
+		}
+		/**
+		 * @param e runs the response callbacks. Defaults to a pool with a thread per processor, which is shut down
+		 * with the client.
+		 * @return
+		 */
+		public Builder callbackExecutor(Executor e) {
+			callbackExecutor = e;
+			return this;
+		}
+		
+		public NioAsyncHttpClient build() {
+			return new NioAsyncHttpClient(this);
+		}
+	}
+}
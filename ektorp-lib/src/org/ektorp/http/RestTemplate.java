@@ -1,6 +1,9 @@
 package org.ektorp.http;
 
 import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import org.ektorp.util.*;
 /**
@@ -11,32 +14,88 @@ import org.ektorp.util.*;
 public class RestTemplate {
 
 	private final HttpClient client;
+	
+	private volatile HedgedReads hedgedReads;
 
 	public RestTemplate(HttpClient client) {
 		this.client = client;
 	}
+	/**
+	 * Enables hedging of GET and HEAD requests of documents.
+	 * Responses read by getStreaming and resources below a path segment starting with an underscore, such as views and
+	 * _changes, are never hedged, as they may be large or long polling.
+	 * @param hr null disables hedging.
+	 */
+	public void setHedgedReads(HedgedReads hr) {
+		hedgedReads = hr;
+	}
 
 	public <T> T get(String path, ResponseCallback<T> callback) {
-		HttpResponse hr = client.get(path);
+		HttpResponse hr = read(path, null, false);
+		return handleResponse(callback, hr);
+	}
+
+	public <T> T get(String path, Map<String, String> headers, ResponseCallback<T> callback) {
+		HttpResponse hr = read(path, headers, false);
 		return handleResponse(callback, hr);
 	}
 
 	public HttpResponse get(String path) {
-		HttpResponse hr = client.get(path);
+		HttpResponse hr = read(path, null, false);
 		try {
-			return hr.isSuccessful() ? hr : null;
+			if (hr.isSuccessful()) {
+				return hr;
+			}
+			hr.releaseConnection();
+			return null;
 		} catch (Exception e) {
 			hr.releaseConnection();
 			throw Exceptions.propagate(e);
 		}
 	}
 
+	/**
+	 * The connection is released if the response is unsuccessful or if the callback fails.
+	 * On success the connection is left open and the callback's result becomes responsible for
+	 * releasing it.
+	 * @param <T>
+	 * @param path
+	 * @param callback
+	 * @return
+	 */
+	public <T> T getStreaming(String path, ResponseCallback<T> callback) {
+		return handleStreamingResponse(callback, send(path, null, false));
+	}
+	
+	public <T> T getStreaming(String path, Map<String, String> headers, ResponseCallback<T> callback) {
+		return handleStreamingResponse(callback, send(path, headers, false));
+	}
+	
+	private <T> T handleStreamingResponse(ResponseCallback<T> callback, HttpResponse hr) {
+		boolean success = false;
+		try {
+			T result = hr.isSuccessful() ? callback.success(hr) : callback.error(hr);
+			success = hr.isSuccessful();
+			return result;
+		} catch (Exception e) {
+			throw Exceptions.propagate(e);
+		} finally {
+			if (!success) {
+				hr.releaseConnection();
+			}
+		}
+	}
+
 	public void put(String path) {
 		handleVoidResponse(client.put(path));
 	}
+	
+	public <T> T put(String path, ResponseCallback<T> callback) {
+		return handleResponse(callback, client.put(path));
+	}
 
-	public <T> void put(String path, String content, ResponseCallback<T> callback) {
-		handleVoidResponse(callback, client.put(path, content));
+	public <T> T put(String path, String content, ResponseCallback<T> callback) {
+		return handleResponse(callback, client.put(path, content));
 	}
 
 
@@ -45,17 +104,30 @@ public class RestTemplate {
 	}
 
 	public void put(String path, InputStream data, String contentType,
-			int contentLength) {
+			long contentLength) {
 		handleVoidResponse(client.put(path, data, contentType, contentLength));
 	}
 
 	public <T> T put(String path, InputStream data, String contentType,
-			int contentLength, ResponseCallback<T> callback) {
+			long contentLength, ResponseCallback<T> callback) {
+		return handleResponse(callback, client.put(path, data, contentType, contentLength));
+	}
+	
+	public <T> T put(String path, ReadableByteChannel data, String contentType,
+			long contentLength, ResponseCallback<T> callback) {
 		return handleResponse(callback, client.put(path, data, contentType, contentLength));
 	}
 	
-	public <T> void post(String path, String content, ResponseCallback<T> callback) {
-		handleVoidResponse(callback, client.post(path, content));
+	public <T> T post(String path, String content, ResponseCallback<T> callback) {
+		return handleResponse(callback, client.post(path, content));
+	}
+
+	public <T> T post(String path, ContentWriter content, ResponseCallback<T> callback) {
+		return handleResponse(callback, client.post(path, content));
+	}
+	
+	public <T> T put(String path, ContentWriter content, ResponseCallback<T> callback) {
+		return handleResponse(callback, client.put(path, content));
 	}
 
 	public <T> T delete(String path, ResponseCallback<T> callback) {
@@ -67,7 +139,32 @@ public class RestTemplate {
 	}
 
 	public <T> T head(String path, ResponseCallback<T> callback) {
-		return handleResponse(callback, client.head(path));
+		return handleResponse(callback, read(path, null, true));
+	}
+	
+	private HttpResponse read(final String path, final Map<String, String> headers, final boolean head) {
+		HedgedReads hr = hedgedReads;
+		if (hr == null || !isDocumentPath(path)) {
+			return send(path, headers, head);
+		}
+		return hr.execute(new Callable<HttpResponse>() {
+			@Override
+			public HttpResponse call() throws Exception {
+				return send(path, headers, head);
+			}
+		});
+	}
+	
+	private static boolean isDocumentPath(String path) {
+		int q = path.indexOf('?');
+		return (q != -1 ? path.substring(0, q) : path).indexOf("/_") == -1;
+	}
+	
+	private HttpResponse send(String path, Map<String, String> headers, boolean head) {
+		if (head) {
+			return client.head(path);
+		}
+		return headers != null ? client.get(path, headers) : client.get(path);
 	}
 	
 	private void handleVoidResponse(HttpResponse hr) {
@@ -82,20 +179,6 @@ public class RestTemplate {
 		}
 	}
 	
-	private <T> void handleVoidResponse(ResponseCallback<T> callback, HttpResponse hr) {
-		try {
-			if (hr.isSuccessful()) {
-				callback.success(hr);
-			} else {
-				callback.error(hr);
-			}
-		} catch (Exception e) {
-			throw Exceptions.propagate(e);
-		} finally {
-			hr.releaseConnection();
-		}
-	}
-	
 	private <T> T handleResponse(ResponseCallback<T> callback, HttpResponse hr) {
 		try {
 			return hr.isSuccessful() ? callback.success(hr) : callback.error(hr);
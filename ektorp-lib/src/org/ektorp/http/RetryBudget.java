@@ -0,0 +1,81 @@
+package org.ektorp.http;
+
+import java.util.concurrent.atomic.*;
+
+import org.ektorp.util.*;
+/**
+ * Caps retries to a share of the requests made, so that a failing server is not hit by a storm of retries.
+ *
+ * Every request deposits ratio tokens and every retry withdraws one whole token. A retry is denied when less than
+ * one token is left. Tokens are capped, and a few tokens are available from the start so that an idle client can
+ * still retry its first requests.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class RetryBudget {
+	/**
+	 * Never denies a retry.
+	 */
+	public final static RetryBudget UNLIMITED = new RetryBudget(1, Integer.MAX_VALUE) {
+		@Override
+		public boolean tryRetry() {
+			return true;
+		}
+	};
+	
+	private final static long SCALE = 1000;
+	
+	private final long deposit;
+	private final long maxTokens;
+	private final AtomicLong tokens;
+	/**
+	 * Allows retries for 10% of the requests with a reserve of 10 retries.
+	 */
+	public RetryBudget() {
+		this(0.1, 10);
+	}
+	/**
+	 * @param ratio retries allowed per request, i.e. 0.1 for 10%.
+	 * @param maxTokens the number of retries that may be saved up.
+	 */
+	public RetryBudget(double ratio, int maxTokens) {
+		Assert.isTrue(ratio >= 0 && ratio <= 1, "ratio must be between 0 and 1");
+		Assert.isTrue(maxTokens > 0, "maxTokens must be positive");
+		this.deposit = (long) (ratio * SCALE);
+		this.maxTokens = maxTokens * SCALE;
+		this.tokens = new AtomicLong(this.maxTokens);
+	}
+	/**
+	 * Called once per request, not for retries.
+	 */
+	public void deposit() {
+		while (true) {
+			long t = tokens.get();
+			long next = Math.min(maxTokens, t + deposit);
+			if (next == t || tokens.compareAndSet(t, next)) {
+				return;
+			}
+		}
+	}
+	/**
+	 * @return true if a retry may be made, in which case one token has been withdrawn.
+	 */
+	public boolean tryRetry() {
+		while (true) {
+			long t = tokens.get();
+			if (t < SCALE) {
+				return false;
+			}
+			if (tokens.compareAndSet(t, t - SCALE)) {
+				return true;
+			}
+		}
+	}
+	/**
+	 * @return the number of retries currently allowed.
+	 */
+	public long getAvailableRetries() {
+		return tokens.get() / SCALE;
+	}
+}
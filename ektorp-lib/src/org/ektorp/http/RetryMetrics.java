@@ -0,0 +1,71 @@
+package org.ektorp.http;
+
+import java.util.concurrent.atomic.*;
+/**
+ * Counts the requests and retries made by a RetryingHttpClient.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class RetryMetrics {
+	
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong recovered = new AtomicLong();
+	private final AtomicLong exhausted = new AtomicLong();
+	private final AtomicLong budgetDenied = new AtomicLong();
+	
+	void request() {
+		requests.incrementAndGet();
+	}
+	
+	void retry() {
+		retries.incrementAndGet();
+	}
+	
+	void recovered() {
+		recovered.incrementAndGet();
+	}
+	
+	void exhausted() {
+		exhausted.incrementAndGet();
+	}
+	
+	void budgetDenied() {
+		budgetDenied.incrementAndGet();
+	}
+	/**
+	 * @return number of requests, not counting retries.
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+	
+	public long getRetries() {
+		return retries.get();
+	}
+	/**
+	 * @return number of requests that succeeded after one or more retries.
+	 */
+	public long getRecovered() {
+		return recovered.get();
+	}
+	/**
+	 * @return number of requests that still failed when the policy's attempts were used up.
+	 */
+	public long getExhausted() {
+		return exhausted.get();
+	}
+	/**
+	 * @return number of retries not made because the retry budget was used up.
+	 */
+	public long getBudgetDenied() {
+		return budgetDenied.get();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("requests: %d, retries: %d, recovered: %d, exhausted: %d, denied by budget: %d",
+				getRequests(), getRetries(), getRecovered(), getExhausted(), getBudgetDenied());
+	}
+}
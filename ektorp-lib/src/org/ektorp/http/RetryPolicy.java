@@ -0,0 +1,110 @@
+package org.ektorp.http;
+
+import java.util.*;
+
+import org.ektorp.util.*;
+/**
+ * How many times an operation is attempted and how long to wait between attempts.
+ *
+ * The wait before retry n is drawn at random between zero and initialBackoffMillis * multiplier^(n - 1), capped at
+ * maxBackoffMillis ("full jitter"), so that clients failing at the same moment do not retry in lockstep.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class RetryPolicy {
+	/**
+	 * Attempts every operation once.
+	 */
+	public final static RetryPolicy NO_RETRIES = new Builder().maxAttempts(1).build();
+	
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+	private final double multiplier;
+	private final Random random = new Random();
+	
+	private RetryPolicy(Builder b) {
+		this.maxAttempts = b.maxAttempts;
+		this.initialBackoffMillis = b.initialBackoffMillis;
+		this.maxBackoffMillis = b.maxBackoffMillis;
+		this.multiplier = b.multiplier;
+	}
+	/**
+	 * @return the number of attempts including the first one.
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+	/**
+	 * @param retry the number of the retry about to be made, starting with 1.
+	 * @return milliseconds to wait before the retry.
+	 */
+	public long backoffMillis(int retry) {
+		double ceiling = Math.min(maxBackoffMillis, initialBackoffMillis * Math.pow(multiplier, retry - 1));
+		return (long) (random.nextDouble() * ceiling);
+	}
+	/**
+	 * Sleeps for backoffMillis(retry).
+	 * @param retry
+	 */
+	public void backoff(int retry) {
+		long millis = backoffMillis(retry);
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw Exceptions.propagate(e);
+			}
+		}
+	}
+	
+	public static class Builder {
+		
+		private int maxAttempts = 3;
+		private long initialBackoffMillis = 50;
+		private long maxBackoffMillis = 2000;
+		private double multiplier = 2;
+		/**
+		 * @param i the number of attempts including the first one. Default 3.
+		 * @return
+		 */
+		public Builder maxAttempts(int i) {
+			Assert.isTrue(i > 0, "maxAttempts must be positive");
+			maxAttempts = i;
+			return this;
+		}
+		/**
+		 * @param millis upper bound of the wait before the first retry. Default 50.
+		 * @return
+		 */
+		public Builder initialBackoffMillis(long millis) {
+			Assert.isTrue(millis >= 0, "initialBackoffMillis cannot be negative");
+			initialBackoffMillis = millis;
+			return this;
+		}
+		/**
+		 * @param millis upper bound of the wait before any retry. Default 2000.
+		 * @return
+		 */
+		public Builder maxBackoffMillis(long millis) {
+			Assert.isTrue(millis >= 0, "maxBackoffMillis cannot be negative");
+			maxBackoffMillis = millis;
+			return this;
+		}
+		/**
+		 * @param d the factor the backoff grows with per retry. Default 2.
+		 * @return
+		 */
+		public Builder multiplier(double d) {
+			Assert.isTrue(d >= 1, "multiplier cannot be less than 1");
+			multiplier = d;
+			return this;
+		}
+		
+		public RetryPolicy build() {
+			return new RetryPolicy(this);
+		}
+	}
+}
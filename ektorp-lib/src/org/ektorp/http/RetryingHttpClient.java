@@ -0,0 +1,276 @@
+package org.ektorp.http;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.ektorp.util.*;
+import org.slf4j.*;
+/**
+ * An HttpClient that retries requests failing with a transient error, i.e. an IOException such as a socket timeout,
+ * or a 502, 503 or 504 response.
+ *
+ * Which failures are retried depends on whether repeating the request is safe:
+ * GET and HEAD are always retried, as are PUT and DELETE requests carrying a revision, either as a rev parameter or
+ * as a _rev field of a String body, as a repeated update is rejected as a conflict instead of being applied twice.
+ * Other requests, including all POSTs, are only retried when the connection could not be established, as they may
+ * otherwise already have been applied. Requests with streamed bodies are never retried.
+ *
+ * The number of attempts and the backoff between them is set per HTTP method by a RetryPolicy. All retries are
+ * subject to a RetryBudget, shared by all methods.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class RetryingHttpClient implements HttpClient {
+	
+	private final static Logger LOG = LoggerFactory.getLogger(RetryingHttpClient.class);
+	
+	private final static String GET = "GET";
+	private final static String HEAD = "HEAD";
+	private final static String PUT = "PUT";
+	private final static String POST = "POST";
+	private final static String DELETE = "DELETE";
+	
+	private final HttpClient client;
+	private final Map<String, RetryPolicy> policies;
+	private final RetryBudget budget;
+	private final RetryMetrics metrics = new RetryMetrics();
+	
+	private RetryingHttpClient(Builder b) {
+		Assert.notNull(b.client, "HttpClient cannot be null");
+		this.client = b.client;
+		Map<String, RetryPolicy> p = new HashMap<String, RetryPolicy>();
+		for (String method : Arrays.asList(GET, HEAD, PUT, POST, DELETE)) {
+			p.put(method, b.policies.containsKey(method) ? b.policies.get(method) : b.defaultPolicy);
+		}
+		this.policies = p;
+		this.budget = b.budget;
+	}
+	
+	public RetryMetrics getMetrics() {
+		return metrics;
+	}
+	
+	public RetryBudget getBudget() {
+		return budget;
+	}
+	
+	@Override
+	public HttpResponse get(final String uri) {
+		return execute(GET, true, new Call() {
+			@Override
+			public HttpResponse execute() {
+				return client.get(uri);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse get(final String uri, final Map<String, String> headers) {
+		return execute(GET, true, new Call() {
+			@Override
+			public HttpResponse execute() {
+				return client.get(uri, headers);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse head(final String uri) {
+		return execute(HEAD, true, new Call() {
+			@Override
+			public HttpResponse execute() {
+				return client.head(uri);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse put(final String uri, final String content) {
+		return execute(PUT, hasRevision(uri) || content.indexOf("\"_rev\"") != -1, new Call() {
+			@Override
+			public HttpResponse execute() {
+				return client.put(uri, content);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse put(final String uri, final ContentWriter content) {
+		return execute(PUT, hasRevision(uri), new Call() {
+			@Override
+			public HttpResponse execute() {
+				return client.put(uri, content);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse put(final String uri) {
+		return execute(PUT, hasRevision(uri), new Call() {
+			@Override
+			public HttpResponse execute() {
+				return client.put(uri);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse put(String uri, InputStream data, String contentType, long contentLength) {
+		metrics.request();
+		return client.put(uri, data, contentType, contentLength);
+	}
+	
+	@Override
+	public HttpResponse put(String uri, ReadableByteChannel data, String contentType, long contentLength) {
+		metrics.request();
+		return client.put(uri, data, contentType, contentLength);
+	}
+	
+	@Override
+	public HttpResponse post(final String uri, final String content) {
+		return execute(POST, false, new Call() {
+			@Override
+			public HttpResponse execute() {
+				return client.post(uri, content);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse post(final String uri, final ContentWriter content) {
+		return execute(POST, false, new Call() {
+			@Override
+			public HttpResponse execute() {
+				return client.post(uri, content);
+			}
+		});
+	}
+	
+	@Override
+	public HttpResponse delete(final String uri) {
+		return execute(DELETE, hasRevision(uri), new Call() {
+			@Override
+			public HttpResponse execute() {
+				return client.delete(uri);
+			}
+		});
+	}
+	/**
+	 * @param idempotent if true, all transient failures are retried, otherwise only failures to connect.
+	 */
+	private HttpResponse execute(String method, boolean idempotent, Call call) {
+		RetryPolicy policy = policies.get(method);
+		metrics.request();
+		budget.deposit();
+		for (int attempt = 1; ; attempt++) {
+			HttpResponse rsp = null;
+			RuntimeException failure = null;
+			try {
+				rsp = call.execute();
+				if (!idempotent || !isTransient(rsp.getCode())) {
+					if (attempt > 1) {
+						metrics.recovered();
+					}
+					return rsp;
+				}
+			} catch (RuntimeException e) {
+				if (!(isCause(e, ConnectException.class) || idempotent && isCause(e, IOException.class))) {
+					throw e;
+				}
+				failure = e;
+			}
+			if (attempt >= policy.getMaxAttempts()) {
+				metrics.exhausted();
+				return result(rsp, failure);
+			}
+			if (!budget.tryRetry()) {
+				metrics.budgetDenied();
+				return result(rsp, failure);
+			}
+			if (rsp != null) {
+				rsp.releaseConnection();
+			}
+			LOG.debug("{} failed on attempt {}, retrying: {}", new Object[] {method, attempt, failure != null ? failure.toString() : rsp.getCode()});
+			metrics.retry();
+			policy.backoff(attempt);
+		}
+	}
+	
+	private static HttpResponse result(HttpResponse rsp, RuntimeException failure) {
+		if (failure != null) {
+			throw failure;
+		}
+		return rsp;
+	}
+	
+	private static boolean isTransient(int code) {
+		return code == 502 || code == 503 || code == 504;
+	}
+	
+	private static boolean isCause(Throwable e, Class<? extends Throwable> type) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (type.isInstance(t)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean hasRevision(String uri) {
+		int q = uri.indexOf('?');
+		return q != -1 && (uri.startsWith("rev=", q + 1) || uri.indexOf("&rev=", q) != -1);
+	}
+	
+	private interface Call {
+		HttpResponse execute();
+	}
+	
+	public static class Builder {
+		
+		private HttpClient client;
+		private RetryPolicy defaultPolicy = new RetryPolicy.Builder().build();
+		private final Map<String, RetryPolicy> policies = new HashMap<String, RetryPolicy>();
+		private RetryBudget budget = new RetryBudget();
+		
+		public Builder client(HttpClient c) {
+			client = c;
+			return this;
+		}
+		/**
+		 * @param p the policy of methods without a policy of their own. Defaults to 3 attempts.
+		 * @return
+		 */
+		public Builder defaultPolicy(RetryPolicy p) {
+			Assert.notNull(p, "RetryPolicy cannot be null");
+			defaultPolicy = p;
+			return this;
+		}
+		/**
+		 * @param method GET, HEAD, PUT, POST or DELETE.
+		 * @param p
+		 * @return
+		 */
+		public Builder policy(String method, RetryPolicy p) {
+			Assert.isTrue(Arrays.asList(GET, HEAD, PUT, POST, DELETE).contains(method), "unknown method: " + method);
+			Assert.notNull(p, "RetryPolicy cannot be null");
+			policies.put(method, p);
+			return this;
+		}
+		/**
+		 * @param b defaults to retries for 10% of the requests.
+		 * @return
+		 */
+		public Builder budget(RetryBudget b) {
+			Assert.notNull(b, "RetryBudget cannot be null");
+			budget = b;
+			return this;
+		}
+		
+		public RetryingHttpClient build() {
+			return new RetryingHttpClient(this);
+		}
+	}
+}
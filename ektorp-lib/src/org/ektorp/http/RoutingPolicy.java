@@ -0,0 +1,16 @@
+package org.ektorp.http;
+/**
+ * Decides which nodes of a {@link LoadBalancingHttpClient} may serve a request.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public interface RoutingPolicy {
+	/**
+	 * @param write true for PUT, POST and DELETE requests, false for GET and HEAD.
+	 * @param node
+	 * @return true if the request may be sent to the node.
+	 */
+	boolean accepts(boolean write, LoadBalancingHttpClient.Node node);
+	
+}
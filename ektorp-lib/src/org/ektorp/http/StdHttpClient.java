@@ -1,6 +1,9 @@
 package org.ektorp.http;
 
 import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
 
 import org.apache.http.*;
 import org.apache.http.auth.*;
@@ -22,11 +25,54 @@ import org.slf4j.*;
  */
 public class StdHttpClient implements HttpClient {
 	
+	private final static int COMPRESSION_DISABLED = -1;
+	
 	private final org.apache.http.client.HttpClient client;
 	private final static Logger LOG = LoggerFactory.getLogger(StdHttpClient.class);
+	
+	private final boolean acceptGzip;
+	private final int compressionThreshold;
+	private final CompressionMetrics compressionMetrics = new CompressionMetrics();
+	private final ConcurrencyLimiter limiter;
 
 	public StdHttpClient(org.apache.http.client.HttpClient hc) {
+		this(hc, false, COMPRESSION_DISABLED);
+	}
+	/**
+	 * @param hc
+	 * @param acceptGzip if true, responses are requested with Accept-Encoding: gzip and decompressed while they are read.
+	 * @param compressionThreshold request bodies of at least this many bytes are sent gzip compressed, -1 disables request compression.
+	 */
+	public StdHttpClient(org.apache.http.client.HttpClient hc, boolean acceptGzip, int compressionThreshold) {
+		this(hc, acceptGzip, compressionThreshold, null);
+	}
+	/**
+	 * @param hc
+	 * @param acceptGzip
+	 * @param compressionThreshold
+	 * @param limiter limits the requests in flight, may be null.
+	 */
+	public StdHttpClient(org.apache.http.client.HttpClient hc, boolean acceptGzip, int compressionThreshold, ConcurrencyLimiter limiter) {
 		client = hc;
+		this.acceptGzip = acceptGzip;
+		this.compressionThreshold = compressionThreshold;
+		this.limiter = limiter;
+	}
+	/**
+	 * @return bytes on the wire compared to uncompressed bytes. Only counted when compression is enabled.
+	 */
+	public CompressionMetrics getCompressionMetrics() {
+		return compressionMetrics;
+	}
+	/**
+	 * @return the concurrency limiter of this client, null if it has none.
+	 */
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+		return limiter;
+	}
+	
+	private boolean isCompressionEnabled() {
+		return acceptGzip || compressionThreshold != COMPRESSION_DISABLED;
 	}
 	
 	@Override
@@ -39,15 +85,34 @@ public class StdHttpClient implements HttpClient {
 		return executeRequest(new HttpGet(uri));
 	}
 
+	@Override
+	public HttpResponse get(String uri, Map<String, String> headers) {
+		HttpGet get = new HttpGet(uri);
+		for (Map.Entry<String, String> h : headers.entrySet()) {
+			get.addHeader(h.getKey(), h.getValue());
+		}
+		return executeRequest(get);
+	}
+
 	@Override
 	public HttpResponse post(String uri, String content) {
 		return executePutPost(new HttpPost(uri), content);
 	}
 
+	@Override
+	public HttpResponse post(String uri, ContentWriter content) {
+		return executePutPost(new HttpPost(uri), content);
+	}
+
 	@Override
 	public HttpResponse put(String uri, String content) {
 		return executePutPost(new HttpPut(uri), content);
 	}
+	
+	@Override
+	public HttpResponse put(String uri, ContentWriter content) {
+		return executePutPost(new HttpPut(uri), content);
+	}
 
 	@Override
 	public HttpResponse put(String uri) {
@@ -56,7 +121,7 @@ public class StdHttpClient implements HttpClient {
 
 	@Override
 	public HttpResponse put(String uri, InputStream data, String contentType,
-			int contentLength) {
+			long contentLength) {
 		InputStreamEntity e = new InputStreamEntity(data, contentLength);
 		e.setContentType(contentType);
 		
@@ -65,6 +130,17 @@ public class StdHttpClient implements HttpClient {
 		return executeRequest(hp);
 	}
 	
+	@Override
+	public HttpResponse put(String uri, ReadableByteChannel data, String contentType,
+			long contentLength) {
+		ChannelEntity e = new ChannelEntity(data, contentLength);
+		e.setContentType(contentType);
+		
+		HttpPut hp = new HttpPut(uri);
+		hp.setEntity(e);
+		return executeRequest(hp);
+	}
+	
 	@Override
 	public HttpResponse head(String uri) {
 		return executeRequest(new HttpHead(uri));
@@ -75,7 +151,27 @@ public class StdHttpClient implements HttpClient {
 			if (LOG.isTraceEnabled()) {
 				LOG.trace("Content: {}", content);
 			}
-			StringEntity e = new StringEntity(content, "UTF-8");
+			return executePutPost(request, content.getBytes("UTF-8"));
+		} catch (Exception e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+	
+	private HttpResponse executePutPost(HttpEntityEnclosingRequestBase request, byte[] body) {
+		try {
+			AbstractHttpEntity e;
+			if (compressionThreshold != COMPRESSION_DISABLED && body.length >= compressionThreshold) {
+				byte[] compressed = gzip(body);
+				e = new ByteArrayEntity(compressed);
+				e.setContentEncoding("gzip");
+				compressionMetrics.sent(compressed.length, body.length);
+				compressionMetrics.compressedRequest();
+			} else {
+				e = new ByteArrayEntity(body);
+				if (isCompressionEnabled()) {
+					compressionMetrics.sent(body.length, body.length);
+				}
+			}
 			e.setContentType("application/json");
 			request.setEntity(e);
 			return executeRequest(request);
@@ -84,15 +180,125 @@ public class StdHttpClient implements HttpClient {
 		}
 	}
 	
+	private HttpResponse executePutPost(HttpEntityEnclosingRequestBase request, ContentWriter content) {
+		if (compressionThreshold != COMPRESSION_DISABLED) {
+			byte[] small = writeBelowThreshold(content);
+			if (small != null) {
+				return executePutPost(request, small);
+			}
+		}
+		ContentWriterEntity e = new ContentWriterEntity(content);
+		e.setContentType("application/json");
+		request.setEntity(compressionThreshold != COMPRESSION_DISABLED ? new GzipCompressingEntity(e, compressionMetrics) : e);
+		return executeRequest(request);
+	}
+	/**
+	 * The encoding has to be decided before the body is sent, so the body is written to a buffer until it reaches
+	 * the compression threshold. A body at or above the threshold is abandoned and written again, compressed, when
+	 * the request is sent.
+	 * @return the body if it is smaller than the threshold, otherwise null.
+	 */
+	private byte[] writeBelowThreshold(ContentWriter content) {
+		ThresholdBuffer buffer = new ThresholdBuffer(compressionThreshold);
+		try {
+			content.writeTo(buffer);
+			return buffer.toByteArray();
+		} catch (ThresholdReachedException e) {
+			return null;
+		} catch (IOException e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+	
+	private static class ThresholdBuffer extends ByteArrayOutputStream {
+		
+		private final int threshold;
+		
+		ThresholdBuffer(int threshold) {
+			super(Math.min(threshold, 8192));
+			this.threshold = threshold;
+		}
+		
+		@Override
+		public void write(int b) {
+			if (count + 1 >= threshold) {
+				throw new ThresholdReachedException();
+			}
+			super.write(b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (count + len >= threshold) {
+				throw new ThresholdReachedException();
+			}
+			super.write(b, off, len);
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	private static class ThresholdReachedException extends RuntimeException {
+		
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+	
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4);
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(data);
+		out.close();
+		return bytes.toByteArray();
+	}
+	
 	private HttpResponse executeRequest(HttpRequestBase request) {
+		long started = limiter != null ? limiter.acquire() : 0;
+		boolean handedOver = false;
 		try {
+			// a range of an encoded response would be a range of the compressed bytes
+			if (acceptGzip && !request.containsHeader("Range")) {
+				request.addHeader("Accept-Encoding", "gzip");
+			}
+			HedgedReads.onAbort(request);
 			org.apache.http.HttpResponse rsp = client.execute(request);
+			if (isCompressionEnabled() && rsp.getEntity() != null) {
+				rsp.setEntity(new GzipDecompressingEntity(rsp.getEntity(), compressionMetrics));
+			}
 			if (LOG.isTraceEnabled()) {
 				LOG.trace(String.format("%s %s %s", request.getMethod(), request.getURI(), rsp.getStatusLine().getStatusCode(), rsp.getStatusLine().getReasonPhrase()));
 			}
-			return StdHttpResponse.of(rsp, request.getURI().toString());
+			if (limiter == null) {
+				return StdHttpResponse.of(rsp, request);
+			}
+			// the connection stays checked out of the pool until the response has been read, so does the permit
+			StdHttpResponse r = StdHttpResponse.of(rsp, request, new PermitRelease(started,
+					rsp.getStatusLine().getStatusCode() == HttpStatus.SC_SERVICE_UNAVAILABLE));
+			handedOver = true;
+			return r;
 		} catch (Exception e) {
 			throw Exceptions.propagate(e);
+		} finally {
+			if (limiter != null && !handedOver) {
+				limiter.release(started, true);
+			}
+		}
+	}
+	
+	private class PermitRelease implements Runnable {
+		
+		private final long started;
+		private final boolean dropped;
+		
+		PermitRelease(long started, boolean dropped) {
+			this.started = started;
+			this.dropped = dropped;
+		}
+		
+		@Override
+		public void run() {
+			limiter.release(started, dropped);
 		}
 	}
 	
@@ -107,6 +313,11 @@ public class StdHttpClient implements HttpClient {
 		String username;
 		String password;
 		
+		boolean compression;
+		int compressionThreshold = COMPRESSION_DISABLED;
+		
+		ConcurrencyLimiter concurrencyLimiter;
+		
 		public Builder host(String s) {
 			host = s;
 			return this;
@@ -164,6 +375,17 @@ public class StdHttpClient implements HttpClient {
 			return this;
 		}
 		
+		/**
+		 * Sizes the connection pool for the given number of concurrent requests, i.e. the number of threads
+		 * of a connector's parallel executor. maxConnections is raised to this value if it is lower.
+		 * @param i
+		 * @return
+		 */
+		public Builder parallelism(int i) {
+			maxConnections = Math.max(maxConnections, i);
+			return this;
+		}
+		
 		public Builder connectionTimeout(int i) {
 			connectionTimeout = i;
 			return this;
@@ -173,6 +395,27 @@ public class StdHttpClient implements HttpClient {
 			socketTimeout = i;
 			return this;
 		}
+		/**
+		 * Requests gzip encoded responses and decompresses them while they are read.
+		 * CouchDB itself does not compress responses, this takes effect when a compressing proxy sits in front of it.
+		 * @param b
+		 * @return
+		 */
+		public Builder compression(boolean b) {
+			compression = b;
+			return this;
+		}
+		/**
+		 * Sends request bodies of at least the given size gzip compressed.
+		 * Streamed bodies, i.e. bulk requests, are buffered up to the threshold to decide whether to compress them.
+		 * @param bytes
+		 * @return
+		 */
+		public Builder compressRequestsAbove(int bytes) {
+			Assert.isTrue(bytes >= 0, "bytes cannot be negative");
+			compressionThreshold = bytes;
+			return this;
+		}
 		/**
 		 * Bring your own Connection Manager.
 		 * If this parameters is set, the parameters port, maxConnections, connectionTimeout and socketTimeout are ignored.
@@ -183,9 +426,19 @@ public class StdHttpClient implements HttpClient {
 			conman = cm;
 			return this;
 		}
+		/**
+		 * Rejects requests instead of letting them queue for a connection when the limiter's adaptive limit is reached.
+		 * The limiter's maxLimit should not exceed maxConnections.
+		 * @param cl
+		 * @return
+		 */
+		public Builder concurrencyLimiter(ConcurrencyLimiter cl) {
+			concurrencyLimiter = cl;
+			return this;
+		}
 		
 		public HttpClient build() {
-			return new StdHttpClient(configureClient());
+			return new StdHttpClient(configureClient(), compression, compressionThreshold, concurrencyLimiter);
 		}
 		
 	}
@@ -1,8 +1,10 @@
 package org.ektorp.http;
 
 import java.io.*;
+import java.util.concurrent.atomic.*;
 
 import org.apache.http.*;
+import org.apache.http.client.methods.*;
 import org.apache.http.message.*;
 import org.apache.http.protocol.*;
 import org.ektorp.util.*;
@@ -21,15 +23,37 @@ public class StdHttpResponse implements HttpResponse {
 	private final HttpEntity entity;
 	private final StatusLine status;
 	private final String requestURI;
+	private final HttpUriRequest request;
+	private final String eTag;
+	private final Runnable onRelease;
+	private final AtomicBoolean released = new AtomicBoolean();
 	
 	public static StdHttpResponse of(org.apache.http.HttpResponse rsp, String requestURI) {
-		return new StdHttpResponse(rsp.getEntity(), rsp.getStatusLine(), requestURI);
+		return new StdHttpResponse(rsp.getEntity(), rsp.getStatusLine(), requestURI, null, eTag(rsp), null);
 	}
 	
-	private StdHttpResponse(HttpEntity e, StatusLine status, String requestURI) {
+	public static StdHttpResponse of(org.apache.http.HttpResponse rsp, HttpUriRequest request) {
+		return of(rsp, request, null);
+	}
+	/**
+	 * @param onRelease run once when the connection is released or aborted, may be null.
+	 */
+	static StdHttpResponse of(org.apache.http.HttpResponse rsp, HttpUriRequest request, Runnable onRelease) {
+		return new StdHttpResponse(rsp.getEntity(), rsp.getStatusLine(), request.getURI().toString(), request, eTag(rsp), onRelease);
+	}
+	
+	private static String eTag(org.apache.http.HttpResponse rsp) {
+		Header h = rsp.getFirstHeader("ETag");
+		return h != null ? h.getValue() : null;
+	}
+	
+	private StdHttpResponse(HttpEntity e, StatusLine status, String requestURI, HttpUriRequest request, String eTag, Runnable onRelease) {
 		this.entity = e != null ? e : NULL_ENTITY;
 		this.status = status;
 		this.requestURI = requestURI;
+		this.request = request;
+		this.eTag = eTag;
+		this.onRelease = onRelease;
 	}
 	
 	@Override
@@ -46,8 +70,13 @@ public class StdHttpResponse implements HttpResponse {
 	}
 	
 	@Override
-	public int getContentLength() {
-		return (int) entity.getContentLength();
+	public long getContentLength() {
+		return entity.getContentLength();
+	}
+
+	@Override
+	public String getETag() {
+		return eTag;
 	}
 
 	@Override
@@ -75,6 +104,27 @@ public class StdHttpResponse implements HttpResponse {
 			entity.consumeContent();
 		} catch (IOException e) {
 			LOG.error("caught exception while releasing connection: {}", e.getMessage());
+		} finally {
+			released();
+		}
+	}
+
+	@Override
+	public void abort() {
+		if (request != null) {
+			try {
+				request.abort();
+			} finally {
+				released();
+			}
+		} else {
+			releaseConnection();
+		}
+	}
+	
+	private void released() {
+		if (onRelease != null && released.compareAndSet(false, true)) {
+			onRelease.run();
 		}
 	}
 
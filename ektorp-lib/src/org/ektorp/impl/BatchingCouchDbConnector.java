@@ -0,0 +1,548 @@
+package org.ektorp.impl;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.codehaus.jackson.*;
+import org.ektorp.*;
+import org.ektorp.util.*;
+import org.slf4j.*;
+/**
+ * A CouchDbConnector decorator that writes creates and updates behind, in _bulk_docs batches.
+ *
+ * Queued documents are flushed by a background thread when maxBatchSize documents are pending or when the
+ * oldest pending document has waited maxLatency milliseconds. A document that is queued while an earlier
+ * version with the same id is still pending replaces that version, so only the latest one is written. The new
+ * revision is only set on the object that was written, futures of replaced objects complete with a result that
+ * isSuperseded() and the replaced objects keep their old revision.
+ *
+ * create(Object) and update(Object) keep their synchronous semantics: the calling thread waits for the batch
+ * holding its document and conflicts are thrown as DocumentExistsException and UpdateConflictException.
+ * Concurrent callers share batches. queueCreate and queueUpdate return immediately with a Future instead.
+ *
+ * The number of pending documents is bounded by maxPending, callers block when it is reached.
+ *
+ * All other operations are passed straight to the decorated connector and do not see pending writes.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class BatchingCouchDbConnector implements CouchDbConnector {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BatchingCouchDbConnector.class);
+	
+	public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+	public static final long DEFAULT_MAX_LATENCY = 50;
+	public static final int DEFAULT_MAX_PENDING = 10000;
+	
+	private final CouchDbConnector db;
+	private final int maxBatchSize;
+	private final long maxLatency;
+	private final int maxPending;
+	
+	private final LinkedHashMap<Object, PendingDocument> pending = new LinkedHashMap<Object, PendingDocument>();
+	private boolean shutdown;
+	
+	private final Thread flusher;
+	
+	public BatchingCouchDbConnector(CouchDbConnector db) {
+		this(db, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LATENCY, DEFAULT_MAX_PENDING);
+	}
+	/**
+	 * @param db the connector that batches are written through.
+	 * @param maxBatchSize the maximum number of documents in a _bulk_docs request.
+	 * @param maxLatency the maximum time in milliseconds a document is held before it is flushed.
+	 * @param maxPending the maximum number of documents waiting to be flushed.
+	 */
+	public BatchingCouchDbConnector(CouchDbConnector db, int maxBatchSize, long maxLatency, int maxPending) {
+		Assert.notNull(db, "CouchDbConnector cannot be null");
+		Assert.isTrue(maxBatchSize > 0, "maxBatchSize must be greater than 0");
+		Assert.isTrue(maxLatency >= 0, "maxLatency cannot be negative");
+		Assert.isTrue(maxPending >= maxBatchSize, "maxPending cannot be less than maxBatchSize");
+		this.db = db;
+		this.maxBatchSize = maxBatchSize;
+		this.maxLatency = maxLatency;
+		this.maxPending = maxPending;
+		this.flusher = new Thread(new Flusher(), "ektorp-write-behind");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+	/**
+	 * Queues the Object to be created in the next batch.
+	 * @param o
+	 * @return completes with the result of the create, the Object's id and revision are set before it completes.
+	 */
+	public Future<DocumentOperationResult> queueCreate(Object o) {
+		Assert.notNull(o, "Document cannot be null");
+		Assert.isTrue(ReflectionUtils.isNew(o), "Object must be new");
+		return enqueue(o);
+	}
+	/**
+	 * Queues the Object to be updated in the next batch.
+	 * @param o
+	 * @return completes with the result of the update, the Object's revision is set before it completes.
+	 */
+	public Future<DocumentOperationResult> queueUpdate(Object o) {
+		Assert.notNull(o, "Document cannot be null");
+		Assert.hasText(ReflectionUtils.getId(o), "document id cannot be empty");
+		return enqueue(o);
+	}
+	
+	@Override
+	public void create(Object o) {
+		DocumentOperationResult r = await(queueCreate(o));
+		if (r.isConflict() || r.isSuperseded()) {
+			throw new DocumentExistsException(r.getId());
+		}
+		assertNoError(r);
+	}
+	
+	@Override
+	public void update(Object o) {
+		DocumentOperationResult r = await(queueUpdate(o));
+		if (r.isConflict() || r.isSuperseded()) {
+			throw new UpdateConflictException(r.getId(), ReflectionUtils.getRevision(o));
+		}
+		assertNoError(r);
+	}
+	
+	private void assertNoError(DocumentOperationResult r) {
+		if (r.isErroneous()) {
+			throw new DbAccessException(String.format("%s failed: %s %s", r.getId(), r.getError(), r.getReason()));
+		}
+	}
+	
+	private DocumentOperationResult await(Future<DocumentOperationResult> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Exceptions.propagate(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw Exceptions.propagate(e);
+		}
+	}
+	
+	private Future<DocumentOperationResult> enqueue(Object o) {
+		String id = ReflectionUtils.getId(o);
+		Object key = id != null ? id : new Object();
+		Waiter w = new Waiter(o);
+		synchronized (pending) {
+			while (!shutdown && pending.size() >= maxPending && !pending.containsKey(key)) {
+				try {
+					pending.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw Exceptions.propagate(e);
+				}
+			}
+			if (shutdown) {
+				throw new IllegalStateException("BatchingCouchDbConnector has been shut down");
+			}
+			PendingDocument pd = pending.get(key);
+			if (pd == null) {
+				pending.put(key, new PendingDocument(o, w));
+			} else {
+				pd.replace(o, w);
+			}
+			pending.notifyAll();
+		}
+		return w;
+	}
+	/**
+	 * Stops accepting writes and flushes the pending documents.
+	 * Documents that could not be flushed within the timeout have their futures failed.
+	 * @param timeout in milliseconds, 0 fails the pending documents without waiting for them to be flushed.
+	 * @return true if all pending documents were flushed.
+	 */
+	public boolean shutdown(long timeout) {
+		Assert.isTrue(timeout >= 0, "timeout cannot be negative");
+		synchronized (pending) {
+			shutdown = true;
+			pending.notifyAll();
+		}
+		if (timeout > 0) {
+			try {
+				flusher.join(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (!flusher.isAlive()) {
+			return true;
+		}
+		flusher.interrupt();
+		failPending(new IllegalStateException("BatchingCouchDbConnector was shut down before the document was written"));
+		return false;
+	}
+	
+	private void failPending(Throwable t) {
+		List<PendingDocument> abandoned;
+		synchronized (pending) {
+			abandoned = new ArrayList<PendingDocument>(pending.values());
+			pending.clear();
+			pending.notifyAll();
+		}
+		for (PendingDocument pd : abandoned) {
+			pd.fail(t);
+		}
+	}
+	/**
+	 * @return the number of documents waiting to be flushed.
+	 */
+	public int getPendingCount() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+	
+	private List<PendingDocument> nextBatch() throws InterruptedException {
+		synchronized (pending) {
+			long deadline = -1;
+			while (true) {
+				if (pending.size() >= maxBatchSize || (shutdown && !pending.isEmpty())) {
+					break;
+				}
+				if (pending.isEmpty()) {
+					if (shutdown) {
+						return null;
+					}
+					deadline = -1;
+					pending.wait();
+					continue;
+				}
+				long now = System.currentTimeMillis();
+				if (deadline == -1) {
+					deadline = pending.values().iterator().next().queued + maxLatency;
+				}
+				if (now >= deadline) {
+					break;
+				}
+				pending.wait(deadline - now);
+			}
+			List<PendingDocument> batch = new ArrayList<PendingDocument>(Math.min(maxBatchSize, pending.size()));
+			for (Iterator<PendingDocument> it = pending.values().iterator(); it.hasNext() && batch.size() < maxBatchSize;) {
+				batch.add(it.next());
+				it.remove();
+			}
+			pending.notifyAll();
+			return batch;
+		}
+	}
+	
+	private void flush(List<PendingDocument> batch) {
+		List<Object> docs = new ArrayList<Object>(batch.size());
+		for (PendingDocument pd : batch) {
+			docs.add(pd.doc);
+		}
+		try {
+			List<DocumentOperationResult> result = db.executeBulk(docs);
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).complete(i < result.size() ? result.get(i) : null);
+			}
+		} catch (Throwable t) {
+			LOG.warn("Write behind batch of {} documents failed", batch.size());
+			for (PendingDocument pd : batch) {
+				pd.fail(t);
+			}
+		}
+	}
+	
+	private class Flusher implements Runnable {
+		@Override
+		public void run() {
+			try {
+				List<PendingDocument> batch;
+				while ((batch = nextBatch()) != null) {
+					flush(batch);
+				}
+			} catch (InterruptedException e) {
+				LOG.debug("Write behind flusher interrupted");
+			} catch (Throwable t) {
+				LOG.error("Write behind flusher died", t);
+				synchronized (pending) {
+					shutdown = true;
+				}
+				failPending(t);
+			}
+		}
+	}
+	
+	private static class PendingDocument {
+		
+		final long queued = System.currentTimeMillis();
+		Object doc;
+		final List<Waiter> waiters = new ArrayList<Waiter>(1);
+		
+		PendingDocument(Object doc, Waiter w) {
+			this.doc = doc;
+			waiters.add(w);
+		}
+		
+		void replace(Object newDoc, Waiter w) {
+			doc = newDoc;
+			waiters.add(w);
+		}
+		
+		void complete(DocumentOperationResult r) {
+			for (Waiter w : waiters) {
+				if (w.doc != doc) {
+					w.complete(DocumentOperationResult.superseded(ReflectionUtils.getId(doc)));
+					continue;
+				}
+				if (r == null) {
+					w.fail(new DbAccessException("_bulk_docs response contained no result for document"));
+					continue;
+				}
+				if (!r.isErroneous()) {
+					if (ReflectionUtils.getId(w.doc) == null) {
+						ReflectionUtils.setId(w.doc, r.getId());
+					}
+					ReflectionUtils.setRevision(w.doc, r.getRevision());
+				}
+				w.complete(r);
+			}
+		}
+		
+		void fail(Throwable t) {
+			for (Waiter w : waiters) {
+				w.fail(t);
+			}
+		}
+	}
+	
+	/**
+	 * The Future of a queued document, completed by the flusher.
+	 */
+	private static class Waiter implements Future<DocumentOperationResult> {
+		
+		final Object doc;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile DocumentOperationResult result;
+		private volatile Throwable failure;
+		
+		Waiter(Object doc) {
+			this.doc = doc;
+		}
+		
+		void complete(DocumentOperationResult r) {
+			result = r;
+			done.countDown();
+		}
+		
+		void fail(Throwable t) {
+			failure = t;
+			done.countDown();
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+		
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+		
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+		
+		@Override
+		public DocumentOperationResult get() throws InterruptedException, ExecutionException {
+			done.await();
+			return outcome();
+		}
+		
+		@Override
+		public DocumentOperationResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return outcome();
+		}
+		
+		private DocumentOperationResult outcome() throws ExecutionException {
+			if (failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return result;
+		}
+	}
+	
+	@Override
+	public void create(String id, JsonNode json) {
+		db.create(id, json);
+	}
+	
+	@Override
+	public String delete(Object o) {
+		return db.delete(o);
+	}
+	
+	@Override
+	public String delete(String id, String revision) {
+		return db.delete(id, revision);
+	}
+	
+	@Override
+	public List<DocumentOperationResult> executeBulk(Collection<?> objects) {
+		return db.executeBulk(objects);
+	}
+	
+	@Override
+	public List<DocumentOperationResult> createAll(Collection<?> objects) {
+		return db.createAll(objects);
+	}
+	
+	@Override
+	public List<DocumentOperationResult> updateAll(Collection<?> objects) {
+		return db.updateAll(objects);
+	}
+	
+	@Override
+	public List<DocumentOperationResult> deleteAll(Collection<?> objects) {
+		return db.deleteAll(objects);
+	}
+	
+	@Override
+	public <T> T get(Class<T> c, String id) {
+		return db.get(c, id);
+	}
+	
+	@Override
+	public <T> List<T> getAll(Class<T> c, Collection<String> ids) {
+		return db.getAll(c, ids);
+	}
+	
+	@Override
+	public <T> List<T> parallelGet(Class<T> c, Collection<String> ids) {
+		return db.parallelGet(c, ids);
+	}
+	
+	@Override
+	public <T> List<T> inParallel(Collection<? extends Callable<T>> tasks) {
+		return db.inParallel(tasks);
+	}
+	
+	@Override
+	public boolean contains(String id) {
+		return db.contains(id);
+	}
+	
+	@Override
+	public InputStream getAsStream(String docId) {
+		return db.getAsStream(docId);
+	}
+	
+	@Override
+	public List<Revision> getRevisions(String id) {
+		return db.getRevisions(id);
+	}
+	
+	@Override
+	public Attachment getAttachment(String id, String attachmentId) {
+		return db.getAttachment(id, attachmentId);
+	}
+	
+	@Override
+	public Attachment getAttachment(String id, String attachmentId, long offset, long length) {
+		return db.getAttachment(id, attachmentId, offset, length);
+	}
+	
+	@Override
+	public long readAttachment(String id, String attachmentId, WritableByteChannel target) {
+		return db.readAttachment(id, attachmentId, target);
+	}
+	
+	@Override
+	public String createAttachment(String docId, String revision, String attachmentId, String contentType,
+			ReadableByteChannel data, long contentLength) {
+		return db.createAttachment(docId, revision, attachmentId, contentType, data, contentLength);
+	}
+	
+	@Override
+	public String createAttachment(String docId, Attachment a) {
+		return db.createAttachment(docId, a);
+	}
+	
+	@Override
+	public String createAttachment(String docId, String revision, Attachment a) {
+		return db.createAttachment(docId, revision, a);
+	}
+	
+	@Override
+	public String deleteAttachment(String docId, String revision, String attachmentId) {
+		return db.deleteAttachment(docId, revision, attachmentId);
+	}
+	
+	@Override
+	public List<String> getAllDocIds() {
+		return db.getAllDocIds();
+	}
+	
+	@Override
+	public <T> List<T> getAllDocs(Class<T> c) {
+		return db.getAllDocs(c);
+	}
+	
+	@Override
+	public <T> List<T> queryView(ViewQuery query, Class<T> type) {
+		return db.queryView(query, type);
+	}
+	
+	@Override
+	public ViewResult queryView(ViewQuery query) {
+		return db.queryView(query);
+	}
+	
+	@Override
+	public <T> Page<T> queryForPage(ViewQuery query, PageRequest pr, Class<T> type) {
+		return db.queryForPage(query, pr, type);
+	}
+	
+	@Override
+	public <T> StreamingViewResult<T> streamView(ViewQuery query, Class<T> type) {
+		return db.streamView(query, type);
+	}
+	
+	@Override
+	public List<DocumentChange> changes(ChangesCommand cmd) {
+		return db.changes(cmd);
+	}
+	
+	@Override
+	public ChangesFeed changesFeed(ChangesCommand cmd, ChangesListener listener) {
+		return db.changesFeed(cmd, listener);
+	}
+	
+	@Override
+	public InputStream queryForStream(ViewQuery query) {
+		return db.queryForStream(query);
+	}
+	
+	@Override
+	public void createDatabaseIfNotExists() {
+		db.createDatabaseIfNotExists();
+	}
+	
+	@Override
+	public String getDatabaseName() {
+		return db.getDatabaseName();
+	}
+	
+	@Override
+	public String path() {
+		return db.path();
+	}
+}
@@ -0,0 +1,42 @@
+package org.ektorp.impl;
+
+import java.io.*;
+import java.util.*;
+
+import org.codehaus.jackson.*;
+import org.codehaus.jackson.map.*;
+import org.ektorp.util.*;
+/**
+ * Writes a collection of documents as a _bulk_docs request body.
+ * 
+ * The documents are serialized one at a time directly to the stream, the batch is never
+ * held in memory as a whole.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class BulkDocumentWriter {
+
+	private final ObjectMapper objectMapper;
+	
+	public BulkDocumentWriter(ObjectMapper om) {
+		Assert.notNull(om, "ObjectMapper cannot be null");
+		objectMapper = om;
+	}
+	
+	public void write(Collection<?> objects, OutputStream out) throws IOException {
+		JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+		try {
+			jg.writeStartObject();
+			jg.writeArrayFieldStart("docs");
+			for (Object o : objects) {
+				objectMapper.writeValue(jg, o);
+			}
+			jg.writeEndArray();
+			jg.writeEndObject();
+			jg.flush();
+		} finally {
+			jg.close();
+		}
+	}
+}
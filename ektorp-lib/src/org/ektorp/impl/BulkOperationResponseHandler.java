@@ -0,0 +1,54 @@
+package org.ektorp.impl;
+
+import java.util.*;
+
+import org.codehaus.jackson.*;
+import org.codehaus.jackson.map.*;
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.util.*;
+/**
+ * Reads the result of a _bulk_docs request and writes back generated ids and new revisions
+ * to the documents of the request.
+ * 
+ * The database returns one result per document in the same order as the documents were sent.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class BulkOperationResponseHandler extends StdResponseHandler<List<DocumentOperationResult>> {
+
+	private final Collection<?> objects;
+	private final ObjectMapper objectMapper;
+	
+	public BulkOperationResponseHandler(Collection<?> objects, ObjectMapper om) {
+		Assert.notNull(objects, "objects cannot be null");
+		Assert.notNull(om, "ObjectMapper cannot be null");
+		this.objects = objects;
+		this.objectMapper = om;
+	}
+	
+	@Override
+	public List<DocumentOperationResult> success(HttpResponse hr) throws Exception {
+		JsonParser jp = objectMapper.getJsonFactory().createJsonParser(hr.getContent());
+		if (jp.nextToken() != JsonToken.START_ARRAY) {
+			throw new DbAccessException("Expected bulk response to start with an Array");
+		}
+		List<DocumentOperationResult> result = new ArrayList<DocumentOperationResult>(objects.size());
+		Iterator<?> docs = objects.iterator();
+		while (jp.nextToken() == JsonToken.START_OBJECT) {
+			DocumentOperationResult r = objectMapper.readValue(jp, DocumentOperationResult.class);
+			if (docs.hasNext()) {
+				Object o = docs.next();
+				if (!r.isErroneous()) {
+					if (ReflectionUtils.getId(o) == null) {
+						ReflectionUtils.setId(o, r.getId());
+					}
+					ReflectionUtils.setRevision(o, r.getRevision());
+				}
+			}
+			result.add(r);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,148 @@
+package org.ektorp.impl;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ektorp.*;
+import org.ektorp.util.*;
+import org.slf4j.*;
+/**
+ * Keeps client side caches consistent with writes made by other clients by following the database's
+ * _changes feed.
+ * 
+ * Changed documents are evicted from the document cache, which is trusted to serve the followed database's
+ * entries without revalidation while the invalidator runs. Entries of other databases are left as they are. For view results the invalidator maintains a
+ * generation per design document: a view cache records the generation when it stores a result and treats
+ * the result as dirty once the generation has moved on. Any change to an ordinary document advances the
+ * generation of every design document in the database, as it may be emitted by any view, while a change to
+ * a design document only advances its own.
+ * 
+ * The processed sequence is saved in the SequenceStore after each batch and the feed resumes from it on start.
+ * Without a stored sequence the feed starts at the database's latest change.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class CacheInvalidator implements ChangesListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CacheInvalidator.class);
+	private static final String DESIGN_DOC_PREFIX = "_design/";
+	
+	private final CouchDbConnector db;
+	private final DbPath dbPath;
+	private final DocumentCache documentCache;
+	private final SequenceStore sequenceStore;
+	
+	private final AtomicLong databaseGeneration = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> designDocGenerations = new ConcurrentHashMap<String, AtomicLong>();
+	
+	private ChangesFeed feed;
+	/**
+	 * @param db the database to follow.
+	 * @param cache the document cache to evict changed documents from, may be null if only view generations are used.
+	 * @param store
+	 */
+	public CacheInvalidator(CouchDbConnector db, DocumentCache cache, SequenceStore store) {
+		Assert.notNull(db, "CouchDbConnector cannot be null");
+		Assert.notNull(store, "SequenceStore cannot be null");
+		this.db = db;
+		this.dbPath = DbPath.fromString(db.getDatabaseName());
+		this.documentCache = cache;
+		this.sequenceStore = store;
+	}
+	
+	public synchronized void start() {
+		Assert.isTrue(feed == null, "already started");
+		long since = sequenceStore.load();
+		if (since < 0) {
+			since = latestSequence();
+		}
+		LOG.info("Following changes in {} from sequence {}", dbPath.getDbName(), since);
+		feed = db.changesFeed(new ChangesCommand()
+			.feed(ChangesCommand.Feed.CONTINUOUS)
+			.since(since), this);
+		if (documentCache != null) {
+			// entries cached before may have changed before the sequence the feed starts at. Trusting first
+			// makes clear() advance the epoch under trust, so reads begun before it are not stored.
+			documentCache.setTrusted(dbPath, true);
+			documentCache.clear(dbPath);
+		}
+	}
+	
+	public synchronized void stop() {
+		if (documentCache != null) {
+			documentCache.setTrusted(dbPath, false);
+		}
+		if (feed != null) {
+			feed.cancel();
+			feed = null;
+		}
+	}
+	
+	private long latestSequence() {
+		List<DocumentChange> latest = db.changes(new ChangesCommand().descending(true).limit(1));
+		return latest.isEmpty() ? 0 : latest.get(0).getSequence();
+	}
+	/**
+	 * @param designDocId
+	 * @return the current generation of the views in the design document.
+	 */
+	public long getViewGeneration(String designDocId) {
+		AtomicLong g = designDocGenerations.get(designDocId);
+		return databaseGeneration.get() + (g != null ? g.get() : 0);
+	}
+	/**
+	 * @param designDocId
+	 * @param generation the generation the cached result was stored with.
+	 * @return true if the database has changed in a way that may affect the view result.
+	 */
+	public boolean isDirty(String designDocId, long generation) {
+		return getViewGeneration(designDocId) != generation;
+	}
+	
+	/**
+	 * If the batch fails part way, the document cache stops trusting the database until the invalidator is
+	 * restarted, as the feed drops the batch and the rest of its changes would never be evicted.
+	 */
+	@Override
+	public void onChanges(List<DocumentChange> changes) {
+		try {
+			invalidate(changes);
+		} catch (RuntimeException e) {
+			if (documentCache != null) {
+				documentCache.setTrusted(dbPath, false);
+			}
+			throw e;
+		}
+	}
+	
+	private void invalidate(List<DocumentChange> changes) {
+		for (DocumentChange c : changes) {
+			String id = c.getId();
+			if (id == null) {
+				continue;
+			}
+			if (documentCache != null) {
+				documentCache.invalidate(dbPath.append(id));
+			}
+			if (id.startsWith(DESIGN_DOC_PREFIX)) {
+				designDocGeneration(id).incrementAndGet();
+			} else {
+				databaseGeneration.incrementAndGet();
+			}
+		}
+		sequenceStore.store(changes.get(changes.size() - 1).getSequence());
+	}
+	
+	private AtomicLong designDocGeneration(String designDocId) {
+		AtomicLong g = designDocGenerations.get(designDocId);
+		if (g == null) {
+			AtomicLong existing = designDocGenerations.putIfAbsent(designDocId, g = new AtomicLong());
+			if (existing != null) {
+				g = existing;
+			}
+		}
+		return g;
+	}
+}
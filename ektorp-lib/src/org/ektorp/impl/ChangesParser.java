@@ -0,0 +1,150 @@
+package org.ektorp.impl;
+
+import java.io.*;
+
+import org.codehaus.jackson.*;
+import org.codehaus.jackson.map.*;
+import org.ektorp.*;
+import org.ektorp.util.*;
+/**
+ * Reads _changes feeds token by token, handing each change to a handler as soon as it has been read.
+ * 
+ * Normal and longpoll feeds are a single object holding a results array, continuous feeds are
+ * a stream of change objects separated by newlines and ended by a last_seq object when the
+ * database closes the feed.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class ChangesParser {
+
+	private static final String RESULTS_FIELD_NAME = "results";
+	private static final String LAST_SEQ_FIELD_NAME = "last_seq";
+	private static final String SEQ_FIELD_NAME = "seq";
+	private static final String ID_FIELD_NAME = "id";
+	private static final String CHANGES_FIELD_NAME = "changes";
+	private static final String REV_FIELD_NAME = "rev";
+	private static final String DELETED_FIELD_NAME = "deleted";
+	private static final String DOC_FIELD_NAME = "doc";
+	
+	public static final long NO_SEQUENCE = -1;
+	
+	private final ObjectMapper objectMapper;
+	
+	public ChangesParser(ObjectMapper om) {
+		Assert.notNull(om, "ObjectMapper cannot be null");
+		objectMapper = om;
+	}
+	
+	public interface ChangeHandler {
+		void handleChange(DocumentChange change) throws InterruptedException;
+	}
+	/**
+	 * Parses a normal or longpoll feed.
+	 * @param json
+	 * @param handler
+	 * @return the last_seq of the feed, NO_SEQUENCE if the feed did not contain one.
+	 */
+	public long parseResults(InputStream json, ChangeHandler handler) throws IOException, InterruptedException {
+		JsonParser jp = objectMapper.getJsonFactory().createJsonParser(json);
+		try {
+			if (jp.nextToken() != JsonToken.START_OBJECT) {
+				throw new DbAccessException("Expected data to start with an Object");
+			}
+			long lastSeq = NO_SEQUENCE;
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				String name = jp.getCurrentName();
+				jp.nextToken();
+				if (RESULTS_FIELD_NAME.equals(name)) {
+					if (jp.getCurrentToken() != JsonToken.START_ARRAY) {
+						throw new DbAccessException("Expected results to start with an Array");
+					}
+					while (jp.nextToken() == JsonToken.START_OBJECT) {
+						handler.handleChange(parseChange(jp));
+					}
+				} else if (LAST_SEQ_FIELD_NAME.equals(name)) {
+					lastSeq = jp.getLongValue();
+				} else {
+					jp.skipChildren();
+				}
+			}
+			return lastSeq;
+		} finally {
+			jp.close();
+		}
+	}
+	/**
+	 * Parses a continuous feed until the database closes it or the handler is interrupted.
+	 * @param json
+	 * @param handler
+	 * @return the last_seq sent when the database closed the feed, NO_SEQUENCE if the stream ended without one.
+	 */
+	public long parseContinuous(InputStream json, ChangeHandler handler) throws IOException, InterruptedException {
+		JsonParser jp = objectMapper.getJsonFactory().createJsonParser(json);
+		try {
+			while (jp.nextToken() == JsonToken.START_OBJECT) {
+				if (jp.nextToken() == JsonToken.FIELD_NAME && LAST_SEQ_FIELD_NAME.equals(jp.getCurrentName())) {
+					jp.nextToken();
+					long lastSeq = jp.getLongValue();
+					jp.nextToken();
+					return lastSeq;
+				}
+				handler.handleChange(parseFields(jp));
+			}
+			return NO_SEQUENCE;
+		} finally {
+			jp.close();
+		}
+	}
+	
+	private DocumentChange parseChange(JsonParser jp) throws IOException {
+		jp.nextToken();
+		return parseFields(jp);
+	}
+	/**
+	 * Parses the fields of a change object, the parser must be positioned on the first field name.
+	 */
+	private DocumentChange parseFields(JsonParser jp) throws IOException {
+		long seq = NO_SEQUENCE;
+		String id = null;
+		String rev = null;
+		boolean deleted = false;
+		JsonNode doc = null;
+		for (; jp.getCurrentToken() == JsonToken.FIELD_NAME; jp.nextToken()) {
+			String name = jp.getCurrentName();
+			JsonToken t = jp.nextToken();
+			if (SEQ_FIELD_NAME.equals(name)) {
+				seq = jp.getLongValue();
+			} else if (ID_FIELD_NAME.equals(name)) {
+				id = jp.getText();
+			} else if (CHANGES_FIELD_NAME.equals(name)) {
+				rev = parseRevision(jp);
+			} else if (DELETED_FIELD_NAME.equals(name)) {
+				deleted = t == JsonToken.VALUE_TRUE;
+			} else if (DOC_FIELD_NAME.equals(name) && t != JsonToken.VALUE_NULL) {
+				doc = objectMapper.readTree(jp);
+			} else {
+				jp.skipChildren();
+			}
+		}
+		return new DocumentChange(seq, id, rev, deleted, doc);
+	}
+	/**
+	 * @return the first rev of the changes array.
+	 */
+	private String parseRevision(JsonParser jp) throws IOException {
+		String rev = null;
+		while (jp.nextToken() == JsonToken.START_OBJECT) {
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				String name = jp.getCurrentName();
+				jp.nextToken();
+				if (rev == null && REV_FIELD_NAME.equals(name)) {
+					rev = jp.getText();
+				} else {
+					jp.skipChildren();
+				}
+			}
+		}
+		return rev;
+	}
+}
@@ -0,0 +1,208 @@
+package org.ektorp.impl;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ektorp.*;
+import org.ektorp.util.*;
+/**
+ * A size bounded, least recently used cache of raw document JSON keyed by document path,
+ * i.e. database and document id.
+ * 
+ * Entries keep the ETag the document was served with so that reads can be revalidated with
+ * If-None-Match. The JSON is mapped anew for every read, so callers never share a cached instance.
+ * 
+ * A database whose documents are kept consistent by a CacheInvalidator is trusted while the invalidator runs:
+ * its entries are served without revalidation, as every document changed in the database is evicted. Changes
+ * made by other clients are then seen as soon as the invalidator has read them from the _changes feed.
+ * Trust is kept per database, so a cache shared between connectors still revalidates the documents of
+ * databases that no invalidator follows.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class DocumentCache {
+
+	private final Map<String, CachedDocument> entries;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong epoch = new AtomicLong();
+	
+	private final Set<String> trustedDbPaths = new CopyOnWriteArraySet<String>();
+	
+	public DocumentCache(final int maxEntries) {
+		Assert.isTrue(maxEntries > 0, "maxEntries must be greater than 0");
+		entries = Collections.synchronizedMap(new LinkedHashMap<String, CachedDocument>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedDocument> eldest) {
+				return size() > maxEntries;
+			}
+		});
+	}
+	/**
+	 * @param db
+	 * @param b true if the database's entries may be served without revalidation, i.e. if every change to the
+	 * database is invalidated.
+	 */
+	public void setTrusted(DbPath db, boolean b) {
+		Assert.notNull(db, "DbPath cannot be null");
+		if (b) {
+			trustedDbPaths.add(db.getPath());
+		} else {
+			trustedDbPaths.remove(db.getPath());
+		}
+	}
+	/**
+	 * @param path a document path.
+	 * @return true if the document's database is trusted.
+	 */
+	public boolean isTrusted(String path) {
+		for (String dbPath : trustedDbPaths) {
+			if (path.startsWith(dbPath)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	/**
+	 * Counts a hit if the JSON is returned.
+	 * @param path
+	 * @return the JSON of the document if its database is trusted and the document is cached, otherwise null.
+	 */
+	public byte[] getTrusted(String path) {
+		if (!isTrusted(path)) {
+			return null;
+		}
+		CachedDocument d = entries.get(path);
+		if (d == null) {
+			return null;
+		}
+		hits.incrementAndGet();
+		return d.getJson();
+	}
+	/**
+	 * Looks up the entry to revalidate a read with, counts a miss if there is none.
+	 * @param path
+	 * @return null if the document is not cached.
+	 */
+	public CachedDocument lookup(String path) {
+		CachedDocument d = entries.get(path);
+		if (d == null) {
+			misses.incrementAndGet();
+		} else {
+			revalidations.incrementAndGet();
+		}
+		return d;
+	}
+	/**
+	 * Records that a revalidation was answered with 304 Not Modified.
+	 */
+	public void hit() {
+		hits.incrementAndGet();
+	}
+	
+	public void put(String path, String eTag, byte[] json) {
+		Assert.hasText(eTag, "eTag must have a value");
+		Assert.notNull(json, "json cannot be null");
+		entries.put(path, new CachedDocument(eTag, json));
+	}
+	/**
+	 * Stores a document read after getEpoch() returned the given epoch. While its database is trusted the document is
+	 * not stored if anything has been invalidated since, as the read may have raced with a change whose
+	 * invalidation has already been made.
+	 * @param path
+	 * @param eTag
+	 * @param json
+	 * @param readEpoch
+	 */
+	public void put(String path, String eTag, byte[] json, long readEpoch) {
+		if (epoch.get() != readEpoch && isTrusted(path)) {
+			return;
+		}
+		put(path, eTag, json);
+	}
+	/**
+	 * @return the number of invalidations so far, including those of documents that were not cached.
+	 */
+	public long getEpoch() {
+		return epoch.get();
+	}
+	
+	public void invalidate(String path) {
+		epoch.incrementAndGet();
+		if (entries.remove(path) != null) {
+			invalidations.incrementAndGet();
+		}
+	}
+	
+	public void clear() {
+		epoch.incrementAndGet();
+		entries.clear();
+	}
+	/**
+	 * Evicts the documents of one database.
+	 * @param db
+	 */
+	public void clear(DbPath db) {
+		Assert.notNull(db, "DbPath cannot be null");
+		epoch.incrementAndGet();
+		synchronized (entries) {
+			for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+				if (it.next().startsWith(db.getPath())) {
+					it.remove();
+				}
+			}
+		}
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	/**
+	 * @return number of reads served from the cache, after a 304 Not Modified response or, while trusted,
+	 * without revalidation.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	/**
+	 * @return number of reads for documents that were not cached.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	/**
+	 * @return number of conditional reads sent for cached documents.
+	 */
+	public long getRevalidations() {
+		return revalidations.get();
+	}
+	
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+	
+	public static class CachedDocument {
+		
+		private final String eTag;
+		private final byte[] json;
+		
+		CachedDocument(String eTag, byte[] json) {
+			this.eTag = eTag;
+			this.json = json;
+		}
+		
+		public String getETag() {
+			return eTag;
+		}
+		
+		public byte[] getJson() {
+			return json;
+		}
+	}
+}
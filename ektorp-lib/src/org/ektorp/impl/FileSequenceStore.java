@@ -0,0 +1,61 @@
+package org.ektorp.impl;
+
+import java.io.*;
+
+import org.ektorp.util.*;
+/**
+ * Keeps the sequence as text in a file. The file is replaced through a temporary file so that
+ * a crash while storing does not leave a truncated sequence behind.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class FileSequenceStore implements SequenceStore {
+
+	private final File file;
+	private final File tmpFile;
+	
+	public FileSequenceStore(File f) {
+		Assert.notNull(f, "File cannot be null");
+		file = f;
+		tmpFile = new File(f.getPath() + ".tmp");
+	}
+	
+	@Override
+	public synchronized long load() {
+		if (!file.exists()) {
+			return -1;
+		}
+		try {
+			BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line = r.readLine();
+				return line != null ? Long.parseLong(line.trim()) : -1;
+			} finally {
+				r.close();
+			}
+		} catch (IOException e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+	
+	@Override
+	public synchronized void store(long sequence) {
+		try {
+			Writer w = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+			try {
+				w.write(Long.toString(sequence));
+			} finally {
+				w.close();
+			}
+			if (!tmpFile.renameTo(file)) {
+				// renameTo does not replace existing files on all platforms
+				if (!file.delete() || !tmpFile.renameTo(file)) {
+					throw new IOException("could not replace " + file);
+				}
+			}
+		} catch (IOException e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+}
@@ -1,6 +1,11 @@
 package org.ektorp.impl;
 
+import java.io.*;
+import java.util.*;
+
+import org.codehaus.jackson.*;
 import org.codehaus.jackson.map.*;
+import org.ektorp.http.*;
 import org.ektorp.util.*;
 import org.slf4j.*;
 /**
@@ -13,9 +18,12 @@ public class JsonSerializer {
 	
 	private final Logger LOG = LoggerFactory.getLogger(JsonSerializer.class);
 	private final ObjectMapper objectMapper;
+	private final BulkDocumentWriter bulkDocWriter;
 	
 	public JsonSerializer(ObjectMapper om) {
+		Assert.notNull(om, "ObjectMapper cannot be null");
 		objectMapper = om;
+		bulkDocWriter = new BulkDocumentWriter(om);
 	}
 	
 	public String toJson(Object o) {
@@ -30,4 +38,45 @@ public class JsonSerializer {
 			throw Exceptions.propagate(e);
 		}
 	}
+	/**
+	 * Serializes the object through a JsonGenerator straight to the request's output stream.
+	 * With debug logging enabled the object is serialized to a String first so that it can be logged.
+	 * @param o
+	 * @return
+	 */
+	public ContentWriter toContentWriter(final Object o) {
+		if (LOG.isDebugEnabled()) {
+			final String json = toJson(o);
+			return new ContentWriter() {
+				@Override
+				public void writeTo(OutputStream out) throws IOException {
+					out.write(json.getBytes("UTF-8"));
+				}
+			};
+		}
+		return new ContentWriter() {
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+				try {
+					objectMapper.writeValue(jg, o);
+				} finally {
+					jg.close();
+				}
+			}
+		};
+	}
+	/**
+	 * Serializes the objects as a _bulk_docs request body straight to the request's output stream.
+	 * @param objects
+	 * @return
+	 */
+	public ContentWriter toBulkContentWriter(final Collection<?> objects) {
+		return new ContentWriter() {
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				bulkDocWriter.write(objects, out);
+			}
+		};
+	}
 }
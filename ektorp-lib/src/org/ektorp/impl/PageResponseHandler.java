@@ -0,0 +1,123 @@
+package org.ektorp.impl;
+
+import java.util.*;
+
+import org.codehaus.jackson.*;
+import org.codehaus.jackson.map.*;
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.util.*;
+/**
+ * Reads a page of a view result and works out the requests for the adjacent pages from the
+ * keys and doc ids of the rows at the page boundaries.
+ * 
+ * A forward page is queried with limit = page size + 1, the extra row is the first row of the next page.
+ * A backward page is queried in the opposite direction from the first row of the following page,
+ * skipping that row, and is reversed before it is returned.
+ * 
+ * Each row's doc is mapped to the target type, so the query must include docs. Rows without a doc are left
+ * out of the page.
+ * 
+ * @author henrik lundgren
+ *
+ * @param <T>
+ */
+public class PageResponseHandler<T> extends StdResponseHandler<Page<T>> {
+
+	private static final String ROWS_FIELD_NAME = "rows";
+	private static final String ID_FIELD_NAME = "id";
+	private static final String KEY_FIELD_NAME = "key";
+	private static final String DOC_FIELD_NAME = "doc";
+	
+	private final PageRequest pageRequest;
+	private final Class<T> type;
+	private final ObjectMapper objectMapper;
+	
+	public PageResponseHandler(PageRequest pr, Class<T> type, ObjectMapper om) {
+		Assert.notNull(pr, "PageRequest cannot be null");
+		Assert.notNull(type, "type cannot be null");
+		Assert.notNull(om, "ObjectMapper cannot be null");
+		this.pageRequest = pr;
+		this.type = type;
+		this.objectMapper = om;
+	}
+	
+	@Override
+	public Page<T> success(HttpResponse hr) throws Exception {
+		List<PageRow<T>> rows = parseRows(hr);
+		if (pageRequest.isBack()) {
+			Collections.reverse(rows);
+		}
+		int size = pageRequest.getPageSize();
+		int pageNo = pageRequest.getPage();
+		List<T> result = new ArrayList<T>(Math.min(rows.size(), size));
+		for (PageRow<T> row : rows.subList(0, Math.min(rows.size(), size))) {
+			if (row.value != null) {
+				result.add(row.value);
+			}
+		}
+		
+		PageRequest next = null;
+		if (pageRequest.isBack()) {
+			next = new PageRequest(size, pageNo + 1, pageRequest.getStartKey(), pageRequest.getStartDocId(), false);
+		} else if (rows.size() > size) {
+			PageRow<T> first = rows.get(size);
+			next = new PageRequest(size, pageNo + 1, first.key, first.id, false);
+		}
+		
+		PageRequest previous = null;
+		if (pageNo > 0 && !rows.isEmpty()) {
+			PageRow<T> first = rows.get(0);
+			previous = new PageRequest(size, pageNo - 1, first.key, first.id, true);
+		}
+		return new Page<T>(result, pageRequest, next, previous);
+	}
+	
+	private List<PageRow<T>> parseRows(HttpResponse hr) throws Exception {
+		JsonParser jp = objectMapper.getJsonFactory().createJsonParser(hr.getContent());
+		try {
+			if (jp.nextToken() != JsonToken.START_OBJECT) {
+				throw new DbAccessException("Expected data to start with an Object");
+			}
+			List<PageRow<T>> rows = new ArrayList<PageRow<T>>(pageRequest.getPageSize() + 1);
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				String name = jp.getCurrentName();
+				jp.nextToken();
+				if (ROWS_FIELD_NAME.equals(name)) {
+					while (jp.nextToken() == JsonToken.START_OBJECT) {
+						rows.add(parseRow(jp));
+					}
+				} else {
+					jp.skipChildren();
+				}
+			}
+			return rows;
+		} finally {
+			jp.close();
+		}
+	}
+	
+	private PageRow<T> parseRow(JsonParser jp) throws Exception {
+		PageRow<T> row = new PageRow<T>();
+		while (jp.nextToken() == JsonToken.FIELD_NAME) {
+			String name = jp.getCurrentName();
+			JsonToken t = jp.nextToken();
+			if (ID_FIELD_NAME.equals(name)) {
+				row.id = jp.getText();
+			} else if (KEY_FIELD_NAME.equals(name)) {
+				row.key = objectMapper.readTree(jp).toString();
+			} else if (DOC_FIELD_NAME.equals(name) && t != JsonToken.VALUE_NULL) {
+				row.value = objectMapper.readValue(jp, type);
+			} else {
+				jp.skipChildren();
+			}
+		}
+		return row;
+	}
+	
+	private static class PageRow<T> {
+		String key;
+		String id;
+		T value;
+	}
+}
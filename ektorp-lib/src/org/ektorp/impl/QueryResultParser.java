@@ -0,0 +1,116 @@
+package org.ektorp.impl;
+
+import java.io.*;
+import java.util.*;
+
+import org.codehaus.jackson.*;
+import org.codehaus.jackson.map.*;
+import org.ektorp.*;
+import org.ektorp.util.*;
+/**
+ * Parses a view or _all_docs result that was queried with include_docs=true.
+ * 
+ * The embedded documents are mapped to the target type as the rows are read from the stream,
+ * the result is never loaded as a tree.
+ * Rows without a document (missing or deleted documents) are left out of the result.
+ * 
+ * @author henrik lundgren
+ *
+ * @param <T>
+ */
+public class QueryResultParser<T> {
+
+	private static final String TOTAL_ROWS_FIELD_NAME = "total_rows";
+	private static final String OFFSET_FIELD_NAME = "offset";
+	private static final String ROWS_FIELD_NAME = "rows";
+	private static final String ID_FIELD_NAME = "id";
+	private static final String DOC_FIELD_NAME = "doc";
+	private static final String DESIGN_DOC_ID_PREFIX = "_design/";
+	
+	private final Class<T> type;
+	private final ObjectMapper objectMapper;
+	
+	private boolean ignoreDesignDocuments;
+	private int totalRows = -1;
+	private int offset = -1;
+	private List<T> rows;
+	
+	public QueryResultParser(Class<T> type, ObjectMapper om) {
+		Assert.notNull(type, "type cannot be null");
+		Assert.notNull(om, "ObjectMapper cannot be null");
+		this.type = type;
+		this.objectMapper = om;
+	}
+	
+	/**
+	 * @param b if true, rows of design documents are left out of the result without their documents being mapped.
+	 */
+	public void setIgnoreDesignDocuments(boolean b) {
+		ignoreDesignDocuments = b;
+	}
+	
+	public void parseResult(InputStream json) throws IOException {
+		JsonParser jp = objectMapper.getJsonFactory().createJsonParser(json);
+		try {
+			if (jp.nextToken() != JsonToken.START_OBJECT) {
+				throw new DbAccessException("Expected data to start with an Object");
+			}
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				String name = jp.getCurrentName();
+				jp.nextToken();
+				if (TOTAL_ROWS_FIELD_NAME.equals(name)) {
+					totalRows = jp.getIntValue();
+				} else if (OFFSET_FIELD_NAME.equals(name)) {
+					offset = jp.getIntValue();
+				} else if (ROWS_FIELD_NAME.equals(name)) {
+					parseRows(jp);
+				} else {
+					jp.skipChildren();
+				}
+			}
+		} finally {
+			jp.close();
+		}
+	}
+	
+	private void parseRows(JsonParser jp) throws IOException {
+		if (jp.getCurrentToken() != JsonToken.START_ARRAY) {
+			throw new DbAccessException("Expected rows to start with an Array");
+		}
+		rows = new ArrayList<T>();
+		while (jp.nextToken() == JsonToken.START_OBJECT) {
+			String id = null;
+			T doc = null;
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				String name = jp.getCurrentName();
+				JsonToken t = jp.nextToken();
+				if (t == JsonToken.VALUE_STRING && ID_FIELD_NAME.equals(name)) {
+					id = jp.getText();
+				} else if (t == JsonToken.START_OBJECT && DOC_FIELD_NAME.equals(name) && !isIgnored(id)) {
+					doc = objectMapper.readValue(jp, type);
+				} else {
+					jp.skipChildren();
+				}
+			}
+			if (doc != null && !isIgnored(id)) {
+				rows.add(doc);
+			}
+		}
+	}
+	
+	private boolean isIgnored(String id) {
+		return ignoreDesignDocuments && id != null && id.startsWith(DESIGN_DOC_ID_PREFIX);
+	}
+	
+	public int getTotalRows() {
+		return totalRows;
+	}
+	
+	public int getOffset() {
+		return offset;
+	}
+	
+	public List<T> getRows() {
+		return rows != null ? rows : Collections.<T>emptyList();
+	}
+}
@@ -0,0 +1,15 @@
+package org.ektorp.impl;
+/**
+ * Persists the sequence a _changes feed consumer has processed, so that it can resume where it left off.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public interface SequenceStore {
+	/**
+	 * @return the stored sequence, -1 if no sequence has been stored.
+	 */
+	long load();
+	
+	void store(long sequence);
+}
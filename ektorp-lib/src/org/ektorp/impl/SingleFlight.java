@@ -0,0 +1,90 @@
+package org.ektorp.impl;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ektorp.util.*;
+/**
+ * Collapses concurrent reads of the same resource into one request.
+ *
+ * The first caller for a key performs the request, callers arriving for the same key while it is in flight
+ * wait for its outcome instead of sending requests of their own. All callers receive the same response bytes,
+ * or the same exception if the request failed. The bytes are shared and must not be modified.
+ *
+ * Nothing is cached: once a request has completed, the next caller for the key sends a new request.
+ * A resource that is written while a read of it is in flight should be forgotten, so that readers arriving
+ * after the write do not receive the response of a read that started before it.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class SingleFlight {
+
+	private final ConcurrentMap<String, FutureTask<byte[]>> inFlight = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	/**
+	 * @param key identifies the request, i.e. its path and query.
+	 * @param request performs the request if no identical request is in flight.
+	 * @return the response of the request.
+	 */
+	public byte[] execute(String key, Callable<byte[]> request) {
+		Assert.notNull(key, "key cannot be null");
+		Assert.notNull(request, "request cannot be null");
+		FutureTask<byte[]> call = new FutureTask<byte[]>(request);
+		FutureTask<byte[]> existing = inFlight.putIfAbsent(key, call);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			return await(existing);
+		}
+		executed.incrementAndGet();
+		try {
+			call.run();
+		} finally {
+			inFlight.remove(key, call);
+		}
+		return await(call);
+	}
+
+	/**
+	 * Makes the next caller for the key send a new request even if one is in flight. Callers that already
+	 * wait for the request in flight still receive its response.
+	 * @param key
+	 */
+	public void forget(String key) {
+		Assert.notNull(key, "key cannot be null");
+		inFlight.remove(key);
+	}
+	
+	private byte[] await(Future<byte[]> call) {
+		try {
+			return call.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Exceptions.propagate(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw Exceptions.propagate((Exception) cause);
+		}
+	}
+	/**
+	 * @return number of requests that were sent.
+	 */
+	public long getExecutedCount() {
+		return executed.get();
+	}
+	/**
+	 * @return number of calls that were served by a request already in flight.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+}
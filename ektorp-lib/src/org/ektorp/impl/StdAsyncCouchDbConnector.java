@@ -0,0 +1,157 @@
+package org.ektorp.impl;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.codehaus.jackson.map.*;
+import org.codehaus.jackson.map.SerializationConfig.*;
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.util.*;
+
+/**
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class StdAsyncCouchDbConnector implements AsyncCouchDbConnector {
+
+	private static final int UPDATE_CONFLICT_RESPONSE = 409;
+	
+	private final DbPath dbPath;
+	private final AsyncHttpClient client;
+	private final ObjectMapper objectMapper;
+	private final JsonSerializer jsonSerializer;
+	private final RevisionResponseHandler revisionHandler;
+	private final ViewResultParser viewResultParser;
+	
+	public StdAsyncCouchDbConnector(String databaseName, AsyncHttpClient client) {
+		this(databaseName, client, new ObjectMapper());
+		objectMapper.configure(Feature.WRITE_DATES_AS_TIMESTAMPS, false);
+	}
+	
+	public StdAsyncCouchDbConnector(String databaseName, AsyncHttpClient client, ObjectMapper om) {
+		Assert.hasText(databaseName, "DatabaseName cannot be empty");
+		Assert.notNull(client, "AsyncHttpClient cannot be null");
+		Assert.notNull(om, "ObjectMapper cannot be null");
+		this.dbPath = new DbPath(databaseName);
+		this.client = client;
+		this.objectMapper = om;
+		this.jsonSerializer = new JsonSerializer(om);
+		this.revisionHandler = new RevisionResponseHandler(om);
+		this.viewResultParser = new ViewResultParser(om);
+	}
+	
+	@Override
+	public <T> Future<T> get(final Class<T> c, String id) {
+		Assert.notNull(c, "Class cannot be null");
+		assertDocIdHasValue(id);
+		return client.get(dbPath.append(id), new StdResponseHandler<T>() {
+			@Override
+			public T success(HttpResponse hr) throws Exception {
+				return objectMapper.readValue(hr.getContent(), c);
+			}
+		});
+	}
+	
+	@Override
+	public Future<Void> create(final Object o) {
+		Assert.notNull(o, "Document cannot be null");
+		Assert.isTrue(ReflectionUtils.isNew(o), "Object must be new");
+		final String id = ReflectionUtils.getId(o);
+		ResponseCallback<Void> rspHandler = new StdResponseHandler<Void>() {
+			@Override
+			public Void success(HttpResponse hr) throws Exception {
+				DocumentOperationResult rsp = objectMapper.readValue(hr.getContent(), DocumentOperationResult.class);
+				if (ReflectionUtils.getId(o) == null) {
+					ReflectionUtils.setId(o, rsp.getId());
+				}
+				ReflectionUtils.setRevision(o, rsp.getRevision());
+				return null;
+			}
+			
+			@Override
+			public Void error(HttpResponse hr) {
+				if (hr.getCode() == UPDATE_CONFLICT_RESPONSE) {
+					throw new DocumentExistsException(id);
+				}
+				return super.error(hr);
+			}
+		};
+		String json = jsonSerializer.toJson(o);
+		return id != null ? client.put(dbPath.append(id), json, rspHandler) : client.post(dbPath.getPath(), json, rspHandler);
+	}
+	
+	@Override
+	public Future<Void> update(final Object o) {
+		Assert.notNull(o, "Document cannot be null");
+		final String id = ReflectionUtils.getId(o);
+		assertDocIdHasValue(id);
+		return client.put(dbPath.append(id), jsonSerializer.toJson(o), new StdResponseHandler<Void>() {
+			@Override
+			public Void success(HttpResponse hr) throws Exception {
+				DocumentOperationResult rsp = objectMapper.readValue(hr.getContent(), DocumentOperationResult.class);
+				ReflectionUtils.setRevision(o, rsp.getRevision());
+				return null;
+			}
+			
+			@Override
+			public Void error(HttpResponse hr) {
+				if (hr.getCode() == UPDATE_CONFLICT_RESPONSE) {
+					throw new UpdateConflictException(id, ReflectionUtils.getRevision(o));
+				}
+				return super.error(hr);
+			}
+		});
+	}
+	
+	@Override
+	public Future<String> delete(Object o) {
+		Assert.notNull(o, "document cannot be null");
+		return delete(ReflectionUtils.getId(o), ReflectionUtils.getRevision(o));
+	}
+	
+	@Override
+	public Future<String> delete(String id, String revision) {
+		assertDocIdHasValue(id);
+		Assert.hasText(revision, "revision cannot be empty");
+		return client.delete(dbPath.append(id) + "?rev=" + revision, revisionHandler);
+	}
+	
+	@Override
+	public <T> Future<List<T>> queryView(ViewQuery query, final Class<T> type) {
+		Assert.notNull(query, "query cannot be null");
+		Assert.notNull(type, "type cannot be null");
+		// the rows' documents cannot be loaded in a second request without blocking a thread of the client
+		ViewQuery q = query.copy().dbPath(dbPath.getPath()).includeDocs(true);
+		return client.get(q.buildQuery(), new StdResponseHandler<List<T>>() {
+			@Override
+			public List<T> success(HttpResponse hr) throws Exception {
+				QueryResultParser<T> parser = new QueryResultParser<T>(type, objectMapper);
+				parser.parseResult(hr.getContent());
+				return parser.getRows();
+			}
+		});
+	}
+	
+	@Override
+	public Future<ViewResult> queryView(ViewQuery query) {
+		Assert.notNull(query, "query cannot be null");
+		query.dbPath(dbPath.getPath());
+		return client.get(query.buildQuery(), new StdResponseHandler<ViewResult>() {
+			@Override
+			public ViewResult success(HttpResponse hr) throws Exception {
+				return viewResultParser.parse(hr.getContent());
+			}
+		});
+	}
+	
+	@Override
+	public String getDatabaseName() {
+		return dbPath.getDbName();
+	}
+	
+	private void assertDocIdHasValue(String docId) {
+		Assert.hasText(docId, "document id cannot be empty");
+	}
+}
@@ -0,0 +1,177 @@
+package org.ektorp.impl;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.util.*;
+import org.slf4j.*;
+/**
+ * Follows a longpoll or continuous _changes feed on a reader thread and hands the changes to the
+ * listener in batches on a dispatcher thread.
+ * 
+ * The threads are connected through a bounded queue. When the listener falls behind the queue fills up
+ * and the reader stops reading from the connection until there is room again, so a slow listener
+ * throttles the feed instead of buffering an unbounded number of changes.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class StdChangesFeed implements ChangesFeed {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StdChangesFeed.class);
+	
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+	private static final int MAX_BATCH_SIZE = 100;
+	private static final long RECONNECT_DELAY_MS = 1000;
+	
+	private final String changesPath;
+	private final ChangesCommand command;
+	private final ChangesListener listener;
+	private final RestTemplate restTemplate;
+	private final ChangesParser parser;
+	private final BlockingQueue<DocumentChange> queue;
+	
+	private final Thread reader;
+	private final Thread dispatcher;
+	
+	private volatile boolean cancelled;
+	private volatile HttpResponse response;
+	private volatile long lastSequence = ChangesParser.NO_SEQUENCE;
+	
+	public StdChangesFeed(String changesPath, ChangesCommand cmd, ChangesListener listener, RestTemplate rt, ChangesParser parser) {
+		this(changesPath, cmd, listener, rt, parser, DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	public StdChangesFeed(String changesPath, ChangesCommand cmd, ChangesListener listener, RestTemplate rt, ChangesParser parser, int queueCapacity) {
+		Assert.hasText(changesPath, "changesPath must have a value");
+		Assert.notNull(cmd, "ChangesCommand cannot be null");
+		Assert.isTrue(cmd.getFeed() != ChangesCommand.Feed.NORMAL, "a changes feed must be longpoll or continuous");
+		Assert.notNull(listener, "ChangesListener cannot be null");
+		Assert.notNull(rt, "RestTemplate cannot be null");
+		Assert.notNull(parser, "ChangesParser cannot be null");
+		this.changesPath = changesPath;
+		this.command = cmd.copy();
+		this.listener = listener;
+		this.restTemplate = rt;
+		this.parser = parser;
+		this.queue = new ArrayBlockingQueue<DocumentChange>(queueCapacity);
+		this.reader = newThread(new Reader(), "ektorp-changes-reader");
+		this.dispatcher = newThread(new Dispatcher(), "ektorp-changes-dispatcher");
+	}
+	
+	private static Thread newThread(Runnable r, String name) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+	
+	public void start() {
+		dispatcher.start();
+		reader.start();
+	}
+	
+	@Override
+	public long getLastSequence() {
+		return lastSequence;
+	}
+	
+	@Override
+	public boolean isAlive() {
+		return !cancelled && reader.isAlive();
+	}
+	
+	@Override
+	public void cancel() {
+		cancelled = true;
+		HttpResponse hr = response;
+		if (hr != null) {
+			hr.abort();
+		}
+		reader.interrupt();
+		dispatcher.interrupt();
+	}
+	
+	private void readFeed() throws Exception {
+		HttpResponse hr = restTemplate.getStreaming(command.buildQuery(changesPath), new StdResponseHandler<HttpResponse>() {
+			@Override
+			public HttpResponse success(HttpResponse hr) {
+				return hr;
+			}
+		});
+		response = hr;
+		boolean completed = false;
+		try {
+			if (cancelled) {
+				return;
+			}
+			ChangesParser.ChangeHandler handler = new ChangesParser.ChangeHandler() {
+				@Override
+				public void handleChange(DocumentChange change) throws InterruptedException {
+					queue.put(change);
+					command.since(change.getSequence());
+				}
+			};
+			long lastSeq = command.getFeed() == ChangesCommand.Feed.CONTINUOUS ? 
+					parser.parseContinuous(hr.getContent(), handler) : parser.parseResults(hr.getContent(), handler);
+			if (lastSeq != ChangesParser.NO_SEQUENCE) {
+				command.since(lastSeq);
+			}
+			completed = true;
+		} finally {
+			response = null;
+			if (completed) {
+				hr.releaseConnection();
+			} else {
+				hr.abort();
+			}
+		}
+	}
+	
+	private class Reader implements Runnable {
+		@Override
+		public void run() {
+			while (!cancelled) {
+				try {
+					readFeed();
+				} catch (InterruptedException e) {
+					return;
+				} catch (Exception e) {
+					if (cancelled) {
+						return;
+					}
+					LOG.warn("Reading {} failed, reconnecting from sequence {}", changesPath, command.getSince());
+					LOG.debug("Changes feed failure", e);
+					try {
+						Thread.sleep(RECONNECT_DELAY_MS);
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		}
+	}
+	
+	private class Dispatcher implements Runnable {
+		@Override
+		public void run() {
+			List<DocumentChange> batch = new ArrayList<DocumentChange>(MAX_BATCH_SIZE);
+			while (!cancelled) {
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException e) {
+					return;
+				}
+				queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+				try {
+					listener.onChanges(Collections.unmodifiableList(new ArrayList<DocumentChange>(batch)));
+				} catch (RuntimeException e) {
+					LOG.error("ChangesListener failed", e);
+				}
+				lastSequence = batch.get(batch.size() - 1).getSequence();
+				batch.clear();
+			}
+		}
+	}
+}
@@ -1,8 +1,11 @@
 package org.ektorp.impl;
 
 import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 
+import org.apache.commons.io.*;
 import org.codehaus.jackson.*;
 import org.codehaus.jackson.map.*;
 import org.codehaus.jackson.map.SerializationConfig.*;
@@ -20,6 +23,14 @@ public class StdCouchDbConnector implements CouchDbConnector {
 	
 	private static final int DOCUMENT_NOT_FOUND_RESPONSE = 404;
 	private static final int UPDATE_CONFLICT_RESPONSE = 409;
+	private static final int NOT_MODIFIED_RESPONSE = 304;
+	private static final int PARTIAL_CONTENT_RESPONSE = 206;
+	private static final int PRECONDITION_FAILED_RESPONSE = 412;
+	/**
+	 * Matches the default maxConnections of StdHttpClient.Builder
+	 */
+	private static final int DEFAULT_PARALLELISM = 20;
+	private static final ThreadLocal<Boolean> IN_PARALLEL_TASK = new ThreadLocal<Boolean>();
 	private static final Logger LOG = LoggerFactory.getLogger(StdCouchDbConnector.class);
 	
 	private final JsonFactory jsonFactory;
@@ -34,6 +45,17 @@ public class StdCouchDbConnector implements CouchDbConnector {
 	
 	private RevisionResponseHandler revisionHandler;
 	
+	private final ViewResultParser viewResultParser;
+	
+	private final ChangesParser changesParser;
+	
+	private ExecutorService parallelExecutor;
+	private boolean defaultParallelExecutor;
+	
+	private DocumentCache documentCache;
+	
+	private SingleFlight singleFlight;
+	
 	public StdCouchDbConnector(String databaseName, CouchDbInstance dbInstance) {
 		this(databaseName, dbInstance, new ObjectMapper());
 		objectMapper.configure(Feature.WRITE_DATES_AS_TIMESTAMPS, false);
@@ -58,6 +80,10 @@ public class StdCouchDbConnector implements CouchDbConnector {
 		
 		this.revisionHandler = new RevisionResponseHandler(objectMapper);
 		
+		this.viewResultParser = new ViewResultParser(objectMapper);
+		
+		this.changesParser = new ChangesParser(objectMapper);
+		
 	}
 	
 	@Override
@@ -68,10 +94,98 @@ public class StdCouchDbConnector implements CouchDbConnector {
 	public void setDatabaseName(String s) {
 		dbPath = DbPath.fromString(s);
 	}
+	/**
+	 * Sets the executor used by parallelGet and inParallel.
+	 * 
+	 * The executor's number of threads bounds the concurrent requests and should not exceed
+	 * the http client's maxConnections. Defaults to a pool of 20 threads, created on first use.
+	 * The executor is not shut down by the connector.
+	 * @param es
+	 */
+	public synchronized void setParallelExecutor(ExecutorService es) {
+		Assert.notNull(es, "ExecutorService cannot be null");
+		shutdown();
+		parallelExecutor = es;
+	}
+	/**
+	 * Stops the threads of the default parallel executor once their tasks are done. A later call to parallelGet
+	 * or inParallel starts a new pool. An executor given to setParallelExecutor is left to its owner.
+	 */
+	public synchronized void shutdown() {
+		if (defaultParallelExecutor) {
+			parallelExecutor.shutdown();
+			parallelExecutor = null;
+			defaultParallelExecutor = false;
+		}
+	}
+	
+	/**
+	 * Enables client side caching of documents read through get(Class, String).
+	 * 
+	 * Cached documents are revalidated with If-None-Match on every read, so a cached document is only
+	 * served when the database answers 304 Not Modified. This saves transferring and parsing unchanged
+	 * documents, but every read is still a round trip to the database. To serve cached documents without a
+	 * request, keep the cache consistent with a CacheInvalidator, which makes the cache trust this database
+	 * while it runs.
+	 * 
+	 * Documents written through this connector are evicted from the cache. The cache may be shared between
+	 * connectors.
+	 * @param cache
+	 */
+	public void setDocumentCache(DocumentCache cache) {
+		documentCache = cache;
+	}
+	
+	/**
+	 * Enables coalescing of concurrent get(Class, String) calls for the same document: while a read is in flight,
+	 * identical reads wait for its response instead of sending requests of their own. Every caller still
+	 * receives its own instance of the document. A document written through this connector is forgotten by the
+	 * SingleFlight, so reads after the write do not join a read that started before it. The SingleFlight may be
+	 * shared between connectors.
+	 * @param sf
+	 */
+	public void setSingleFlight(SingleFlight sf) {
+		singleFlight = sf;
+	}
+	
+	/**
+	 * Enables hedging of document reads: a GET or HEAD of a document that has not been answered within the hedge
+	 * delay is sent once more and the first response is used. Queries, changes, streamed query results and
+	 * attachment ranges are not hedged. The HedgedReads may be shared between connectors.
+	 * @param hr
+	 */
+	public void setHedgedReads(HedgedReads hr) {
+		restTemplate.setHedgedReads(hr);
+	}
+	
+	/**
+	 * Called after every write of a document, so that later reads by this connector see the write.
+	 */
+	private void evict(String id) {
+		if (id == null) {
+			return;
+		}
+		String path = dbPath.append(id);
+		if (documentCache != null) {
+			documentCache.invalidate(path);
+		}
+		if (singleFlight != null) {
+			singleFlight.forget(path);
+		}
+	}
+	
+	private synchronized ExecutorService getParallelExecutor() {
+		if (parallelExecutor == null) {
+			parallelExecutor = Executors.newFixedThreadPool(DEFAULT_PARALLELISM, new ParallelThreadFactory());
+			defaultParallelExecutor = true;
+		}
+		return parallelExecutor;
+	}
 	
 	public void create(final Object o) {
 		Assert.notNull(o, "Document cannot be null");
 		Assert.isTrue(ReflectionUtils.isNew(o), "Object must be new");
+		final String id = ReflectionUtils.getId(o);
 		
 		ResponseCallback<Void> rspHandler = new StdResponseHandler<Void>() {
 			@Override
@@ -80,16 +194,22 @@ public class StdCouchDbConnector implements CouchDbConnector {
 				if (ReflectionUtils.getId(o) == null)
 					ReflectionUtils.setId(o, rsp.id);
 				ReflectionUtils.setRevision(o, rsp.rev);
+				evict(rsp.id);
 				return null;
 			}
+			
+			@Override
+			public Void error(HttpResponse hr) {
+				// a PUT without revision conflicts only if the document already exists
+				if (hr.getCode() == UPDATE_CONFLICT_RESPONSE) {
+					throw new DocumentExistsException(id);
+				}
+				return super.error(hr);
+			}
 		};
 
-		String json = jsonSerializer.toJson(o);
-		String id = ReflectionUtils.getId(o);
+		ContentWriter json = jsonSerializer.toContentWriter(o);
 		if (id != null) {
-			if (contains(id)) {
-				throw new DocumentExistsException(id);
-			}
 			restTemplate.put(dbPath.append(id), json, rspHandler);
 		} else
 			restTemplate.post(dbPath.getPath(), json, rspHandler);
@@ -100,6 +220,7 @@ public class StdCouchDbConnector implements CouchDbConnector {
 		assertDocIdHasValue(id);
 		Assert.notNull(node, "Node cannot be null");
 		restTemplate.put(dbPath.append(id), jsonSerializer.toJson(node));	
+		evict(id);
 	}
 	
 	@Override
@@ -134,7 +255,61 @@ public class StdCouchDbConnector implements CouchDbConnector {
 		if (revision != null) {
 			path += "?rev=" + revision;
 		}
-		return restTemplate.put(path, a.getData(), a.getContentType(), a.getLength(), revisionHandler);
+		String rev = restTemplate.put(path, a.getData(), a.getContentType(), a.getLength(), revisionHandler);
+		evict(docId);
+		return rev;
+	}
+	
+	@Override
+	public String createAttachment(String docId, String revision, String attachmentId, String contentType, 
+			ReadableByteChannel data, long contentLength) {
+		assertDocIdHasValue(docId);
+		Assert.hasText(attachmentId, "attachmentId must have a value");
+		Assert.hasText(contentType, "contentType must have a value");
+		Assert.notNull(data, "data channel cannot be null");
+		String path = dbPath.append(docId) + "/" + attachmentId;
+		if (revision != null) {
+			path += "?rev=" + revision;
+		}
+		String rev = restTemplate.put(path, data, contentType, contentLength, revisionHandler);
+		evict(docId);
+		return rev;
+	}
+	
+	@Override
+	public Attachment getAttachment(final String id, final String attachmentId, final long offset, final long length) {
+		assertDocIdHasValue(id);
+		Assert.hasText(attachmentId, "attachmentId must have a value");
+		Assert.isTrue(offset >= 0, "offset cannot be negative");
+		Assert.isTrue(length == -1 || length > 0, "length must be greater than 0 or -1");
+		String range = "bytes=" + offset + "-" + (length == -1 ? "" : String.valueOf(offset + length - 1));
+		return restTemplate.getStreaming(dbPath.append(id) + "/" + attachmentId, Collections.singletonMap("Range", range), 
+				new StdResponseHandler<Attachment>() {
+			@Override
+			public Attachment success(HttpResponse hr) throws Exception {
+				if (hr.getCode() == PARTIAL_CONTENT_RESPONSE) {
+					return new Attachment(attachmentId, hr.getContent(), hr.getContentType(), hr.getContentLength());
+				}
+				// the range was ignored and the whole attachment is sent
+				long size = hr.getContentLength();
+				long rangeLength = size < 0 ? length : Math.max(0, length == -1 ? size - offset : Math.min(length, size - offset));
+				return new Attachment(attachmentId, new RangeInputStream(hr.getContent(), offset, length), 
+						hr.getContentType(), rangeLength);
+			}
+		});
+	}
+	
+	@Override
+	public long readAttachment(String id, String attachmentId, final WritableByteChannel target) {
+		assertDocIdHasValue(id);
+		Assert.hasText(attachmentId, "attachmentId must have a value");
+		Assert.notNull(target, "target channel cannot be null");
+		return restTemplate.get(dbPath.append(id) + "/" + attachmentId, new StdResponseHandler<Long>() {
+			@Override
+			public Long success(HttpResponse hr) throws Exception {
+				return ChannelUtils.copy(Channels.newChannel(hr.getContent()), target, -1);
+			}
+		});
 	}
 	
 	@Override
@@ -151,19 +326,26 @@ public class StdCouchDbConnector implements CouchDbConnector {
 	@Override
 	public String delete(Object o) {
 		Assert.notNull(o, "document cannot be null");
-		String rev = ReflectionUtils.getRevision(o);
-		Object d = get(o.getClass(), rev);
-		if (d != null) {
-			return delete(ReflectionUtils.getId(o), rev);
-		}
-		return null;
+		return delete(ReflectionUtils.getId(o), ReflectionUtils.getRevision(o));
 	}
 
 	@Override
 	public <T> T get(final Class<T> c, String id) {
 		Assert.notNull(c, "Class cannot be null");
 		assertDocIdHasValue(id);
-		return restTemplate.get(dbPath.append(id), new StdResponseHandler<T>() {
+		final String path = dbPath.append(id);
+		if (singleFlight != null) {
+			return readValue(singleFlight.execute(path, new Callable<byte[]>() {
+				@Override
+				public byte[] call() {
+					return documentCache != null ? getCached(path) : getJson(path);
+				}
+			}), c);
+		}
+		if (documentCache != null) {
+			return readValue(getCached(path), c);
+		}
+		return restTemplate.get(path, new StdResponseHandler<T>() {
 			@Override
 			public T success(HttpResponse hr) throws Exception  {
 				return objectMapper.readValue(hr.getContent(), c);
@@ -171,6 +353,134 @@ public class StdCouchDbConnector implements CouchDbConnector {
 		});
 	}
 	
+	private <T> T readValue(byte[] json, Class<T> c) {
+		try {
+			return objectMapper.readValue(json, 0, json.length, c);
+		} catch (IOException e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+	
+	private byte[] getJson(String path) {
+		return restTemplate.get(path, new StdResponseHandler<byte[]>() {
+			@Override
+			public byte[] success(HttpResponse hr) throws Exception {
+				return IOUtils.toByteArray(hr.getContent());
+			}
+		});
+	}
+	
+	/**
+	 * Unless the database is trusted by the cache, this is a request even when the document is cached.
+	 */
+	private byte[] getCached(final String path) {
+		byte[] trusted = documentCache.getTrusted(path);
+		if (trusted != null) {
+			return trusted;
+		}
+		final long epoch = documentCache.getEpoch();
+		final DocumentCache.CachedDocument cached = documentCache.lookup(path);
+		Map<String, String> headers = cached != null ? Collections.singletonMap("If-None-Match", cached.getETag()) 
+				: Collections.<String, String>emptyMap();
+		return restTemplate.get(path, headers, new StdResponseHandler<byte[]>() {
+			@Override
+			public byte[] success(HttpResponse hr) throws Exception {
+				byte[] json = IOUtils.toByteArray(hr.getContent());
+				if (hr.getETag() != null) {
+					documentCache.put(path, hr.getETag(), json, epoch);
+				}
+				return json;
+			}
+			
+			@Override
+			public byte[] error(HttpResponse hr) {
+				if (hr.getCode() == NOT_MODIFIED_RESPONSE && cached != null) {
+					documentCache.hit();
+					return cached.getJson();
+				}
+				documentCache.invalidate(path);
+				return super.error(hr);
+			}
+		});
+	}
+	
+	@Override
+	public <T> List<T> getAll(final Class<T> c, Collection<String> ids) {
+		Assert.notNull(c, "Class cannot be null");
+		Assert.notNull(ids, "ids cannot be null");
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		String keys = jsonSerializer.toJson(Collections.singletonMap("keys", ids));
+		return restTemplate.post(dbPath.getAllDocsPath() + "?include_docs=true", keys, new StdResponseHandler<List<T>>() {
+			@Override
+			public List<T> success(HttpResponse hr) throws Exception {
+				QueryResultParser<T> parser = new QueryResultParser<T>(c, objectMapper);
+				parser.parseResult(hr.getContent());
+				return parser.getRows();
+			}
+		});
+	}
+	
+	@Override
+	public <T> List<T> parallelGet(final Class<T> c, Collection<String> ids) {
+		Assert.notNull(c, "Class cannot be null");
+		Assert.notNull(ids, "ids cannot be null");
+		List<Callable<T>> tasks = new ArrayList<Callable<T>>(ids.size());
+		for (final String id : ids) {
+			assertDocIdHasValue(id);
+			tasks.add(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					return get(c, id);
+				}
+			});
+		}
+		return inParallel(tasks);
+	}
+	
+	@Override
+	public <T> List<T> inParallel(Collection<? extends Callable<T>> tasks) {
+		Assert.notNull(tasks, "tasks cannot be null");
+		if (tasks.isEmpty()) {
+			return Collections.emptyList();
+		}
+		if (IN_PARALLEL_TASK.get() != null) {
+			// waiting for tasks queued behind the current one could exhaust the executor's threads
+			return inSequence(tasks);
+		}
+		List<Callable<T>> parallelTasks = new ArrayList<Callable<T>>(tasks.size());
+		for (Callable<T> task : tasks) {
+			parallelTasks.add(new ParallelTask<T>(task));
+		}
+		try {
+			List<Future<T>> futures = getParallelExecutor().invokeAll(parallelTasks);
+			List<T> result = new ArrayList<T>(futures.size());
+			for (Future<T> f : futures) {
+				result.add(f.get());
+			}
+			return result;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Exceptions.propagate(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? Exceptions.propagate((Exception) cause) : new RuntimeException(cause);
+		}
+	}
+	
+	private <T> List<T> inSequence(Collection<? extends Callable<T>> tasks) {
+		List<T> result = new ArrayList<T>(tasks.size());
+		for (Callable<T> task : tasks) {
+			try {
+				result.add(task.call());
+			} catch (Exception e) {
+				throw Exceptions.propagate(e);
+			}
+		}
+		return result;
+	}
+	
 	@Override
 	public List<Revision> getRevisions(String id) {
 		assertDocIdHasValue(id);
@@ -207,11 +517,15 @@ public class StdCouchDbConnector implements CouchDbConnector {
 		Assert.notNull(o, "Document cannot be null");
 		final String id = ReflectionUtils.getId(o);
 		assertDocIdHasValue(id);
-		restTemplate.put(dbPath.append(id), jsonSerializer.toJson(o), new StdResponseHandler<Void>(){
+		String rev = ReflectionUtils.getRevision(o);
+		// the revision is passed as a parameter as well, so that the request can be recognized as safe to retry
+		String path = rev != null ? dbPath.append(id) + "?rev=" + rev : dbPath.append(id);
+		restTemplate.put(path, jsonSerializer.toContentWriter(o), new StdResponseHandler<Void>(){
 			@Override
 			public Void success(HttpResponse hr) throws Exception {
 				JsonNode n = objectMapper.readValue(hr.getContent(), JsonNode.class);
 				ReflectionUtils.setRevision(o, n.get("rev").getTextValue());
+				evict(id);
 				return null;
 			}
 
@@ -228,7 +542,54 @@ public class StdCouchDbConnector implements CouchDbConnector {
 	@Override
 	public String delete(String id, String revision) {
 		assertDocIdHasValue(id);
-		return restTemplate.delete(dbPath.append(id) + "?rev=" + revision, revisionHandler);
+		Assert.hasText(revision, "revision must have a value");
+		String rev = restTemplate.delete(dbPath.append(id) + "?rev=" + revision, revisionHandler);
+		evict(id);
+		return rev;
+	}
+	
+	@Override
+	public List<DocumentOperationResult> executeBulk(Collection<?> objects) {
+		Assert.notNull(objects, "objects cannot be null");
+		if (objects.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<DocumentOperationResult> result = restTemplate.post(dbPath.getBulkDocsPath(), 
+				jsonSerializer.toBulkContentWriter(objects), new BulkOperationResponseHandler(objects, objectMapper));
+		for (DocumentOperationResult r : result) {
+			evict(r.getId());
+		}
+		return result;
+	}
+	
+	@Override
+	public List<DocumentOperationResult> createAll(Collection<?> objects) {
+		Assert.notNull(objects, "objects cannot be null");
+		for (Object o : objects) {
+			Assert.notNull(o, "Document cannot be null");
+			Assert.isTrue(ReflectionUtils.isNew(o), "Object must be new");
+		}
+		return executeBulk(objects);
+	}
+	
+	@Override
+	public List<DocumentOperationResult> updateAll(Collection<?> objects) {
+		Assert.notNull(objects, "objects cannot be null");
+		for (Object o : objects) {
+			Assert.notNull(o, "Document cannot be null");
+			assertDocIdHasValue(ReflectionUtils.getId(o));
+		}
+		return executeBulk(objects);
+	}
+	
+	@Override
+	public List<DocumentOperationResult> deleteAll(Collection<?> objects) {
+		Assert.notNull(objects, "objects cannot be null");
+		List<BulkDeleteDocument> deletes = new ArrayList<BulkDeleteDocument>(objects.size());
+		for (Object o : objects) {
+			deletes.add(BulkDeleteDocument.of(o));
+		}
+		return executeBulk(deletes);
 	}
 	
 	@SuppressWarnings("unused")
@@ -292,12 +653,33 @@ public class StdCouchDbConnector implements CouchDbConnector {
 			}
 		});
 	}
+	
+	@Override
+	public <T> List<T> getAllDocs(final Class<T> c) {
+		Assert.notNull(c, "Class cannot be null");
+		return restTemplate.get(dbPath.getAllDocsPath() + "?include_docs=true", new StdResponseHandler<List<T>>() {
+			@Override
+			public List<T> success(HttpResponse hr) throws Exception {
+				QueryResultParser<T> parser = new QueryResultParser<T>(c, objectMapper);
+				parser.setIgnoreDesignDocuments(true);
+				parser.parseResult(hr.getContent());
+				return parser.getRows();
+			}
+		});
+	}
 
 	@Override
 	public void createDatabaseIfNotExists() {
-		if (!dbInstance.getAllDatabases().contains(dbPath.getDbName())) {
-			dbInstance.createDatabase(dbPath);
-		}
+		restTemplate.put(dbPath.getPath(), new StdResponseHandler<Void>() {
+			@Override
+			public Void error(HttpResponse hr) {
+				if (hr.getCode() == PRECONDITION_FAILED_RESPONSE) {
+					LOG.debug("database {} already exists", dbPath.getDbName());
+					return null;
+				}
+				return super.error(hr);
+			}
+		});
 	}
 
 	@Override
@@ -309,26 +691,38 @@ public class StdCouchDbConnector implements CouchDbConnector {
 	public <T> List<T> queryView(ViewQuery query, final Class<T> type) {
 		Assert.notNull(query, "query cannot be null");
 		query.dbPath(dbPath.getPath());
-		return restTemplate.get(query.buildQuery(), new StdResponseHandler<List<T>>(){
+		if (query.isIncludeDocs()) {
+			return queryIncludeDocs(query, type);
+		}
+		List<String> ids = restTemplate.get(query.buildQuery(), new StdResponseHandler<List<String>>(){
 			@Override
-			public List<T> success(HttpResponse hr) throws Exception {
-				// TODO: reading view result should be done through the Jackson streaming API
-				JsonNode root = objectMapper.readValue(hr.getContent(), JsonNode.class);
-				int totalRows = root.get("total_rows").getIntValue();
-				List<T> result = new ArrayList<T>(totalRows);
-				if (totalRows > 0) {
-					JsonNode rows = root.get("rows");
-	                for (JsonNode row : (Iterable<JsonNode>) rows) {
-	                	String id = row.get("value").getTextValue();
-	                	if (id == null || id.isEmpty()) {
-	                		throw new DbAccessException("view result value field did not contain a document id");
-	                	}
-	                    result.add(get(type, id));
-	                }
-				}
+			public List<String> success(HttpResponse hr) throws Exception {
+				final List<String> result = new ArrayList<String>();
+				viewResultParser.parse(hr.getContent(), new ViewResultParser.RowHandler() {
+					@Override
+					public void handleRow(ViewResult.Row row) {
+						String id = row.getValue();
+						if (id == null || id.isEmpty()) {
+							throw new DbAccessException("view result value field did not contain a document id");
+						}
+						result.add(id);
+					}
+				});
 				return result;
 			}
 		});
+		return getAll(type, ids);
+	}
+
+	private <T> List<T> queryIncludeDocs(ViewQuery query, final Class<T> type) {
+		return restTemplate.get(query.buildQuery(), new StdResponseHandler<List<T>>() {
+			@Override
+			public List<T> success(HttpResponse hr) throws Exception {
+				QueryResultParser<T> parser = new QueryResultParser<T>(type, objectMapper);
+				parser.parseResult(hr.getContent());
+				return parser.getRows();
+			}
+		});
 	}
 
 	@Override
@@ -338,11 +732,71 @@ public class StdCouchDbConnector implements CouchDbConnector {
 		return restTemplate.get(query.buildQuery(), new StdResponseHandler<ViewResult>(){
 			@Override
 			public ViewResult success(HttpResponse hr) throws Exception {
-				return objectMapper.readValue(hr.getContent(), ViewResult.class);
+				return viewResultParser.parse(hr.getContent());
+			}
+		});
+	}
+	
+	@Override
+	public <T> Page<T> queryForPage(ViewQuery query, PageRequest pr, Class<T> type) {
+		Assert.notNull(query, "query cannot be null");
+		Assert.notNull(pr, "PageRequest cannot be null");
+		Assert.notNull(type, "type cannot be null");
+		Assert.isTrue(query.isIncludeDocs(), "a paged view must include docs");
+		query.dbPath(dbPath.getPath());
+		ViewQuery pageQuery = pr.isBack() ? query.reverse() : query.copy();
+		if (!pr.isFirstPage()) {
+			pageQuery.rawStartKey(pr.getStartKey()).startDocId(pr.getStartDocId());
+		}
+		if (pr.isBack()) {
+			pageQuery.skip(1).limit(pr.getPageSize());
+		} else {
+			pageQuery.skip(0).limit(pr.getPageSize() + 1);
+		}
+		return restTemplate.get(pageQuery.buildQuery(), 
+				new PageResponseHandler<T>(pr, type, objectMapper));
+	}
+	
+	@Override
+	public <T> StreamingViewResult<T> streamView(ViewQuery query, final Class<T> type) {
+		Assert.notNull(query, "query cannot be null");
+		Assert.notNull(type, "type cannot be null");
+		Assert.isTrue(query.isIncludeDocs(), "a streamed view must include docs");
+		query.dbPath(dbPath.getPath());
+		return restTemplate.getStreaming(query.buildQuery(), new StdResponseHandler<StreamingViewResult<T>>() {
+			@Override
+			public StreamingViewResult<T> success(HttpResponse hr) throws Exception {
+				return new StreamingViewResult<T>(hr, objectMapper, type);
 			}
 		});
 	}
 	
+	@Override
+	public List<DocumentChange> changes(ChangesCommand cmd) {
+		Assert.notNull(cmd, "ChangesCommand cannot be null");
+		Assert.isTrue(cmd.getFeed() != ChangesCommand.Feed.CONTINUOUS, "use changesFeed for continuous feeds");
+		return restTemplate.get(cmd.buildQuery(dbPath.getChangesPath()), new StdResponseHandler<List<DocumentChange>>() {
+			@Override
+			public List<DocumentChange> success(HttpResponse hr) throws Exception {
+				final List<DocumentChange> changes = new ArrayList<DocumentChange>();
+				changesParser.parseResults(hr.getContent(), new ChangesParser.ChangeHandler() {
+					@Override
+					public void handleChange(DocumentChange change) {
+						changes.add(change);
+					}
+				});
+				return changes;
+			}
+		});
+	}
+	
+	@Override
+	public ChangesFeed changesFeed(ChangesCommand cmd, ChangesListener listener) {
+		StdChangesFeed feed = new StdChangesFeed(dbPath.getChangesPath(), cmd, listener, restTemplate, changesParser);
+		feed.start();
+		return feed;
+	}
+	
 	@Override
 	public InputStream queryForStream(ViewQuery query) {
 		Assert.notNull(query, "query cannot be null");
@@ -353,11 +807,107 @@ public class StdCouchDbConnector implements CouchDbConnector {
 	@Override
 	public String deleteAttachment(String docId, String revision,
 			String attachmentId) {
-		return restTemplate.delete(dbPath.append(docId) + "/" + attachmentId + "?rev=" + revision, 
+		String rev = restTemplate.delete(dbPath.append(docId) + "/" + attachmentId + "?rev=" + revision, 
 				revisionHandler);
+		evict(docId);
+		return rev;
 	}
 	
 	private void assertDocIdHasValue(String docId) {
 		Assert.hasText(docId, "document id cannot be empty");
 	}
+	
+	/**
+	 * Reads length bytes from offset of a stream, or to the end of the stream if length is -1.
+	 */
+	private static class RangeInputStream extends FilterInputStream {
+		
+		private long remaining;
+		
+		RangeInputStream(InputStream in, long offset, long length) throws IOException {
+			super(in);
+			this.remaining = length == -1 ? Long.MAX_VALUE : length;
+			while (offset > 0) {
+				long skipped = in.skip(offset);
+				if (skipped <= 0) {
+					if (in.read() == -1) {
+						break;
+					}
+					skipped = 1;
+				}
+				offset -= skipped;
+			}
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b != -1) {
+				remaining--;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+	/**
+	 * Marks the thread as running a parallel task, so that nested calls to inParallel run on the same thread.
+	 */
+	private static class ParallelTask<T> implements Callable<T> {
+		
+		private final Callable<T> task;
+		
+		ParallelTask(Callable<T> task) {
+			this.task = task;
+		}
+		
+		@Override
+		public T call() throws Exception {
+			IN_PARALLEL_TASK.set(Boolean.TRUE);
+			try {
+				return task.call();
+			} finally {
+				IN_PARALLEL_TASK.remove();
+			}
+		}
+	}
+	
+	private static class ParallelThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ektorp-parallel-request");
+			t.setDaemon(true);
+			return t;
+		}
+	}
 }
@@ -0,0 +1,126 @@
+package org.ektorp.impl;
+
+import java.io.*;
+import java.util.*;
+
+import org.codehaus.jackson.*;
+import org.codehaus.jackson.map.*;
+import org.ektorp.*;
+import org.ektorp.util.*;
+/**
+ * Reads a view result token by token through the Jackson streaming API.
+ * 
+ * Rows are created as they are read from the stream, so no intermediate tree of the
+ * complete result is built. Keys and values that are JSON objects or arrays are kept as
+ * their JSON text.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class ViewResultParser {
+
+	private static final String TOTAL_ROWS_FIELD_NAME = "total_rows";
+	private static final String OFFSET_FIELD_NAME = "offset";
+	private static final String ROWS_FIELD_NAME = "rows";
+	private static final String ID_FIELD_NAME = "id";
+	private static final String KEY_FIELD_NAME = "key";
+	private static final String VALUE_FIELD_NAME = "value";
+	
+	private final ObjectMapper objectMapper;
+	
+	public ViewResultParser(ObjectMapper om) {
+		Assert.notNull(om, "ObjectMapper cannot be null");
+		objectMapper = om;
+	}
+	
+	public ViewResult parse(InputStream json) throws IOException {
+		final List<ViewResult.Row> rows = new ArrayList<ViewResult.Row>();
+		ViewResult meta = parse(json, new RowHandler() {
+			@Override
+			public void handleRow(ViewResult.Row row) {
+				rows.add(row);
+			}
+		});
+		return new ViewResult(meta.getSize(), meta.getOffset(), rows);
+	}
+	/**
+	 * Hands each row to the handler as soon as it has been read, the rows are not retained by the parser.
+	 * @param json
+	 * @param handler
+	 * @return a result holding total_rows and offset, the rows are only passed to the handler.
+	 * @throws IOException
+	 */
+	public ViewResult parse(InputStream json, RowHandler handler) throws IOException {
+		JsonParser jp = objectMapper.getJsonFactory().createJsonParser(json);
+		try {
+			if (jp.nextToken() != JsonToken.START_OBJECT) {
+				throw new DbAccessException("Expected data to start with an Object");
+			}
+			int totalRows = 0;
+			int offset = 0;
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				String name = jp.getCurrentName();
+				jp.nextToken();
+				if (TOTAL_ROWS_FIELD_NAME.equals(name)) {
+					totalRows = jp.getIntValue();
+				} else if (OFFSET_FIELD_NAME.equals(name)) {
+					offset = jp.getIntValue();
+				} else if (ROWS_FIELD_NAME.equals(name)) {
+					if (jp.getCurrentToken() != JsonToken.START_ARRAY) {
+						throw new DbAccessException("Expected rows to start with an Array");
+					}
+					while (jp.nextToken() == JsonToken.START_OBJECT) {
+						handler.handleRow(parseRow(jp));
+					}
+				} else {
+					jp.skipChildren();
+				}
+			}
+			return new ViewResult(totalRows, offset, Collections.<ViewResult.Row>emptyList());
+		} finally {
+			jp.close();
+		}
+	}
+	/**
+	 * Reads the fields of the row object the parser is positioned at.
+	 * The parser is left at the row's END_OBJECT token.
+	 * @param jp
+	 * @return
+	 * @throws IOException
+	 */
+	public ViewResult.Row parseRow(JsonParser jp) throws IOException {
+		String id = null;
+		String key = null;
+		String value = null;
+		while (jp.nextToken() == JsonToken.FIELD_NAME) {
+			String name = jp.getCurrentName();
+			jp.nextToken();
+			if (ID_FIELD_NAME.equals(name)) {
+				id = jp.getText();
+			} else if (KEY_FIELD_NAME.equals(name)) {
+				key = readAsText(jp);
+			} else if (VALUE_FIELD_NAME.equals(name)) {
+				value = readAsText(jp);
+			} else {
+				jp.skipChildren();
+			}
+		}
+		return new ViewResult.Row(id, key, value);
+	}
+	
+	private String readAsText(JsonParser jp) throws IOException {
+		switch (jp.getCurrentToken()) {
+			case START_OBJECT:
+			case START_ARRAY:
+				return objectMapper.readTree(jp).toString();
+			case VALUE_NULL:
+				return null;
+			default:
+				return jp.getText();
+		}
+	}
+	
+	public interface RowHandler {
+		void handleRow(ViewResult.Row row);
+	}
+}
@@ -63,7 +63,7 @@ public class CouchDbRepositorySupport<T> implements GenericRepository<T> {
 		if (designDocContainsAllView()) {
 			return queryView("all");
 		}
-		return loadAllByAllDocIds();
+		return db.getAllDocs(type);
 	}
 
 	private boolean designDocContainsAllView() {
@@ -74,17 +74,6 @@ public class CouchDbRepositorySupport<T> implements GenericRepository<T> {
 		return false;
 	}
 
-	private List<T> loadAllByAllDocIds() {
-		List<String> ids = db.getAllDocIds();
-		List<T> all = new ArrayList<T>(ids.size());
-		for (String id : ids) {
-			if (!id.startsWith("_design")) {
-				all.add(get(id));
-			}
-		}
-		return all;
-	}
-
 	@Override
 	public T get(String id) {
 		Assert.hasText(id, "id must have a value");
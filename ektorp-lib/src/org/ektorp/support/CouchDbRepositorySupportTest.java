@@ -79,20 +79,18 @@ public class CouchDbRepositorySupportTest {
 	}
 
 	@Test
-	public void given_that_no_all_view_exists_when_calling_getAll_then_get_allIds_should_be_used() {
-		List<String> allIds = new ArrayList<String>();
-		allIds.add("id1");
-		allIds.add("id2");
-		allIds.add("id3");
-		allIds.add("_design/TestDoc");
-		
-		when(db.getAllDocIds()).thenReturn(allIds);
-		when(db.get(TestDoc.class, "id1")).thenReturn(new TestDoc("id", "f"));
-		when(db.get(TestDoc.class, "id2")).thenReturn(new TestDoc("id2", "f"));
-		when(db.get(TestDoc.class, "id3")).thenReturn(new TestDoc("id3", "f"));
+	public void given_that_no_all_view_exists_when_calling_getAll_then_all_docs_should_be_loaded() {
+		List<TestDoc> docs = new ArrayList<TestDoc>();
+		docs.add(new TestDoc("id", "f"));
+		docs.add(new TestDoc("id2", "f"));
+		docs.add(new TestDoc("id3", "f"));
+		
+		when(db.getAllDocs(TestDoc.class)).thenReturn(docs);
 		
 		List<TestDoc> all = repo.getAll();
 		assertEquals(3, all.size());
+		verify(db, never()).getAllDocIds();
+		verify(db, never()).get(eq(TestDoc.class), anyString());
 	}
 	
 	@Test
@@ -0,0 +1,79 @@
+package org.ektorp.support;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.util.*;
+/**
+ * Honors the Retryable annotation without any aspect framework: methods annotated with Retryable, either in the
+ * interface or in the target's class, are invoked again when they fail with an UpdateConflictException.
+ * Other methods are passed straight to the target.
+ *
+ * A retryable method should load the documents it updates itself, so that a retry works on fresh revisions.
+ *
+ * <pre>
+ * SofaRepository repo = RetryableProxy.create(SofaRepository.class, new StdSofaRepository(db), new RetryPolicy.Builder().build());
+ * </pre>
+ *
+ * @author henrik lundgren
+ *
+ */
+public class RetryableProxy implements InvocationHandler {
+	
+	private final Object target;
+	private final RetryPolicy policy;
+	private final ConcurrentMap<Method, Boolean> retryable = new ConcurrentHashMap<Method, Boolean>();
+	
+	private RetryableProxy(Object target, RetryPolicy policy) {
+		this.target = target;
+		this.policy = policy;
+	}
+	/**
+	 * @param <T>
+	 * @param type the interface to proxy.
+	 * @param target
+	 * @param policy the number of attempts and the backoff between them.
+	 * @return a proxy of type invoking target.
+	 */
+	public static <T> T create(Class<T> type, T target, RetryPolicy policy) {
+		Assert.notNull(type, "type cannot be null");
+		Assert.isTrue(type.isInterface(), "type must be an interface");
+		Assert.notNull(target, "target cannot be null");
+		Assert.notNull(policy, "RetryPolicy cannot be null");
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new RetryableProxy(target, policy)));
+	}
+	
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		boolean retry = isRetryable(method);
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				if (!retry || !(cause instanceof UpdateConflictException) || attempt >= policy.getMaxAttempts()) {
+					throw cause;
+				}
+			}
+			policy.backoff(attempt);
+		}
+	}
+	
+	private boolean isRetryable(Method method) {
+		Boolean b = retryable.get(method);
+		if (b == null) {
+			b = method.isAnnotationPresent(Retryable.class);
+			if (!b) {
+				try {
+					b = target.getClass().getMethod(method.getName(), method.getParameterTypes()).isAnnotationPresent(Retryable.class);
+				} catch (NoSuchMethodException e) {
+					b = Boolean.FALSE;
+				}
+			}
+			retryable.put(method, b);
+		}
+		return b;
+	}
+}
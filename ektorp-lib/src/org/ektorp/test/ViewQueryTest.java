@@ -78,6 +78,24 @@ public class ViewQueryTest {
 		assertTrue(contains(url, "?reduce=false"));
 	}
 	
+	@Test
+	public void raw_startKey_should_not_be_quoted() {
+		String url = query.rawStartKey("12").buildQuery();
+		assertTrue(contains(url, "?startkey=12"));
+	}
+	
+	@Test
+	public void reversed_query_should_swap_start_and_end() {
+		String url = query
+			.startKey("start")
+			.endKey("end")
+			.reverse()
+			.buildQuery();
+		assertTrue(contains(url, "?startkey=%22end%22"));
+		assertTrue(contains(url, "&endkey=%22start%22"));
+		assertTrue(contains(url, "&descending=true"));
+	}
+	
 	@Test(expected=java.lang.IllegalStateException.class)
 	public void throw_exception_when_dbName_is_missing() {
 		new ViewQuery()
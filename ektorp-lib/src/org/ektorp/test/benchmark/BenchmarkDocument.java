@@ -0,0 +1,36 @@
+package org.ektorp.test.benchmark;
+
+import org.ektorp.support.*;
+
+public class BenchmarkDocument extends CouchDbDocument {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private String name;
+	private int counter;
+	private String payload;
+	
+	public String getName() {
+		return name;
+	}
+	
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	public int getCounter() {
+		return counter;
+	}
+	
+	public void setCounter(int counter) {
+		this.counter = counter;
+	}
+	
+	public String getPayload() {
+		return payload;
+	}
+	
+	public void setPayload(String payload) {
+		this.payload = payload;
+	}
+}
@@ -0,0 +1,182 @@
+package org.ektorp.test.benchmark;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import org.ektorp.util.*;
+/**
+ * Runs an operation repeatedly on the calling thread, first to warm up and then to measure
+ * throughput, latency percentiles and the bytes allocated per operation.
+ * 
+ * Allocation is read from the JVM's per thread allocation counter, so the operation must not hand
+ * its work to other threads. Bytes per operation is reported as -1 on JVMs without the counter.
+ * 
+ * The result of each run is stored in a volatile field, so that the JIT cannot drop work whose result is unused.
+ * Figures of benchmarks run in the same JVM influence each other through JIT and heap state and are only
+ * comparable within that run; use fork to run a benchmark in a JVM of its own.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class BenchmarkRunner {
+	
+	public interface Operation {
+		/**
+		 * @return the result of the operation, or any object derived from the work done.
+		 * @throws Exception
+		 */
+		Object run() throws Exception;
+	}
+	
+	private final long warmupMillis;
+	private final long measureMillis;
+	
+	private volatile Object sink;
+	
+	public BenchmarkRunner(long warmupMillis, long measureMillis) {
+		Assert.isTrue(warmupMillis >= 0, "warmupMillis cannot be negative");
+		Assert.isTrue(measureMillis > 0, "measureMillis must be greater than 0");
+		this.warmupMillis = warmupMillis;
+		this.measureMillis = measureMillis;
+	}
+	/**
+	 * The operation is always measured at least once, even if a single run outlasts the measurement time.
+	 * @param name
+	 * @param op
+	 * @return
+	 * @throws Exception
+	 */
+	public Result run(String name, Operation op) throws Exception {
+		long warmupEnd = System.currentTimeMillis() + warmupMillis;
+		while (System.currentTimeMillis() < warmupEnd) {
+			sink = op.run();
+		}
+		System.gc();
+		
+		long[] latencies = new long[1024];
+		int ops = 0;
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long end = start + measureMillis * 1000000L;
+		long now = start;
+		do {
+			sink = op.run();
+			long t = System.nanoTime();
+			if (ops == latencies.length) {
+				latencies = Arrays.copyOf(latencies, ops * 2);
+			}
+			latencies[ops++] = t - now;
+			now = t;
+		} while (now < end);
+		long allocatedAfter = allocatedBytes();
+		
+		Arrays.sort(latencies, 0, ops);
+		long bytesPerOp = allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore) / ops;
+		return new Result(name, ops, ops * 1e9 / (now - start), percentile(latencies, ops, 0.5), 
+				percentile(latencies, ops, 0.99), bytesPerOp);
+	}
+	
+	/**
+	 * Runs the main class in a new JVM with the classpath and JVM arguments of this one, copying its output to
+	 * System.out.
+	 * @param main
+	 * @param properties system properties to set in the new JVM, overriding those of this one.
+	 * @throws Exception
+	 */
+	public static void fork(Class<?> main, Map<String, String> properties) throws Exception {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		for (Map.Entry<String, String> p : properties.entrySet()) {
+			cmd.add("-D" + p.getKey() + "=" + p.getValue());
+		}
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(main.getName());
+		Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+		BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		try {
+			String line;
+			while ((line = out.readLine()) != null) {
+				System.out.println(line);
+			}
+		} finally {
+			out.close();
+		}
+		int exit = process.waitFor();
+		if (exit != 0) {
+			throw new IllegalStateException(main.getName() + " exited with " + exit);
+		}
+	}
+	
+	private static long percentile(long[] sorted, int count, double p) {
+		int i = (int) Math.ceil(p * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, i))];
+	}
+	
+	private static long allocatedBytes() {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (mx instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) mx;
+			if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+				return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+	
+	public static class Result {
+		
+		public static final String HEADER = String.format("%-40s %10s %12s %12s %12s %14s", 
+				"benchmark", "ops", "ops/s", "p50 (us)", "p99 (us)", "bytes/op");
+		
+		private final String name;
+		private final int ops;
+		private final double opsPerSecond;
+		private final long p50Nanos;
+		private final long p99Nanos;
+		private final long bytesPerOp;
+		
+		Result(String name, int ops, double opsPerSecond, long p50Nanos, long p99Nanos, long bytesPerOp) {
+			this.name = name;
+			this.ops = ops;
+			this.opsPerSecond = opsPerSecond;
+			this.p50Nanos = p50Nanos;
+			this.p99Nanos = p99Nanos;
+			this.bytesPerOp = bytesPerOp;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public int getOps() {
+			return ops;
+		}
+		
+		public double getOpsPerSecond() {
+			return opsPerSecond;
+		}
+		
+		public long getP50Nanos() {
+			return p50Nanos;
+		}
+		
+		public long getP99Nanos() {
+			return p99Nanos;
+		}
+		/**
+		 * @return -1 if the JVM does not count allocated bytes per thread.
+		 */
+		public long getBytesPerOp() {
+			return bytesPerOp;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%-40s %10d %12.1f %12.1f %12.1f %14d", 
+					name, ops, opsPerSecond, p50Nanos / 1000.0, p99Nanos / 1000.0, bytesPerOp);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package org.ektorp.test.benchmark;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.apache.commons.io.*;
+import org.apache.commons.io.output.*;
+import org.ektorp.http.*;
+import org.ektorp.util.*;
+/**
+ * An in-process HttpClient that answers reads with canned bodies registered per path and
+ * acknowledges every write, so that the connector can be driven without a database or a network.
+ * 
+ * Request bodies are still written in full, so serialization is part of what is measured.
+ * The query string is ignored when a path is looked up.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class CannedHttpClient implements HttpClient {
+	
+	private static final byte[] NOT_FOUND = "{\"error\":\"not_found\",\"reason\":\"missing\"}".getBytes();
+	private static final byte[] OK = "{\"ok\":true}".getBytes();
+	
+	private final Map<String, byte[]> bodies = new HashMap<String, byte[]>();
+	
+	public void serve(String path, byte[] body) {
+		Assert.hasText(path, "path must have a value");
+		Assert.notNull(body, "body cannot be null");
+		bodies.put(path, body);
+	}
+	
+	@Override
+	public HttpResponse get(String uri) {
+		int q = uri.indexOf('?');
+		byte[] body = bodies.get(q < 0 ? uri : uri.substring(0, q));
+		return body != null ? new CannedResponse(200, body, uri) : new CannedResponse(404, NOT_FOUND, uri);
+	}
+	
+	@Override
+	public HttpResponse get(String uri, Map<String, String> headers) {
+		return get(uri);
+	}
+	
+	@Override
+	public HttpResponse put(String uri, String content) {
+		return written(uri);
+	}
+	
+	@Override
+	public HttpResponse put(String uri, ContentWriter content) {
+		write(content);
+		return written(uri);
+	}
+	
+	@Override
+	public HttpResponse put(String uri) {
+		return new CannedResponse(201, OK, uri);
+	}
+	
+	@Override
+	public HttpResponse put(String uri, InputStream data, String contentType, long contentLength) {
+		drain(data);
+		return written(uri);
+	}
+	
+	@Override
+	public HttpResponse put(String uri, ReadableByteChannel data, String contentType, long contentLength) {
+		drain(Channels.newInputStream(data));
+		return written(uri);
+	}
+	
+	@Override
+	public HttpResponse post(String uri, String content) {
+		return written(uri);
+	}
+	
+	@Override
+	public HttpResponse post(String uri, ContentWriter content) {
+		write(content);
+		return written(uri);
+	}
+	
+	@Override
+	public HttpResponse delete(String uri) {
+		return written(uri);
+	}
+	
+	@Override
+	public HttpResponse head(String uri) {
+		return get(uri);
+	}
+	
+	private HttpResponse written(String uri) {
+		String id = uri.substring(uri.lastIndexOf('/') + 1);
+		String body = "{\"ok\":true,\"id\":\"" + id + "\",\"rev\":\"2-benchmark\"}";
+		return new CannedResponse(201, body.getBytes(), uri);
+	}
+	
+	private static void write(ContentWriter content) {
+		try {
+			content.writeTo(new NullOutputStream());
+		} catch (IOException e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+	
+	private static void drain(InputStream in) {
+		try {
+			IOUtils.copy(in, new NullOutputStream());
+		} catch (IOException e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package org.ektorp.test.benchmark;
+
+import java.io.*;
+
+import org.ektorp.http.*;
+/**
+ * A response that serves a body held in memory, shared between all responses for the same path.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class CannedResponse implements HttpResponse {
+	
+	private final int code;
+	private final byte[] body;
+	private final String requestURI;
+	
+	public CannedResponse(int code, byte[] body, String requestURI) {
+		this.code = code;
+		this.body = body;
+		this.requestURI = requestURI;
+	}
+	
+	@Override
+	public int getCode() {
+		return code;
+	}
+	
+	@Override
+	public boolean isSuccessful() {
+		return code < 300;
+	}
+	
+	@Override
+	public String getRequestURI() {
+		return requestURI;
+	}
+	
+	@Override
+	public String getContentType() {
+		return "application/json";
+	}
+	
+	@Override
+	public long getContentLength() {
+		return body.length;
+	}
+	
+	@Override
+	public String getETag() {
+		return null;
+	}
+	
+	@Override
+	public InputStream getContent() {
+		return new ByteArrayInputStream(body);
+	}
+	
+	@Override
+	public void releaseConnection() {
+		
+	}
+	
+	@Override
+	public void abort() {
+		
+	}
+
+}
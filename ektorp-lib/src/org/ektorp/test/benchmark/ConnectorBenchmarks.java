@@ -0,0 +1,238 @@
+package org.ektorp.test.benchmark;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+import org.codehaus.jackson.*;
+import org.codehaus.jackson.map.*;
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.impl.*;
+/**
+ * Benchmarks the hot paths of StdCouchDbConnector against a CannedHttpClient, so that what is measured is
+ * the connector's own mapping and serialization cost.
+ *
+ * Documents from 1 KB to 1 MB are read, created and updated, views and _all_docs are queried with up to
+ * 1M rows. Each benchmark reports ops/s, p50 and p99 latency and the bytes allocated per operation.
+ * get_*_readValue maps the response stream with a bare RestTemplate and ObjectMapper, as the floor for the
+ * get_* figures.
+ *
+ * Run with the test classpath, e.g.
+ *
+ * java -Xmx2g -cp ... org.ektorp.test.benchmark.ConnectorBenchmarks
+ *
+ * The following system properties are recognized:
+ * benchmark.filter		only benchmarks with names matching this regex are run.
+ * benchmark.warmup		warmup time per benchmark in ms, default 2000.
+ * benchmark.time		measurement time per benchmark in ms, default 5000.
+ * benchmark.maxRows		the largest view size to run, default 1000000. The 1M row view needs about 1 GB heap.
+ * benchmark.fork		true to run each benchmark in a JVM of its own, default true. With false all benchmarks
+ * 				share this JVM and their figures are only comparable within the run.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class ConnectorBenchmarks {
+	
+	private static final int[] DOCUMENT_SIZES = {1024, 10 * 1024, 100 * 1024, 1024 * 1024};
+	private static final int[] VIEW_SIZES = {1000, 10000, 100000, 1000000};
+	private static final String DESIGN_DOC_ID = "_design/benchmark";
+	
+	private final CannedHttpClient httpClient = new CannedHttpClient();
+	private final CouchDbInstance dbInstance = new StdCouchDbInstance(httpClient);
+	private final RestTemplate restTemplate = new RestTemplate(httpClient);
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final JsonFactory jsonFactory = objectMapper.getJsonFactory();
+	private final Map<String, BenchmarkRunner.Operation> benchmarks = new LinkedHashMap<String, BenchmarkRunner.Operation>();
+	private final boolean serveResponses;
+	/**
+	 * @param serveResponses false if only the names of the benchmarks are needed, which saves building the
+	 * canned view results.
+	 */
+	private ConnectorBenchmarks(boolean serveResponses) {
+		this.serveResponses = serveResponses;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		Pattern filter = Pattern.compile(System.getProperty("benchmark.filter", ".*"));
+		BenchmarkRunner runner = new BenchmarkRunner(Long.getLong("benchmark.warmup", 2000),
+				Long.getLong("benchmark.time", 5000));
+		int maxRows = Integer.getInteger("benchmark.maxRows", 1000000);
+		boolean fork = Boolean.parseBoolean(System.getProperty("benchmark.fork", "true"));
+		boolean header = Boolean.parseBoolean(System.getProperty("benchmark.header", "true"));
+		
+		ConnectorBenchmarks b = new ConnectorBenchmarks(!fork);
+		for (int size : DOCUMENT_SIZES) {
+			b.addDocumentBenchmarks(size, filter);
+		}
+		for (int rows : VIEW_SIZES) {
+			if (rows <= maxRows) {
+				b.addViewBenchmarks(rows, filter);
+			}
+		}
+		
+		if (header) {
+			System.out.println(BenchmarkRunner.Result.HEADER);
+		}
+		for (Map.Entry<String, BenchmarkRunner.Operation> e : b.benchmarks.entrySet()) {
+			if (fork) {
+				Map<String, String> properties = new HashMap<String, String>();
+				properties.put("benchmark.filter", Pattern.quote(e.getKey()));
+				properties.put("benchmark.fork", "false");
+				properties.put("benchmark.header", "false");
+				BenchmarkRunner.fork(ConnectorBenchmarks.class, properties);
+			} else {
+				System.out.println(runner.run(e.getKey(), e.getValue()));
+			}
+		}
+	}
+	
+	private void add(String name, Pattern filter, BenchmarkRunner.Operation op) {
+		if (filter.matcher(name).matches()) {
+			benchmarks.put(name, op);
+		}
+	}
+	
+	private void addDocumentBenchmarks(final int size, Pattern filter) throws IOException {
+		final String suffix = size / 1024 + "kb";
+		final CouchDbConnector db = new StdCouchDbConnector("docs_" + suffix, dbInstance);
+		final String payload = payload(size);
+		final String id = "doc_" + suffix;
+		
+		if (serveResponses) {
+			BenchmarkDocument stored = newDocument(id, payload);
+			stored.setRevision("1-benchmark");
+			httpClient.serve(new DbPath(db.getDatabaseName()).append(id),
+					new ObjectMapper().writeValueAsBytes(stored));
+		}
+		
+		add("get_" + suffix, filter, new BenchmarkRunner.Operation() {
+			@Override
+			public Object run() {
+				return db.get(BenchmarkDocument.class, id);
+			}
+		});
+		final String path = new DbPath(db.getDatabaseName()).append(id);
+		add("get_" + suffix + "_readValue", filter, new BenchmarkRunner.Operation() {
+			@Override
+			public Object run() {
+				return restTemplate.get(path, new StdResponseHandler<BenchmarkDocument>() {
+					@Override
+					public BenchmarkDocument success(HttpResponse hr) throws Exception {
+						return objectMapper.readValue(hr.getContent(), BenchmarkDocument.class);
+					}
+				});
+			}
+		});
+		add("create_" + suffix, filter, new BenchmarkRunner.Operation() {
+			@Override
+			public Object run() {
+				BenchmarkDocument d = newDocument(id, payload);
+				db.create(d);
+				return d.getRevision();
+			}
+		});
+		final BenchmarkDocument updated = newDocument(id, payload);
+		updated.setRevision("1-benchmark");
+		add("update_" + suffix, filter, new BenchmarkRunner.Operation() {
+			@Override
+			public Object run() {
+				db.update(updated);
+				return updated.getRevision();
+			}
+		});
+	}
+	
+	private void addViewBenchmarks(int rows, Pattern filter) throws IOException {
+		final CouchDbConnector db = new StdCouchDbConnector("view_" + rows, dbInstance);
+		final String viewName = "rows_" + rows;
+		if (serveResponses) {
+			DbPath dbPath = new DbPath(db.getDatabaseName());
+			httpClient.serve(dbPath.getPath() + DESIGN_DOC_ID + "/_view/" + viewName, viewBody(rows));
+			httpClient.serve(dbPath.getAllDocsPath(), allDocsBody(rows));
+		}
+		
+		add("queryView_" + rows, filter, new BenchmarkRunner.Operation() {
+			@Override
+			public Object run() {
+				return db.queryView(new ViewQuery().designDocId(DESIGN_DOC_ID).viewName(viewName).includeDocs(true),
+						BenchmarkDocument.class);
+			}
+		});
+		add("getAllDocIds_" + rows, filter, new BenchmarkRunner.Operation() {
+			@Override
+			public Object run() {
+				return db.getAllDocIds();
+			}
+		});
+	}
+	
+	private static BenchmarkDocument newDocument(String id, String payload) {
+		BenchmarkDocument d = new BenchmarkDocument();
+		d.setId(id);
+		d.setName("benchmark document");
+		d.setCounter(1);
+		d.setPayload(payload);
+		return d;
+	}
+	
+	private static String payload(int size) {
+		StringBuilder sb = new StringBuilder(size);
+		while (sb.length() < size) {
+			sb.append("lorem ipsum dolor sit amet ");
+		}
+		sb.setLength(size);
+		return sb.toString();
+	}
+	
+	private byte[] viewBody(int rows) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(rows * 160);
+		JsonGenerator jg = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+		jg.writeStartObject();
+		jg.writeNumberField("total_rows", rows);
+		jg.writeNumberField("offset", 0);
+		jg.writeArrayFieldStart("rows");
+		for (int i = 0; i < rows; i++) {
+			String id = "doc_" + i;
+			jg.writeStartObject();
+			jg.writeStringField("id", id);
+			jg.writeStringField("key", id);
+			jg.writeNumberField("value", i);
+			jg.writeObjectFieldStart("doc");
+			jg.writeStringField("_id", id);
+			jg.writeStringField("_rev", "1-benchmark");
+			jg.writeStringField("name", "row " + i);
+			jg.writeNumberField("counter", i);
+			jg.writeEndObject();
+			jg.writeEndObject();
+		}
+		jg.writeEndArray();
+		jg.writeEndObject();
+		jg.close();
+		return out.toByteArray();
+	}
+	
+	private byte[] allDocsBody(int rows) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(rows * 80);
+		JsonGenerator jg = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+		jg.writeStartObject();
+		jg.writeNumberField("total_rows", rows);
+		jg.writeNumberField("offset", 0);
+		jg.writeArrayFieldStart("rows");
+		for (int i = 0; i < rows; i++) {
+			String id = "doc_" + i;
+			jg.writeStartObject();
+			jg.writeStringField("id", id);
+			jg.writeStringField("key", id);
+			jg.writeObjectFieldStart("value");
+			jg.writeStringField("rev", "1-benchmark");
+			jg.writeEndObject();
+			jg.writeEndObject();
+		}
+		jg.writeEndArray();
+		jg.writeEndObject();
+		jg.close();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,128 @@
+package org.ektorp.test.benchmark;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.impl.*;
+import org.ektorp.test.server.*;
+/**
+ * Measures end to end throughput of StdCouchDbConnector over StdHttpClient against a StubCouchDbServer on
+ * localhost, i.e. including connection pooling, the HTTP round trip and any injected server latency.
+ *
+ * The following system properties are recognized:
+ * benchmark.threads		the number of client threads, default 20.
+ * benchmark.connections	maxConnections of the StdHttpClient, default 20.
+ * benchmark.latency		injected server latency in ms, default 2.
+ * benchmark.errorRate		fraction of requests answered with 503, default 0.
+ * benchmark.time		measurement time in ms, default 10000.
+ * benchmark.hedge		true to hedge reads, default false.
+ * benchmark.limit		true to put an adaptive ConcurrencyLimiter in front of the connection pool, default false.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class StubServerBenchmarks {
+	
+	private static final int DOCUMENT_COUNT = 1000;
+	
+	private static volatile Object sink;
+	
+	public static void main(String[] args) throws Exception {
+		int threads = Integer.getInteger("benchmark.threads", 20);
+		int connections = Integer.getInteger("benchmark.connections", 20);
+		long latency = Long.getLong("benchmark.latency", 2);
+		double errorRate = Double.parseDouble(System.getProperty("benchmark.errorRate", "0"));
+		long time = Long.getLong("benchmark.time", 10000);
+		boolean hedge = Boolean.getBoolean("benchmark.hedge");
+		ConcurrencyLimiter limiter = Boolean.getBoolean("benchmark.limit")
+				? new ConcurrencyLimiter.Builder().maxLimit(connections).build() : null;
+		
+		StubCouchDbServer server = new StubCouchDbServer();
+		server.start();
+		try {
+			HttpClient httpClient = new StdHttpClient.Builder().host("127.0.0.1").port(server.getPort())
+					.maxConnections(connections).concurrencyLimiter(limiter).build();
+			final StdCouchDbConnector db = new StdCouchDbConnector("benchmark", new StdCouchDbInstance(httpClient));
+			HedgedReads hedgedReads = new HedgedReads.Builder().build();
+			if (hedge) {
+				db.setHedgedReads(hedgedReads);
+			}
+			db.createDatabaseIfNotExists();
+			List<BenchmarkDocument> docs = new ArrayList<BenchmarkDocument>();
+			for (int i = 0; i < DOCUMENT_COUNT; i++) {
+				BenchmarkDocument d = new BenchmarkDocument();
+				d.setId("doc_" + i);
+				d.setName("document " + i);
+				d.setCounter(i);
+				docs.add(d);
+			}
+			db.executeBulk(docs);
+			
+			server.setLatency(latency, latency);
+			server.setErrorRate(errorRate, 503);
+			
+			System.out.println(String.format("threads: %d, connections: %d, latency: %d ms, error rate: %.3f, hedge: %s",
+					threads, connections, latency, errorRate, hedge));
+			System.out.println(run("get", threads, time, new BenchmarkRunner.Operation() {
+				private final Random random = new Random();
+				@Override
+				public Object run() {
+					return db.get(BenchmarkDocument.class, "doc_" + random.nextInt(DOCUMENT_COUNT));
+				}
+			}));
+			if (hedge) {
+				System.out.println(String.format("hedges: %d fired, %d won, delay %d ms",
+						hedgedReads.getHedgeCount(), hedgedReads.getHedgeWinCount(), hedgedReads.getDelayMillis()));
+			}
+			if (limiter != null) {
+				System.out.println(limiter);
+			}
+			hedgedReads.shutdown();
+		} finally {
+			server.stop();
+		}
+	}
+	
+	private static String run(String name, int threads, final long time, final BenchmarkRunner.Operation op) throws Exception {
+		final AtomicLong ops = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+		final CountDownLatch done = new CountDownLatch(threads);
+		final long end = System.currentTimeMillis() + time;
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					List<Long> own = new ArrayList<Long>();
+					try {
+						while (System.currentTimeMillis() < end) {
+							long start = System.nanoTime();
+							try {
+								sink = op.run();
+								ops.incrementAndGet();
+							} catch (Exception e) {
+								errors.incrementAndGet();
+							}
+							own.add(System.nanoTime() - start);
+						}
+					} finally {
+						latencies.addAll(own);
+						done.countDown();
+					}
+				}
+			}, "ektorp-benchmark-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		done.await();
+		List<Long> sorted = new ArrayList<Long>(latencies);
+		Collections.sort(sorted);
+		long p50 = sorted.isEmpty() ? 0 : sorted.get(sorted.size() / 2);
+		long p99 = sorted.isEmpty() ? 0 : sorted.get(Math.max(0, (int) Math.ceil(sorted.size() * 0.99) - 1));
+		return String.format("%-10s %10d ops %12.1f ops/s %10.1f p50 (us) %10.1f p99 (us) %8d errors",
+				name, ops.get(), ops.get() * 1000.0 / time, p50 / 1000.0, p99 / 1000.0, errors.get());
+	}
+}
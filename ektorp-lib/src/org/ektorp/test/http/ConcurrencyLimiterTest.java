@@ -0,0 +1,136 @@
+package org.ektorp.test.http;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.apache.http.*;
+import org.apache.http.client.methods.*;
+import org.apache.http.entity.*;
+import org.apache.http.message.*;
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.http.HttpResponse;
+import org.junit.*;
+
+public class ConcurrencyLimiterTest {
+	
+	@Test
+	public void requests_above_limit_should_be_rejected() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().initialLimit(2).build();
+		limiter.acquire();
+		long started = limiter.acquire();
+		try {
+			limiter.acquire();
+			fail("request should be rejected");
+		} catch (ConcurrencyLimitExceededException e) {
+			assertEquals(2, e.getLimit());
+		}
+		assertEquals(1, limiter.getRejectedCount());
+		assertEquals(2, limiter.getInFlightCount());
+		limiter.release(started, false);
+		limiter.acquire();
+		assertEquals(3, limiter.getRequestCount());
+	}
+	
+	@Test
+	public void low_priority_requests_should_be_shed_first() throws Exception {
+		final ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().initialLimit(10).lowPriorityShare(0.5).build();
+		for (int i = 0; i < 5; i++) {
+			limiter.acquire();
+		}
+		try {
+			ConcurrencyLimiter.lowPriority(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return limiter.acquire();
+				}
+			});
+			fail("low priority request should be shed");
+		} catch (ConcurrencyLimitExceededException e) {
+			// expected
+		}
+		limiter.acquire();
+		assertEquals(1, limiter.getShedCount());
+		assertEquals(6, limiter.getInFlightCount());
+	}
+	
+	@Test
+	public void limit_should_be_cut_once_per_round_trip() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().initialLimit(10).backoffRatio(0.5).build();
+		long a = limiter.acquire();
+		long b = limiter.acquire();
+		limiter.release(a, true);
+		assertEquals(5, limiter.getLimit());
+		limiter.release(b, true);
+		assertEquals(5, limiter.getLimit());
+		limiter.release(limiter.acquire(), true);
+		assertEquals(2, limiter.getLimit());
+	}
+	
+	@Test
+	public void slow_response_should_cut_limit() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().initialLimit(10).build();
+		limiter.release(limiter.acquire(), false);
+		long started = limiter.acquire();
+		Thread.sleep(20);
+		limiter.release(started, false);
+		assertEquals(9, limiter.getLimit());
+	}
+	
+	@Test
+	public void limit_should_grow_while_used() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().initialLimit(2).maxLimit(10).rttTolerance(1000).build();
+		for (int i = 0; i < 50; i++) {
+			long a = limiter.acquire();
+			long b = limiter.acquire();
+			limiter.release(a, false);
+			limiter.release(b, false);
+		}
+		assertTrue(limiter.getLimit() > 2);
+		assertTrue(limiter.getLimit() <= 10);
+	}
+	
+	@Test
+	public void permit_should_be_held_until_streamed_response_is_closed() throws Exception {
+		org.apache.http.client.HttpClient apacheClient = mock(org.apache.http.client.HttpClient.class);
+		BasicHttpResponse ok = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+		ok.setEntity(new StringEntity("{\"rows\":[]}"));
+		when(apacheClient.execute(any(HttpUriRequest.class))).thenReturn(ok);
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().initialLimit(1).build();
+		StdHttpClient client = new StdHttpClient(apacheClient, false, -1, limiter);
+		
+		InputStream in = client.get("/db/_changes").getContent();
+		try {
+			client.get("/db/doc");
+			fail("limit should be reached while the first response is open");
+		} catch (ConcurrencyLimitExceededException e) {
+			// expected
+		}
+		in.close();
+		assertEquals(0, limiter.getInFlightCount());
+		client.get("/db/doc").releaseConnection();
+	}
+	
+	@Test
+	public void std_http_client_should_be_limited() throws Exception {
+		org.apache.http.client.HttpClient apacheClient = mock(org.apache.http.client.HttpClient.class);
+		BasicHttpResponse unavailable = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 503, "Service Unavailable"));
+		unavailable.setEntity(new StringEntity(""));
+		when(apacheClient.execute(any(HttpUriRequest.class))).thenReturn(unavailable);
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().initialLimit(10).build();
+		StdHttpClient client = new StdHttpClient(apacheClient, false, -1, limiter);
+		
+		HttpResponse rsp = client.get("/db/doc");
+		assertEquals(503, rsp.getCode());
+		assertEquals(1, limiter.getInFlightCount());
+		rsp.releaseConnection();
+		rsp.releaseConnection();
+		assertEquals(9, limiter.getLimit());
+		assertEquals(0, limiter.getInFlightCount());
+		assertSame(limiter, client.getConcurrencyLimiter());
+	}
+}
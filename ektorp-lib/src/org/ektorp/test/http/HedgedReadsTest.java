@@ -0,0 +1,164 @@
+package org.ektorp.test.http;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ektorp.http.*;
+import org.ektorp.test.impl.*;
+import org.junit.*;
+import org.mockito.invocation.*;
+import org.mockito.stubbing.*;
+
+public class HedgedReadsTest {
+	
+	HttpClient client;
+	HedgedReads hedgedReads;
+	RestTemplate template;
+	
+	@Before
+	public void setUp() {
+		client = mock(HttpClient.class);
+		hedgedReads = new HedgedReads.Builder().initialDelayMillis(20).maxHedgeRatio(1).build();
+		template = new RestTemplate(client);
+		template.setHedgedReads(hedgedReads);
+	}
+	
+	@After
+	public void tearDown() {
+		hedgedReads.shutdown();
+	}
+	
+	@Test
+	public void fast_read_should_not_be_hedged() {
+		when(client.get(anyString())).thenReturn(HttpResponseStub.valueOf(200, "{}"));
+		for (int i = 0; i < 10; i++) {
+			assertEquals(200, template.get("/db/doc").getCode());
+		}
+		verify(client, times(10)).get("/db/doc");
+		assertEquals(10, hedgedReads.getRequestCount());
+		assertEquals(0, hedgedReads.getHedgeCount());
+	}
+	
+	@Test
+	public void slow_read_should_be_hedged_and_loser_released() throws Exception {
+		final HttpResponse slow = mock(HttpResponse.class);
+		final CountDownLatch released = new CountDownLatch(1);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				released.countDown();
+				return null;
+			}
+		}).when(slow).releaseConnection();
+		final HttpResponse fast = HttpResponseStub.valueOf(200, "{}");
+		final AtomicInteger calls = new AtomicInteger();
+		
+		long start = System.currentTimeMillis();
+		HttpResponse hr = hedgedReads.execute(new Callable<HttpResponse>() {
+			@Override
+			public HttpResponse call() throws Exception {
+				if (calls.incrementAndGet() > 1) {
+					return fast;
+				}
+				final Thread caller = Thread.currentThread();
+				HedgedReads.onAbort(new Runnable() {
+					@Override
+					public void run() {
+						caller.interrupt();
+					}
+				});
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					// aborted
+				}
+				return slow;
+			}
+		});
+		assertSame(fast, hr);
+		assertTrue(System.currentTimeMillis() - start < 200);
+		assertEquals(1, hedgedReads.getHedgeCount());
+		assertEquals(1, hedgedReads.getHedgeWinCount());
+		assertTrue(released.await(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void first_attempt_should_be_sent_by_calling_thread() {
+		final Thread caller = Thread.currentThread();
+		final AtomicReference<Thread> sender = new AtomicReference<Thread>();
+		hedgedReads.execute(new Callable<HttpResponse>() {
+			@Override
+			public HttpResponse call() throws Exception {
+				sender.set(Thread.currentThread());
+				return HttpResponseStub.valueOf(200, "{}");
+			}
+		});
+		assertSame(caller, sender.get());
+	}
+	
+	@Test
+	public void streamed_and_changes_reads_should_not_be_hedged() throws Exception {
+		when(client.get(anyString())).thenReturn(HttpResponseStub.valueOf(200, "{}"));
+		ResponseCallback<HttpResponse> callback = new StdResponseHandler<HttpResponse>() {
+			@Override
+			public HttpResponse success(HttpResponse hr) throws Exception {
+				return hr;
+			}
+		};
+		template.getStreaming("/db/_changes?feed=longpoll", callback);
+		template.getStreaming("/db/doc", callback);
+		template.get("/db/_changes?since=1", callback);
+		template.get("/db/_design/d/_view/v", callback);
+		assertEquals(0, hedgedReads.getRequestCount());
+		template.get("/db/doc");
+		template.get("/db/doc?revs_info=true", callback);
+		assertEquals(2, hedgedReads.getRequestCount());
+	}
+	
+	@Test
+	public void failure_before_hedge_delay_should_not_be_hedged() {
+		when(client.get(anyString())).thenThrow(new IllegalStateException("connection refused"));
+		try {
+			template.get("/db/doc");
+			fail("failure should be thrown");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		verify(client, times(1)).get("/db/doc");
+		assertEquals(0, hedgedReads.getHedgeCount());
+	}
+	
+	@Test
+	public void hedges_should_be_limited_by_ratio() {
+		hedgedReads.shutdown();
+		hedgedReads = new HedgedReads.Builder().initialDelayMillis(1).maxHedgeRatio(0.2).build();
+		template.setHedgedReads(hedgedReads);
+		when(client.get(anyString())).thenAnswer(new Answer<HttpResponse>() {
+			@Override
+			public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+				Thread.sleep(10);
+				return HttpResponseStub.valueOf(200, "{}");
+			}
+		});
+		for (int i = 0; i < 20; i++) {
+			template.get("/db/doc");
+		}
+		assertEquals(4, hedgedReads.getHedgeCount());
+	}
+	
+	@Test
+	public void delay_should_follow_observed_response_times() {
+		hedgedReads.shutdown();
+		hedgedReads = new HedgedReads.Builder().initialDelayMillis(500).maxHedgeRatio(0).build();
+		template.setHedgedReads(hedgedReads);
+		when(client.get(anyString())).thenReturn(HttpResponseStub.valueOf(200, "{}"));
+		for (int i = 0; i < 200; i++) {
+			template.get("/db/doc");
+		}
+		assertTrue(hedgedReads.getDelayMillis() < 500);
+	}
+}
@@ -0,0 +1,195 @@
+package org.ektorp.test.http;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.net.*;
+
+import org.codehaus.jackson.map.*;
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.impl.*;
+import org.ektorp.test.impl.*;
+import org.ektorp.test.server.*;
+import org.junit.*;
+import org.mockito.invocation.*;
+import org.mockito.stubbing.*;
+
+public class LoadBalancingHttpClientTest {
+	
+	HttpClient a;
+	HttpClient b;
+	LoadBalancingHttpClient lb;
+	
+	@Before
+	public void setUp() {
+		a = mock(HttpClient.class);
+		b = mock(HttpClient.class);
+		when(a.get(anyString())).thenReturn(HttpResponseStub.valueOf(200, "{}"));
+		when(b.get(anyString())).thenReturn(HttpResponseStub.valueOf(200, "{}"));
+	}
+	
+	@After
+	public void tearDown() {
+		if (lb != null) {
+			lb.shutdown();
+		}
+	}
+	
+	@Test
+	public void requests_should_be_spread_over_nodes() {
+		lb = new LoadBalancingHttpClient.Builder().node("a", a).node("b", b).build();
+		for (int i = 0; i < 100; i++) {
+			lb.get("/db/doc");
+		}
+		assertTrue(lb.getNodes().get(0).getRequestCount() > 0);
+		assertTrue(lb.getNodes().get(1).getRequestCount() > 0);
+		assertEquals(100, lb.getNodes().get(0).getRequestCount() + lb.getNodes().get(1).getRequestCount());
+	}
+	
+	@Test
+	public void failed_read_should_be_retried_on_other_node() {
+		when(a.get(anyString())).thenThrow(new RuntimeException(new SocketTimeoutException()));
+		lb = new LoadBalancingHttpClient.Builder().node("a", a).node("b", b).failureThreshold(100).build();
+		for (int i = 0; i < 20; i++) {
+			assertEquals(200, lb.get("/db/doc").getCode());
+		}
+		verify(b, times(20)).get("/db/doc");
+	}
+	
+	@Test
+	public void server_error_on_read_should_be_retried_on_other_node() {
+		when(a.get(anyString())).thenReturn(HttpResponseStub.valueOf(503, ""));
+		lb = new LoadBalancingHttpClient.Builder().node("a", a).node("b", b).failureThreshold(100).build();
+		for (int i = 0; i < 20; i++) {
+			assertEquals(200, lb.get("/db/doc").getCode());
+		}
+	}
+	
+	@Test
+	public void failing_node_should_be_ejected() {
+		when(a.get(anyString())).thenThrow(new RuntimeException(new ConnectException()));
+		lb = new LoadBalancingHttpClient.Builder().node("a", a).node("b", b).failureThreshold(2).probeIntervalMillis(60000).build();
+		for (int i = 0; i < 50; i++) {
+			lb.get("/db/doc");
+		}
+		LoadBalancingHttpClient.Node nodeA = lb.getNodes().get(0);
+		assertFalse(nodeA.isHealthy());
+		assertEquals(2, nodeA.getRequestCount());
+		assertEquals(1, nodeA.getEjectionCount());
+	}
+	
+	@Test
+	public void slow_node_should_be_ejected() {
+		when(a.get(anyString())).thenAnswer(new Answer<HttpResponse>() {
+			@Override
+			public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+				Thread.sleep(20);
+				return HttpResponseStub.valueOf(200, "{}");
+			}
+		});
+		lb = new LoadBalancingHttpClient.Builder().node("a", a).node("b", b).failureThreshold(1).slowResponseMillis(5).build();
+		for (int i = 0; i < 20; i++) {
+			lb.get("/db/doc");
+		}
+		assertFalse(lb.getNodes().get(0).isHealthy());
+		assertTrue(lb.getNodes().get(1).isHealthy());
+	}
+	
+	@Test
+	public void ejected_node_should_be_readmitted_when_probe_succeeds() throws Exception {
+		when(a.get(anyString())).thenThrow(new RuntimeException(new ConnectException()));
+		when(a.head("/")).thenReturn(HttpResponseStub.valueOf(200, ""));
+		lb = new LoadBalancingHttpClient.Builder().node("a", a).node("b", b).failureThreshold(1).probeIntervalMillis(10).build();
+		while (lb.getNodes().get(0).isHealthy()) {
+			lb.get("/db/doc");
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!lb.getNodes().get(0).isHealthy() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(lb.getNodes().get(0).isHealthy());
+	}
+	
+	@Test
+	public void write_should_not_be_retried_after_it_may_have_been_sent() {
+		when(a.post(anyString(), anyString())).thenThrow(new RuntimeException(new SocketTimeoutException()));
+		when(b.post(anyString(), anyString())).thenThrow(new RuntimeException(new SocketTimeoutException()));
+		lb = new LoadBalancingHttpClient.Builder().node("a", a).node("b", b).build();
+		try {
+			lb.post("/db", "{}");
+			fail("failure should be thrown");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		assertEquals(1, lb.getNodes().get(0).getRequestCount() + lb.getNodes().get(1).getRequestCount());
+	}
+	
+	@Test
+	public void write_should_be_retried_when_connection_failed() {
+		when(a.post(anyString(), anyString())).thenThrow(new RuntimeException(new ConnectException()));
+		when(b.post(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(201, "{}"));
+		lb = new LoadBalancingHttpClient.Builder().node("a", a).node("b", b).failureThreshold(100).build();
+		for (int i = 0; i < 20; i++) {
+			assertEquals(201, lb.post("/db", "{}").getCode());
+		}
+	}
+	
+	@Test
+	public void writes_should_follow_routing_policy() {
+		when(a.put(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(201, "{}"));
+		lb = new LoadBalancingHttpClient.Builder().node("a", a).node("b", b)
+			.routingPolicy(LoadBalancingHttpClient.primaryForWrites("a")).build();
+		for (int i = 0; i < 20; i++) {
+			lb.put("/db/doc", "{}");
+			lb.get("/db/doc");
+		}
+		verify(a, times(20)).put("/db/doc", "{}");
+		verify(b, never()).put(anyString(), anyString());
+		verify(b, atLeastOnce()).get("/db/doc");
+	}
+	
+	@Test
+	public void all_docs_and_view_posts_should_be_routed_and_retried_as_reads() {
+		when(a.post(anyString(), anyString())).thenThrow(new RuntimeException(new SocketTimeoutException()));
+		when(b.post(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(200, "{}"));
+		lb = new LoadBalancingHttpClient.Builder().node("a", a).node("b", b).failureThreshold(100)
+			.routingPolicy(LoadBalancingHttpClient.primaryForWrites("a")).build();
+		for (int i = 0; i < 20; i++) {
+			assertEquals(200, lb.post("/db/_all_docs?include_docs=true", "{\"keys\":[\"doc\"]}").getCode());
+			assertEquals(200, lb.post("/db/_design/d/_view/v", "{\"keys\":[\"doc\"]}").getCode());
+		}
+		verify(b, times(20)).post("/db/_all_docs?include_docs=true", "{\"keys\":[\"doc\"]}");
+		verify(b, times(20)).post("/db/_design/d/_view/v", "{\"keys\":[\"doc\"]}");
+	}
+	
+	@Test
+	public void reads_should_fail_over_between_local_servers() throws Exception {
+		StubCouchDbServer first = new StubCouchDbServer();
+		StubCouchDbServer second = new StubCouchDbServer();
+		first.start();
+		second.start();
+		try {
+			for (StubCouchDbServer s : new StubCouchDbServer[] {first, second}) {
+				s.createDatabase("lb_db").put("doc", new ObjectMapper().readTree("{\"name\":\"nisse\"}"));
+			}
+			lb = new LoadBalancingHttpClient.Builder()
+				.node("127.0.0.1", first.getPort())
+				.node("127.0.0.1", second.getPort())
+				.failureThreshold(1)
+				.probeIntervalMillis(60000)
+				.build();
+			CouchDbConnector db = new StdCouchDbConnector("lb_db", new StdCouchDbInstance(lb));
+			first.stop();
+			for (int i = 0; i < 10; i++) {
+				assertTrue(db.contains("doc"));
+			}
+			assertFalse(lb.getNodes().get(0).isHealthy());
+			assertEquals(10, second.getRequestCount());
+		} finally {
+			first.stop();
+			second.stop();
+		}
+	}
+}
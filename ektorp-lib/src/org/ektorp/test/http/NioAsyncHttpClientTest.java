@@ -0,0 +1,269 @@
+package org.ektorp.test.http;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.io.*;
+import org.codehaus.jackson.map.*;
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.impl.*;
+import org.ektorp.support.*;
+import org.ektorp.test.server.*;
+import org.junit.*;
+
+public class NioAsyncHttpClientTest {
+	
+	StubCouchDbServer server;
+	NioAsyncHttpClient client;
+	
+	@Before
+	public void setUp() throws Exception {
+		server = new StubCouchDbServer();
+		server.start();
+		server.createDatabase("nio_db").put("doc", new ObjectMapper().readTree("{\"name\":\"nisse\"}"));
+	}
+	
+	@After
+	public void tearDown() {
+		if (client != null) {
+			client.shutdown();
+		}
+		server.stop();
+	}
+	
+	private NioAsyncHttpClient.Builder builder(int port) {
+		return new NioAsyncHttpClient.Builder().host("127.0.0.1").port(port);
+	}
+	
+	@Test
+	public void documents_should_be_read_and_written() throws Exception {
+		client = builder(server.getPort()).build();
+		StdAsyncCouchDbConnector db = new StdAsyncCouchDbConnector("nio_db", client);
+		
+		NioDoc d = db.get(NioDoc.class, "doc").get(5, TimeUnit.SECONDS);
+		assertEquals("nisse", d.getName());
+		
+		d.setName("kalle");
+		db.update(d).get(5, TimeUnit.SECONDS);
+		assertTrue(d.getRevision().startsWith("2-"));
+		
+		NioDoc created = new NioDoc();
+		created.setId("new_doc");
+		created.setName("sture");
+		db.create(created).get(5, TimeUnit.SECONDS);
+		assertEquals("sture", db.get(NioDoc.class, "new_doc").get(5, TimeUnit.SECONDS).getName());
+		
+		db.delete(created).get(5, TimeUnit.SECONDS);
+		assertFalse(client.head("/nio_db/new_doc", new StdResponseHandler<Boolean>() {
+			@Override
+			public Boolean success(HttpResponse hr) {
+				return Boolean.TRUE;
+			}
+			
+			@Override
+			public Boolean error(HttpResponse hr) {
+				return Boolean.FALSE;
+			}
+		}).get(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void missing_document_should_fail_with_DocumentNotFoundException() throws Exception {
+		client = builder(server.getPort()).build();
+		StdAsyncCouchDbConnector db = new StdAsyncCouchDbConnector("nio_db", client);
+		try {
+			db.get(NioDoc.class, "missing").get(5, TimeUnit.SECONDS);
+			fail("ExecutionException expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof DocumentNotFoundException);
+		}
+	}
+	
+	@Test
+	public void one_thread_should_keep_a_hundred_requests_in_flight() throws Exception {
+		int requests = 300;
+		server.setLatency(200, 200);
+		// more connections at once would overflow the stub server's accept backlog
+		client = builder(server.getPort()).maxConnections(100).build();
+		StdAsyncCouchDbConnector db = new StdAsyncCouchDbConnector("nio_db", client);
+		
+		long started = System.currentTimeMillis();
+		List<Future<NioDoc>> results = new ArrayList<Future<NioDoc>>();
+		for (int i = 0; i < requests; i++) {
+			results.add(db.get(NioDoc.class, "doc"));
+		}
+		for (Future<NioDoc> f : results) {
+			assertEquals("nisse", f.get(10, TimeUnit.SECONDS).getName());
+		}
+		long elapsed = System.currentTimeMillis() - started;
+		// sent one after another the requests would take 60 s
+		assertTrue("took " + elapsed + " ms", elapsed < 5000);
+		assertEquals(1, countThreads("ektorp-async-io"));
+	}
+	
+	@Test
+	public void requests_beyond_maxConnections_should_wait_for_a_connection() throws Exception {
+		client = builder(server.getPort()).maxConnections(2).build();
+		StdAsyncCouchDbConnector db = new StdAsyncCouchDbConnector("nio_db", client);
+		List<Future<NioDoc>> results = new ArrayList<Future<NioDoc>>();
+		for (int i = 0; i < 50; i++) {
+			results.add(db.get(NioDoc.class, "doc"));
+		}
+		for (Future<NioDoc> f : results) {
+			assertEquals("nisse", f.get(5, TimeUnit.SECONDS).getName());
+		}
+	}
+	
+	@Test
+	public void chunked_response_should_be_decoded() throws Exception {
+		RawServer raw = new RawServer("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nETag: \"1-a\"\r\n\r\n" +
+				"5\r\n{\"a\":\r\n3;ext=1\r\n\"b\"\r\n1\r\n}\r\n0\r\nX-Trailer: t\r\n\r\n");
+		try {
+			client = builder(raw.getPort()).build();
+			HttpResponse hr = client.get("/db/doc", new StdResponseHandler<HttpResponse>() {
+				@Override
+				public HttpResponse success(HttpResponse hr) {
+					return hr;
+				}
+			}).get(5, TimeUnit.SECONDS);
+			assertEquals("{\"a\":\"b\"}", IOUtils.toString(hr.getContent(), "UTF-8"));
+			assertEquals("\"1-a\"", hr.getETag());
+		} finally {
+			raw.close();
+		}
+	}
+	
+	@Test
+	public void response_delimited_by_close_should_be_read() throws Exception {
+		RawServer raw = new RawServer("HTTP/1.0 200 OK\r\nContent-Type: application/json\r\n\r\n{\"a\":1}");
+		try {
+			client = builder(raw.getPort()).build();
+			String body = client.get("/db/doc", new StdResponseHandler<String>() {
+				@Override
+				public String success(HttpResponse hr) throws Exception {
+					return IOUtils.toString(hr.getContent(), "UTF-8");
+				}
+			}).get(5, TimeUnit.SECONDS);
+			assertEquals("{\"a\":1}", body);
+		} finally {
+			raw.close();
+		}
+	}
+	
+	@Test
+	public void refused_connection_should_fail_the_future() throws Exception {
+		ServerSocket s = new ServerSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+		client = builder(port).build();
+		try {
+			client.get("/db/doc", new StdResponseHandler<Void>()).get(5, TimeUnit.SECONDS);
+			fail("ExecutionException expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause().getCause() instanceof ConnectException);
+		}
+	}
+	
+	@Test
+	public void silent_server_should_time_out() throws Exception {
+		ServerSocket s = new ServerSocket(0);
+		try {
+			client = builder(s.getLocalPort()).socketTimeout(200).build();
+			client.get("/db/doc", new StdResponseHandler<Void>()).get(5, TimeUnit.SECONDS);
+			fail("ExecutionException expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause().getCause() instanceof SocketTimeoutException);
+		} finally {
+			s.close();
+		}
+	}
+	
+	@Test(expected = RejectedExecutionException.class)
+	public void requests_after_shutdown_should_be_rejected() {
+		client = builder(server.getPort()).build();
+		client.shutdown();
+		client.get("/nio_db/doc", new StdResponseHandler<Void>());
+	}
+	
+	private static int countThreads(String prefix) {
+		int n = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().startsWith(prefix) && t.isAlive()) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Answers every connection with the same bytes and closes it.
+	 */
+	private static class RawServer implements Runnable {
+		
+		private final ServerSocket socket;
+		private final byte[] response;
+		
+		RawServer(String response) throws IOException {
+			this.socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+			this.response = response.getBytes("UTF-8");
+			Thread t = new Thread(this, "raw-server");
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		int getPort() {
+			return socket.getLocalPort();
+		}
+		
+		@Override
+		public void run() {
+			while (!socket.isClosed()) {
+				try {
+					Socket s = socket.accept();
+					try {
+						InputStream in = s.getInputStream();
+						// read the request head
+						int matched = 0;
+						int b;
+						while (matched < 4 && (b = in.read()) != -1) {
+							matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+						}
+						OutputStream out = s.getOutputStream();
+						// written in small pieces so that the client sees the response split up
+						for (int i = 0; i < response.length; i += 7) {
+							out.write(response, i, Math.min(7, response.length - i));
+							out.flush();
+						}
+					} finally {
+						s.close();
+					}
+				} catch (IOException e) {
+					return;
+				}
+			}
+		}
+		
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	public static class NioDoc extends CouchDbDocument {
+		
+		private String name;
+		
+		public String getName() {
+			return name;
+		}
+		
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+}
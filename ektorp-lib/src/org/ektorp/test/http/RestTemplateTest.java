@@ -158,12 +158,12 @@ public class RestTemplateTest {
 		RestTemplate template = new RestTemplate(client);
 		HttpResponse rsp = mock(HttpResponse.class);
 		
-		when(client.put(anyString(), any(InputStream.class), anyString(), anyInt())).thenReturn(rsp);
+		when(client.put(anyString(), any(InputStream.class), anyString(), anyLong())).thenReturn(rsp);
 		when(rsp.isSuccessful()).thenReturn(Boolean.TRUE);
 		
 		template.put("/some/path", IOUtils.toInputStream("content"), "text/html", 12);
 		
-		verify(client).put(eq("/some/path"), any(InputStream.class), eq("text/html"), eq(12));
+		verify(client).put(eq("/some/path"), any(InputStream.class), eq("text/html"), eq(12L));
 		verify(rsp).releaseConnection();
 	}
 	
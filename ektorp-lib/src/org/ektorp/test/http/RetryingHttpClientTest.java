@@ -0,0 +1,134 @@
+package org.ektorp.test.http;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.net.*;
+
+import org.ektorp.http.*;
+import org.ektorp.test.impl.*;
+import org.junit.*;
+
+public class RetryingHttpClientTest {
+	
+	HttpClient client;
+	RetryPolicy noBackoff = new RetryPolicy.Builder().maxAttempts(3).initialBackoffMillis(0).build();
+	
+	@Before
+	public void setUp() {
+		client = mock(HttpClient.class);
+	}
+	
+	@Test
+	public void transient_read_failure_should_be_retried() {
+		when(client.get(anyString()))
+			.thenThrow(new RuntimeException(new SocketTimeoutException()))
+			.thenReturn(HttpResponseStub.valueOf(503, ""))
+			.thenReturn(HttpResponseStub.valueOf(200, "{}"));
+		RetryingHttpClient rc = new RetryingHttpClient.Builder().client(client).defaultPolicy(noBackoff).build();
+		
+		assertEquals(200, rc.get("/db/doc").getCode());
+		verify(client, times(3)).get("/db/doc");
+		assertEquals(1, rc.getMetrics().getRequests());
+		assertEquals(2, rc.getMetrics().getRetries());
+		assertEquals(1, rc.getMetrics().getRecovered());
+	}
+	
+	@Test
+	public void last_response_should_be_returned_when_attempts_are_used_up() {
+		when(client.head(anyString())).thenReturn(HttpResponseStub.valueOf(503, ""));
+		RetryingHttpClient rc = new RetryingHttpClient.Builder().client(client).defaultPolicy(noBackoff).build();
+		
+		assertEquals(503, rc.head("/db/doc").getCode());
+		verify(client, times(3)).head("/db/doc");
+		assertEquals(1, rc.getMetrics().getExhausted());
+	}
+	
+	@Test
+	public void client_errors_should_not_be_retried() {
+		when(client.get(anyString())).thenReturn(HttpResponseStub.valueOf(404, ""));
+		RetryingHttpClient rc = new RetryingHttpClient.Builder().client(client).defaultPolicy(noBackoff).build();
+		
+		assertEquals(404, rc.get("/db/doc").getCode());
+		verify(client, times(1)).get("/db/doc");
+	}
+	
+	@Test
+	public void post_should_only_be_retried_when_connection_failed() {
+		when(client.post(anyString(), anyString()))
+			.thenThrow(new RuntimeException(new ConnectException()))
+			.thenThrow(new RuntimeException(new SocketTimeoutException()));
+		RetryingHttpClient rc = new RetryingHttpClient.Builder().client(client).defaultPolicy(noBackoff).build();
+		try {
+			rc.post("/db", "{}");
+			fail("failure should be thrown");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof SocketTimeoutException);
+		}
+		verify(client, times(2)).post("/db", "{}");
+	}
+	
+	@Test
+	public void put_with_revision_should_be_retried() {
+		when(client.put(anyString(), anyString()))
+			.thenThrow(new RuntimeException(new SocketTimeoutException()))
+			.thenReturn(HttpResponseStub.valueOf(201, "{}"));
+		when(client.delete(anyString())).thenReturn(HttpResponseStub.valueOf(503, ""));
+		RetryingHttpClient rc = new RetryingHttpClient.Builder().client(client).defaultPolicy(noBackoff).build();
+		
+		assertEquals(201, rc.put("/db/doc", "{\"_id\":\"doc\",\"_rev\":\"1-abc\"}").getCode());
+		assertEquals(503, rc.delete("/db/doc?rev=1-abc").getCode());
+		assertEquals(503, rc.delete("/db").getCode());
+		verify(client, times(2)).put(anyString(), anyString());
+		verify(client, times(3)).delete("/db/doc?rev=1-abc");
+		verify(client, times(1)).delete("/db");
+	}
+	
+	@Test
+	public void put_without_revision_should_not_be_retried() {
+		when(client.put(anyString(), anyString())).thenThrow(new RuntimeException(new SocketTimeoutException()));
+		RetryingHttpClient rc = new RetryingHttpClient.Builder().client(client).defaultPolicy(noBackoff).build();
+		try {
+			rc.put("/db/doc", "{\"_id\":\"doc\"}");
+			fail("failure should be thrown");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		verify(client, times(1)).put(anyString(), anyString());
+	}
+	
+	@Test
+	public void retries_should_be_limited_by_budget() {
+		when(client.get(anyString())).thenReturn(HttpResponseStub.valueOf(503, ""));
+		RetryingHttpClient rc = new RetryingHttpClient.Builder().client(client).defaultPolicy(noBackoff)
+			.budget(new RetryBudget(0, 3)).build();
+		for (int i = 0; i < 5; i++) {
+			rc.get("/db/doc");
+		}
+		assertEquals(3, rc.getMetrics().getRetries());
+		assertEquals(4, rc.getMetrics().getBudgetDenied());
+		verify(client, times(8)).get("/db/doc");
+	}
+	
+	@Test
+	public void policy_should_be_chosen_per_method() {
+		when(client.get(anyString())).thenReturn(HttpResponseStub.valueOf(503, ""));
+		when(client.head(anyString())).thenReturn(HttpResponseStub.valueOf(503, ""));
+		RetryingHttpClient rc = new RetryingHttpClient.Builder().client(client).defaultPolicy(noBackoff)
+			.policy("HEAD", RetryPolicy.NO_RETRIES).build();
+		rc.get("/db/doc");
+		rc.head("/db/doc");
+		verify(client, times(3)).get("/db/doc");
+		verify(client, times(1)).head("/db/doc");
+	}
+	
+	@Test
+	public void backoff_should_be_bounded() {
+		RetryPolicy p = new RetryPolicy.Builder().initialBackoffMillis(100).maxBackoffMillis(300).build();
+		for (int i = 0; i < 100; i++) {
+			assertTrue(p.backoffMillis(1) <= 100);
+			assertTrue(p.backoffMillis(10) <= 300);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package org.ektorp.test.http;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.*;
+import java.util.zip.*;
+
+import org.apache.commons.io.*;
+import org.apache.http.*;
+import org.apache.http.client.methods.*;
+import org.apache.http.entity.*;
+import org.apache.http.message.*;
+import org.ektorp.http.*;
+import org.ektorp.http.HttpResponse;
+import org.junit.*;
+import org.mockito.*;
+
+public class StdHttpClientTest {
+
+	org.apache.http.client.HttpClient apacheClient;
+	
+	@Before
+	public void setUp() throws Exception {
+		apacheClient = mock(org.apache.http.client.HttpClient.class);
+		when(apacheClient.execute(any(HttpUriRequest.class))).thenReturn(response(new StringEntity("{\"ok\":true}")));
+	}
+	
+	@Test
+	public void request_above_threshold_should_be_gzipped() throws Exception {
+		StdHttpClient client = new StdHttpClient(apacheClient, false, 10);
+		String json = "{\"attributeMap\":{\"a\":\"aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa\"}}";
+		
+		client.put("/db/doc", json);
+		
+		HttpEntity sent = sentEntity();
+		assertEquals("gzip", sent.getContentEncoding().getValue());
+		assertEquals(json, IOUtils.toString(new GZIPInputStream(sent.getContent()), "UTF-8"));
+		CompressionMetrics m = client.getCompressionMetrics();
+		assertEquals(json.length(), m.getUncompressedBytesSent());
+		assertEquals(sent.getContentLength(), m.getBytesSent());
+		assertTrue(m.getBytesSent() < m.getUncompressedBytesSent());
+		assertEquals(1, m.getCompressedRequests());
+	}
+	
+	@Test
+	public void request_below_threshold_should_not_be_gzipped() throws Exception {
+		StdHttpClient client = new StdHttpClient(apacheClient, false, 1000);
+		
+		client.put("/db/doc", "{\"a\":1}");
+		
+		HttpEntity sent = sentEntity();
+		assertNull(sent.getContentEncoding());
+		assertEquals("{\"a\":1}", IOUtils.toString(sent.getContent()));
+		assertEquals(0, client.getCompressionMetrics().getCompressedRequests());
+	}
+	
+	@Test
+	public void content_writer_should_be_sent_chunked() throws Exception {
+		StdHttpClient client = new StdHttpClient(apacheClient);
+		
+		client.put("/db/doc", new ContentWriter() {
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				out.write("{\"a\":1}".getBytes("UTF-8"));
+			}
+		});
+		
+		HttpEntity sent = sentEntity();
+		assertTrue(sent.isChunked());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		sent.writeTo(out);
+		assertEquals("{\"a\":1}", out.toString("UTF-8"));
+	}
+	
+	@Test
+	public void content_writer_should_be_gzipped_when_compression_is_enabled() throws Exception {
+		StdHttpClient client = new StdHttpClient(apacheClient, false, 20);
+		final String json = "{\"docs\":[{\"_id\":\"a\"},{\"_id\":\"b\"}]}";
+		
+		client.post("/db/_bulk_docs", new ContentWriter() {
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				out.write(json.getBytes("UTF-8"));
+				out.close();
+			}
+		});
+		
+		HttpEntity sent = sentEntity();
+		assertEquals("gzip", sent.getContentEncoding().getValue());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		sent.writeTo(out);
+		assertEquals(json, IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())), "UTF-8"));
+		assertEquals(out.size(), client.getCompressionMetrics().getBytesSent());
+		assertEquals(json.length(), client.getCompressionMetrics().getUncompressedBytesSent());
+	}
+	
+	@Test
+	public void content_writer_below_threshold_should_not_be_gzipped() throws Exception {
+		StdHttpClient client = new StdHttpClient(apacheClient, false, 20);
+		
+		client.post("/db/_bulk_docs", new ContentWriter() {
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				out.write("{\"docs\":[]}".getBytes("UTF-8"));
+				out.close();
+			}
+		});
+		
+		HttpEntity sent = sentEntity();
+		assertNull(sent.getContentEncoding());
+		assertEquals("{\"docs\":[]}", IOUtils.toString(sent.getContent()));
+		assertEquals(0, client.getCompressionMetrics().getCompressedRequests());
+	}
+	
+	@Test
+	public void gzipped_response_should_be_decompressed_while_read() throws Exception {
+		String json = "{\"_id\":\"doc\",\"name\":\"nnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnnn\"}";
+		ByteArrayEntity e = new ByteArrayEntity(gzip(json));
+		e.setContentEncoding("gzip");
+		when(apacheClient.execute(any(HttpUriRequest.class))).thenReturn(response(e));
+		StdHttpClient client = new StdHttpClient(apacheClient, true, -1);
+		
+		HttpResponse rsp = client.get("/db/doc");
+		assertEquals(json, IOUtils.toString(rsp.getContent(), "UTF-8"));
+		rsp.releaseConnection();
+		
+		ArgumentCaptor<HttpUriRequest> req = ArgumentCaptor.forClass(HttpUriRequest.class);
+		verify(apacheClient).execute(req.capture());
+		assertEquals("gzip", req.getValue().getFirstHeader("Accept-Encoding").getValue());
+		CompressionMetrics m = client.getCompressionMetrics();
+		assertEquals(1, m.getCompressedResponses());
+		assertEquals(json.length(), m.getUncompressedBytesReceived());
+		assertEquals(e.getContentLength(), m.getBytesReceived());
+	}
+	
+	@Test
+	public void compression_should_be_disabled_by_default() throws Exception {
+		StdHttpClient client = new StdHttpClient(apacheClient);
+		client.get("/db/doc").releaseConnection();
+		
+		ArgumentCaptor<HttpUriRequest> req = ArgumentCaptor.forClass(HttpUriRequest.class);
+		verify(apacheClient).execute(req.capture());
+		assertNull(req.getValue().getFirstHeader("Accept-Encoding"));
+		assertEquals(0, client.getCompressionMetrics().getBytesReceived());
+	}
+	
+	private HttpEntity sentEntity() throws Exception {
+		ArgumentCaptor<HttpUriRequest> req = ArgumentCaptor.forClass(HttpUriRequest.class);
+		verify(apacheClient).execute(req.capture());
+		return ((HttpEntityEnclosingRequest) req.getValue()).getEntity();
+	}
+	
+	private org.apache.http.HttpResponse response(HttpEntity e) {
+		BasicHttpResponse rsp = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+		rsp.setEntity(e);
+		return rsp;
+	}
+	
+	private byte[] gzip(String s) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(s.getBytes("UTF-8"));
+		out.close();
+		return bytes.toByteArray();
+	}
+}
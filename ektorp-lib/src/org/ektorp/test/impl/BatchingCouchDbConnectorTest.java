@@ -0,0 +1,188 @@
+package org.ektorp.test.impl;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ektorp.*;
+import org.ektorp.impl.*;
+import org.ektorp.support.*;
+import org.junit.*;
+import org.mockito.invocation.*;
+import org.mockito.stubbing.*;
+
+public class BatchingCouchDbConnectorTest {
+
+	CouchDbConnector db;
+	BatchingCouchDbConnector batching;
+	List<List<Object>> batches = Collections.synchronizedList(new ArrayList<List<Object>>());
+	
+	@Before
+	public void setUp() {
+		db = mock(CouchDbConnector.class);
+		when(db.executeBulk(anyCollection())).thenAnswer(new Answer<List<DocumentOperationResult>>() {
+			@Override
+			public List<DocumentOperationResult> answer(InvocationOnMock invocation) throws Throwable {
+				Collection<?> docs = (Collection<?>) invocation.getArguments()[0];
+				batches.add(new ArrayList<Object>(docs));
+				List<DocumentOperationResult> result = new ArrayList<DocumentOperationResult>();
+				for (Object o : docs) {
+					TestDoc d = (TestDoc) o;
+					if ("conflict".equals(d.getId())) {
+						result.add(new DocumentOperationResult(d.getId(), null, "conflict", "Document update conflict."));
+					} else {
+						result.add(new DocumentOperationResult(d.getId() != null ? d.getId() : "generated", "2-new", null, null));
+					}
+				}
+				return result;
+			}
+		});
+	}
+	
+	@After
+	public void tearDown() {
+		batching.shutdown(1000);
+	}
+	
+	@Test
+	public void pending_updates_to_same_id_should_be_coalesced() throws Exception {
+		batching = new BatchingCouchDbConnector(db, 10, 10000, 100);
+		TestDoc first = doc("some_id", "1-a");
+		TestDoc second = doc("some_id", "1-a");
+		
+		Future<DocumentOperationResult> f1 = batching.queueUpdate(first);
+		Future<DocumentOperationResult> f2 = batching.queueUpdate(second);
+		assertEquals(1, batching.getPendingCount());
+		assertTrue(batching.shutdown(5000));
+		
+		assertEquals(1, batches.size());
+		assertEquals(1, batches.get(0).size());
+		assertSame(second, batches.get(0).get(0));
+		assertTrue(f1.get().isSuperseded());
+		assertEquals("2-new", f2.get().getRevision());
+		assertEquals("1-a", first.getRevision());
+		assertEquals("2-new", second.getRevision());
+	}
+	
+	@Test(expected = UpdateConflictException.class)
+	public void superseded_synchronous_update_should_conflict() throws Exception {
+		batching = new BatchingCouchDbConnector(db, 10, 10000, 100);
+		final TestDoc first = doc("some_id", "1-a");
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (batching.getPendingCount() == 0) {
+					Thread.yield();
+				}
+				batching.queueUpdate(doc("some_id", "1-a"));
+				batching.shutdown(5000);
+			}
+		});
+		t.start();
+		batching.update(first);
+	}
+	
+	@Test
+	public void error_in_batch_should_fail_futures_and_keep_flushing() throws Exception {
+		reset(db);
+		when(db.executeBulk(anyCollection()))
+			.thenThrow(new OutOfMemoryError("test"))
+			.thenReturn(Arrays.asList(new DocumentOperationResult("other", "2-new", null, null)));
+		batching = new BatchingCouchDbConnector(db, 100, 10, 100);
+		try {
+			batching.queueUpdate(doc("some_id", "1-a")).get(5, TimeUnit.SECONDS);
+			fail("expected ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof OutOfMemoryError);
+		}
+		assertEquals("2-new", batching.queueUpdate(doc("other", "1-a")).get(5, TimeUnit.SECONDS).getRevision());
+	}
+	
+	@Test
+	public void shutdown_without_timeout_should_not_wait() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		reset(db);
+		when(db.executeBulk(anyCollection())).thenAnswer(new Answer<List<DocumentOperationResult>>() {
+			@Override
+			public List<DocumentOperationResult> answer(InvocationOnMock invocation) throws Throwable {
+				release.await();
+				return Collections.emptyList();
+			}
+		});
+		batching = new BatchingCouchDbConnector(db, 1, 10, 100);
+		batching.queueUpdate(doc("a", "1-a"));
+		Future<DocumentOperationResult> f = batching.queueUpdate(doc("b", "1-a"));
+		long start = System.currentTimeMillis();
+		assertFalse(batching.shutdown(0));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		release.countDown();
+		try {
+			f.get(5, TimeUnit.SECONDS);
+			fail("expected ExecutionException");
+		} catch (ExecutionException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void full_batch_should_be_flushed_without_waiting_for_latency() throws Exception {
+		batching = new BatchingCouchDbConnector(db, 2, 10000, 100);
+		TestDoc created = new TestDoc();
+		
+		Future<DocumentOperationResult> f1 = batching.queueCreate(created);
+		Future<DocumentOperationResult> f2 = batching.queueUpdate(doc("other", "1-a"));
+		
+		assertEquals("generated", f1.get(5, TimeUnit.SECONDS).getId());
+		assertNotNull(f2.get(5, TimeUnit.SECONDS));
+		assertEquals("generated", created.getId());
+		assertEquals("2-new", created.getRevision());
+	}
+	
+	@Test
+	public void pending_documents_should_be_flushed_after_max_latency() throws Exception {
+		batching = new BatchingCouchDbConnector(db, 100, 10, 100);
+		TestDoc d = doc("some_id", "1-a");
+		batching.update(d);
+		assertEquals("2-new", d.getRevision());
+	}
+	
+	@Test(expected = UpdateConflictException.class)
+	public void conflict_should_fail_synchronous_update() {
+		batching = new BatchingCouchDbConnector(db, 100, 10, 100);
+		batching.update(doc("conflict", "1-a"));
+	}
+	
+	@Test
+	public void failed_batch_should_fail_futures() throws Exception {
+		reset(db);
+		when(db.executeBulk(anyCollection())).thenThrow(new DbAccessException("connection refused"));
+		batching = new BatchingCouchDbConnector(db, 100, 10, 100);
+		try {
+			batching.queueUpdate(doc("some_id", "1-a")).get(5, TimeUnit.SECONDS);
+			fail("expected ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof DbAccessException);
+		}
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void writes_should_be_rejected_after_shutdown() {
+		batching = new BatchingCouchDbConnector(db);
+		batching.shutdown(1000);
+		batching.queueUpdate(doc("some_id", "1-a"));
+	}
+	
+	private TestDoc doc(String id, String rev) {
+		TestDoc d = new TestDoc();
+		d.setId(id);
+		d.setRevision(rev);
+		return d;
+	}
+	
+	@SuppressWarnings("serial")
+	static class TestDoc extends CouchDbDocument {
+	}
+}
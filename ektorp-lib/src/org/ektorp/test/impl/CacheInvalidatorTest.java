@@ -0,0 +1,138 @@
+package org.ektorp.test.impl;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.*;
+
+import org.ektorp.*;
+import org.ektorp.impl.*;
+import org.junit.*;
+import org.mockito.*;
+
+public class CacheInvalidatorTest {
+
+	CouchDbConnector db;
+	DocumentCache cache;
+	SequenceStore store;
+	CacheInvalidator invalidator;
+	
+	@Before
+	public void setUp() {
+		db = mock(CouchDbConnector.class);
+		when(db.getDatabaseName()).thenReturn("policies");
+		cache = new DocumentCache(10);
+		store = mock(SequenceStore.class);
+		invalidator = new CacheInvalidator(db, cache, store);
+	}
+	
+	@Test
+	public void changed_documents_should_be_evicted() {
+		cache.put("/policies/doc1", "\"1-a\"", new byte[0]);
+		cache.put("/policies/doc2", "\"1-b\"", new byte[0]);
+		
+		invalidator.onChanges(Arrays.asList(change(7, "doc1")));
+		
+		assertNull(cache.lookup("/policies/doc1"));
+		assertNotNull(cache.lookup("/policies/doc2"));
+		verify(store).store(7);
+	}
+	
+	@Test
+	public void cache_should_be_trusted_while_started() {
+		when(store.load()).thenReturn(42L);
+		cache.put("/policies/doc1", "\"1-a\"", new byte[0]);
+		
+		invalidator.start();
+		assertTrue(cache.isTrusted("/policies/doc1"));
+		assertEquals(0, cache.size());
+		
+		invalidator.stop();
+		assertFalse(cache.isTrusted("/policies/doc1"));
+	}
+	
+	@Test
+	public void other_databases_should_neither_be_cleared_nor_trusted() {
+		when(store.load()).thenReturn(42L);
+		cache.put("/policies/doc1", "\"1-a\"", new byte[0]);
+		cache.put("/claims/doc1", "\"1-a\"", new byte[0]);
+		
+		invalidator.start();
+		
+		assertNull(cache.getTrusted("/policies/doc1"));
+		assertNull(cache.getTrusted("/claims/doc1"));
+		assertFalse(cache.isTrusted("/claims/doc1"));
+		assertNotNull(cache.lookup("/claims/doc1"));
+		assertEquals(1, cache.size());
+	}
+	
+	@Test
+	public void failed_batch_should_untrust_cache() {
+		when(store.load()).thenReturn(42L);
+		doThrow(new IllegalStateException("disk full")).when(store).store(anyLong());
+		invalidator.start();
+		
+		try {
+			invalidator.onChanges(Arrays.asList(change(43, "doc1")));
+			fail("failure should be thrown");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		
+		cache.put("/policies/doc2", "\"1-b\"", new byte[0]);
+		assertFalse(cache.isTrusted("/policies/doc2"));
+		assertNull(cache.getTrusted("/policies/doc2"));
+	}
+	
+	@Test
+	public void document_change_should_dirty_all_views() {
+		long orders = invalidator.getViewGeneration("_design/orders");
+		long policies = invalidator.getViewGeneration("_design/policies");
+		
+		invalidator.onChanges(Arrays.asList(change(1, "doc1")));
+		
+		assertTrue(invalidator.isDirty("_design/orders", orders));
+		assertTrue(invalidator.isDirty("_design/policies", policies));
+	}
+	
+	@Test
+	public void design_doc_change_should_only_dirty_its_own_views() {
+		long orders = invalidator.getViewGeneration("_design/orders");
+		long policies = invalidator.getViewGeneration("_design/policies");
+		
+		invalidator.onChanges(Arrays.asList(change(1, "_design/policies")));
+		
+		assertFalse(invalidator.isDirty("_design/orders", orders));
+		assertTrue(invalidator.isDirty("_design/policies", policies));
+	}
+	
+	@Test
+	public void feed_should_resume_from_stored_sequence() {
+		when(store.load()).thenReturn(42L);
+		
+		invalidator.start();
+		
+		ArgumentCaptor<ChangesCommand> cmd = ArgumentCaptor.forClass(ChangesCommand.class);
+		verify(db).changesFeed(cmd.capture(), same(invalidator));
+		assertEquals(42, cmd.getValue().getSince());
+		assertEquals(ChangesCommand.Feed.CONTINUOUS, cmd.getValue().getFeed());
+		verify(db, never()).changes(any(ChangesCommand.class));
+	}
+	
+	@Test
+	public void feed_should_start_at_latest_change_without_stored_sequence() {
+		when(store.load()).thenReturn(-1L);
+		when(db.changes(any(ChangesCommand.class))).thenReturn(Arrays.asList(change(99, "doc1")));
+		
+		invalidator.start();
+		
+		ArgumentCaptor<ChangesCommand> cmd = ArgumentCaptor.forClass(ChangesCommand.class);
+		verify(db).changesFeed(cmd.capture(), same(invalidator));
+		assertEquals(99, cmd.getValue().getSince());
+	}
+	
+	private DocumentChange change(long seq, String id) {
+		return new DocumentChange(seq, id, "2-x", false, null);
+	}
+}
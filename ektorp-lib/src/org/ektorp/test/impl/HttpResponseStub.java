@@ -8,6 +8,7 @@ public class HttpResponseStub implements HttpResponse {
 
 	int code;
 	String body;
+	String eTag;
 	
 	HttpResponseStub(int code, String body) {
 		this.code = code;
@@ -18,6 +19,12 @@ public class HttpResponseStub implements HttpResponse {
 		return new HttpResponseStub(code, body);
 	}
 	
+	public static HttpResponse valueOf(int code, String body, String eTag) {
+		HttpResponseStub rsp = new HttpResponseStub(code, body);
+		rsp.eTag = eTag;
+		return rsp;
+	}
+	
 	@Override
 	public int getCode() {
 		return code;
@@ -46,11 +53,21 @@ public class HttpResponseStub implements HttpResponse {
 	}
 	
 	@Override
-	public int getContentLength() {
+	public void abort() {
+		
+	}
+	
+	@Override
+	public long getContentLength() {
 		// TODO Auto-generated method stub
 		return 0;
 	}
 	
+	@Override
+	public String getETag() {
+		return eTag;
+	}
+	
 	@Override
 	public String getRequestURI() {
 		return "static/test/path";
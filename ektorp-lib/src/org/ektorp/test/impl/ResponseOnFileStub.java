@@ -55,16 +55,26 @@ public class ResponseOnFileStub implements HttpResponse {
 		IOUtils.closeQuietly(in);
 	}
 	
+	@Override
+	public void abort() {
+		releaseConnection();
+	}
+	
 	public boolean isConnectionReleased() {
 		return connectionReleased;
 	}
 	
 	@Override
-	public int getContentLength() {
+	public long getContentLength() {
 		// TODO Auto-generated method stub
 		return 0;
 	}
 
+	@Override
+	public String getETag() {
+		return null;
+	}
+	
 	@Override
 	public String getRequestURI() {
 		return "static/test/path";
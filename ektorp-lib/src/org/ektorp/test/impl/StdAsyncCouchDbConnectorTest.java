@@ -0,0 +1,90 @@
+package org.ektorp.test.impl;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.impl.*;
+import org.ektorp.support.*;
+import org.junit.*;
+
+public class StdAsyncCouchDbConnectorTest {
+
+	HttpClient httpClient;
+	AsyncHttpClient asyncClient;
+	StdAsyncCouchDbConnector dbCon;
+	
+	@Before
+	public void setUp() throws Exception {
+		httpClient = mock(HttpClient.class);
+		asyncClient = new ExecutorAsyncHttpClient(httpClient, 2);
+		dbCon = new StdAsyncCouchDbConnector("test_db/", asyncClient);
+	}
+	
+	@After
+	public void tearDown() {
+		asyncClient.shutdown();
+	}
+	
+	@Test
+	public void get_should_complete_with_document() throws Exception {
+		when(httpClient.get("/test_db/some_id")).thenReturn(HttpResponseStub.valueOf(200, "{\"name\":\"nisse\",\"_id\":\"some_id\",\"_rev\":\"123D123\"}"));
+		TestDoc doc = dbCon.get(TestDoc.class, "some_id").get();
+		assertEquals("nisse", doc.getName());
+		assertEquals("123D123", doc.getRevision());
+	}
+	
+	@Test
+	public void create_should_write_back_revision() throws Exception {
+		when(httpClient.put(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"1-A\"}"));
+		TestDoc doc = new TestDoc();
+		doc.setId("some_id");
+		dbCon.create(doc).get();
+		assertEquals("1-A", doc.getRevision());
+		verify(httpClient, never()).head(anyString());
+	}
+	
+	@Test
+	public void create_of_existing_doc_should_fail_with_DocumentExistsException() throws Exception {
+		when(httpClient.put(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(409, "{\"error\":\"conflict\"}"));
+		TestDoc doc = new TestDoc();
+		doc.setId("some_id");
+		try {
+			dbCon.create(doc).get();
+			fail("ExecutionException expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof DocumentExistsException);
+		}
+	}
+	
+	@Test
+	public void typed_query_should_include_docs() throws Exception {
+		ViewQuery query = new ViewQuery()
+			.designDocId("_design/testdoc")
+			.viewName("test_view");
+		when(httpClient.get("/test_db/_design/testdoc/_view/test_view?include_docs=true")).thenReturn(HttpResponseStub.valueOf(200, 
+				"{\"total_rows\": 1, \"offset\": 0, \"rows\": [" +
+				"{\"id\": \"doc_id1\", \"key\": \"a\", \"value\": \"doc_id1\", \"doc\": {\"_id\": \"doc_id1\", \"_rev\": \"1-A\", \"name\": \"nisse\"}}]}"));
+		List<TestDoc> result = dbCon.queryView(query, TestDoc.class).get();
+		assertEquals(1, result.size());
+		assertEquals("nisse", result.get(0).getName());
+	}
+	
+	@SuppressWarnings("serial")
+	static class TestDoc extends CouchDbDocument {
+		private String name;
+		
+		public String getName() {
+			return name;
+		}
+		
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+}
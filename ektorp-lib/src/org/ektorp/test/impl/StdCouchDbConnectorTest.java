@@ -8,12 +8,15 @@ import static org.mockito.Mockito.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.commons.io.*;
 import org.codehaus.jackson.*;
 import org.codehaus.jackson.map.*;
 import org.ektorp.*;
 import org.ektorp.http.*;
+import org.ektorp.impl.DocumentCache;
+import org.ektorp.impl.SingleFlight;
 import org.ektorp.impl.StdCouchDbConnector;
 import org.ektorp.impl.StdCouchDbInstance;
 import org.ektorp.support.*;
@@ -21,7 +24,8 @@ import org.ektorp.util.*;
 import org.joda.time.*;
 import org.junit.*;
 import org.mockito.*;
-import org.mockito.internal.verification.*;
+import org.mockito.invocation.*;
+import org.mockito.stubbing.*;
 
 public class StdCouchDbConnectorTest {
 
@@ -43,13 +47,13 @@ public class StdCouchDbConnectorTest {
 	public void testCreate() {
 		td.setId("some_id");
 		setupNegativeContains(td.getId());
-		when(httpClient.put(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
+		when(httpClient.put(anyString(), any(ContentWriter.class))).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
 		dbCon.create(td);
-		ArgumentCaptor<String> ac = ArgumentCaptor.forClass(String.class);
+		ArgumentCaptor<ContentWriter> ac = ArgumentCaptor.forClass(ContentWriter.class);
 		verify(httpClient).put(eq("/test_db/some_id"), ac.capture());
 		assertEquals("some_id", td.getId());
 		assertEquals("123D123", td.getRevision());
-		assertEqualJson("create.json", ac.getValue());
+		assertEqualJson("create.json", written(ac.getValue()));
 	}
 	
 	@Test
@@ -57,16 +61,16 @@ public class StdCouchDbConnectorTest {
 		String escapedId = "http%3A%2F%2Fsome%2Fopenid%3Fgoog";
 		td.setId("http://some/openid?goog");
 		setupNegativeContains(escapedId);
-		when(httpClient.put(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
+		when(httpClient.put(anyString(), any(ContentWriter.class))).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
 		dbCon.create(td);
-		ArgumentCaptor<String> ac = ArgumentCaptor.forClass(String.class);
+		ArgumentCaptor<ContentWriter> ac = ArgumentCaptor.forClass(ContentWriter.class);
 		verify(httpClient).put(eq("/test_db/" + escapedId), ac.capture());
 		assertEquals("http://some/openid?goog", td.getId());
 	}
 	
 	@Test
 	public void testCreateFromJsonNode() throws Exception {
-		when(httpClient.put(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
+		when(httpClient.put(anyString(), any(ContentWriter.class))).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
 		JsonNode root = new ObjectMapper().readValue(getClass().getResourceAsStream("create_from_json_node.json"), JsonNode.class);
 		dbCon.create("some_id", root);
 		String facit = IOUtils.toString(getClass().getResourceAsStream("create_from_json_node.json"), "UTF-8").trim();
@@ -78,29 +82,38 @@ public class StdCouchDbConnectorTest {
 		td.setId("some_id");
 		td.name = "Örjan Åäö";
 		setupNegativeContains(td.getId());
-		when(httpClient.put(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
+		when(httpClient.put(anyString(), any(ContentWriter.class))).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
 		dbCon.create(td);
-		ArgumentCaptor<String> ac = ArgumentCaptor.forClass(String.class);
+		ArgumentCaptor<ContentWriter> ac = ArgumentCaptor.forClass(ContentWriter.class);
 		verify(httpClient).put(eq("/test_db/some_id"), ac.capture());
-		assertEqualJson("charset.json", ac.getValue());
+		assertEqualJson("charset.json", written(ac.getValue()));
 	}
 
 	@Test(expected=DocumentExistsException.class)
 	public void give_docid_already_exists_when_creating_doc_then_exception_should_be_thrown() {
 		td.setId("some_id");
-		setupPositiveContains(td.getId());
+		when(httpClient.put(eq("/test_db/some_id"), any(ContentWriter.class))).thenReturn(HttpResponseStub.valueOf(409, "{\"error\":\"conflict\",\"reason\":\"Document update conflict.\"}"));
 		dbCon.create(td);
 	}
 	
+	@Test
+	public void create_with_id_should_not_check_existence_first() {
+		td.setId("some_id");
+		when(httpClient.put(eq("/test_db/some_id"), any(ContentWriter.class))).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
+		dbCon.create(td);
+		verify(httpClient, never()).head(anyString());
+		assertEquals("123D123", td.getRevision());
+	}
+	
 	@Test
 	public void create_should_post_if_id_is_missing() {		
-		when(httpClient.post(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
+		when(httpClient.post(anyString(), any(ContentWriter.class))).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
 		dbCon.create(td);
-		ArgumentCaptor<String> ac = ArgumentCaptor.forClass(String.class);
+		ArgumentCaptor<ContentWriter> ac = ArgumentCaptor.forClass(ContentWriter.class);
 		verify(httpClient).post(eq(TEST_DB_PATH), ac.capture());
 		assertEquals("some_id", td.getId());
 		assertEquals("123D123", td.getRevision());
-		assertEqualJson("create_with_no_id.json", ac.getValue());
+		assertEqualJson("create_with_no_id.json", written(ac.getValue()));
 	}
 	
 	@Test
@@ -114,10 +127,10 @@ public class StdCouchDbConnectorTest {
 	public void testDeleteCouchDbDocument() {
 		td.setId("some_id");
 		td.setRevision("123D123");
-		setupGetDocResponse();
 		when(httpClient.delete(anyString())).thenReturn(HttpResponseStub.valueOf(200, "{\"ok\":true,\"rev\":\"123D123\"}"));
 		dbCon.delete(td);
 		verify(httpClient).delete("/test_db/some_id?rev=123D123");
+		verify(httpClient, never()).get(anyString());
 	}
 	
 	@Test
@@ -143,6 +156,77 @@ public class StdCouchDbConnectorTest {
 		}
 	}
 
+	@Test
+	public void getAll_should_load_docs_in_one_request() {
+		when(httpClient.post(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(200, 
+				"{\"total_rows\": 3, \"offset\": 0, \"rows\": [" +
+				"{\"id\": \"doc1\", \"key\": \"doc1\", \"value\": {\"rev\": \"1-A\"}, \"doc\": {\"_id\": \"doc1\", \"_rev\": \"1-A\", \"name\": \"nisse\", \"age\": 12}}," +
+				"{\"key\": \"missing\", \"error\": \"not_found\"}," +
+				"{\"id\": \"doc2\", \"key\": \"doc2\", \"value\": {\"rev\": \"2-B\"}, \"doc\": {\"_id\": \"doc2\", \"_rev\": \"2-B\", \"name\": \"kalle\", \"age\": 7}}]}"));
+		List<TestDoc> all = dbCon.getAll(TestDoc.class, Arrays.asList("doc1", "missing", "doc2"));
+		
+		verify(httpClient).post("/test_db/_all_docs?include_docs=true", "{\"keys\":[\"doc1\",\"missing\",\"doc2\"]}");
+		verify(httpClient, never()).get(anyString());
+		assertEquals(2, all.size());
+		assertEquals("doc1", all.get(0).getId());
+		assertEquals("nisse", all.get(0).getName());
+		assertEquals("2-B", all.get(1).getRevision());
+	}
+	
+	@Test
+	public void parallelGet_should_return_docs_in_id_order() {
+		setupGetDocResponse("doc1", "doc2", "doc3");
+		List<TestDoc> docs = dbCon.parallelGet(TestDoc.class, Arrays.asList("doc3", "doc1", "doc2"));
+		assertEquals(3, docs.size());
+		assertEquals(" doc3", docs.get(0).getId());
+		assertEquals(" doc1", docs.get(1).getId());
+		verify(httpClient).get(TEST_DB_PATH + "doc2");
+	}
+	
+	@Test(timeout=5000)
+	public void nested_inParallel_should_not_deadlock() {
+		ExecutorService es = Executors.newFixedThreadPool(1);
+		dbCon.setParallelExecutor(es);
+		final List<Callable<Integer>> inner = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < 2; i++) {
+			final int n = i;
+			inner.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return n;
+				}
+			});
+		}
+		List<Callable<Integer>> outer = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < 2; i++) {
+			outer.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					List<Integer> r = dbCon.inParallel(inner);
+					return r.get(0) + r.get(1);
+				}
+			});
+		}
+		assertEquals(Arrays.asList(1, 1), dbCon.inParallel(outer));
+		es.shutdown();
+	}
+	
+	@Test
+	public void parallelGet_should_work_after_shutdown() {
+		setupGetDocResponse("doc1");
+		dbCon.parallelGet(TestDoc.class, Arrays.asList("doc1"));
+		dbCon.shutdown();
+		assertEquals(1, dbCon.parallelGet(TestDoc.class, Arrays.asList("doc1")).size());
+		dbCon.shutdown();
+	}
+	
+	@Test(expected=DocumentNotFoundException.class)
+	public void parallelGet_should_rethrow_failure() {
+		setupGetDocResponse("doc1");
+		when(httpClient.get(TEST_DB_PATH + "missing")).thenReturn(HttpResponseStub.valueOf(404, ""));
+		dbCon.parallelGet(TestDoc.class, Arrays.asList("doc1", "missing"));
+	}
+	
 	@Test(expected=DocumentNotFoundException.class)
 	public void throw_exception_when_doc_is_missing() {
 		when(httpClient.get(anyString())).thenReturn(HttpResponseStub.valueOf(404, ""));
@@ -153,30 +237,55 @@ public class StdCouchDbConnectorTest {
 	public void update() {
 		td.setId("some_id");
 		td.setRevision("123D123");
-		when(httpClient.put(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
+		when(httpClient.put(anyString(), any(ContentWriter.class))).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
 		dbCon.update(td);
-		ArgumentCaptor<String> ac = ArgumentCaptor.forClass(String.class);
-		verify(httpClient).put(eq("/test_db/some_id"), ac.capture());
+		ArgumentCaptor<ContentWriter> ac = ArgumentCaptor.forClass(ContentWriter.class);
+		verify(httpClient).put(eq("/test_db/some_id?rev=123D123"), ac.capture());
 		assertEquals("some_id", td.getId());
 		assertEquals("123D123", td.getRevision());
-		assertEqualJson("update.json", ac.getValue());
+		assertEqualJson("update.json", written(ac.getValue()));
+	}
+	
+	@Test
+	public void update_should_be_retried_by_retrying_client() {
+		HttpClient flaky = mock(HttpClient.class);
+		when(flaky.put(anyString(), any(ContentWriter.class)))
+			.thenThrow(new RuntimeException(new SocketTimeoutException()))
+			.thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"2-B\"}"));
+		RetryingHttpClient rc = new RetryingHttpClient.Builder().client(flaky)
+			.defaultPolicy(new RetryPolicy.Builder().initialBackoffMillis(0).build()).build();
+		StdCouchDbConnector con = new StdCouchDbConnector("test_db/", new StdCouchDbInstance(rc));
+		td.setId("some_id");
+		td.setRevision("1-A");
+		
+		con.update(td);
+		verify(flaky, times(2)).put(eq("/test_db/some_id?rev=1-A"), any(ContentWriter.class));
+		assertEquals("2-B", td.getRevision());
+		assertEquals(1, rc.getMetrics().getRecovered());
 	}
 	
 	@Test(expected=UpdateConflictException.class)
 	public void throw_exception_when_in_conflict() {
 		td.setId("some_id");
 		td.setRevision("123D123");
-		when(httpClient.put(anyString(), anyString())).thenReturn(ResponseOnFileStub.newInstance(409, "update_conflict.json"));
+		when(httpClient.put(anyString(), any(ContentWriter.class))).thenReturn(ResponseOnFileStub.newInstance(409, "update_conflict.json"));
 		dbCon.update(td);
 	}
 	
 	@Test
 	public void should_create_db_if_missing() {
-		when(httpClient.get("/_all_dbs")).thenReturn(HttpResponseStub.valueOf(200, "[\"abc_bilar/inventory\", \"users\", \"accounts\"]"));
+		when(httpClient.put("/abc_bilar%2Finventory/")).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true}"));
 		
 		dbCon.setDatabaseName("abc_bilar/inventory");
 		dbCon.createDatabaseIfNotExists();
-		verify(httpClient, VerificationModeFactory.times(0)).put(anyString());
+		verify(httpClient).put("/abc_bilar%2Finventory/");
+		verify(httpClient, never()).get("/_all_dbs");
+	}
+	
+	@Test
+	public void existing_db_should_not_fail_createDatabaseIfNotExists() {
+		when(httpClient.put("/test_db/")).thenReturn(HttpResponseStub.valueOf(412, "{\"error\":\"file_exists\"}"));
+		dbCon.createDatabaseIfNotExists();
 	}
 
 	@Test
@@ -184,11 +293,11 @@ public class StdCouchDbConnectorTest {
 		dbCon.setDatabaseName("new_db/");
 		td.setId("some_id");
 		when(httpClient.head("/new_db/" + td.getId())).thenReturn(HttpResponseStub.valueOf(404, ""));
-		when(httpClient.put(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
+		when(httpClient.put(anyString(), any(ContentWriter.class))).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
 		dbCon.create(td);
-		ArgumentCaptor<String> ac = ArgumentCaptor.forClass(String.class);
+		ArgumentCaptor<ContentWriter> ac = ArgumentCaptor.forClass(ContentWriter.class);
 		verify(httpClient).put(eq("/new_db/some_id"), ac.capture());
-		assertEqualJson("set_dbname.json", ac.getValue());
+		assertEqualJson("set_dbname.json", written(ac.getValue()));
 	}
 	
 	@Test
@@ -205,6 +314,21 @@ public class StdCouchDbConnectorTest {
 		assertEquals("doc3", all.get(2));
 	}
 
+	@Test
+	public void getAllDocs_should_load_docs_except_design_docs_in_one_request() {
+		when(httpClient.get("/test_db/_all_docs?include_docs=true")).thenReturn(HttpResponseStub.valueOf(200, 
+				"{\"total_rows\": 3, \"offset\": 0, \"rows\": [" +
+				"{\"id\": \"_design/TestDoc\", \"key\": \"_design/TestDoc\", \"value\": {\"rev\": \"1-C\"}, \"doc\": {\"_id\": \"_design/TestDoc\", \"_rev\": \"1-C\", \"views\": {}}}," +
+				"{\"id\": \"doc1\", \"key\": \"doc1\", \"value\": {\"rev\": \"1-A\"}, \"doc\": {\"_id\": \"doc1\", \"_rev\": \"1-A\", \"name\": \"nisse\", \"age\": 12}}," +
+				"{\"id\": \"doc2\", \"key\": \"doc2\", \"value\": {\"rev\": \"2-B\"}, \"doc\": {\"_id\": \"doc2\", \"_rev\": \"2-B\", \"name\": \"kalle\", \"age\": 7}}]}"));
+		List<TestDoc> all = dbCon.getAllDocs(TestDoc.class);
+		
+		verify(httpClient, times(1)).get(anyString());
+		assertEquals(2, all.size());
+		assertEquals("doc1", all.get(0).getId());
+		assertEquals("kalle", all.get(1).getName());
+	}
+	
 	@Test
 	public void return_all_revisions() {
 		when(httpClient.get("/test_db/some_doc_id?revs_info=true"))
@@ -249,11 +373,11 @@ public class StdCouchDbConnectorTest {
 	
 	@Test
 	public void should_stream_attachmed_content() {
-		when(httpClient.put(anyString(), any(InputStream.class), anyString(), anyInt())).thenReturn(ResponseOnFileStub.newInstance(200, "create_attachment_rsp.json"));
+		when(httpClient.put(anyString(), any(InputStream.class), anyString(), anyLong())).thenReturn(ResponseOnFileStub.newInstance(200, "create_attachment_rsp.json"));
 		
 		dbCon.createAttachment("docid", new Attachment("attachment_id",IOUtils.toInputStream("content"), "text/html", 12));
 		
-		verify(httpClient).put(eq("/test_db/docid/attachment_id"), any(InputStream.class), eq("text/html"), eq(12));
+		verify(httpClient).put(eq("/test_db/docid/attachment_id"), any(InputStream.class), eq("text/html"), eq(12L));
 	}
 	
 	@Test
@@ -276,10 +400,189 @@ public class StdCouchDbConnectorTest {
 		
 	}
 	
+	@Test
+	public void view_result_should_keep_complex_keys_as_json() {
+		ViewQuery query = new ViewQuery()
+			.dbPath(TEST_DB_PATH)
+			.designDocId("_design/testdoc")
+			.viewName("test_view");
+		
+		when(httpClient.get(query.buildQuery())).thenReturn(HttpResponseStub.valueOf(200, 
+				"{\"total_rows\": 2, \"offset\": 0, \"rows\": [" +
+				"{\"id\": \"doc_id1\", \"key\": [\"a\", 1], \"value\": 12}," +
+				"{\"id\": \"doc_id2\", \"key\": \"b\", \"value\": {\"rev\": \"1-A\"}}]}"));
+		
+		ViewResult result = dbCon.queryView(query);
+		
+		assertEquals(2, result.getSize());
+		assertEquals("[\"a\",1]", result.getRows().get(0).getKey());
+		assertEquals(12, result.getRows().get(0).getValueAsInt());
+		assertEquals("b", result.getRows().get(1).getKey());
+		assertTrue(JSONComparator.areEqual("{\"rev\": \"1-A\"}", result.getRows().get(1).getValue()));
+	}
+	
+	@Test
+	public void typed_query_with_include_docs_should_read_docs_from_view_result() {
+		ViewQuery query = new ViewQuery()
+			.dbPath(TEST_DB_PATH)
+			.designDocId("_design/testdoc")
+			.viewName("test_view")
+			.includeDocs(true);
+		
+		when(httpClient.get(query.buildQuery())).thenReturn(HttpResponseStub.valueOf(200, 
+				"{\"total_rows\": 2, \"offset\": 0, \"rows\": [" +
+				"{\"id\": \"doc_id1\", \"key\": \"a\", \"value\": 12, \"doc\": {\"_id\": \"doc_id1\", \"_rev\": \"1-A\", \"name\": \"nisse\"}}," +
+				"{\"id\": \"doc_id2\", \"key\": \"b\", \"value\": 7, \"doc\": {\"_id\": \"doc_id2\", \"_rev\": \"1-B\", \"name\": \"kalle\"}}]}"));
+		
+		List<TestDoc> result = dbCon.queryView(query, TestDoc.class);
+		
+		assertEquals(2, result.size());
+		assertEquals("nisse", result.get(0).getName());
+		assertEquals("doc_id2", result.get(1).getId());
+		verify(httpClient, never()).post(anyString(), anyString());
+	}
+	
+	@Test
+	public void typed_query_without_include_docs_should_load_docs_in_one_batch() {
+		ViewQuery query = new ViewQuery()
+			.dbPath(TEST_DB_PATH)
+			.designDocId("_design/testdoc")
+			.viewName("test_view");
+		
+		when(httpClient.get(query.buildQuery())).thenReturn(HttpResponseStub.valueOf(200, 
+				"{\"total_rows\": 2, \"offset\": 0, \"rows\": [" +
+				"{\"id\": \"other\", \"key\": \"a\", \"value\": \"doc_id1\"}," +
+				"{\"id\": \"other\", \"key\": \"b\", \"value\": \"doc_id2\"}]}"));
+		when(httpClient.post(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(200, 
+				"{\"total_rows\": 2, \"offset\": 0, \"rows\": []}"));
+		
+		dbCon.queryView(query, TestDoc.class);
+		
+		verify(httpClient).post("/test_db/_all_docs?include_docs=true", "{\"keys\":[\"doc_id1\",\"doc_id2\"]}");
+	}
+	
+	@Test
+	public void streamed_view_should_release_connection_when_exhausted() {
+		ViewQuery query = setupStreamedView();
+		HttpResponse rsp = httpClient.get(query.buildQuery());
+		
+		StreamingViewResult<TestDoc> result = dbCon.streamView(query, TestDoc.class);
+		List<String> names = new ArrayList<String>();
+		for (TestDoc doc : result) {
+			names.add(doc.getName());
+		}
+		
+		assertEquals(Arrays.asList("nisse", "kalle"), names);
+		assertEquals(3, result.getTotalRows());
+		verify(rsp).releaseConnection();
+		verify(rsp, never()).abort();
+	}
+	
+	@Test
+	public void abandoned_streamed_view_should_abort_connection_when_closed() {
+		ViewQuery query = setupStreamedView();
+		HttpResponse rsp = httpClient.get(query.buildQuery());
+		
+		StreamingViewResult<TestDoc> result = dbCon.streamView(query, TestDoc.class);
+		try {
+			assertEquals("nisse", result.iterator().next().getName());
+		} finally {
+			result.close();
+		}
+		verify(rsp).abort();
+	}
+	
+	@Test
+	public void streamed_view_without_docs_should_be_rejected() {
+		ViewQuery query = new ViewQuery()
+			.designDocId("_design/testdoc")
+			.viewName("test_view");
+		try {
+			dbCon.streamView(query, TestDoc.class);
+			fail("IllegalArgumentException should be thrown");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		verifyZeroInteractions(httpClient);
+	}
+	
+	private ViewQuery setupStreamedView() {
+		ViewQuery query = new ViewQuery()
+			.dbPath(TEST_DB_PATH)
+			.designDocId("_design/testdoc")
+			.viewName("test_view")
+			.includeDocs(true);
+		
+		HttpResponse rsp = spy(HttpResponseStub.valueOf(200, 
+				"{\"total_rows\": 3, \"offset\": 0, \"rows\": [" +
+				"{\"id\": \"doc_id1\", \"key\": \"a\", \"value\": null, \"doc\": {\"_id\": \"doc_id1\", \"_rev\": \"1-A\", \"name\": \"nisse\"}}," +
+				"{\"id\": \"doc_id2\", \"key\": \"b\", \"value\": null, \"doc\": null}," +
+				"{\"id\": \"doc_id3\", \"key\": \"c\", \"value\": null, \"doc\": {\"_id\": \"doc_id3\", \"_rev\": \"1-B\", \"name\": \"kalle\"}}]}"));
+		when(httpClient.get(query.buildQuery())).thenReturn(rsp);
+		return query;
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void paged_view_without_docs_should_be_rejected() {
+		ViewQuery query = new ViewQuery()
+			.designDocId("_design/testdoc")
+			.viewName("test_view");
+		dbCon.queryForPage(query, PageRequest.firstPage(2), TestDoc.class);
+	}
+	
+	@Test
+	public void pages_should_be_located_by_start_key_and_doc_id() {
+		ViewQuery query = new ViewQuery()
+			.dbPath(TEST_DB_PATH)
+			.designDocId("_design/testdoc")
+			.viewName("test_view")
+			.includeDocs(true);
+		
+		when(httpClient.get("/test_db/_design/testdoc/_view/test_view?limit=3&skip=0&include_docs=true")).thenReturn(HttpResponseStub.valueOf(200, 
+				"{\"total_rows\": 10, \"offset\": 0, \"rows\": [" +
+				"{\"id\": \"doc1\", \"key\": 1, \"value\": null, \"doc\": {\"name\": \"nisse\"}}," +
+				"{\"id\": \"doc2\", \"key\": 2, \"value\": null, \"doc\": {\"name\": \"kalle\"}}," +
+				"{\"id\": \"doc3\", \"key\": 3, \"value\": null, \"doc\": {\"name\": \"olle\"}}]}"));
+		
+		Page<TestDoc> first = dbCon.queryForPage(query, PageRequest.firstPage(2), TestDoc.class);
+		
+		assertEquals(2, first.size());
+		assertEquals("kalle", first.getRows().get(1).getName());
+		assertFalse(first.isHasPrevious());
+		assertTrue(first.isHasNext());
+		
+		PageRequest next = PageRequest.fromLink(first.getNextLink());
+		assertEquals(1, next.getPage());
+		assertEquals("3", next.getStartKey());
+		assertEquals("doc3", next.getStartDocId());
+		
+		when(httpClient.get("/test_db/_design/testdoc/_view/test_view?startkey=3&startkey_docid=doc3&limit=3&skip=0&include_docs=true")).thenReturn(HttpResponseStub.valueOf(200, 
+				"{\"total_rows\": 10, \"offset\": 2, \"rows\": [" +
+				"{\"id\": \"doc3\", \"key\": 3, \"value\": null, \"doc\": {\"name\": \"olle\"}}]}"));
+		
+		Page<TestDoc> second = dbCon.queryForPage(query, next, TestDoc.class);
+		
+		assertEquals(1, second.size());
+		assertFalse(second.isHasNext());
+		assertTrue(second.getPreviousPageRequest().isBack());
+		
+		when(httpClient.get("/test_db/_design/testdoc/_view/test_view?startkey=3&startkey_docid=doc3&limit=2&descending=true&skip=1&include_docs=true")).thenReturn(HttpResponseStub.valueOf(200, 
+				"{\"total_rows\": 10, \"offset\": 7, \"rows\": [" +
+				"{\"id\": \"doc2\", \"key\": 2, \"value\": null, \"doc\": {\"name\": \"kalle\"}}," +
+				"{\"id\": \"doc1\", \"key\": 1, \"value\": null, \"doc\": {\"name\": \"nisse\"}}]}"));
+		
+		Page<TestDoc> previous = dbCon.queryForPage(query, PageRequest.fromLink(second.getPreviousLink()), TestDoc.class);
+		
+		assertEquals("nisse", previous.getRows().get(0).getName());
+		assertEquals(0, previous.getPageNo());
+		assertFalse(previous.isHasPrevious());
+		assertEquals(next.asLink(), previous.getNextLink());
+	}
+	
 	@Test
 	public void dates_should_be_serialized_in_ISO_8601_format() {
 		setupNegativeContains("some_id");
-		when(httpClient.put(anyString(), anyString())).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
+		when(httpClient.put(anyString(), any(ContentWriter.class))).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"123D123\"}"));
 		
 		DateTime dt = new DateTime(2010, 4, 25, 20, 11, 24, 555,DateTimeZone.forID("+00:00"));
 		Date d = dt.toDate();
@@ -291,9 +594,9 @@ public class StdCouchDbConnectorTest {
 		
 		dbCon.create(dd);
 		
-		ArgumentCaptor<String> ac = ArgumentCaptor.forClass(String.class);
+		ArgumentCaptor<ContentWriter> ac = ArgumentCaptor.forClass(ContentWriter.class);
 		verify(httpClient).put(eq("/test_db/some_id"), ac.capture());
-		String json = ac.getValue();
+		String json = written(ac.getValue());
 		assertEqualJson("dates.json", json);
 		
 		when(httpClient.get("/test_db/some_id")).thenReturn(HttpResponseStub.valueOf(201, json));
@@ -304,6 +607,357 @@ public class StdCouchDbConnectorTest {
 		
 	}
 	
+	@Test
+	public void executeBulk_should_write_back_ids_and_revisions_and_report_conflicts() {
+		StringBuilder body = setupBulkResponse("[{\"id\":\"generated_id\",\"rev\":\"1-A\"}," +
+				"{\"id\":\"some_id\",\"error\":\"conflict\",\"reason\":\"Document update conflict.\"}]");
+		TestDoc created = new TestDoc();
+		created.name = "nisse";
+		TestDoc updated = new TestDoc();
+		updated.setId("some_id");
+		updated.setRevision("1-B");
+		
+		List<DocumentOperationResult> result = dbCon.executeBulk(Arrays.asList(created, updated));
+		
+		verify(httpClient).post(eq("/test_db/_bulk_docs"), any(ContentWriter.class));
+		assertTrue(body.toString().startsWith("{\"docs\":["));
+		assertEquals(2, result.size());
+		assertFalse(result.get(0).isErroneous());
+		assertEquals("generated_id", created.getId());
+		assertEquals("1-A", created.getRevision());
+		assertTrue(result.get(1).isConflict());
+		assertEquals("1-B", updated.getRevision());
+	}
+	
+	@Test
+	public void deleteAll_should_mark_documents_as_deleted() {
+		StringBuilder body = setupBulkResponse("[{\"id\":\"some_id\",\"rev\":\"2-A\"}]");
+		td.setId("some_id");
+		td.setRevision("1-A");
+		
+		List<DocumentOperationResult> result = dbCon.deleteAll(Collections.singletonList(td));
+		
+		assertEquals("2-A", result.get(0).getRevision());
+		assertTrue(JSONComparator.areEqual("{\"docs\":[{\"_id\":\"some_id\",\"_rev\":\"1-A\",\"_deleted\":true}]}", body.toString()));
+	}
+	
+	private StringBuilder setupBulkResponse(final String response) {
+		final StringBuilder body = new StringBuilder();
+		when(httpClient.post(anyString(), any(ContentWriter.class))).thenAnswer(new Answer<HttpResponse>() {
+			@Override
+			public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+				body.append(written((ContentWriter) invocation.getArguments()[1]));
+				return HttpResponseStub.valueOf(201, response);
+			}
+		});
+		return body;
+	}
+	
+	@Test
+	public void attachment_range_should_be_requested_with_range_header() throws Exception {
+		HttpResponse rsp = mock(HttpResponse.class);
+		when(rsp.isSuccessful()).thenReturn(true);
+		when(rsp.getCode()).thenReturn(206);
+		when(rsp.getContent()).thenReturn(IOUtils.toInputStream("ABCD"));
+		when(rsp.getContentType()).thenReturn("application/zip");
+		when(rsp.getContentLength()).thenReturn(4L);
+		when(httpClient.get(eq("/test_db/docid/bundle.zip"), Matchers.<Map<String, String>>anyObject())).thenReturn(rsp);
+		
+		Attachment a = dbCon.getAttachment("docid", "bundle.zip", 3000000000L, 4);
+		
+		assertEquals("ABCD", IOUtils.toString(a.getData()));
+		assertEquals(4, a.getLength());
+		ArgumentCaptor<Map<String, String>> headers = headersCaptor();
+		verify(httpClient).get(eq("/test_db/docid/bundle.zip"), headers.capture());
+		assertEquals("bytes=3000000000-3000000003", headers.getValue().get("Range"));
+	}
+	
+	@Test
+	public void ignored_attachment_range_should_be_cut_from_whole_attachment() throws Exception {
+		HttpResponse rsp = mock(HttpResponse.class);
+		when(rsp.isSuccessful()).thenReturn(true);
+		when(rsp.getCode()).thenReturn(200);
+		when(rsp.getContent()).thenReturn(IOUtils.toInputStream("0123456789"));
+		when(rsp.getContentType()).thenReturn("application/zip");
+		when(rsp.getContentLength()).thenReturn(10L);
+		when(httpClient.get(eq("/test_db/docid/bundle.zip"), Matchers.<Map<String, String>>anyObject())).thenReturn(rsp);
+		
+		Attachment a = dbCon.getAttachment("docid", "bundle.zip", 3, 4);
+		assertEquals("3456", IOUtils.toString(a.getData()));
+		assertEquals(4, a.getLength());
+		
+		when(rsp.getContent()).thenReturn(IOUtils.toInputStream("0123456789"));
+		Attachment tail = dbCon.getAttachment("docid", "bundle.zip", 8, -1);
+		assertEquals("89", IOUtils.toString(tail.getData()));
+		assertEquals(2, tail.getLength());
+	}
+	
+	@Test
+	public void attachment_should_be_read_into_file_channel() throws Exception {
+		when(httpClient.get("/test_db/docid/bundle.zip")).thenReturn(HttpResponseStub.valueOf(200, "attachment content"));
+		File f = File.createTempFile("attachment", ".tmp");
+		f.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			assertEquals(18, dbCon.readAttachment("docid", "bundle.zip", out.getChannel()));
+		} finally {
+			out.close();
+		}
+		assertEquals("attachment content", FileUtils.readFileToString(f));
+	}
+	
+	@Test
+	public void cached_document_should_be_revalidated_with_etag() {
+		DocumentCache cache = new DocumentCache(10);
+		dbCon.setDocumentCache(cache);
+		when(httpClient.get(eq("/test_db/some_id"), Matchers.<Map<String, String>>anyObject()))
+			.thenReturn(HttpResponseStub.valueOf(200, "{\"_id\":\"some_id\",\"_rev\":\"1-a\",\"name\":\"nisse\"}", "\"1-a\""))
+			.thenReturn(HttpResponseStub.valueOf(304, ""));
+		
+		TestDoc first = dbCon.get(TestDoc.class, "some_id");
+		TestDoc second = dbCon.get(TestDoc.class, "some_id");
+		
+		assertEquals("nisse", second.getName());
+		assertNotSame(first, second);
+		ArgumentCaptor<Map<String, String>> headers = headersCaptor();
+		verify(httpClient, times(2)).get(eq("/test_db/some_id"), headers.capture());
+		assertTrue(headers.getAllValues().get(0).isEmpty());
+		assertEquals("\"1-a\"", headers.getAllValues().get(1).get("If-None-Match"));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getRevalidations());
+		assertEquals(1, cache.getHits());
+	}
+	
+	@Test
+	public void cached_document_should_be_evicted_on_update() {
+		DocumentCache cache = new DocumentCache(10);
+		dbCon.setDocumentCache(cache);
+		when(httpClient.get(eq("/test_db/some_id"), Matchers.<Map<String, String>>anyObject()))
+			.thenReturn(HttpResponseStub.valueOf(200, "{\"_id\":\"some_id\",\"_rev\":\"1-a\"}", "\"1-a\""));
+		when(httpClient.put(eq("/test_db/some_id?rev=1-a"), any(ContentWriter.class)))
+			.thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"2-b\"}"));
+		
+		TestDoc doc = dbCon.get(TestDoc.class, "some_id");
+		assertEquals(1, cache.size());
+		dbCon.update(doc);
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getInvalidations());
+	}
+	
+	@Test
+	public void document_cache_should_evict_least_recently_used() {
+		DocumentCache cache = new DocumentCache(2);
+		cache.put("/db/a", "\"1\"", new byte[0]);
+		cache.put("/db/b", "\"1\"", new byte[0]);
+		assertNotNull(cache.lookup("/db/a"));
+		cache.put("/db/c", "\"1\"", new byte[0]);
+		assertNotNull(cache.lookup("/db/a"));
+		assertNull(cache.lookup("/db/b"));
+		assertEquals(2, cache.size());
+	}
+	
+	@Test
+	public void trusted_cache_should_serve_without_revalidation() {
+		DocumentCache cache = new DocumentCache(10);
+		cache.setTrusted(new DbPath("test_db"), true);
+		dbCon.setDocumentCache(cache);
+		when(httpClient.get(eq("/test_db/some_id"), Matchers.<Map<String, String>>anyObject()))
+			.thenReturn(HttpResponseStub.valueOf(200, "{\"_id\":\"some_id\",\"_rev\":\"1-a\",\"name\":\"nisse\"}", "\"1-a\""));
+		
+		TestDoc first = dbCon.get(TestDoc.class, "some_id");
+		TestDoc second = dbCon.get(TestDoc.class, "some_id");
+		
+		assertEquals("nisse", second.getName());
+		assertNotSame(first, second);
+		verify(httpClient, times(1)).get(eq("/test_db/some_id"), Matchers.<Map<String, String>>anyObject());
+		assertEquals(1, cache.getHits());
+		assertEquals(0, cache.getRevalidations());
+	}
+	
+	@Test
+	public void read_racing_with_invalidation_should_not_be_cached_while_trusted() {
+		DocumentCache cache = new DocumentCache(10);
+		long epoch = cache.getEpoch();
+		cache.invalidate("/db/a");
+		cache.put("/db/a", "\"1\"", new byte[0], epoch);
+		assertEquals(1, cache.size());
+		
+		cache.setTrusted(new DbPath("db"), true);
+		epoch = cache.getEpoch();
+		cache.invalidate("/db/b");
+		cache.put("/db/b", "\"1\"", new byte[0], epoch);
+		assertNull(cache.getTrusted("/db/b"));
+		assertNotNull(cache.getTrusted("/db/a"));
+	}
+	
+	@Test
+	public void concurrent_gets_for_same_document_should_be_coalesced() throws Exception {
+		final SingleFlight singleFlight = new SingleFlight();
+		dbCon.setSingleFlight(singleFlight);
+		final int readers = 5;
+		final CountDownLatch release = new CountDownLatch(1);
+		when(httpClient.get("/test_db/some_id")).thenAnswer(new Answer<HttpResponse>() {
+			@Override
+			public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+				release.await(5, TimeUnit.SECONDS);
+				return HttpResponseStub.valueOf(200, "{\"_id\":\"some_id\",\"_rev\":\"1-a\",\"name\":\"nisse\"}");
+			}
+		});
+		
+		ExecutorService es = Executors.newFixedThreadPool(readers);
+		List<Future<TestDoc>> results = new ArrayList<Future<TestDoc>>();
+		for (int i = 0; i < readers; i++) {
+			results.add(es.submit(new Callable<TestDoc>() {
+				@Override
+				public TestDoc call() throws Exception {
+					return dbCon.get(TestDoc.class, "some_id");
+				}
+			}));
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (singleFlight.getCoalescedCount() < readers - 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		release.countDown();
+		
+		Set<TestDoc> docs = Collections.newSetFromMap(new IdentityHashMap<TestDoc, Boolean>());
+		for (Future<TestDoc> f : results) {
+			TestDoc d = f.get(5, TimeUnit.SECONDS);
+			assertEquals("nisse", d.getName());
+			docs.add(d);
+		}
+		es.shutdown();
+		assertEquals(readers, docs.size());
+		verify(httpClient, times(1)).get("/test_db/some_id");
+		assertEquals(1, singleFlight.getExecutedCount());
+		assertEquals(readers - 1, singleFlight.getCoalescedCount());
+		assertEquals(0, singleFlight.getInFlightCount());
+	}
+	
+	@Test
+	public void get_after_update_should_not_join_read_in_flight_before_it() throws Exception {
+		final SingleFlight singleFlight = new SingleFlight();
+		dbCon.setSingleFlight(singleFlight);
+		final CountDownLatch release = new CountDownLatch(1);
+		when(httpClient.get("/test_db/some_id")).thenAnswer(new Answer<HttpResponse>() {
+			@Override
+			public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+				release.await(5, TimeUnit.SECONDS);
+				return HttpResponseStub.valueOf(200, "{\"_id\":\"some_id\",\"_rev\":\"1-a\",\"name\":\"nisse\"}");
+			}
+		}).thenReturn(HttpResponseStub.valueOf(200, "{\"_id\":\"some_id\",\"_rev\":\"2-b\",\"name\":\"kalle\"}"));
+		when(httpClient.put(anyString(), any(ContentWriter.class))).thenReturn(HttpResponseStub.valueOf(201, "{\"ok\":true,\"id\":\"some_id\",\"rev\":\"2-b\"}"));
+		
+		ExecutorService es = Executors.newSingleThreadExecutor();
+		Future<TestDoc> stale = es.submit(new Callable<TestDoc>() {
+			@Override
+			public TestDoc call() throws Exception {
+				return dbCon.get(TestDoc.class, "some_id");
+			}
+		});
+		long deadline = System.currentTimeMillis() + 5000;
+		while (singleFlight.getInFlightCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		td.setId("some_id");
+		td.setRevision("1-a");
+		dbCon.update(td);
+		
+		TestDoc fresh = dbCon.get(TestDoc.class, "some_id");
+		assertEquals("2-b", fresh.getRevision());
+		assertEquals(0, singleFlight.getCoalescedCount());
+		
+		release.countDown();
+		assertEquals("1-a", stale.get(5, TimeUnit.SECONDS).getRevision());
+		es.shutdown();
+		verify(httpClient, times(2)).get("/test_db/some_id");
+	}
+	
+	@Test(expected = DocumentNotFoundException.class)
+	public void coalesced_get_should_throw_not_found() {
+		dbCon.setSingleFlight(new SingleFlight());
+		when(httpClient.get("/test_db/some_id")).thenReturn(HttpResponseStub.valueOf(404, ""));
+		dbCon.get(TestDoc.class, "some_id");
+	}
+	
+	@Test
+	public void coalesced_get_should_revalidate_cached_document() {
+		SingleFlight singleFlight = new SingleFlight();
+		dbCon.setSingleFlight(singleFlight);
+		DocumentCache cache = new DocumentCache(10);
+		dbCon.setDocumentCache(cache);
+		when(httpClient.get(eq("/test_db/some_id"), Matchers.<Map<String, String>>anyObject()))
+			.thenReturn(HttpResponseStub.valueOf(200, "{\"_id\":\"some_id\",\"_rev\":\"1-a\",\"name\":\"nisse\"}", "\"1-a\""))
+			.thenReturn(HttpResponseStub.valueOf(304, ""));
+		
+		dbCon.get(TestDoc.class, "some_id");
+		assertEquals("nisse", dbCon.get(TestDoc.class, "some_id").getName());
+		assertEquals(1, cache.getHits());
+		assertEquals(2, singleFlight.getExecutedCount());
+	}
+	
+	@Test
+	public void changes_should_be_parsed_from_results() {
+		String rsp = "{\"results\":[" +
+				"{\"seq\":3,\"id\":\"doc1\",\"changes\":[{\"rev\":\"2-a\"}],\"doc\":{\"_id\":\"doc1\",\"name\":\"nisse\"}}," +
+				"{\"seq\":4,\"id\":\"doc2\",\"changes\":[{\"rev\":\"3-b\"}],\"deleted\":true}" +
+				"],\"last_seq\":4}";
+		when(httpClient.get("/test_db/_changes?feed=longpoll&since=2&include_docs=true&filter=app%2Fpolicies&heartbeat=5000"))
+			.thenReturn(HttpResponseStub.valueOf(200, rsp));
+		
+		List<DocumentChange> changes = dbCon.changes(new ChangesCommand()
+			.feed(ChangesCommand.Feed.LONGPOLL)
+			.since(2)
+			.includeDocs(true)
+			.filter("app/policies"));
+		
+		assertEquals(2, changes.size());
+		assertEquals(3, changes.get(0).getSequence());
+		assertEquals("doc1", changes.get(0).getId());
+		assertEquals("2-a", changes.get(0).getRevision());
+		assertEquals("nisse", changes.get(0).getDoc().get("name").getTextValue());
+		assertFalse(changes.get(0).isDeleted());
+		assertTrue(changes.get(1).isDeleted());
+		assertNull(changes.get(1).getDoc());
+	}
+	
+	@Test
+	public void continuous_feed_should_resume_from_last_seq() throws Exception {
+		String rsp = "{\"seq\":1,\"id\":\"doc1\",\"changes\":[{\"rev\":\"1-a\"}]}\n" +
+				"\n" +
+				"{\"seq\":2,\"id\":\"doc2\",\"changes\":[{\"rev\":\"1-b\"}]}\n" +
+				"{\"last_seq\":2}\n";
+		when(httpClient.get("/test_db/_changes?feed=continuous&heartbeat=5000")).thenReturn(HttpResponseStub.valueOf(200, rsp));
+		final CountDownLatch resumed = new CountDownLatch(1);
+		when(httpClient.get("/test_db/_changes?feed=continuous&since=2&heartbeat=5000")).thenAnswer(new Answer<HttpResponse>() {
+			@Override
+			public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+				resumed.countDown();
+				return HttpResponseStub.valueOf(200, "{\"last_seq\":2}");
+			}
+		});
+		final List<DocumentChange> received = Collections.synchronizedList(new ArrayList<DocumentChange>());
+		
+		ChangesFeed feed = dbCon.changesFeed(new ChangesCommand().feed(ChangesCommand.Feed.CONTINUOUS), new ChangesListener() {
+			@Override
+			public void onChanges(List<DocumentChange> changes) {
+				received.addAll(changes);
+			}
+		});
+		try {
+			assertTrue(resumed.await(5, TimeUnit.SECONDS));
+			for (int i = 0; i < 50 && feed.getLastSequence() != 2; i++) {
+				Thread.sleep(20);
+			}
+			assertEquals(2, feed.getLastSequence());
+			assertEquals(2, received.size());
+			assertEquals("doc2", received.get(1).getId());
+		} finally {
+			feed.cancel();
+		}
+		assertFalse(feed.isAlive());
+	}
+	
 	@Test
 	public void given_that_doc_exists_then_contains_should_return_true() {
 		setupPositiveContains("some_id");
@@ -367,6 +1021,21 @@ public class StdCouchDbConnectorTest {
 		
 	}
 	
+	@SuppressWarnings("unchecked")
+	private static ArgumentCaptor<Map<String, String>> headersCaptor() {
+		return (ArgumentCaptor<Map<String, String>>) (ArgumentCaptor<?>) ArgumentCaptor.forClass(Map.class);
+	}
+	
+	private String written(ContentWriter w) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			w.writeTo(out);
+			return out.toString("UTF-8");
+		} catch (IOException e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+	
 	private void assertEqualJson(String expectedFileName, String actual) {
 		String facit = getString(expectedFileName);
 		assertTrue(format("expected: %s was: %s", facit, actual), JSONComparator.areEqual(facit, actual));
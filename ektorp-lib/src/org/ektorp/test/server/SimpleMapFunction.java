@@ -0,0 +1,91 @@
+package org.ektorp.test.server;
+
+import java.util.*;
+import java.util.regex.*;
+
+import org.codehaus.jackson.*;
+import org.codehaus.jackson.node.*;
+/**
+ * Evaluates the map functions produced by SimpleViewGenerator, i.e. lookups by a property or by the
+ * elements of an iterable property, as well as the all documents function emit(doc._id, ...).
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class SimpleMapFunction implements StubView {
+	
+	private static final Pattern LOOKUP_BY_PROPERTY = 
+		Pattern.compile("function\\s*\\(doc\\)\\s*\\{\\s*if\\s*\\(doc\\.(\\w+)\\)\\s*\\{\\s*emit\\(doc\\.\\1,\\s*doc\\._id\\);?\\s*\\}\\s*\\}");
+	private static final Pattern LOOKUP_BY_ITERABLE_PROPERTY = 
+		Pattern.compile("function\\s*\\(doc\\)\\s*\\{\\s*for\\s*\\(var (\\w+) in doc\\.(\\w+)\\)\\s*\\{\\s*emit\\(doc\\.\\2\\[\\1\\],\\s*doc\\._id\\);?\\s*\\}\\s*\\}");
+	private static final Pattern ALL = 
+		Pattern.compile("function\\s*\\(doc\\)\\s*\\{\\s*emit\\(doc\\._id,\\s*(null|doc\\._rev|doc\\._id|doc)\\);?\\s*\\}");
+	
+	private final String property;
+	private final boolean iterable;
+	private final String value;
+	
+	private SimpleMapFunction(String property, boolean iterable, String value) {
+		this.property = property;
+		this.iterable = iterable;
+		this.value = value;
+	}
+	/**
+	 * @param mapFunction
+	 * @return null if the function is not one of the supported forms.
+	 */
+	public static SimpleMapFunction parse(String mapFunction) {
+		String f = mapFunction.trim();
+		Matcher m = LOOKUP_BY_PROPERTY.matcher(f);
+		if (m.matches()) {
+			return new SimpleMapFunction(m.group(1), false, "doc._id");
+		}
+		m = LOOKUP_BY_ITERABLE_PROPERTY.matcher(f);
+		if (m.matches()) {
+			return new SimpleMapFunction(m.group(2), true, "doc._id");
+		}
+		m = ALL.matcher(f);
+		if (m.matches()) {
+			return new SimpleMapFunction("_id", false, m.group(1));
+		}
+		return null;
+	}
+	
+	@Override
+	public void map(JsonNode doc, Emitter emitter) {
+		JsonNode p = doc.get(property);
+		if (p == null || !isTruthy(p)) {
+			return;
+		}
+		if (!iterable) {
+			emitter.emit(p, value(doc));
+		} else if (p.isContainerNode()) {
+			// for..in over an array or an object emits its elements or its field values
+			for (Iterator<JsonNode> it = p.getElements(); it.hasNext();) {
+				emitter.emit(it.next(), value(doc));
+			}
+		}
+	}
+	
+	private JsonNode value(JsonNode doc) {
+		if ("null".equals(value)) {
+			return NullNode.getInstance();
+		} else if ("doc".equals(value)) {
+			return doc;
+		}
+		return doc.get(value.substring("doc.".length()));
+	}
+	
+	private static boolean isTruthy(JsonNode n) {
+		if (n.isNull() || n.isMissingNode()) {
+			return false;
+		} else if (n.isBoolean()) {
+			return n.getBooleanValue();
+		} else if (n.isNumber()) {
+			return n.getDoubleValue() != 0;
+		} else if (n.isTextual()) {
+			return n.getTextValue().length() > 0;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,636 @@
+package org.ektorp.test.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+import org.apache.commons.io.*;
+import org.codehaus.jackson.*;
+import org.codehaus.jackson.map.*;
+import org.codehaus.jackson.node.*;
+import org.ektorp.util.*;
+
+import com.sun.net.httpserver.*;
+/**
+ * An embeddable, in-memory stand-in for CouchDB that listens on localhost, so that the client can be tested
+ * and benchmarked end to end without a database.
+ *
+ * Supported are database create, delete and info, document CRUD with revisions and ETags, _all_dbs, _uuids,
+ * _all_docs, _bulk_docs, _changes (normal, longpoll and continuous) and views. Views are either defined in Java
+ * through defineView or are design document views with map functions of the forms SimpleViewGenerator produces.
+ * Reduce functions, attachments and filtered changes are not supported.
+ *
+ * Latency and errors can be injected to observe the client under realistic conditions:
+ *
+ * StubCouchDbServer server = new StubCouchDbServer();
+ * server.setLatency(2, 10);
+ * server.setErrorRate(0.01, 503);
+ * server.start();
+ * HttpClient client = new StdHttpClient.Builder().host("127.0.0.1").port(server.getPort()).build();
+ *
+ * @author henrik lundgren
+ *
+ */
+public class StubCouchDbServer {
+	
+	private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+	private static final int BACKLOG = 128;
+	private static final long DEFAULT_LONGPOLL_TIMEOUT = 60000;
+	private static final long WAIT_SLICE = 250;
+	private static final byte[] NEWLINE = {'\n'};
+	
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final ConcurrentMap<String, StubDatabase> databases = new ConcurrentHashMap<String, StubDatabase>();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong injectedErrorCount = new AtomicLong();
+	private final Random random = new Random();
+	
+	private volatile long minLatency;
+	private volatile long maxLatency;
+	private volatile double errorRate;
+	private volatile int errorCode = 500;
+	private volatile boolean running;
+	
+	private HttpServer server;
+	private ExecutorService executor;
+	/**
+	 * Starts listening on an ephemeral port on the loopback interface.
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		start(0);
+	}
+	
+	public synchronized void start(int port) throws IOException {
+		Assert.isTrue(server == null, "server is already started");
+		// without it small responses are held back by Nagle's algorithm, which dominates latency on localhost
+		if (System.getProperty(NODELAY_PROPERTY) == null) {
+			System.setProperty(NODELAY_PROPERTY, "true");
+		}
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), BACKLOG);
+		server.createContext("/", new CouchHandler());
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ektorp-stub-server-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		server.setExecutor(executor);
+		running = true;
+		server.start();
+	}
+	
+	public synchronized void stop() {
+		if (server == null) {
+			return;
+		}
+		running = false;
+		server.stop(0);
+		executor.shutdownNow();
+		server = null;
+	}
+	
+	public synchronized int getPort() {
+		Assert.notNull(server, "server is not started");
+		return server.getAddress().getPort();
+	}
+	
+	public String getUrl() {
+		return "http://127.0.0.1:" + getPort();
+	}
+	/**
+	 * Every response is delayed by a random time between min and max milliseconds.
+	 * @param minMillis
+	 * @param maxMillis
+	 */
+	public void setLatency(long minMillis, long maxMillis) {
+		Assert.isTrue(minMillis >= 0 && maxMillis >= minMillis, "latency must satisfy 0 <= min <= max");
+		this.minLatency = minMillis;
+		this.maxLatency = maxMillis;
+	}
+	/**
+	 * The given fraction of requests is answered with the status code instead of being processed.
+	 * @param rate between 0 and 1
+	 * @param code
+	 */
+	public void setErrorRate(double rate, int code) {
+		Assert.isTrue(rate >= 0 && rate <= 1, "rate must be between 0 and 1");
+		Assert.isTrue(code >= 400, "code must be an error status");
+		this.errorCode = code;
+		this.errorRate = rate;
+	}
+	
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+	
+	public long getInjectedErrorCount() {
+		return injectedErrorCount.get();
+	}
+	/**
+	 * @param name
+	 * @return null if the database does not exist.
+	 */
+	public StubDatabase getDatabase(String name) {
+		return databases.get(name);
+	}
+	
+	public StubDatabase createDatabase(String name) {
+		StubDatabase db = new StubDatabase(name);
+		StubDatabase existing = databases.putIfAbsent(name, db);
+		return existing != null ? existing : db;
+	}
+	/**
+	 * Registers a view implemented in Java, the database is created if it does not exist.
+	 * @param dbName
+	 * @param designDocId
+	 * @param viewName
+	 * @param view
+	 */
+	public void defineView(String dbName, String designDocId, String viewName, StubView view) {
+		createDatabase(dbName).defineView(designDocId, viewName, view);
+	}
+	
+	private class CouchHandler implements HttpHandler {
+		
+		@Override
+		public void handle(HttpExchange ex) throws IOException {
+			requestCount.incrementAndGet();
+			try {
+				Request req = new Request(ex);
+				delay();
+				if (errorRate > 0 && random.nextDouble() < errorRate) {
+					injectedErrorCount.incrementAndGet();
+					throw new StubDatabase.Failure(errorCode, "injected", "injected error");
+				}
+				route(req);
+			} catch (StubDatabase.Failure f) {
+				sendError(ex, f.getCode(), f.getError(), f.getMessage());
+			} catch (JsonProcessingException e) {
+				sendError(ex, 400, "bad_request", e.getMessage());
+			} catch (RuntimeException e) {
+				sendError(ex, 500, "unknown_error", e.toString());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				ex.close();
+			}
+		}
+		
+		private void delay() throws InterruptedException {
+			long min = minLatency;
+			long max = maxLatency;
+			long latency = max > min ? min + (long) (random.nextDouble() * (max - min)) : min;
+			if (latency > 0) {
+				Thread.sleep(latency);
+			}
+		}
+		
+		private void route(Request req) throws IOException, InterruptedException {
+			String[] path = req.path;
+			if (path.length == 0) {
+				ObjectNode welcome = objectNode();
+				welcome.put("couchdb", "Welcome");
+				welcome.put("version", "stub");
+				req.reply(200, welcome);
+			} else if (path[0].equals("_all_dbs")) {
+				allDbs(req);
+			} else if (path[0].equals("_uuids")) {
+				uuids(req);
+			} else if (path.length == 1) {
+				database(req, path[0]);
+			} else {
+				StubDatabase db = databases.get(path[0]);
+				if (db == null) {
+					throw new StubDatabase.Failure(404, "not_found", "no_db_file");
+				}
+				String resource = path[1];
+				if (resource.equals("_all_docs") && path.length == 2) {
+					allDocs(req, db);
+				} else if (resource.equals("_bulk_docs") && path.length == 2) {
+					bulkDocs(req, db);
+				} else if (resource.equals("_changes") && path.length == 2) {
+					changes(req, db);
+				} else if (resource.equals("_design") && path.length == 5 && path[3].equals("_view")) {
+					view(req, db, "_design/" + path[2], path[4]);
+				} else if (resource.equals("_design") && path.length == 3) {
+					document(req, db, "_design/" + path[2]);
+				} else if (path.length == 2) {
+					document(req, db, resource);
+				} else {
+					throw new StubDatabase.Failure(501, "not_implemented", "not supported by the stub server");
+				}
+			}
+		}
+		
+		private void allDbs(Request req) throws IOException {
+			ArrayNode names = arrayNode();
+			for (String name : new TreeSet<String>(databases.keySet())) {
+				names.add(name);
+			}
+			req.reply(200, names);
+		}
+		
+		private void uuids(Request req) throws IOException {
+			int count = req.intParam("count", 1);
+			ArrayNode uuids = arrayNode();
+			for (int i = 0; i < count; i++) {
+				uuids.add(newUuid());
+			}
+			ObjectNode body = objectNode();
+			body.put("uuids", uuids);
+			req.reply(200, body);
+		}
+		
+		private void database(Request req, String name) throws IOException {
+			if (req.isMethod("PUT")) {
+				if (databases.putIfAbsent(name, new StubDatabase(name)) != null) {
+					throw new StubDatabase.Failure(412, "file_exists", "The database could not be created, the file already exists.");
+				}
+				req.reply(201, ok());
+				return;
+			}
+			StubDatabase db = databases.get(name);
+			if (db == null) {
+				throw new StubDatabase.Failure(404, "not_found", "no_db_file");
+			}
+			if (req.isMethod("DELETE")) {
+				databases.remove(name);
+				req.reply(200, ok());
+			} else if (req.isMethod("POST")) {
+				JsonNode doc = req.body();
+				String id = doc.get("_id") != null ? doc.get("_id").getTextValue() : newUuid();
+				req.reply(201, written(id, db.put(id, doc)));
+			} else {
+				ObjectNode info = objectNode();
+				info.put("db_name", name);
+				info.put("doc_count", db.getDocCount());
+				info.put("update_seq", db.getUpdateSequence());
+				req.reply(200, info);
+			}
+		}
+		
+		private void document(Request req, StubDatabase db, String id) throws IOException {
+			if (req.isMethod("PUT")) {
+				JsonNode doc = req.body();
+				if (doc.isObject() && doc.get("_rev") == null && req.param("rev") != null) {
+					((ObjectNode) doc).put("_rev", req.param("rev"));
+				}
+				req.reply(201, written(id, db.put(id, doc)));
+			} else if (req.isMethod("DELETE")) {
+				if (db.get(id) == null) {
+					throw new StubDatabase.Failure(404, "not_found", "missing");
+				}
+				req.reply(200, written(id, db.delete(id, req.param("rev"))));
+			} else {
+				ObjectNode doc = db.get(id);
+				if (doc == null) {
+					throw new StubDatabase.Failure(404, "not_found", "missing");
+				}
+				String eTag = "\"" + doc.get("_rev").getTextValue() + "\"";
+				req.exchange.getResponseHeaders().set("ETag", eTag);
+				if (eTag.equals(req.exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					req.reply(304, null);
+				} else if (req.booleanParam("revs_info")) {
+					ObjectNode info = objectNode();
+					info.put("rev", doc.get("_rev").getTextValue());
+					info.put("status", "available");
+					ObjectNode withRevs = objectNode();
+					withRevs.putAll(doc);
+					withRevs.putArray("_revs_info").add(info);
+					req.reply(200, withRevs);
+				} else {
+					req.reply(200, doc);
+				}
+			}
+		}
+		
+		private void bulkDocs(Request req, StubDatabase db) throws IOException {
+			ArrayNode results = arrayNode();
+			for (Iterator<JsonNode> it = req.body().path("docs").getElements(); it.hasNext();) {
+				JsonNode doc = it.next();
+				String id = doc.get("_id") != null ? doc.get("_id").getTextValue() : newUuid();
+				try {
+					ObjectNode r = objectNode();
+					r.put("id", id);
+					r.put("rev", db.put(id, doc));
+					results.add(r);
+				} catch (StubDatabase.Failure f) {
+					ObjectNode r = objectNode();
+					r.put("id", id);
+					r.put("error", f.getError());
+					r.put("reason", f.getMessage());
+					results.add(r);
+				}
+			}
+			req.reply(201, results);
+		}
+		
+		private void allDocs(Request req, StubDatabase db) throws IOException {
+			List<StubDatabase.Row> rows = db.allDocs();
+			if (req.isMethod("POST")) {
+				Map<String, StubDatabase.Row> byId = new HashMap<String, StubDatabase.Row>();
+				for (StubDatabase.Row r : rows) {
+					byId.put(r.getId(), r);
+				}
+				ArrayNode result = arrayNode();
+				for (Iterator<JsonNode> it = req.body().path("keys").getElements(); it.hasNext();) {
+					JsonNode key = it.next();
+					StubDatabase.Row r = byId.get(key.getTextValue());
+					if (r != null) {
+						result.add(row(r, req.booleanParam("include_docs") ? db.get(r.getId()) : null));
+					} else {
+						ObjectNode missing = objectNode();
+						missing.put("key", key);
+						missing.put("error", "not_found");
+						result.add(missing);
+					}
+				}
+				ObjectNode body = objectNode();
+				body.put("total_rows", rows.size());
+				body.put("offset", 0);
+				body.put("rows", result);
+				req.reply(200, body);
+			} else {
+				queryRows(req, db, rows);
+			}
+		}
+		
+		private void view(Request req, StubDatabase db, String designDocId, String viewName) throws IOException {
+			StubView view = db.getView(designDocId, viewName);
+			if (view == null) {
+				throw new StubDatabase.Failure(404, "not_found", "missing_named_view");
+			}
+			queryRows(req, db, db.query(view));
+		}
+		/**
+		 * Applies key, startkey, endkey, inclusive_end, descending, skip, limit and include_docs to the rows.
+		 */
+		private void queryRows(Request req, StubDatabase db, List<StubDatabase.Row> rows) throws IOException {
+			boolean descending = req.booleanParam("descending");
+			if (descending) {
+				rows = new ArrayList<StubDatabase.Row>(rows);
+				Collections.reverse(rows);
+			}
+			JsonNode key = req.jsonParam("key");
+			JsonNode start = key != null ? key : req.jsonParam("startkey");
+			JsonNode end = key != null ? key : req.jsonParam("endkey");
+			boolean inclusiveEnd = !"false".equals(req.param("inclusive_end"));
+			int skip = req.intParam("skip", 0);
+			int limit = req.intParam("limit", Integer.MAX_VALUE);
+			boolean includeDocs = req.booleanParam("include_docs");
+			int direction = descending ? -1 : 1;
+			
+			ArrayNode result = arrayNode();
+			int offset = 0;
+			for (StubDatabase.Row r : rows) {
+				if (start != null && direction * StubDatabase.COLLATION.compare(r.getKey(), start) < 0) {
+					offset++;
+					continue;
+				}
+				if (end != null) {
+					int c = direction * StubDatabase.COLLATION.compare(r.getKey(), end);
+					if (c > 0 || (c == 0 && !inclusiveEnd)) {
+						break;
+					}
+				}
+				if (skip > 0) {
+					skip--;
+					offset++;
+					continue;
+				}
+				if (result.size() >= limit) {
+					break;
+				}
+				result.add(row(r, includeDocs ? db.get(r.getId()) : null));
+			}
+			ObjectNode body = objectNode();
+			body.put("total_rows", rows.size());
+			body.put("offset", offset);
+			body.put("rows", result);
+			req.reply(200, body);
+		}
+		
+		private ObjectNode row(StubDatabase.Row r, JsonNode doc) {
+			ObjectNode row = objectNode();
+			row.put("id", r.getId());
+			row.put("key", r.getKey());
+			row.put("value", r.getValue());
+			if (doc != null) {
+				row.put("doc", doc);
+			}
+			return row;
+		}
+		
+		private void changes(Request req, StubDatabase db) throws IOException, InterruptedException {
+			if (req.param("filter") != null) {
+				throw new StubDatabase.Failure(400, "bad_request", "filters are not supported by the stub server");
+			}
+			String feed = req.param("feed") != null ? req.param("feed") : "normal";
+			long since = req.longParam("since", 0);
+			int limit = req.intParam("limit", Integer.MAX_VALUE);
+			boolean includeDocs = req.booleanParam("include_docs");
+			if (feed.equals("continuous")) {
+				continuousChanges(req, db, since, limit, includeDocs, req.longParam("heartbeat", 0));
+				return;
+			}
+			if (feed.equals("longpoll")) {
+				awaitChanges(db, since, req.longParam("timeout", DEFAULT_LONGPOLL_TIMEOUT));
+			}
+			List<StubDatabase.Change> changes = db.changesSince(since);
+			if (req.booleanParam("descending")) {
+				Collections.reverse(changes);
+			}
+			ArrayNode results = arrayNode();
+			long lastSeq = since;
+			for (StubDatabase.Change c : changes) {
+				if (results.size() >= limit) {
+					break;
+				}
+				results.add(change(c, includeDocs));
+				lastSeq = c.getSequence();
+			}
+			ObjectNode body = objectNode();
+			body.put("results", results);
+			body.put("last_seq", lastSeq);
+			req.reply(200, body);
+		}
+		/**
+		 * Writes one change per line and blocks for more until the client disconnects or the server is stopped.
+		 */
+		private void continuousChanges(Request req, StubDatabase db, long since, int limit, boolean includeDocs,
+				long heartbeat) throws IOException, InterruptedException {
+			req.exchange.getResponseHeaders().set("Content-Type", "application/json");
+			req.exchange.sendResponseHeaders(200, 0);
+			OutputStream out = req.exchange.getResponseBody();
+			int sent = 0;
+			long lastWrite = System.currentTimeMillis();
+			while (running && sent < limit) {
+				for (StubDatabase.Change c : db.changesSince(since)) {
+					out.write(objectMapper.writeValueAsBytes(change(c, includeDocs)));
+					out.write(NEWLINE);
+					since = c.getSequence();
+					if (++sent >= limit) {
+						break;
+					}
+				}
+				out.flush();
+				if (sent >= limit || db.awaitChanges(since, WAIT_SLICE)) {
+					lastWrite = System.currentTimeMillis();
+					continue;
+				}
+				if (heartbeat > 0 && System.currentTimeMillis() - lastWrite >= heartbeat) {
+					out.write(NEWLINE);
+					out.flush();
+					lastWrite = System.currentTimeMillis();
+				}
+			}
+		}
+		
+		private void awaitChanges(StubDatabase db, long since, long timeout) throws InterruptedException {
+			// waits in slices so that stop() is not held up by an open longpoll request
+			long deadline = System.currentTimeMillis() + timeout;
+			long remaining = timeout;
+			while (running && remaining > 0 && !db.awaitChanges(since, Math.min(WAIT_SLICE, remaining))) {
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+		
+		private ObjectNode change(StubDatabase.Change c, boolean includeDocs) {
+			ObjectNode change = objectNode();
+			change.put("seq", c.getSequence());
+			change.put("id", c.getId());
+			change.putArray("changes").addObject().put("rev", c.getRevision());
+			if (c.isDeleted()) {
+				change.put("deleted", true);
+			}
+			if (includeDocs) {
+				change.put("doc", c.getDoc());
+			}
+			return change;
+		}
+		
+		private ObjectNode written(String id, String rev) {
+			ObjectNode body = ok();
+			body.put("id", id);
+			body.put("rev", rev);
+			return body;
+		}
+		
+		private ObjectNode ok() {
+			ObjectNode body = objectNode();
+			body.put("ok", true);
+			return body;
+		}
+	}
+	
+	private void sendError(HttpExchange ex, int code, String error, String reason) throws IOException {
+		ObjectNode body = objectNode();
+		body.put("error", error);
+		body.put("reason", reason);
+		send(ex, code, body);
+	}
+	
+	private void send(HttpExchange ex, int code, JsonNode body) throws IOException {
+		if (body == null || ex.getRequestMethod().equals("HEAD")) {
+			ex.sendResponseHeaders(code, -1);
+			return;
+		}
+		byte[] bytes = objectMapper.writeValueAsBytes(body);
+		ex.getResponseHeaders().set("Content-Type", "application/json");
+		ex.sendResponseHeaders(code, bytes.length);
+		ex.getResponseBody().write(bytes);
+	}
+	
+	private ObjectNode objectNode() {
+		return objectMapper.getNodeFactory().objectNode();
+	}
+	
+	private ArrayNode arrayNode() {
+		return objectMapper.getNodeFactory().arrayNode();
+	}
+	
+	private static String newUuid() {
+		return UUID.randomUUID().toString().replace("-", "");
+	}
+	/**
+	 * The decoded path segments and query parameters of an exchange. The request body is read up front
+	 * so that the connection can be reused whatever the response is.
+	 */
+	private class Request {
+		
+		final HttpExchange exchange;
+		final String[] path;
+		final Map<String, String> params = new HashMap<String, String>();
+		final byte[] content;
+		
+		Request(HttpExchange ex) throws IOException {
+			this.exchange = ex;
+			URI uri = ex.getRequestURI();
+			List<String> segments = new ArrayList<String>();
+			for (String s : uri.getRawPath().split("/")) {
+				if (s.length() > 0) {
+					segments.add(URLDecoder.decode(s, "UTF-8"));
+				}
+			}
+			path = segments.toArray(new String[segments.size()]);
+			if (uri.getRawQuery() != null) {
+				for (String p : uri.getRawQuery().split("&")) {
+					int i = p.indexOf('=');
+					if (i > 0) {
+						params.put(URLDecoder.decode(p.substring(0, i), "UTF-8"), URLDecoder.decode(p.substring(i + 1), "UTF-8"));
+					}
+				}
+			}
+			InputStream in = ex.getRequestBody();
+			if ("gzip".equalsIgnoreCase(ex.getRequestHeaders().getFirst("Content-Encoding"))) {
+				in = new GZIPInputStream(in);
+			}
+			content = IOUtils.toByteArray(in);
+		}
+		
+		boolean isMethod(String method) {
+			return exchange.getRequestMethod().equals(method);
+		}
+		
+		JsonNode body() throws IOException {
+			if (content.length == 0) {
+				throw new StubDatabase.Failure(400, "bad_request", "invalid UTF-8 JSON");
+			}
+			return objectMapper.readTree(new ByteArrayInputStream(content));
+		}
+		
+		String param(String name) {
+			return params.get(name);
+		}
+		
+		boolean booleanParam(String name) {
+			return "true".equals(params.get(name));
+		}
+		
+		int intParam(String name, int defaultValue) {
+			String v = params.get(name);
+			return v != null ? Integer.parseInt(v) : defaultValue;
+		}
+		
+		long longParam(String name, long defaultValue) {
+			String v = params.get(name);
+			return v != null ? Long.parseLong(v) : defaultValue;
+		}
+		
+		JsonNode jsonParam(String name) throws IOException {
+			String v = params.get(name);
+			return v != null ? objectMapper.readTree(v) : null;
+		}
+		
+		void reply(int code, JsonNode body) throws IOException {
+			send(exchange, code, body);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package org.ektorp.test.server;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.impl.*;
+import org.ektorp.support.*;
+import org.junit.*;
+
+public class StubCouchDbServerTest {
+	
+	StubCouchDbServer server;
+	CouchDbInstance dbInstance;
+	CouchDbConnector db;
+	
+	@Before
+	public void setUp() throws Exception {
+		server = new StubCouchDbServer();
+		server.start();
+		HttpClient httpClient = new StdHttpClient.Builder().host("127.0.0.1").port(server.getPort()).build();
+		dbInstance = new StdCouchDbInstance(httpClient);
+		db = new StdCouchDbConnector("stub_db", dbInstance);
+		db.createDatabaseIfNotExists();
+	}
+	
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+	
+	@Test
+	public void documents_should_be_stored_with_revisions() {
+		StubDoc d = doc("doc1", "nisse");
+		db.create(d);
+		assertTrue(d.getRevision().startsWith("1-"));
+		
+		StubDoc loaded = db.get(StubDoc.class, "doc1");
+		assertEquals("nisse", loaded.getName());
+		assertEquals(d.getRevision(), loaded.getRevision());
+		
+		loaded.setName("kalle");
+		db.update(loaded);
+		assertTrue(loaded.getRevision().startsWith("2-"));
+		
+		try {
+			db.update(d);
+			fail("stale revision should conflict");
+		} catch (UpdateConflictException e) {
+			// expected
+		}
+		
+		db.delete(loaded);
+		assertFalse(db.contains("doc1"));
+	}
+	
+	@Test(expected = DocumentExistsException.class)
+	public void existing_document_should_not_be_created_again() {
+		db.create(doc("doc1", "nisse"));
+		db.create(doc("doc1", "nisse"));
+	}
+	
+	@Test
+	public void databases_should_be_listed_and_created_once() {
+		db.createDatabaseIfNotExists();
+		assertEquals(Arrays.asList("stub_db"), dbInstance.getAllDatabases());
+	}
+	
+	@Test
+	public void bulk_documents_should_be_listed_by_all_docs() {
+		List<StubDoc> docs = Arrays.asList(doc("b", "2"), doc("a", "1"), doc("c", "3"));
+		List<DocumentOperationResult> result = db.executeBulk(docs);
+		assertTrue(result.isEmpty() || !result.get(0).isErroneous());
+		assertEquals(Arrays.asList("a", "b", "c"), db.getAllDocIds());
+		assertEquals(2, db.getAll(StubDoc.class, Arrays.asList("a", "c")).size());
+	}
+	
+	@Test
+	public void generated_views_should_be_queried() {
+		DesignDocument dd = new DesignDocument("_design/StubDoc");
+		dd.addView("by_name", new DesignDocument.View("function(doc) { if(doc.name) {emit(doc.name, doc._id)} }"));
+		db.create(dd);
+		db.executeBulk(Arrays.asList(doc("a", "nisse"), doc("b", "kalle"), doc("c", "nisse")));
+		
+		ViewQuery q = new ViewQuery().designDocId("_design/StubDoc").viewName("by_name").key("nisse").includeDocs(true);
+		List<StubDoc> nisses = db.queryView(q, StubDoc.class);
+		assertEquals(2, nisses.size());
+		assertEquals("a", nisses.get(0).getId());
+		assertEquals("c", nisses.get(1).getId());
+	}
+	
+	@Test
+	public void changes_should_report_latest_revision_per_document() {
+		StubDoc d = doc("a", "nisse");
+		db.create(d);
+		db.create(doc("b", "kalle"));
+		db.delete(d);
+		
+		List<DocumentChange> changes = db.changes(new ChangesCommand());
+		assertEquals(2, changes.size());
+		assertEquals("b", changes.get(0).getId());
+		assertEquals("a", changes.get(1).getId());
+		assertTrue(changes.get(1).isDeleted());
+		assertEquals(1, db.changes(new ChangesCommand().since(changes.get(0).getSequence())).size());
+	}
+	
+	@Test
+	public void continuous_feed_should_deliver_new_changes() throws Exception {
+		final BlockingQueue<DocumentChange> received = new LinkedBlockingQueue<DocumentChange>();
+		ChangesFeed feed = db.changesFeed(new ChangesCommand().feed(ChangesCommand.Feed.CONTINUOUS), new ChangesListener() {
+			@Override
+			public void onChanges(List<DocumentChange> changes) {
+				received.addAll(changes);
+			}
+		});
+		try {
+			db.create(doc("a", "nisse"));
+			DocumentChange c = received.poll(5, TimeUnit.SECONDS);
+			assertNotNull(c);
+			assertEquals("a", c.getId());
+		} finally {
+			feed.cancel();
+		}
+	}
+	
+	@Test
+	public void unchanged_document_should_be_revalidated_from_cache() {
+		StdCouchDbConnector cached = new StdCouchDbConnector("stub_db", dbInstance);
+		DocumentCache cache = new DocumentCache(10);
+		cached.setDocumentCache(cache);
+		db.create(doc("a", "nisse"));
+		
+		cached.get(StubDoc.class, "a");
+		assertEquals("nisse", cached.get(StubDoc.class, "a").getName());
+		assertEquals(1, cache.getHits());
+	}
+	
+	@Test
+	public void errors_should_be_injected() {
+		server.setErrorRate(1, 503);
+		try {
+			db.get(StubDoc.class, "a");
+			fail("error should have been injected");
+		} catch (DbAccessException e) {
+			// expected
+		}
+		assertEquals(1, server.getInjectedErrorCount());
+	}
+	
+	@Test
+	public void responses_should_be_delayed() {
+		server.setLatency(50, 50);
+		long start = System.currentTimeMillis();
+		db.getAllDocIds();
+		assertTrue(System.currentTimeMillis() - start >= 50);
+	}
+	
+	private static StubDoc doc(String id, String name) {
+		StubDoc d = new StubDoc();
+		d.setId(id);
+		d.setName(name);
+		return d;
+	}
+	
+	@SuppressWarnings("serial")
+	public static class StubDoc extends CouchDbDocument {
+		
+		private String name;
+		
+		public String getName() {
+			return name;
+		}
+		
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package org.ektorp.test.server;
+
+import java.util.*;
+
+import org.codehaus.jackson.*;
+import org.codehaus.jackson.node.*;
+import org.ektorp.util.*;
+/**
+ * The in-memory state of one database in the StubCouchDbServer.
+ *
+ * Only the latest revision of every document is kept. Deleted documents are kept as tombstones so that
+ * revisions and the changes feed behave as in CouchDB. Stored documents are never mutated, so they
+ * can be handed out without copying.
+ *
+ * @author henrik lundgren
+ *
+ */
+public class StubDatabase {
+	
+	private static final String ID_FIELD_NAME = "_id";
+	private static final String REV_FIELD_NAME = "_rev";
+	private static final String DELETED_FIELD_NAME = "_deleted";
+	private static final String DESIGN_DOC_PREFIX = "_design/";
+	
+	private final String name;
+	private final Map<String, ObjectNode> docs = new TreeMap<String, ObjectNode>();
+	private final TreeMap<Long, String> changes = new TreeMap<Long, String>();
+	private final Map<String, Long> sequenceById = new HashMap<String, Long>();
+	private final Map<String, StubView> views = new HashMap<String, StubView>();
+	private final Random random = new Random();
+	private long updateSequence;
+	
+	StubDatabase(String name) {
+		Assert.hasText(name, "name must have a value");
+		this.name = name;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public synchronized long getUpdateSequence() {
+		return updateSequence;
+	}
+	
+	public synchronized int getDocCount() {
+		int count = 0;
+		for (ObjectNode d : docs.values()) {
+			if (!isDeleted(d)) {
+				count++;
+			}
+		}
+		return count;
+	}
+	/**
+	 * @param id
+	 * @return null if the document does not exist or has been deleted.
+	 */
+	public synchronized ObjectNode get(String id) {
+		ObjectNode d = docs.get(id);
+		return d != null && !isDeleted(d) ? d : null;
+	}
+	/**
+	 * Stores a new revision of the document. The revision in the document must match the current
+	 * revision, unless the document is new or deleted.
+	 * @param id
+	 * @param doc
+	 * @return the new revision.
+	 * @throws Failure with code 409 if the revision does not match.
+	 */
+	public synchronized String put(String id, JsonNode doc) {
+		Assert.hasText(id, "id must have a value");
+		ObjectNode current = docs.get(id);
+		if (!doc.isObject()) {
+			throw new Failure(400, "bad_request", "Document must be a JSON object");
+		}
+		String rev = doc.get(REV_FIELD_NAME) != null ? doc.get(REV_FIELD_NAME).getTextValue() : null;
+		String currentRev = current != null ? revision(current) : null;
+		boolean live = current != null && !isDeleted(current);
+		// a deleted document may be recreated without a revision
+		if ((live || rev != null) && (currentRev == null || !currentRev.equals(rev))) {
+			throw new Failure(409, "conflict", "Document update conflict.");
+		}
+		boolean delete = doc.get(DELETED_FIELD_NAME) != null && doc.get(DELETED_FIELD_NAME).getBooleanValue();
+		if (delete && !live) {
+			throw new Failure(404, "not_found", "missing");
+		}
+		String newRev = nextRevision(current);
+		ObjectNode stored = JsonNodeFactory.instance.objectNode();
+		stored.put(ID_FIELD_NAME, id);
+		stored.put(REV_FIELD_NAME, newRev);
+		if (delete) {
+			stored.put(DELETED_FIELD_NAME, true);
+		} else {
+			for (Iterator<Map.Entry<String, JsonNode>> it = ((ObjectNode) doc).getFields(); it.hasNext();) {
+				Map.Entry<String, JsonNode> e = it.next();
+				if (!ID_FIELD_NAME.equals(e.getKey()) && !REV_FIELD_NAME.equals(e.getKey())) {
+					stored.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+		docs.put(id, stored);
+		Long previous = sequenceById.put(id, ++updateSequence);
+		if (previous != null) {
+			changes.remove(previous);
+		}
+		changes.put(updateSequence, id);
+		notifyAll();
+		return newRev;
+	}
+	
+	public synchronized String delete(String id, String rev) {
+		ObjectNode tombstone = JsonNodeFactory.instance.objectNode();
+		if (rev != null) {
+			tombstone.put(REV_FIELD_NAME, rev);
+		}
+		tombstone.put(DELETED_FIELD_NAME, true);
+		return put(id, tombstone);
+	}
+	/**
+	 * Registers a view that is used instead of the map function of the design document.
+	 * @param designDocId
+	 * @param viewName
+	 * @param view
+	 */
+	public synchronized void defineView(String designDocId, String viewName, StubView view) {
+		Assert.notNull(view, "view cannot be null");
+		views.put(designDocId + "/" + viewName, view);
+	}
+	/**
+	 * @param designDocId
+	 * @param viewName
+	 * @return null if the view is not defined or its map function is not supported.
+	 */
+	public synchronized StubView getView(String designDocId, String viewName) {
+		StubView v = views.get(designDocId + "/" + viewName);
+		if (v != null) {
+			return v;
+		}
+		JsonNode map = get(designDocId) != null ? get(designDocId).path("views").path(viewName).path("map") : null;
+		return map != null && map.isTextual() ? SimpleMapFunction.parse(map.getTextValue()) : null;
+	}
+	/**
+	 * @return one row per live document, ordered by id.
+	 */
+	public synchronized List<Row> allDocs() {
+		List<Row> rows = new ArrayList<Row>(docs.size());
+		for (ObjectNode d : docs.values()) {
+			if (!isDeleted(d)) {
+				ObjectNode value = JsonNodeFactory.instance.objectNode();
+				value.put("rev", revision(d));
+				rows.add(new Row(d.get(ID_FIELD_NAME).getTextValue(), d.get(ID_FIELD_NAME), value));
+			}
+		}
+		return rows;
+	}
+	/**
+	 * @param view
+	 * @return the rows emitted by the view for all live documents except design documents, in collation order.
+	 */
+	public synchronized List<Row> query(StubView view) {
+		final List<Row> rows = new ArrayList<Row>();
+		for (final ObjectNode d : docs.values()) {
+			final String id = d.get(ID_FIELD_NAME).getTextValue();
+			if (isDeleted(d) || id.startsWith(DESIGN_DOC_PREFIX)) {
+				continue;
+			}
+			view.map(d, new StubView.Emitter() {
+				@Override
+				public void emit(JsonNode key, JsonNode value) {
+					rows.add(new Row(id, key != null ? key : NullNode.getInstance(),
+							value != null ? value : NullNode.getInstance()));
+				}
+			});
+		}
+		Collections.sort(rows, ROW_ORDER);
+		return rows;
+	}
+	/**
+	 * @param since
+	 * @return the latest change of every document changed after since, in sequence order.
+	 */
+	public synchronized List<Change> changesSince(long since) {
+		List<Change> result = new ArrayList<Change>();
+		for (Map.Entry<Long, String> e : changes.tailMap(since, false).entrySet()) {
+			ObjectNode d = docs.get(e.getValue());
+			result.add(new Change(e.getKey(), e.getValue(), revision(d), isDeleted(d), d));
+		}
+		return result;
+	}
+	/**
+	 * Blocks until there are changes after since or the timeout has elapsed.
+	 * @param since
+	 * @param timeoutMillis
+	 * @return true if there are changes after since.
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitChanges(long since, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+		while (updateSequence <= since && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return updateSequence > since;
+	}
+	
+	private String nextRevision(ObjectNode current) {
+		int generation = 0;
+		if (current != null) {
+			String rev = revision(current);
+			generation = Integer.parseInt(rev.substring(0, rev.indexOf('-')));
+		}
+		return (generation + 1) + "-" + Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+	}
+	
+	private static String revision(ObjectNode d) {
+		return d.get(REV_FIELD_NAME).getTextValue();
+	}
+	
+	private static boolean isDeleted(ObjectNode d) {
+		return d.get(DELETED_FIELD_NAME) != null;
+	}
+	
+	public static class Row {
+		
+		private final String id;
+		private final JsonNode key;
+		private final JsonNode value;
+		
+		Row(String id, JsonNode key, JsonNode value) {
+			this.id = id;
+			this.key = key;
+			this.value = value;
+		}
+		
+		public String getId() {
+			return id;
+		}
+		
+		public JsonNode getKey() {
+			return key;
+		}
+		
+		public JsonNode getValue() {
+			return value;
+		}
+	}
+	
+	public static class Change {
+		
+		private final long sequence;
+		private final String id;
+		private final String revision;
+		private final boolean deleted;
+		private final JsonNode doc;
+		
+		Change(long sequence, String id, String revision, boolean deleted, JsonNode doc) {
+			this.sequence = sequence;
+			this.id = id;
+			this.revision = revision;
+			this.deleted = deleted;
+			this.doc = doc;
+		}
+		
+		public long getSequence() {
+			return sequence;
+		}
+		
+		public String getId() {
+			return id;
+		}
+		
+		public String getRevision() {
+			return revision;
+		}
+		
+		public boolean isDeleted() {
+			return deleted;
+		}
+		
+		public JsonNode getDoc() {
+			return doc;
+		}
+	}
+	/**
+	 * An error that is reported to the client with the given status code.
+	 */
+	public static class Failure extends RuntimeException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int code;
+		private final String error;
+		
+		public Failure(int code, String error, String reason) {
+			super(reason);
+			this.code = code;
+			this.error = error;
+		}
+		
+		public int getCode() {
+			return code;
+		}
+		
+		public String getError() {
+			return error;
+		}
+	}
+	
+	static final Comparator<JsonNode> COLLATION = new Comparator<JsonNode>() {
+		@Override
+		public int compare(JsonNode a, JsonNode b) {
+			int ta = typeOrder(a);
+			int tb = typeOrder(b);
+			if (ta != tb) {
+				return ta < tb ? -1 : 1;
+			}
+			switch (ta) {
+			case 1:
+				return (a.getBooleanValue() ? 1 : 0) - (b.getBooleanValue() ? 1 : 0);
+			case 2:
+				return Double.compare(a.getDoubleValue(), b.getDoubleValue());
+			case 3:
+				return a.getTextValue().compareTo(b.getTextValue());
+			case 4:
+				return compareElements(a.getElements(), b.getElements());
+			case 5:
+				return compareElements(a.getElements(), b.getElements());
+			default:
+				return 0;
+			}
+		}
+		
+		private int compareElements(Iterator<JsonNode> a, Iterator<JsonNode> b) {
+			while (a.hasNext() && b.hasNext()) {
+				int c = compare(a.next(), b.next());
+				if (c != 0) {
+					return c;
+				}
+			}
+			return a.hasNext() ? 1 : b.hasNext() ? -1 : 0;
+		}
+		
+		private int typeOrder(JsonNode n) {
+			if (n.isNull() || n.isMissingNode()) {
+				return 0;
+			} else if (n.isBoolean()) {
+				return 1;
+			} else if (n.isNumber()) {
+				return 2;
+			} else if (n.isTextual()) {
+				return 3;
+			} else if (n.isArray()) {
+				return 4;
+			}
+			return 5;
+		}
+	};
+	
+	private static final Comparator<Row> ROW_ORDER = new Comparator<Row>() {
+		@Override
+		public int compare(Row a, Row b) {
+			int c = COLLATION.compare(a.key, b.key);
+			return c != 0 ? c : a.id.compareTo(b.id);
+		}
+	};
+}
@@ -0,0 +1,17 @@
+package org.ektorp.test.server;
+
+import org.codehaus.jackson.*;
+/**
+ * A view's map function, written in Java as the stub server does not evaluate JavaScript.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public interface StubView {
+	
+	void map(JsonNode doc, Emitter emitter);
+	
+	public interface Emitter {
+		void emit(JsonNode key, JsonNode value);
+	}
+}
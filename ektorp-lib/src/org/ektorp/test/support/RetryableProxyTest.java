@@ -0,0 +1,67 @@
+package org.ektorp.test.support;
+
+import static org.junit.Assert.*;
+
+import org.ektorp.*;
+import org.ektorp.http.*;
+import org.ektorp.support.*;
+import org.junit.*;
+
+public class RetryableProxyTest {
+	
+	RetryPolicy policy = new RetryPolicy.Builder().maxAttempts(3).initialBackoffMillis(0).build();
+	
+	@Test
+	public void retryable_method_should_be_retried_on_conflict() {
+		ConflictingService target = new ConflictingService(2);
+		Service s = RetryableProxy.create(Service.class, target, policy);
+		assertEquals("done", s.update());
+		assertEquals(3, target.calls);
+	}
+	
+	@Test(expected = UpdateConflictException.class)
+	public void conflict_should_be_thrown_when_attempts_are_used_up() {
+		Service s = RetryableProxy.create(Service.class, new ConflictingService(3), policy);
+		s.update();
+	}
+	
+	@Test
+	public void other_methods_should_not_be_retried() {
+		ConflictingService target = new ConflictingService(1);
+		Service s = RetryableProxy.create(Service.class, target, policy);
+		try {
+			s.create();
+			fail("conflict should be thrown");
+		} catch (UpdateConflictException e) {
+			// expected
+		}
+		assertEquals(1, target.calls);
+	}
+	
+	public interface Service {
+		String update();
+		String create();
+	}
+	
+	public static class ConflictingService implements Service {
+		
+		final int conflicts;
+		int calls;
+		
+		ConflictingService(int conflicts) {
+			this.conflicts = conflicts;
+		}
+		
+		@Retryable
+		public String update() {
+			return create();
+		}
+		
+		public String create() {
+			if (++calls <= conflicts) {
+				throw new UpdateConflictException("doc", "1-abc");
+			}
+			return "done";
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package org.ektorp.test.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.channels.*;
+
+import org.apache.commons.io.*;
+import org.ektorp.util.ChannelUtils;
+import org.junit.*;
+
+public class ChannelUtilsTest {
+
+	File file;
+	
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("channelutils", ".tmp");
+		file.deleteOnExit();
+		FileUtils.writeStringToFile(file, "0123456789");
+	}
+	
+	@Test
+	public void file_channel_should_be_copied_from_its_position() throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel fc = in.getChannel();
+			fc.position(2);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assertEquals(5, ChannelUtils.copy(fc, Channels.newChannel(out), 5));
+			assertEquals("23456", out.toString());
+			assertEquals(7, fc.position());
+		} finally {
+			in.close();
+		}
+	}
+	
+	@Test
+	public void stream_should_be_copied_into_file_channel() throws IOException {
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			ReadableByteChannel src = Channels.newChannel(new ByteArrayInputStream("abc".getBytes()));
+			assertEquals(3, ChannelUtils.copy(src, out.getChannel(), -1));
+		} finally {
+			out.close();
+		}
+		assertEquals("0123456789abc", FileUtils.readFileToString(file));
+	}
+	
+	@Test
+	public void copy_between_streams_should_stop_at_length() throws IOException {
+		ReadableByteChannel src = Channels.newChannel(new ByteArrayInputStream("abcdef".getBytes()));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(4, ChannelUtils.copy(src, Channels.newChannel(out), 4));
+		assertEquals("abcd", out.toString());
+	}
+}
@@ -0,0 +1,22 @@
+package org.ektorp.test.util;
+
+import static org.junit.Assert.*;
+
+import java.nio.*;
+
+import org.ektorp.util.*;
+import org.junit.*;
+
+public class ThreadLocalBuffersTest {
+
+	@Test
+	public void direct_buffer_should_be_recycled_and_cleared() {
+		ByteBuffer buf = ThreadLocalBuffers.directBuffer();
+		assertTrue(buf.isDirect());
+		buf.put((byte) 1).limit(10);
+		ByteBuffer again = ThreadLocalBuffers.directBuffer();
+		assertSame(buf, again);
+		assertEquals(0, again.position());
+		assertEquals(again.capacity(), again.limit());
+	}
+}
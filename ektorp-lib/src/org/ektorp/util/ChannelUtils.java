@@ -0,0 +1,84 @@
+package org.ektorp.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+/**
+ * Copies between channels without intermediate heap arrays.
+ * 
+ * When one side is a FileChannel the copy is handed to FileChannel.transferTo / transferFrom, which
+ * lets the platform move the bytes directly where it can. Otherwise the calling thread's recycled direct buffer is used.
+ * 
+ * @author henrik lundgren
+ *
+ */
+public class ChannelUtils {
+
+	private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+	
+	private ChannelUtils() {}
+	/**
+	 * Copies until the source is exhausted or length bytes have been copied.
+	 * @param src
+	 * @param dst
+	 * @param length the number of bytes to copy, -1 copies the complete source.
+	 * @return the number of bytes copied.
+	 * @throws IOException
+	 */
+	public static long copy(ReadableByteChannel src, WritableByteChannel dst, long length) throws IOException {
+		if (src instanceof FileChannel) {
+			return transferTo((FileChannel) src, dst, length);
+		}
+		if (dst instanceof FileChannel) {
+			return transferFrom(src, (FileChannel) dst, length);
+		}
+		long total = 0;
+		ByteBuffer buf = ThreadLocalBuffers.directBuffer();
+		while (length < 0 || total < length) {
+			if (length >= 0 && length - total < buf.capacity()) {
+				buf.limit((int) (length - total));
+			}
+			int n = src.read(buf);
+			if (n < 0) {
+				break;
+			}
+			buf.flip();
+			while (buf.hasRemaining()) {
+				dst.write(buf);
+			}
+			buf.clear();
+			total += n;
+		}
+		return total;
+	}
+	
+	private static long transferTo(FileChannel src, WritableByteChannel dst, long length) throws IOException {
+		long start = src.position();
+		long end = length < 0 ? src.size() : Math.min(src.size(), start + length);
+		long pos = start;
+		while (pos < end) {
+			long n = src.transferTo(pos, Math.min(TRANSFER_CHUNK_SIZE, end - pos), dst);
+			if (n <= 0) {
+				break;
+			}
+			pos += n;
+		}
+		src.position(pos);
+		return pos - start;
+	}
+	
+	private static long transferFrom(ReadableByteChannel src, FileChannel dst, long length) throws IOException {
+		long start = dst.position();
+		long total = 0;
+		while (length < 0 || total < length) {
+			long chunk = length < 0 ? TRANSFER_CHUNK_SIZE : Math.min(TRANSFER_CHUNK_SIZE, length - total);
+			long n = dst.transferFrom(src, start + total, chunk);
+			if (n <= 0) {
+				break;
+			}
+			total += n;
+		}
+		dst.position(start + total);
+		return total;
+	}
+}
@@ -0,0 +1,38 @@
+package org.ektorp.util;
+
+import java.lang.ref.*;
+import java.nio.*;
+/**
+ * Per thread direct buffers that are recycled between copies instead of being allocated for each one.
+ *
+ * A buffer returned from this class belongs to the calling thread and is only valid until the same thread
+ * asks for a buffer again. It must therefore never be handed to another thread or kept after the copy.
+ *
+ * Buffers are held through soft references so that idle threads do not pin memory under pressure.
+ * Response bodies are not buffered here: documents are mapped straight from the stream, where Jackson
+ * recycles its own buffers.
+ *
+ * @author henrik lundgren
+ *
+ */
+public final class ThreadLocalBuffers {
+
+	private static final int DIRECT_BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<SoftReference<ByteBuffer>> DIRECT_BUFFERS = new ThreadLocal<SoftReference<ByteBuffer>>();
+
+	private ThreadLocalBuffers() {}
+	/**
+	 * @return this thread's direct buffer, cleared.
+	 */
+	public static ByteBuffer directBuffer() {
+		SoftReference<ByteBuffer> ref = DIRECT_BUFFERS.get();
+		ByteBuffer buf = ref != null ? ref.get() : null;
+		if (buf == null) {
+			buf = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+			DIRECT_BUFFERS.set(new SoftReference<ByteBuffer>(buf));
+		}
+		buf.clear();
+		return buf;
+	}
+}